@@ -0,0 +1,443 @@
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+//closed-loop http load generator for the clinicals api, needs only a JDK 17+:
+//  java perf/LoadDriver.java --base-url http://localhost:8080 --concurrency 500 --duration 60 --label platform
+//  java perf/LoadDriver.java --mix full --patients 1000000 --readings 500000000 --weights stream=1,bulk=0
+//each worker sends its next request as soon as the previous one completes. prints a human readable
+//summary (overall and per endpoint) followed by one json line, so runs can be collected and compared by scripts
+public class LoadDriver {
+
+    private static final Pattern ID = Pattern.compile("\"id\"\\s*:\\s*(\\d+)");
+    private static final Pattern RECEIPT_ID = Pattern.compile("\"receiptId\"\\s*:\\s*\"([^\"]+)\"");
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parse(args);
+        String baseUrl = options.getOrDefault("base-url", "http://localhost:8080");
+        int concurrency = Integer.parseInt(options.getOrDefault("concurrency", "200"));
+        int durationSeconds = Integer.parseInt(options.getOrDefault("duration", "60"));
+        int warmupSeconds = Integer.parseInt(options.getOrDefault("warmup", "10"));
+        int patients = Integer.parseInt(options.getOrDefault("patients", "10"));
+        long readings = Long.parseLong(options.getOrDefault("readings", "100"));
+        String mix = options.getOrDefault("mix", "read");
+        String label = options.getOrDefault("label", "run");
+
+        HttpClient client = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofSeconds(10))
+                .executor(Executors.newFixedThreadPool(Math.max(4, concurrency / 8)))
+                .build();
+        Dataset dataset = new Dataset(patients, readings);
+        List<Endpoint> endpoints = switch (mix) {
+            case "read" -> readMix(baseUrl);
+            case "full" -> fullMix(baseUrl);
+            default -> throw new IllegalArgumentException("Unknown mix " + mix + ", expected read or full");
+        };
+        endpoints = reweigh(endpoints, options.get("weights"));
+
+        System.out.printf("%s: warming up for %ds%n", label, warmupSeconds);
+        run(client, endpoints, dataset, concurrency, warmupSeconds);
+        System.out.printf("%s: measuring %d workers for %ds%n", label, concurrency, durationSeconds);
+        Result result = run(client, endpoints, dataset, concurrency, durationSeconds);
+        result.print(label, mix, concurrency, durationSeconds);
+        System.exit(0);
+    }
+
+    //a read-heavy mix like the dashboards produce, plus single reading writes
+    static List<Endpoint> readMix(String baseUrl) {
+        List<Endpoint> endpoints = new ArrayList<>();
+        endpoints.add(new Endpoint("patients.get", "GET /api/patients/{id}", 3,
+                d -> get(baseUrl + "/api/patients/" + d.patientId())));
+        endpoints.add(new Endpoint("patients.latest", "GET /api/patients/{id}/latest", 4,
+                d -> get(baseUrl + "/api/patients/" + d.patientId() + "/latest")));
+        endpoints.add(new Endpoint("clinicaldata.range", "GET /api/clinicaldata?patientId&componentName", 2,
+                d -> get(baseUrl + "/api/clinicaldata?patientId=" + d.patientId() + "&componentName=bp&size=50")));
+        endpoints.add(new Endpoint("clinicaldata.save", "POST /api/clinicaldata/clinicals", 1,
+                d -> post(baseUrl + "/api/clinicaldata/clinicals", reading(d.patientId()))));
+        return endpoints;
+    }
+
+    //every PatientController and ClinicalDataController endpoint. updates and deletes only touch rows this
+    //run created, so the generated dataset stays the same size from run to run. the full table export and
+    //POST /api/clinicaldata (which cannot attach a patient from json) are off unless given a weight
+    static List<Endpoint> fullMix(String baseUrl) {
+        List<Endpoint> endpoints = new ArrayList<>();
+        endpoints.add(new Endpoint("patients.list", "GET /api/patients?after&size", 2,
+                d -> get(baseUrl + "/api/patients?after=" + (d.patientId() - 1) + "&size=100")));
+        endpoints.add(new Endpoint("patients.get", "GET /api/patients/{id}", 6,
+                d -> get(baseUrl + "/api/patients/" + d.patientId())));
+        endpoints.add(new Endpoint("patients.clinicaldata", "GET /api/patients/{id}/clinicaldata", 3,
+                d -> get(baseUrl + "/api/patients/" + d.patientId() + "/clinicaldata?size=200")));
+        endpoints.add(new Endpoint("patients.latest", "GET /api/patients/{id}/latest", 8,
+                d -> get(baseUrl + "/api/patients/" + d.patientId() + "/latest")));
+        endpoints.add(new Endpoint("patients.create", "POST /api/patients", 1,
+                d -> post(baseUrl + "/api/patients", patient(d.patientId())),
+                (d, body) -> offerMatch(ID, body, d.createdPatients)));
+        endpoints.add(new Endpoint("patients.update", "PUT /api/patients/{id}", 1,
+                d -> d.take(d.createdPatients, id -> put(baseUrl + "/api/patients/" + id, patient(d.patientId()))),
+                (d, body) -> offerMatch(ID, body, d.createdPatients)));
+        endpoints.add(new Endpoint("patients.delete", "DELETE /api/patients/{id}", 1,
+                d -> d.take(d.createdPatients, id -> delete(baseUrl + "/api/patients/" + id))));
+
+        endpoints.add(new Endpoint("clinicaldata.list", "GET /api/clinicaldata?after&size", 2,
+                d -> get(baseUrl + "/api/clinicaldata?after=" + (d.readingId() - 1) + "&size=100")));
+        endpoints.add(new Endpoint("clinicaldata.range", "GET /api/clinicaldata?patientId&componentName", 6,
+                d -> get(baseUrl + "/api/clinicaldata?patientId=" + d.patientId() + "&componentName="
+                        + d.componentName() + "&size=50")));
+        endpoints.add(new Endpoint("clinicaldata.stream", "GET /api/clinicaldata/stream", 0,
+                d -> get(baseUrl + "/api/clinicaldata/stream")));
+        endpoints.add(new Endpoint("clinicaldata.get", "GET /api/clinicaldata/{id}", 6,
+                d -> get(baseUrl + "/api/clinicaldata/" + d.readingId())));
+        endpoints.add(new Endpoint("clinicaldata.create", "POST /api/clinicaldata", 0,
+                d -> post(baseUrl + "/api/clinicaldata", reading(d.patientId()))));
+        endpoints.add(new Endpoint("clinicaldata.save", "POST /api/clinicaldata/clinicals", 4,
+                d -> post(baseUrl + "/api/clinicaldata/clinicals", reading(d.patientId())),
+                (d, body) -> offerMatch(ID, body, d.createdReadings)));
+        endpoints.add(new Endpoint("clinicaldata.bulk", "POST /api/clinicaldata/clinicals/bulk", 1,
+                d -> post(baseUrl + "/api/clinicaldata/clinicals/bulk", bulk(d, 100))));
+        endpoints.add(new Endpoint("clinicaldata.async", "POST /api/clinicaldata/clinicals (respond-async)", 2,
+                d -> HttpRequest.newBuilder(URI.create(baseUrl + "/api/clinicaldata/clinicals"))
+                        .timeout(Duration.ofSeconds(30))
+                        .header("Content-Type", "application/json")
+                        .header("Prefer", "respond-async")
+                        .POST(HttpRequest.BodyPublishers.ofString(reading(d.patientId()))).build(),
+                (d, body) -> offerMatch(RECEIPT_ID, body, d.receipts)));
+        endpoints.add(new Endpoint("clinicaldata.receipt", "GET /api/clinicaldata/receipts/{receiptId}", 1,
+                d -> d.take(d.receipts, id -> get(baseUrl + "/api/clinicaldata/receipts/" + id))));
+        endpoints.add(new Endpoint("clinicaldata.update", "PUT /api/clinicaldata/{id}", 1,
+                d -> d.take(d.createdReadings, id -> put(baseUrl + "/api/clinicaldata/" + id,
+                        "{\"componentName\":\"heartrate\",\"componentValue\":\"" + d.heartRate()
+                                + "\",\"measuredDateTime\":\"" + Instant.now() + "\"}")),
+                (d, body) -> offerMatch(ID, body, d.createdReadings)));
+        endpoints.add(new Endpoint("clinicaldata.delete", "DELETE /api/clinicaldata/{id}", 1,
+                d -> d.take(d.createdReadings, id -> delete(baseUrl + "/api/clinicaldata/" + id))));
+        return endpoints;
+    }
+
+    //--weights name=weight,name=weight overrides the mix's weights, 0 turns an endpoint off
+    static List<Endpoint> reweigh(List<Endpoint> endpoints, String weights) {
+        Map<String, Integer> overrides = new HashMap<>();
+        if (weights != null) {
+            for (String pair : weights.split(",")) {
+                String[] parts = pair.split("=");
+                overrides.put(parts[0].trim(), Integer.parseInt(parts[1].trim()));
+            }
+        }
+        List<Endpoint> weighted = new ArrayList<>();
+        for (Endpoint endpoint : endpoints) {
+            int weight = overrides.getOrDefault(endpoint.key, endpoint.weight);
+            overrides.remove(endpoint.key);
+            if (weight > 0) {
+                weighted.add(new Endpoint(endpoint.key, endpoint.name, weight, endpoint.request, endpoint.onResponse));
+            }
+        }
+        if (!overrides.isEmpty()) {
+            throw new IllegalArgumentException("Unknown endpoints in --weights: " + overrides.keySet());
+        }
+        return weighted;
+    }
+
+    static String patient(int seed) {
+        return "{\"firstName\":\"Load\",\"lastName\":\"Test" + seed + "\",\"age\":" + (18 + seed % 70) + "}";
+    }
+
+    static String reading(int patientId) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String value = random.nextBoolean()
+                ? (60 + random.nextInt(30)) + "/" + (100 + random.nextInt(60))
+                : Integer.toString(50 + random.nextInt(70));
+        String componentName = value.indexOf('/') >= 0 ? "bp" : "heartrate";
+        return "{\"componentName\":\"" + componentName + "\",\"componentValue\":\"" + value + "\",\"patientId\":" + patientId + "}";
+    }
+
+    static String bulk(Dataset dataset, int size) {
+        StringJoiner items = new StringJoiner(",", "[", "]");
+        for (int i = 0; i < size; i++) {
+            items.add(reading(dataset.patientId()));
+        }
+        return items.toString();
+    }
+
+    static void offerMatch(Pattern pattern, String body, Queue<String> ids) {
+        Matcher matcher = pattern.matcher(body);
+        if (matcher.find()) {
+            ids.offer(matcher.group(1));
+        }
+    }
+
+    static HttpRequest get(String url) {
+        return HttpRequest.newBuilder(URI.create(url)).timeout(Duration.ofSeconds(30)).GET().build();
+    }
+
+    static HttpRequest post(String url, String json) {
+        return HttpRequest.newBuilder(URI.create(url)).timeout(Duration.ofSeconds(30))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(json)).build();
+    }
+
+    static HttpRequest put(String url, String json) {
+        return HttpRequest.newBuilder(URI.create(url)).timeout(Duration.ofSeconds(30))
+                .header("Content-Type", "application/json")
+                .PUT(HttpRequest.BodyPublishers.ofString(json)).build();
+    }
+
+    static HttpRequest delete(String url) {
+        return HttpRequest.newBuilder(URI.create(url)).timeout(Duration.ofSeconds(30)).DELETE().build();
+    }
+
+    static Result run(HttpClient client, List<Endpoint> endpoints, Dataset dataset, int concurrency, int seconds)
+            throws InterruptedException {
+        int totalWeight = endpoints.stream().mapToInt(e -> e.weight).sum();
+        AtomicBoolean stop = new AtomicBoolean();
+        CountDownLatch done = new CountDownLatch(concurrency);
+        List<Worker> workers = new ArrayList<>();
+        for (int i = 0; i < concurrency; i++) {
+            Worker worker = new Worker(client, endpoints, dataset, totalWeight, stop, done);
+            workers.add(worker);
+            Thread thread = new Thread(worker, "load-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        long start = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        stop.set(true);
+        done.await();
+        long elapsedNanos = System.nanoTime() - start;
+
+        Result result = new Result(endpoints, elapsedNanos);
+        for (Worker worker : workers) {
+            result.add(worker);
+        }
+        return result;
+    }
+
+    //request returns null when the endpoint has nothing to act on yet (say, no created rows to delete),
+    //the worker then rolls again. onResponse sees the body of 2xx responses
+    record Endpoint(String key, String name, int weight, Function<Dataset, HttpRequest> request,
+                    BiConsumer<Dataset, String> onResponse) {
+        Endpoint(String key, String name, int weight, Function<Dataset, HttpRequest> request) {
+            this(key, name, weight, request, null);
+        }
+    }
+
+    //the shape of the data the server was loaded with (see generate-dataset.sql: ids are dense from 1),
+    //plus the rows, patients and receipts created during the run
+    static class Dataset {
+        final int patients;
+        final long readings;
+        final Queue<String> createdPatients = new ConcurrentLinkedQueue<>();
+        final Queue<String> createdReadings = new ConcurrentLinkedQueue<>();
+        final Queue<String> receipts = new ConcurrentLinkedQueue<>();
+
+        Dataset(int patients, long readings) {
+            this.patients = patients;
+            this.readings = readings;
+        }
+
+        int patientId() {
+            return 1 + ThreadLocalRandom.current().nextInt(patients);
+        }
+
+        long readingId() {
+            return 1 + ThreadLocalRandom.current().nextLong(readings);
+        }
+
+        String componentName() {
+            return ThreadLocalRandom.current().nextBoolean() ? "bp" : "heartrate";
+        }
+
+        int heartRate() {
+            return 50 + ThreadLocalRandom.current().nextInt(70);
+        }
+
+        HttpRequest take(Queue<String> ids, Function<String, HttpRequest> request) {
+            String id = ids.poll();
+            return id == null ? null : request.apply(id);
+        }
+    }
+
+    static class Worker implements Runnable {
+        final HttpClient client;
+        final List<Endpoint> endpoints;
+        final Dataset dataset;
+        final int totalWeight;
+        final AtomicBoolean stop;
+        final CountDownLatch done;
+        final Recorder[] recorders;
+
+        Worker(HttpClient client, List<Endpoint> endpoints, Dataset dataset, int totalWeight, AtomicBoolean stop,
+               CountDownLatch done) {
+            this.client = client;
+            this.endpoints = endpoints;
+            this.dataset = dataset;
+            this.totalWeight = totalWeight;
+            this.stop = stop;
+            this.done = done;
+            this.recorders = new Recorder[endpoints.size()];
+            for (int i = 0; i < recorders.length; i++) {
+                recorders[i] = new Recorder();
+            }
+        }
+
+        @Override
+        public void run() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            try {
+                while (!stop.get()) {
+                    int index = pick(random.nextInt(totalWeight));
+                    Endpoint endpoint = endpoints.get(index);
+                    HttpRequest request = endpoint.request.apply(dataset);
+                    if (request == null) {
+                        continue;
+                    }
+                    long start = System.nanoTime();
+                    boolean error = false;
+                    try {
+                        if (endpoint.onResponse == null) {
+                            HttpResponse<Void> response = client.send(request, HttpResponse.BodyHandlers.discarding());
+                            error = response.statusCode() >= 500;
+                        } else {
+                            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+                            error = response.statusCode() >= 500;
+                            if (response.statusCode() < 300) {
+                                endpoint.onResponse.accept(dataset, response.body());
+                            }
+                        }
+                    } catch (Exception e) {
+                        error = true;
+                    }
+                    recorders[index].record(System.nanoTime() - start, error);
+                }
+            } finally {
+                done.countDown();
+            }
+        }
+
+        int pick(int roll) {
+            for (int i = 0; i < endpoints.size(); i++) {
+                roll -= endpoints.get(i).weight;
+                if (roll < 0) {
+                    return i;
+                }
+            }
+            return endpoints.size() - 1;
+        }
+    }
+
+    static class Recorder {
+        long[] latencies = new long[1024];
+        int count;
+        long errors;
+
+        void record(long nanos, boolean error) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = nanos;
+            if (error) {
+                errors++;
+            }
+        }
+
+        void addAll(Recorder other) {
+            latencies = Arrays.copyOf(latencies, count + other.count);
+            System.arraycopy(other.latencies, 0, latencies, count, other.count);
+            count += other.count;
+            errors += other.errors;
+        }
+
+        void sort() {
+            latencies = Arrays.copyOf(latencies, count);
+            Arrays.sort(latencies);
+        }
+
+        double percentileMillis(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile / 100.0 * count) - 1;
+            return latencies[Math.max(0, Math.min(index, count - 1))] / 1_000_000.0;
+        }
+
+        String json(double elapsedSeconds) {
+            return String.format("\"requests\":%d,\"errors\":%d,\"throughput\":%.1f,\"p50Ms\":%.3f,\"p90Ms\":%.3f,"
+                            + "\"p99Ms\":%.3f,\"p999Ms\":%.3f,\"maxMs\":%.3f",
+                    count, errors, count / elapsedSeconds, percentileMillis(50), percentileMillis(90),
+                    percentileMillis(99), percentileMillis(99.9), percentileMillis(100));
+        }
+    }
+
+    static class Result {
+        final List<Endpoint> endpoints;
+        final long elapsedNanos;
+        final Recorder total = new Recorder();
+        final Map<String, Recorder> perEndpoint = new LinkedHashMap<>();
+
+        Result(List<Endpoint> endpoints, long elapsedNanos) {
+            this.endpoints = endpoints;
+            this.elapsedNanos = elapsedNanos;
+            for (Endpoint endpoint : endpoints) {
+                perEndpoint.put(endpoint.key, new Recorder());
+            }
+        }
+
+        void add(Worker worker) {
+            for (int i = 0; i < endpoints.size(); i++) {
+                perEndpoint.get(endpoints.get(i).key).addAll(worker.recorders[i]);
+                total.addAll(worker.recorders[i]);
+            }
+        }
+
+        void print(String label, String mix, int concurrency, int durationSeconds) {
+            double elapsedSeconds = elapsedNanos / 1e9;
+            total.sort();
+            perEndpoint.values().forEach(Recorder::sort);
+            System.out.printf("%s: %d requests, %.1f req/s, %d errors%n", label, total.count, total.count / elapsedSeconds, total.errors);
+            System.out.printf("%s: latency ms p50=%.2f p90=%.2f p99=%.2f p99.9=%.2f max=%.2f%n", label,
+                    total.percentileMillis(50), total.percentileMillis(90), total.percentileMillis(99),
+                    total.percentileMillis(99.9), total.percentileMillis(100));
+            System.out.printf("%-52s %9s %7s %9s %9s %9s %9s%n", "endpoint", "requests", "errors", "req/s", "p50 ms", "p99 ms", "max ms");
+            for (Endpoint endpoint : endpoints) {
+                Recorder recorder = perEndpoint.get(endpoint.key);
+                System.out.printf("%-52s %9d %7d %9.1f %9.2f %9.2f %9.2f%n", endpoint.name, recorder.count, recorder.errors,
+                        recorder.count / elapsedSeconds, recorder.percentileMillis(50), recorder.percentileMillis(99),
+                        recorder.percentileMillis(100));
+            }
+            StringJoiner endpointJson = new StringJoiner(",", "{", "}");
+            perEndpoint.forEach((key, recorder) -> endpointJson.add("\"" + key + "\":{" + recorder.json(elapsedSeconds) + "}"));
+            System.out.printf("{\"label\":\"%s\",\"mix\":\"%s\",\"concurrency\":%d,\"durationSeconds\":%d,%s,\"endpoints\":%s}%n",
+                    label, mix, concurrency, durationSeconds, total.json(elapsedSeconds), endpointJson);
+        }
+    }
+
+    static Map<String, String> parse(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Expected --option value pairs, got " + args[i]);
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        return options;
+    }
+}
@@ -0,0 +1,60 @@
+#!/usr/bin/env bash
+# Throughput of the csv export and import endpoints on the docker postgres from perf/load-test.sh:
+# exports the whole clinicaldata table, imports the file back (as new rows), then removes the imported rows.
+# The ndjson stream endpoint is timed too, as the JPA baseline for the export.
+#
+#   PATIENTS=10000 READINGS_PER_PATIENT=100 perf/copy-round-trip.sh      # 1M rows
+#
+# Results go to target/bench/copy-round-trip.jsonl, one json line per run.
+set -euo pipefail
+
+cd "$(dirname "$0")/.."
+PATIENTS=${PATIENTS:-10000}
+READINGS_PER_PATIENT=${READINGS_PER_PATIENT:-100}
+PORT=${PORT:-8089}
+OUT=target/bench
+COMPOSE="docker compose -f perf/docker-compose.yml"
+mkdir -p "$OUT"
+
+$COMPOSE up -d --wait
+psql_() {
+    $COMPOSE exec -T postgres psql -v ON_ERROR_STOP=1 -U clinicals -d clinicals "$@"
+}
+
+loaded=$(psql_ -Atc "select count(*) from clinicaldata" | tr -d '\r')
+if [ "$loaded" != "$((PATIENTS * READINGS_PER_PATIENT))" ]; then
+    echo "generating $PATIENTS patients x $READINGS_PER_PATIENT readings"
+    psql_ -v patients="$PATIENTS" -v readings_per_patient="$READINGS_PER_PATIENT" < perf/generate-dataset.sql
+fi
+max_id=$(psql_ -Atc "select coalesce(max(id), 0) from clinicaldata" | tr -d '\r')
+
+./mvnw -q -B -DskipTests package
+JAR=$(ls target/clinicalsapi-*.jar | grep -v original | head -1)
+java -jar "$JAR" --server.port="$PORT" --spring.profiles.active=loadtest > "$OUT/app-copy-round-trip.log" 2>&1 &
+app=$!
+trap 'kill $app 2>/dev/null || true' EXIT
+until curl -sf "http://localhost:$PORT/actuator/health" > /dev/null; do
+    kill -0 $app 2>/dev/null || { echo "application failed to start, see $OUT/app-copy-round-trip.log"; exit 1; }
+    sleep 1
+done
+
+base="http://localhost:$PORT/api/clinicaldata"
+seconds() {
+    local started=$(date +%s.%N)
+    "$@"
+    echo "$(date +%s.%N) - $started" | bc
+}
+
+stream_s=$(seconds curl -sf -o /dev/null "$base/stream")
+export_s=$(seconds curl -sf -o "$OUT/clinicaldata.csv" "$base/export")
+rows=$(($(wc -l < "$OUT/clinicaldata.csv") - 1))
+bytes=$(wc -c < "$OUT/clinicaldata.csv")
+import_s=$(seconds curl -sf -o "$OUT/import-result.json" -H 'Content-Type: text/csv' --data-binary @"$OUT/clinicaldata.csv" "$base/import")
+cat "$OUT/import-result.json"; echo
+
+psql_ -c "delete from clinicaldata where id > $max_id" > /dev/null
+psql_ -c "vacuum analyze clinicaldata" > /dev/null
+
+line=$(printf '{"rows":%d,"bytes":%d,"stream_s":%.2f,"export_s":%.2f,"import_s":%.2f,"export_rows_per_s":%.0f,"import_rows_per_s":%.0f}' \
+    "$rows" "$bytes" "$stream_s" "$export_s" "$import_s" "$(echo "$rows / $export_s" | bc -l)" "$(echo "$rows / $import_s" | bc -l)")
+echo "$line" | tee -a "$OUT/copy-round-trip.jsonl"
@@ -0,0 +1,106 @@
+-- Replaces the contents of the clinicals database with a synthetic dataset of the given size.
+-- Readings have the same shapes as the seed file: bp as "diastolic/systolic" and heartrate as a single
+-- number, alternating reading by reading and spread over the last two years. Ids are dense from 1, which is what
+-- perf/LoadDriver.java assumes when it picks ids (--patients and --readings).
+--
+--   psql -h localhost -p 5433 -U clinicals -d clinicals \
+--        -v patients=1000000 -v readings_per_patient=500 -f perf/generate-dataset.sql
+--
+-- 1M patients x 500 readings is 500M rows, about 60GB with the index; plan on an hour or more.
+-- Readings are committed every chunk_patients patients to keep transactions and WAL bounded; an
+-- interrupted run leaves a partial dataset, rerun from the start.
+\set ON_ERROR_STOP on
+\if :{?patients}
+\else
+\set patients 10000
+\endif
+\if :{?readings_per_patient}
+\else
+\set readings_per_patient 100
+\endif
+\if :{?chunk_patients}
+\else
+\set chunk_patients 10000
+\endif
+
+SELECT set_config('clinicals.patients', :'patients', false),
+       set_config('clinicals.readings_per_patient', :'readings_per_patient', false),
+       set_config('clinicals.chunk_patients', :'chunk_patients', false);
+
+-- same random numbers on every run, so results from different builds are comparable
+SELECT setseed(0.42);
+
+-- load without the secondary index and the foreign key, then build them once at the end
+TRUNCATE clinicaldata_rollup, clinicaldata, patient;
+DROP INDEX IF EXISTS idx_clinicaldata_patient_component_time;
+ALTER TABLE clinicaldata DROP CONSTRAINT IF EXISTS fk_patient;
+
+-- a partition for every month the readings span, so none of them go to clinicaldata_default
+SELECT clinicaldata_create_partitions((localtimestamp - interval '2 years 1 month')::date,
+                                      (localtimestamp + interval '3 months')::date);
+
+INSERT INTO patient (id, first_name, last_name, age)
+SELECT i,
+       (ARRAY['John','Siva','Anthony','Bruce','Abhram','Gandhi','Antti','Simba','Rose','Rowling'])[1 + i % 10],
+       (ARRAY['Mccain','Shankar','Simon','Sanhurst','Mani','Singh','Krovinan','White','Tanic','Lte'])[1 + (i / 10) % 10],
+       1 + floor(random() * 95)::int
+FROM generate_series(1, :patients) AS i;
+
+DO $$
+DECLARE
+    patients int := current_setting('clinicals.patients')::int;
+    per_patient int := current_setting('clinicals.readings_per_patient')::int;
+    chunk int := current_setting('clinicals.chunk_patients')::int;
+    span_seconds double precision := 2 * 365 * 24 * 3600;
+    lo int := 1;
+BEGIN
+    IF patients::bigint * per_patient > 2147483647 THEN
+        RAISE EXCEPTION 'clinicaldata.id is an int, % readings do not fit', patients::bigint * per_patient;
+    END IF;
+    WHILE lo <= patients LOOP
+        INSERT INTO clinicaldata (id, patient_id, component_name, component_value, measured_date_time,
+                                  primary_value, secondary_value, unit)
+        SELECT (p - 1) * per_patient + r,
+               p,
+               v.component_name,
+               CASE v.component_name WHEN 'bp' THEN v.diastolic || '/' || v.systolic ELSE v.rate::text END,
+               v.measured_date_time,
+               CASE v.component_name WHEN 'bp' THEN v.systolic ELSE v.rate END,
+               CASE v.component_name WHEN 'bp' THEN v.diastolic END,
+               CASE v.component_name WHEN 'bp' THEN 'mmHg' ELSE 'bpm' END
+        FROM generate_series(lo, least(lo + chunk - 1, patients)) AS p,
+             generate_series(1, per_patient) AS r,
+             LATERAL (SELECT CASE WHEN r % 2 = 1 THEN 'bp' ELSE 'heartrate' END AS component_name,
+                             60 + floor(random() * 30)::int AS diastolic,
+                             100 + floor(random() * 60)::int AS systolic,
+                             50 + floor(random() * 70)::int AS rate,
+                             localtimestamp - make_interval(secs => (per_patient - r) * span_seconds / per_patient
+                                                                    + random() * 3600) AS measured_date_time) AS v;
+        COMMIT;
+        RAISE NOTICE 'patients % to % loaded', lo, least(lo + chunk - 1, patients);
+        lo := lo + chunk;
+    END LOOP;
+END
+$$;
+
+CREATE INDEX idx_clinicaldata_patient_component_time ON clinicaldata (patient_id, component_name, measured_date_time DESC);
+ALTER TABLE clinicaldata ADD CONSTRAINT fk_patient FOREIGN KEY (patient_id) REFERENCES patient(id);
+
+-- new rows from the application continue after the generated ids (clinicaldata_seq hands out 50 at a time)
+SELECT setval('patient_seq', :patients + 1);
+SELECT setval('clinicaldata_seq', :patients::bigint * :readings_per_patient + 1);
+
+INSERT INTO clinicaldata_rollup
+SELECT patient_id, component_name, 'HOUR', date_trunc('hour', measured_date_time), count(*),
+       min(primary_value), max(primary_value), sum(primary_value), min(secondary_value), max(secondary_value), sum(secondary_value)
+FROM clinicaldata WHERE primary_value IS NOT NULL AND measured_date_time IS NOT NULL
+GROUP BY patient_id, component_name, date_trunc('hour', measured_date_time);
+INSERT INTO clinicaldata_rollup
+SELECT patient_id, component_name, 'DAY', date_trunc('day', measured_date_time), count(*),
+       min(primary_value), max(primary_value), sum(primary_value), min(secondary_value), max(secondary_value), sum(secondary_value)
+FROM clinicaldata WHERE primary_value IS NOT NULL AND measured_date_time IS NOT NULL
+GROUP BY patient_id, component_name, date_trunc('day', measured_date_time);
+
+VACUUM ANALYZE patient;
+VACUUM ANALYZE clinicaldata;
+VACUUM ANALYZE clinicaldata_rollup;
@@ -0,0 +1,59 @@
+#!/usr/bin/env bash
+# End to end load test: a postgres in docker, a generated dataset, the application, and LoadDriver
+# stepping through increasing concurrency with every PatientController and ClinicalDataController endpoint.
+#
+#   PATIENTS=1000000 READINGS_PER_PATIENT=500 CONCURRENCY_LEVELS="50 200 800" perf/load-test.sh
+#
+# The dataset is only regenerated when its size changes (GENERATE=always forces it, GENERATE=never skips it).
+# Results go to target/bench/load-test.jsonl, one json line per concurrency level with per endpoint
+# throughput and latency percentiles; compare that file between builds to spot scaling regressions.
+# Endpoint weights can be changed with WEIGHTS, e.g. WEIGHTS="clinicaldata.stream=1,clinicaldata.bulk=0".
+set -euo pipefail
+
+cd "$(dirname "$0")/.."
+PATIENTS=${PATIENTS:-10000}
+READINGS_PER_PATIENT=${READINGS_PER_PATIENT:-100}
+CONCURRENCY_LEVELS=${CONCURRENCY_LEVELS:-"25 100 400"}
+DURATION=${DURATION:-60}
+WARMUP=${WARMUP:-15}
+WEIGHTS=${WEIGHTS:-}
+GENERATE=${GENERATE:-auto}
+PORT=${PORT:-8089}
+OUT=target/bench
+COMPOSE="docker compose -f perf/docker-compose.yml"
+mkdir -p "$OUT"
+: > "$OUT/load-test.jsonl"
+
+$COMPOSE up -d --wait
+psql_() {
+    $COMPOSE exec -T postgres psql -v ON_ERROR_STOP=1 -U clinicals -d clinicals "$@"
+}
+
+loaded=$(psql_ -Atc "select count(*) || 'x' || coalesce(max(id), 0) from patient" | tr -d '\r')
+if [ "$GENERATE" = always ] || { [ "$GENERATE" = auto ] && [ "$loaded" != "${PATIENTS}x${PATIENTS}" ]; }; then
+    echo "generating $PATIENTS patients x $READINGS_PER_PATIENT readings"
+    psql_ -v patients="$PATIENTS" -v readings_per_patient="$READINGS_PER_PATIENT" < perf/generate-dataset.sql
+fi
+READINGS=$(psql_ -Atc "select coalesce(max(id), 1) from clinicaldata" | tr -d '\r')
+
+./mvnw -q -B -DskipTests package
+JAR=$(ls target/clinicalsapi-*.jar | grep -v original | head -1)
+java -jar "$JAR" --server.port="$PORT" --spring.profiles.active=loadtest > "$OUT/app-load-test.log" 2>&1 &
+app=$!
+trap 'kill $app 2>/dev/null || true' EXIT
+until curl -sf "http://localhost:$PORT/actuator/health" > /dev/null; do
+    kill -0 $app 2>/dev/null || { echo "application failed to start, see $OUT/app-load-test.log"; exit 1; }
+    sleep 1
+done
+
+for concurrency in $CONCURRENCY_LEVELS; do
+    args=(--base-url "http://localhost:$PORT" --mix full --patients "$PATIENTS" --readings "$READINGS"
+          --concurrency "$concurrency" --duration "$DURATION" --warmup "$WARMUP" --label "c$concurrency")
+    if [ -n "$WEIGHTS" ]; then
+        args+=(--weights "$WEIGHTS")
+    fi
+    java perf/LoadDriver.java "${args[@]}" | tee "$OUT/load-test-c$concurrency.txt"
+    tail -1 "$OUT/load-test-c$concurrency.txt" >> "$OUT/load-test.jsonl"
+done
+
+echo "results: $OUT/load-test.jsonl"
@@ -0,0 +1,100 @@
+#!/usr/bin/env bash
+# Compares startup of the default jar with the fast-startup build (Spring AOT, the lazy 'fast' profile and an
+# AppCDS archive): time from launching the JVM to the first served GET /api/patients, and the resident set size
+# right after it.
+#
+# Needs a local PostgreSQL loaded with src/main/resources/static/clinicals.sql, reachable with the datasource
+# settings in application.properties (override with SPRING_DATASOURCE_* env vars). Every run is a fresh JVM;
+# results go to target/bench/startup.jsonl, one json line per run and a median line per mode.
+#
+#   RUNS=10 perf/startup-benchmark.sh
+#
+# The CDS archive comes from a training run that starts the fast build, serves a few requests and shuts down;
+# it is only valid for the same jar, classpath and JDK, so it is made again on every run of this script
+# (deployments should make it the same way, at image build time).
+set -euo pipefail
+
+cd "$(dirname "$0")/.."
+RUNS=${RUNS:-5}
+PORT=${PORT:-8089}
+OUT=target/bench
+BASE_URL="http://localhost:$PORT"
+FAST_DIR=target/fast-startup
+ARCHIVE=$FAST_DIR/application.jsa
+mkdir -p "$OUT"
+: > "$OUT/startup.jsonl"
+
+./mvnw -q -B -DskipTests package
+cp "$(ls target/clinicalsapi-*.jar | grep -v original | head -1)" "$OUT/clinicalsapi-default.jar"
+./mvnw -q -B -Pfast-startup -DskipTests package
+FAST_JAR=$(ls $FAST_DIR/clinicalsapi-*.jar | head -1)
+
+launch() {
+    local mode=$1 log=$2
+    shift 2
+    if [ "$mode" = default ]; then
+        java "$@" -jar "$OUT/clinicalsapi-default.jar" --server.port="$PORT" > "$log" 2>&1 &
+    else
+        SPRING_PROFILES_ACTIVE=fast java "$@" -Dspring.aot.enabled=true -jar "$FAST_JAR" --server.port="$PORT" > "$log" 2>&1 &
+    fi
+    app=$!
+    trap 'kill $app 2>/dev/null || true' EXIT
+}
+
+await_first_request() {
+    local log=$1
+    until curl -sf -o /dev/null "$BASE_URL/api/patients?size=1"; do
+        kill -0 $app 2>/dev/null || { echo "application failed to start, see $log"; exit 1; }
+        sleep 0.02
+    done
+}
+
+stop() {
+    kill $app
+    wait $app 2>/dev/null || true
+    trap - EXIT
+}
+
+median() {
+    printf '%s\n' "$@" | sort -n | sed -n "$(( ($# + 1) / 2 ))p"
+}
+
+# training run: the classes loaded while starting and serving the usual requests are written to the archive
+# when the JVM exits
+rm -f "$ARCHIVE"
+launch fast "$OUT/app-training.log" -XX:ArchiveClassesAtExit="$ARCHIVE"
+await_first_request "$OUT/app-training.log"
+for path in "/api/patients/1" "/api/patients/1/clinicaldata" "/api/patients/1/latest" "/api/clinicaldata?size=10" \
+        "/api/patients/search?q=a" "/actuator/health"; do
+    curl -s -o /dev/null "$BASE_URL$path" || true
+done
+stop
+[ -f "$ARCHIVE" ] || { echo "no CDS archive was written, see $OUT/app-training.log"; exit 1; }
+
+for mode in default fast; do
+    ttfr=()
+    rss=()
+    for run in $(seq "$RUNS"); do
+        log="$OUT/app-startup-$mode.log"
+        start=$(date +%s%N)
+        if [ "$mode" = default ]; then
+            launch default "$log"
+        else
+            launch fast "$log" -XX:SharedArchiveFile="$ARCHIVE"
+        fi
+        await_first_request "$log"
+        ms=$(( ($(date +%s%N) - start) / 1000000 ))
+        mb=$(( $(ps -o rss= -p $app) / 1024 ))
+        started=$(sed -nE 's/.*Started ClinicalsapiApplication in ([0-9.]+) seconds.*/\1/p' "$log" | head -1)
+        stop
+        ttfr+=("$ms")
+        rss+=("$mb")
+        echo "$mode run $run: first request after ${ms} ms, rss ${mb} MB, spring reported ${started:-?} s"
+        printf '{"mode":"%s","run":%d,"timeToFirstRequestMs":%d,"rssMb":%d,"startedInSeconds":%s}\n' \
+            "$mode" "$run" "$ms" "$mb" "${started:-null}" >> "$OUT/startup.jsonl"
+    done
+    printf '{"mode":"%s","runs":%d,"medianTimeToFirstRequestMs":%d,"medianRssMb":%d}\n' \
+        "$mode" "$RUNS" "$(median "${ttfr[@]}")" "$(median "${rss[@]}")" | tee -a "$OUT/startup.jsonl"
+done
+
+echo "results: $OUT/startup.jsonl"
@@ -0,0 +1,55 @@
+#!/usr/bin/env bash
+# Compares platform-thread and virtual-thread request handling at high concurrency.
+#
+# Needs a JDK 21 on the PATH and a local PostgreSQL loaded with src/main/resources/static/clinicals.sql,
+# reachable with the datasource settings in application.properties (override with SPRING_DATASOURCE_* env vars).
+# Each mode gets a fresh JVM; results go to target/bench/virtual-threads.jsonl, one json line per mode.
+#
+#   CONCURRENCY=1000 DURATION=120 perf/virtual-threads-benchmark.sh
+#
+# To reproduce a slow database, add latency on the loopback before running, e.g.
+#   sudo tc qdisc add dev lo root netem delay 20ms   (remove with: sudo tc qdisc del dev lo root)
+set -euo pipefail
+
+cd "$(dirname "$0")/.."
+CONCURRENCY=${CONCURRENCY:-500}
+DURATION=${DURATION:-60}
+WARMUP=${WARMUP:-15}
+PORT=${PORT:-8089}
+OUT=target/bench
+mkdir -p "$OUT"
+: > "$OUT/virtual-threads.jsonl"
+
+./mvnw -q -B -Pjava21 -DskipTests package
+JAR=$(ls target/clinicalsapi-*.jar | grep -v original | head -1)
+
+for mode in platform virtual; do
+    profiles=""
+    if [ "$mode" = virtual ]; then
+        profiles="--spring.profiles.active=virtual"
+    fi
+    # jdk.tracePinnedThreads prints a stack whenever a virtual thread blocks while pinned to its carrier;
+    # /actuator/metrics is exposed here because the peak thread count is read from it below
+    java -Djdk.tracePinnedThreads=short -jar "$JAR" --server.port="$PORT" $profiles \
+        --management.endpoints.web.exposure.include=health,metrics > "$OUT/app-$mode.log" 2>&1 &
+    app=$!
+    trap 'kill $app 2>/dev/null || true' EXIT
+    until curl -sf "http://localhost:$PORT/actuator/health" > /dev/null; do
+        kill -0 $app 2>/dev/null || { echo "application failed to start, see $OUT/app-$mode.log"; exit 1; }
+        sleep 1
+    done
+
+    java perf/LoadDriver.java --base-url "http://localhost:$PORT" --concurrency "$CONCURRENCY" \
+        --duration "$DURATION" --warmup "$WARMUP" --label "$mode" | tee "$OUT/load-$mode.txt"
+    tail -1 "$OUT/load-$mode.txt" >> "$OUT/virtual-threads.jsonl"
+
+    peak=$(curl -sf "http://localhost:$PORT/actuator/metrics/jvm.threads.peak" | sed -E 's/.*"value":([0-9.]+).*/\1/')
+    pinned=$(grep -c "reason:MONITOR\|<== monitors" "$OUT/app-$mode.log" || true)
+    echo "$mode: peak platform threads $peak, pinned virtual thread reports $pinned"
+
+    kill $app
+    wait $app 2>/dev/null || true
+    trap - EXIT
+done
+
+echo "results: $OUT/virtual-threads.jsonl"
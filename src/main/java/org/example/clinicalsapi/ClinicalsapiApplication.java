@@ -2,8 +2,10 @@ package org.example.clinicalsapi;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 @SpringBootApplication
+@EnableScheduling
 public class ClinicalsapiApplication {
 
     public static void main(String[] args) {
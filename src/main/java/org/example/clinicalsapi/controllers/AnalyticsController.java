@@ -0,0 +1,92 @@
+package org.example.clinicalsapi.controllers;
+
+import org.example.clinicalsapi.dto.CohortResult;
+import org.example.clinicalsapi.dto.ComponentTrend;
+import org.example.clinicalsapi.dto.PopulationAnalytics;
+import org.example.clinicalsapi.services.CohortSnapshot;
+import org.example.clinicalsapi.services.PatientIdIndex;
+import org.example.clinicalsapi.services.VitalsAnalytics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+@RestController
+@RequestMapping("/api/analytics")
+@CrossOrigin(origins = "*")
+public class AnalyticsController {
+
+    private static final Logger logger = LoggerFactory.getLogger(AnalyticsController.class);
+
+    @Autowired
+    private VitalsAnalytics vitalsAnalytics;
+
+    @Autowired
+    private PatientIdIndex patientIdIndex;
+
+    @Autowired
+    private CohortSnapshot cohortSnapshot;
+
+    //every component of a patient with its readings, moving averages over the last window readings and out of range flags
+    @GetMapping("/patients/{patientId}")
+    public List<ComponentTrend> getPatientTrends(@PathVariable int patientId,
+                                                 @RequestParam(defaultValue = "5") int window,
+                                                 @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Date from,
+                                                 @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Date to) {
+        logger.info("Analysing trends of patient id: {}", patientId);
+        checkWindow(window);
+        if (!patientIdIndex.contains(patientId)) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Patient with id " + patientId + " not found");
+        }
+        return vitalsAnalytics.patient(patientId, window, from, to);
+    }
+
+    //totals per component over every patient, and the trends of up to limit patients with out of range readings
+    @GetMapping("/population")
+    public PopulationAnalytics getPopulationAnalytics(@RequestParam(defaultValue = "5") int window,
+                                                      @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Date from,
+                                                      @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Date to,
+                                                      @RequestParam(defaultValue = "1000") int limit) {
+        logger.info("Analysing trends of the whole population");
+        checkWindow(window);
+        if (limit < 0) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "limit must not be negative");
+        }
+        return vitalsAnalytics.population(window, from, to, limit);
+    }
+
+    //the patients meeting every condition, e.g. ?where=age>50,bp>140,heartrate>100 (url encoded), evaluated against
+    //each patient's age and latest reading per component in memory. fields are age, a componentName or
+    //componentName.secondary; with since, only latest readings measured from then on count
+    @GetMapping("/cohort")
+    public CohortResult getCohort(@RequestParam List<String> where,
+                                  @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Date since,
+                                  @RequestParam(defaultValue = "1000") int limit) {
+        logger.info("Querying the cohort {}", where);
+        if (limit < 0) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "limit must not be negative");
+        }
+        List<CohortSnapshot.Condition> conditions = new ArrayList<>();
+        for (String condition : where) {
+            try {
+                conditions.add(CohortSnapshot.Condition.parse(condition));
+            } catch (IllegalArgumentException e) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+            }
+        }
+        return cohortSnapshot.query(conditions, since, limit);
+    }
+
+    private static void checkWindow(int window) {
+        if (window < 1 || window > VitalsAnalytics.MAX_WINDOW) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "window must be between 1 and " + VitalsAnalytics.MAX_WINDOW);
+        }
+    }
+}
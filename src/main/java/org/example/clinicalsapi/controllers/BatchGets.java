@@ -0,0 +1,59 @@
+package org.example.clinicalsapi.controllers;
+
+import org.example.clinicalsapi.repos.SparseFieldsetRepository;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+//helpers for the ?ids= batch gets: one IN query for up to MAX_IDS ids, answered in the order asked, ids that
+//do not exist are left out. fields= narrows each item to the named fields (id is always there)
+final class BatchGets {
+
+    static final int MAX_IDS = 500;
+
+    private BatchGets() {
+    }
+
+    //the distinct ids in the order given; 400 when there are none or too many
+    static List<Integer> ids(List<Integer> ids) {
+        Set<Integer> distinct = new LinkedHashSet<>(ids);
+        distinct.remove(null);
+        if (distinct.isEmpty() || distinct.size() > MAX_IDS) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Between 1 and " + MAX_IDS + " ids are allowed");
+        }
+        return new ArrayList<>(distinct);
+    }
+
+    //null when no fields were asked for, which means the full representation; 400 on an unknown field
+    static Set<String> fields(List<String> fields, SparseFieldsetRepository.Resource resource) {
+        if (fields == null || fields.isEmpty()) {
+            return null;
+        }
+        Set<String> requested = new LinkedHashSet<>();
+        for (String field : fields) {
+            String name = field.trim();
+            if (!resource.fieldNames().contains(name)) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                        "Unknown field " + name + ", expected some of " + resource.fieldNames());
+            }
+            requested.add(name);
+        }
+        return requested;
+    }
+
+    static <T> List<T> inRequestedOrder(List<Integer> ids, Map<Integer, T> found) {
+        List<T> items = new ArrayList<>(found.size());
+        for (Integer id : ids) {
+            T item = found.get(id);
+            if (item != null) {
+                items.add(item);
+            }
+        }
+        return items;
+    }
+}
@@ -1,18 +1,48 @@
 package org.example.clinicalsapi.controllers;
 
+import org.example.clinicalsapi.dto.BulkItemResult;
+import org.example.clinicalsapi.dto.CsvImportResult;
 import org.example.clinicalsapi.dto.ClinicalDataRequest;
+import org.example.clinicalsapi.dto.IngestReceipt;
 import org.example.clinicalsapi.models.ClinicalData;
 import org.example.clinicalsapi.models.Patient;
 import org.example.clinicalsapi.repos.ClinicalDataRepository;
 import org.example.clinicalsapi.repos.PatientRepository;
+import org.example.clinicalsapi.repos.SparseFieldsetRepository;
+import org.example.clinicalsapi.services.AsyncIngestPipeline;
+import org.example.clinicalsapi.services.ClinicalDataBatchWriter;
+import org.example.clinicalsapi.services.ClinicalDataCopier;
+import org.example.clinicalsapi.services.ClinicalDataEvent;
+import org.example.clinicalsapi.services.ClinicalDataFeed;
+import org.example.clinicalsapi.services.ClinicalDataStreamer;
+import org.example.clinicalsapi.services.PatientIdIndex;
+import org.example.clinicalsapi.web.BinaryFormatsConfiguration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.Limit;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 
 @RestController
 @RequestMapping("/api/clinicaldata")
@@ -20,6 +50,12 @@ import java.util.Optional;
 public class ClinicalDataController {
 
     private static final Logger logger = LoggerFactory.getLogger(ClinicalDataController.class);
+    private static final int MAX_UPDATE_ATTEMPTS = 3;
+    private static final String NDJSON_VALUE = "application/x-ndjson";
+    private static final String SMILE_VALUE = "application/x-jackson-smile";
+    private static final MediaType NDJSON = MediaType.parseMediaType(NDJSON_VALUE);
+    private static final MediaType CBOR_SEQUENCE = MediaType.parseMediaType(BinaryFormatsConfiguration.CBOR_SEQUENCE_VALUE);
+    private static final MediaType SMILE = MediaType.parseMediaType(SMILE_VALUE);
 
     @Autowired
     private ClinicalDataRepository clinicalDataRepository;
@@ -27,17 +63,154 @@ public class ClinicalDataController {
     @Autowired
     private PatientRepository patientRepository;
 
+    @Autowired
+    private ClinicalDataStreamer clinicalDataStreamer;
+
+    @Autowired
+    private ClinicalDataBatchWriter clinicalDataBatchWriter;
+
+    @Autowired
+    private AsyncIngestPipeline asyncIngestPipeline;
+
+    @Autowired
+    private ApplicationEventPublisher eventPublisher;
+
+    @Autowired
+    private PatientIdIndex patientIdIndex;
+
+    @Autowired
+    private ClinicalDataCopier clinicalDataCopier;
+
+    @Autowired
+    private ClinicalDataFeed clinicalDataFeed;
+
+    @Autowired
+    private SparseFieldsetRepository sparseFieldsetRepository;
+
     @GetMapping
-    public List<ClinicalData> getAllClinicalData() {
-        logger.info("Fetching all clinical data");
-        return clinicalDataRepository.findAll();
+    public ResponseEntity<List<ClinicalData>> getAllClinicalData(@RequestParam(defaultValue = "0") int after,
+                                                                 @RequestParam(defaultValue = "100") int size) {
+        logger.info("Fetching clinical data after id: {}", after);
+        int pageSize = CursorPages.clampSize(size);
+        List<ClinicalData> page = clinicalDataRepository.findByIdGreaterThanOrderByIdAsc(after, Limit.of(pageSize));
+        return CursorPages.page(page, pageSize, ClinicalData::getId);
+    }
+
+    //many readings in one query, in the order asked; unknown ids are left out. with fields=componentName,primaryValue
+    //only those columns are selected and returned; patientId is available there too
+    @GetMapping(params = "ids")
+    public List<?> getClinicalDataByIds(@RequestParam List<Integer> ids, @RequestParam(required = false) List<String> fields) {
+        logger.info("Fetching {} clinical data readings by id", ids.size());
+        List<Integer> requested = BatchGets.ids(ids);
+        Set<String> fieldNames = BatchGets.fields(fields, SparseFieldsetRepository.Resource.CLINICAL_DATA);
+        if (fieldNames == null) {
+            Map<Integer, ClinicalData> found = new HashMap<>();
+            clinicalDataRepository.findAllById(requested).forEach(c -> found.put(c.getId(), c));
+            return BatchGets.inRequestedOrder(requested, found);
+        }
+        return BatchGets.inRequestedOrder(requested,
+                sparseFieldsetRepository.findByIds(SparseFieldsetRepository.Resource.CLINICAL_DATA, requested, fieldNames));
+    }
+
+    //one component of a patient's readings in a time window, newest first; from defaults to the epoch and to defaults to now
+    @GetMapping(params = {"patientId", "componentName"})
+    public List<ClinicalData> getClinicalDataInRange(@RequestParam int patientId,
+                                                     @RequestParam String componentName,
+                                                     @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Date from,
+                                                     @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Date to,
+                                                     @RequestParam(defaultValue = "1000") int size) {
+        logger.info("Fetching {} readings for patient id: {} between {} and {}", componentName, patientId, from, to);
+        Date rangeFrom = from != null ? from : new Date(0);
+        Date rangeTo = to != null ? to : new Date();
+        return clinicalDataRepository.findByPatientIdAndComponentNameAndMeasuredDateTimeBetweenOrderByMeasuredDateTimeDesc(
+                patientId, componentName, rangeFrom, rangeTo, Limit.of(CursorPages.clampSize(size)));
+    }
+
+    //streams every reading without holding the result set in memory: newline delimited json by default, a CBOR
+    //sequence (one CBOR item per reading) or Smile values one after the other when the Accept header names them
+    @GetMapping(value = "/stream", produces = {NDJSON_VALUE, BinaryFormatsConfiguration.CBOR_SEQUENCE_VALUE, SMILE_VALUE})
+    public ResponseEntity<StreamingResponseBody> streamClinicalData(@RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept) {
+        MediaType format = streamFormat(accept);
+        logger.info("Streaming all clinical data as {}", format);
+        if (format.equals(CBOR_SEQUENCE)) {
+            return streamed(format, clinicalDataStreamer::writeCborSequence);
+        }
+        if (format.equals(SMILE)) {
+            return streamed(format, clinicalDataStreamer::writeSmile);
+        }
+        return streamed(format, clinicalDataStreamer::writeNdjson);
+    }
+
+    //the format the client ranks highest among the ones it names; a wildcard keeps the json default, so
+    //clients sending Accept: */* get what they always got
+    static MediaType streamFormat(String accept) {
+        if (accept == null) {
+            return NDJSON;
+        }
+        List<MediaType> accepted = new ArrayList<>(MediaType.parseMediaTypes(accept));
+        accepted.sort(Comparator.comparingDouble(MediaType::getQualityValue).reversed()
+                .thenComparing(MediaType::isConcrete, Comparator.reverseOrder()));
+        for (MediaType mediaType : accepted) {
+            if (mediaType.isWildcardType() || mediaType.isWildcardSubtype()) {
+                return NDJSON;
+            }
+            for (MediaType format : List.of(NDJSON, CBOR_SEQUENCE, SMILE)) {
+                if (format.isCompatibleWith(mediaType)) {
+                    return format;
+                }
+            }
+        }
+        return NDJSON;
     }
 
+    //new readings as server-sent events as they commit, instead of polling; each is a "reading" event with the
+    //reading and its patientId as json. optionally only one patient's and only the given components.
+    //503 when this node has as many subscribers as it takes
+    @GetMapping(value = "/live", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter liveClinicalData(@RequestParam(required = false) Integer patientId,
+                                       @RequestParam(required = false) List<String> componentName) {
+        logger.info("Subscribing to live clinical data for patient id: {}, components: {}", patientId, componentName);
+        if (patientId != null && !patientIdIndex.contains(patientId)) {
+            throw patientNotFound(patientId);
+        }
+        SseEmitter emitter = clinicalDataFeed.subscribe(patientId, componentName != null ? Set.copyOf(componentName) : Set.of());
+        if (emitter == null) {
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Too many live feed subscribers, retry later");
+        }
+        return emitter;
+    }
+
+    //the whole table as csv for extracts; on PostgreSQL copied straight from COPY to the response
+    @GetMapping(value = "/export", produces = "text/csv")
+    public ResponseEntity<StreamingResponseBody> exportClinicalData() {
+        logger.info("Exporting all clinical data as csv");
+        return streamed(MediaType.parseMediaType("text/csv"), clinicalDataCopier::exportCsv);
+    }
+
+    //a bare StreamingResponseBody goes out without a Content-Type, which clients and the compression need
+    private static ResponseEntity<StreamingResponseBody> streamed(MediaType contentType, StreamingResponseBody body) {
+        return ResponseEntity.ok().contentType(contentType).body(body);
+    }
+
+    //loads a csv in the export's format in one transaction, reading the request body as it goes.
+    //ids in the file are ignored, rows without a component or with an unknown patient are counted as rejected
+    @PostMapping(value = "/import", consumes = "text/csv")
+    public CsvImportResult importClinicalData(InputStream body) throws IOException {
+        logger.info("Importing clinical data from csv");
+        try {
+            return clinicalDataCopier.importCsv(body);
+        } catch (IllegalArgumentException | DataIntegrityViolationException e) {
+            logger.warn("Clinical data import failed: {}", e.getMessage());
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Malformed csv: " + e.getMessage(), e);
+        }
+    }
+
+    //tagged with the reading's version; a matching If-None-Match gets 304 without a body
     @GetMapping("/{id}")
     public ResponseEntity<ClinicalData> getClinicalDataById(@PathVariable Integer id) {
         logger.info("Fetching clinical data with id: {}", id);
         Optional<ClinicalData> clinicalData = clinicalDataRepository.findById(id);
-        return clinicalData.map(ResponseEntity::ok).orElseGet(() -> {
+        return clinicalData.map(c -> ResponseEntity.ok().eTag(ETags.of(c.getVersion())).body(c)).orElseGet(() -> {
             logger.warn("Clinical data with id: {} not found", id);
             return ResponseEntity.notFound().build();
         });
@@ -46,47 +219,136 @@ public class ClinicalDataController {
     @PostMapping
     public ClinicalData createClinicalData(@RequestBody ClinicalData clinicalData) {
         logger.info("Creating new clinical data");
-        return clinicalDataRepository.save(clinicalData);
+        ClinicalData saved = clinicalDataRepository.save(clinicalData);
+        eventPublisher.publishEvent(ClinicalDataEvent.saved(saved));
+        return saved;
     }
 
+    //the reading's key and version, then an UPDATE conditional on that version; the key is what the rollups
+    //need to refile the reading, and the version check keeps it from going stale in between. with If-Match
+    //the version has to be the one asked for (412 otherwise); without it a concurrent change is retried
     @PutMapping("/{id}")
-    public ResponseEntity<ClinicalData> updateClinicalData(@PathVariable Integer id, @RequestBody ClinicalData clinicalDataDetails) {
+    public ResponseEntity<ClinicalData> updateClinicalData(@PathVariable Integer id, @RequestBody ClinicalData clinicalDataDetails,
+                                                           @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch) {
         logger.info("Updating clinical data with id: {}", id);
-        Optional<ClinicalData> clinicalData = clinicalDataRepository.findById(id);
-        if (clinicalData.isPresent()) {
-            ClinicalData updatedClinicalData = clinicalData.get();
-            updatedClinicalData.setComponentName(clinicalDataDetails.getComponentName());
-            updatedClinicalData.setComponentValue(clinicalDataDetails.getComponentValue());
-            updatedClinicalData.setMeasuredDateTime(clinicalDataDetails.getMeasuredDateTime());
-            return ResponseEntity.ok(clinicalDataRepository.save(updatedClinicalData));
-        } else {
-            logger.warn("Clinical data with id: {} not found", id);
-            return ResponseEntity.notFound().build();
+        boolean conditional = ifMatch != null && !ETags.isWildcard(ifMatch);
+        Long expectedVersion = conditional ? ETags.versionOf(ifMatch) : null;
+        ClinicalData updatedClinicalData = new ClinicalData();
+        updatedClinicalData.setId(id);
+        updatedClinicalData.setComponentName(clinicalDataDetails.getComponentName());
+        updatedClinicalData.setComponentValue(clinicalDataDetails.getComponentValue());
+        updatedClinicalData.setMeasuredDateTime(clinicalDataDetails.getMeasuredDateTime());
+        //the typed columns, @PreUpdate does not run for a JPQL update
+        updatedClinicalData.parseComponentValue();
+        for (int attempt = 0; attempt < MAX_UPDATE_ATTEMPTS; attempt++) {
+            Optional<ClinicalDataRepository.ReadingKey> previous = clinicalDataRepository.findKeyById(id);
+            if (previous.isEmpty()) {
+                logger.warn("Clinical data with id: {} not found", id);
+                return ResponseEntity.notFound().build();
+            }
+            long version = previous.get().getVersion();
+            if (conditional && (expectedVersion == null || expectedVersion != version)) {
+                break;
+            }
+            if (clinicalDataRepository.updateIfVersionMatches(id, version, updatedClinicalData.getComponentName(),
+                    updatedClinicalData.getComponentValue(), updatedClinicalData.getMeasuredDateTime(),
+                    updatedClinicalData.getPrimaryValue(), updatedClinicalData.getSecondaryValue(), updatedClinicalData.getUnit()) == 1) {
+                updatedClinicalData.setVersion(version + 1);
+                if (updatedClinicalData.getMeasuredDateTime() == null) {
+                    updatedClinicalData.setMeasuredDateTime(previous.get().getMeasuredDateTime());
+                }
+                updatedClinicalData.setPatient(patientRepository.getReferenceById(previous.get().getPatientId()));
+                eventPublisher.publishEvent(ClinicalDataEvent.updated(updatedClinicalData,
+                        previous.get().getComponentName(), previous.get().getMeasuredDateTime()));
+                return ResponseEntity.ok().eTag(ETags.of(updatedClinicalData.getVersion())).body(updatedClinicalData);
+            }
+            if (conditional) {
+                break;
+            }
         }
+        if (conditional) {
+            logger.info("Clinical data with id: {} is not at version {}", id, ifMatch);
+            return ResponseEntity.status(HttpStatus.PRECONDITION_FAILED).build();
+        }
+        logger.warn("Clinical data with id: {} kept changing, giving up after {} attempts", id, MAX_UPDATE_ATTEMPTS);
+        return ResponseEntity.status(HttpStatus.CONFLICT).build();
     }
 
+    //the reading's key for the rollups, then a single DELETE
     @DeleteMapping("/{id}")
     public ResponseEntity<Void> deleteClinicalData(@PathVariable Integer id) {
         logger.info("Deleting clinical data with id: {}", id);
-        Optional<ClinicalData> clinicalData = clinicalDataRepository.findById(id);
-        if (clinicalData.isPresent()) {
-            clinicalDataRepository.delete(clinicalData.get());
-            return ResponseEntity.noContent().build();
-        } else {
+        Optional<ClinicalDataRepository.ReadingKey> previous = clinicalDataRepository.findKeyById(id);
+        if (previous.isEmpty() || clinicalDataRepository.deleteReadingById(id) == 0) {
             logger.warn("Clinical data with id: {} not found", id);
             return ResponseEntity.notFound().build();
         }
+        ClinicalData deletedClinicalData = new ClinicalData();
+        deletedClinicalData.setId(id);
+        deletedClinicalData.setComponentName(previous.get().getComponentName());
+        deletedClinicalData.setMeasuredDateTime(previous.get().getMeasuredDateTime());
+        deletedClinicalData.setPatient(patientRepository.getReferenceById(previous.get().getPatientId()));
+        eventPublisher.publishEvent(ClinicalDataEvent.deleted(deletedClinicalData));
+        return ResponseEntity.noContent().build();
     }
 
     //method that receives patient id, clinical data and saves it to the database
     @PostMapping("/clinicals")
     public ClinicalData saveClinicalData(@RequestBody ClinicalDataRequest dataRequest) {
         logger.info("Saving clinical data for patient id: {}", dataRequest.getPatientId());
-        ClinicalData clinicalData = new ClinicalData();
-        clinicalData.setComponentName(dataRequest.getComponentName());
-        clinicalData.setComponentValue(dataRequest.getComponentValue());
-        Patient patient = patientRepository.findById(dataRequest.getPatientId()).get();
-        clinicalData.setPatient(patient);
-        return clinicalDataRepository.save(clinicalData);
+        if (!patientIdIndex.contains(dataRequest.getPatientId())) {
+            throw patientNotFound(dataRequest.getPatientId());
+        }
+        //only the foreign key is needed, so attach a reference instead of loading the patient
+        Patient patient = patientRepository.getReferenceById(dataRequest.getPatientId());
+        ClinicalData saved;
+        try {
+            saved = clinicalDataRepository.save(dataRequest.toClinicalData(patient));
+        } catch (DataIntegrityViolationException e) {
+            //the index can still hold a patient deleted on another node; the foreign key has the last word
+            if (patientRepository.existsById(dataRequest.getPatientId())) {
+                throw e;
+            }
+            patientIdIndex.remove(dataRequest.getPatientId());
+            throw patientNotFound(dataRequest.getPatientId());
+        }
+        eventPublisher.publishEvent(ClinicalDataEvent.saved(saved));
+        return saved;
+    }
+
+    private static ResponseStatusException patientNotFound(int patientId) {
+        logger.warn("Patient with id: {} not found", patientId);
+        return new ResponseStatusException(HttpStatus.NOT_FOUND, "Patient with id " + patientId + " not found");
+    }
+
+    //method that receives many readings at once and inserts them in a single batched transaction
+    @PostMapping("/clinicals/bulk")
+    public List<BulkItemResult> saveClinicalDataBulk(@RequestBody List<ClinicalDataRequest> dataRequests) {
+        logger.info("Saving {} clinical data readings in bulk", dataRequests.size());
+        if (dataRequests.size() > ClinicalDataBatchWriter.MAX_ITEMS) {
+            throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE,
+                    "At most " + ClinicalDataBatchWriter.MAX_ITEMS + " readings per bulk request");
+        }
+        return clinicalDataBatchWriter.write(dataRequests);
+    }
+
+    //same as saveClinicalData, but for clients that send "Prefer: respond-async": the reading is queued
+    //and written with the next batch, the response is 202 with a receipt to look the outcome up with
+    @PostMapping(value = "/clinicals", headers = "Prefer=respond-async")
+    public ResponseEntity<IngestReceipt> saveClinicalDataAsync(@RequestBody ClinicalDataRequest dataRequest) {
+        IngestReceipt receipt = asyncIngestPipeline.submit(dataRequest);
+        if (receipt == null) {
+            logger.warn("Ingest queue full, refusing clinical data for patient id: {}", dataRequest.getPatientId());
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, "1").build();
+        }
+        return ResponseEntity.accepted()
+                .header(HttpHeaders.LOCATION, "/api/clinicaldata/receipts/" + receipt.getReceiptId())
+                .body(receipt);
+    }
+
+    @GetMapping("/receipts/{receiptId}")
+    public ResponseEntity<IngestReceipt> getIngestReceipt(@PathVariable String receiptId) {
+        IngestReceipt receipt = asyncIngestPipeline.receipt(receiptId);
+        return receipt != null ? ResponseEntity.ok(receipt) : ResponseEntity.notFound().build();
     }
 }
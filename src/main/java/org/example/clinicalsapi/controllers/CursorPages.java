@@ -0,0 +1,35 @@
+package org.example.clinicalsapi.controllers;
+
+import org.springframework.http.ResponseEntity;
+
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+//helpers for keyset (cursor) paginated listings, the cursor is the last id of the previous page
+final class CursorPages {
+
+    static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+    static final int DEFAULT_PAGE_SIZE = 100;
+    static final int MAX_PAGE_SIZE = 1000;
+
+    private CursorPages() {
+    }
+
+    static int clampSize(int size) {
+        if (size < 1) {
+            return DEFAULT_PAGE_SIZE;
+        }
+        return Math.min(size, MAX_PAGE_SIZE);
+    }
+
+    //a full page may have a successor, so hand out the cursor for it; a short page is the last one
+    static <T> ResponseEntity<List<T>> page(List<T> items, int size, ToIntFunction<T> idOf) {
+        if (items.size() < size) {
+            return ResponseEntity.ok(items);
+        }
+        int nextCursor = idOf.applyAsInt(items.get(items.size() - 1));
+        return ResponseEntity.ok()
+                .header(NEXT_CURSOR_HEADER, String.valueOf(nextCursor))
+                .body(items);
+    }
+}
@@ -0,0 +1,31 @@
+package org.example.clinicalsapi.controllers;
+
+//entity tags for single resources, the quoted @Version of the row
+final class ETags {
+
+    private ETags() {
+    }
+
+    static String of(long version) {
+        return "\"" + version + "\"";
+    }
+
+    //true for "If-Match: *", which only asks for the resource to exist
+    static boolean isWildcard(String ifMatch) {
+        return "*".equals(ifMatch.trim());
+    }
+
+    //the version a single strong If-Match tag names; null for weak tags, lists or anything else that
+    //cannot match one of ours, which the caller answers with 412
+    static Long versionOf(String ifMatch) {
+        String tag = ifMatch.trim();
+        if (tag.length() < 3 || tag.charAt(0) != '"' || tag.charAt(tag.length() - 1) != '"') {
+            return null;
+        }
+        try {
+            return Long.parseLong(tag.substring(1, tag.length() - 1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
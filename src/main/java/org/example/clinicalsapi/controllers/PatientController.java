@@ -1,15 +1,31 @@
 package org.example.clinicalsapi.controllers;
 
+import org.example.clinicalsapi.dto.PatientMatch;
+import org.example.clinicalsapi.models.ClinicalData;
 import org.example.clinicalsapi.models.Patient;
+import org.example.clinicalsapi.repos.ClinicalDataRepository;
 import org.example.clinicalsapi.repos.PatientRepository;
+import org.example.clinicalsapi.repos.SparseFieldsetRepository;
+import org.example.clinicalsapi.services.ClinicalDataRollupService;
+import org.example.clinicalsapi.services.CohortSnapshot;
+import org.example.clinicalsapi.services.LatestVitalsCache;
+import org.example.clinicalsapi.services.PatientIdIndex;
+import org.example.clinicalsapi.services.PatientNameIndex;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Limit;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.server.ResponseStatusException;
 
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 
 @RestController
 @RequestMapping("/api/patients")
@@ -19,49 +35,155 @@ public class PatientController {
     @Autowired
     private PatientRepository patientRepository;
 
+    @Autowired
+    private ClinicalDataRepository clinicalDataRepository;
+
+    @Autowired
+    private LatestVitalsCache latestVitalsCache;
+
+    @Autowired
+    private ClinicalDataRollupService rollupService;
+
+    @Autowired
+    private PatientIdIndex patientIdIndex;
+
+    @Autowired
+    private SparseFieldsetRepository sparseFieldsetRepository;
+
+    @Autowired
+    private PatientNameIndex patientNameIndex;
+
+    @Autowired
+    private CohortSnapshot cohortSnapshot;
+
     @GetMapping
-    public List<Patient> getAllPatients() {
-        return patientRepository.findAll();
+    public ResponseEntity<List<Patient>> getAllPatients(@RequestParam(defaultValue = "0") int after,
+                                                        @RequestParam(defaultValue = "100") int size) {
+        int pageSize = CursorPages.clampSize(size);
+        List<Patient> page = patientRepository.findByIdGreaterThanOrderByIdAsc(after, Limit.of(pageSize));
+        return CursorPages.page(page, pageSize, Patient::getId);
+    }
+
+    //many patients in one query, e.g. ?ids=3,1,2 for a ward overview, in the order asked; unknown ids are left
+    //out. with fields=firstName,lastName only those columns are selected and returned
+    @GetMapping(params = "ids")
+    public List<?> getPatientsByIds(@RequestParam List<Integer> ids, @RequestParam(required = false) List<String> fields) {
+        List<Integer> requested = BatchGets.ids(ids);
+        Set<String> fieldNames = BatchGets.fields(fields, SparseFieldsetRepository.Resource.PATIENT);
+        if (fieldNames == null) {
+            Map<Integer, Patient> found = new HashMap<>();
+            patientRepository.findAllById(requested).forEach(p -> found.put(p.getId(), p));
+            return BatchGets.inRequestedOrder(requested, found);
+        }
+        return BatchGets.inRequestedOrder(requested,
+                sparseFieldsetRepository.findByIds(SparseFieldsetRepository.Resource.PATIENT, requested, fieldNames));
     }
 
+    //typeahead: patients with a first or last name starting with each word typed (?q=jo mcc), from memory
+    //without a query; exact names first, then alphabetically. limit is capped at PatientNameIndex.MAX_LIMIT
+    @GetMapping("/search")
+    public List<PatientMatch> searchPatients(@RequestParam String q, @RequestParam(defaultValue = "10") int limit) {
+        return patientNameIndex.search(q, Math.max(1, Math.min(limit, PatientNameIndex.MAX_LIMIT)));
+    }
+
+    //tagged with the patient's version; a matching If-None-Match gets 304 without a body
     @GetMapping("/{id}")
     public ResponseEntity<Patient> getPatientById(@PathVariable Integer id) {
         try {
             Optional<Patient> patient = patientRepository.findById(id);
-            return patient.map(ResponseEntity::ok).orElseGet(() -> ResponseEntity.notFound().build());
+            return patient.map(p -> ResponseEntity.ok().eTag(ETags.of(p.getVersion())).body(p))
+                    .orElseGet(() -> ResponseEntity.notFound().build());
         } catch (Exception e) {
             throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Error retrieving patient", e);
         }
     }
 
+    //the patient's readings in a time window, newest first; from defaults to the epoch and to defaults to now
+    @GetMapping("/{id}/clinicaldata")
+    public ResponseEntity<List<ClinicalData>> getPatientClinicalData(@PathVariable Integer id,
+                                                                     @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Date from,
+                                                                     @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Date to,
+                                                                     @RequestParam(defaultValue = "1000") int size) {
+        if (!patientRepository.existsById(id)) {
+            return ResponseEntity.notFound().build();
+        }
+        Date rangeFrom = from != null ? from : new Date(0);
+        Date rangeTo = to != null ? to : new Date();
+        return ResponseEntity.ok(clinicalDataRepository.findByPatientIdAndMeasuredDateTimeBetweenOrderByMeasuredDateTimeDesc(
+                id, rangeFrom, rangeTo, Limit.of(CursorPages.clampSize(size))));
+    }
+
+    //the most recent reading of each component, keyed by componentName, served from the latest vitals cache
+    @GetMapping("/{id}/latest")
+    public ResponseEntity<Map<String, ClinicalData>> getLatestClinicalData(@PathVariable Integer id) {
+        Map<String, ClinicalData> latest = latestVitalsCache.get(id);
+        if (latest.isEmpty() && !patientRepository.existsById(id)) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok(latest);
+    }
+
     @PostMapping
     public Patient createPatient(@RequestBody Patient patient) {
-        return patientRepository.save(patient);
+        Patient saved = patientRepository.save(patient);
+        patientIdIndex.add(saved.getId());
+        patientNameIndex.put(saved.getId(), saved.getFirstName(), saved.getLastName());
+        cohortSnapshot.putPatient(saved.getId(), saved.getAge());
+        return saved;
     }
 
+    //a single UPDATE; with If-Match it only applies at that version (412 otherwise). the unconditional
+    //update does not know the version it produced, so only the conditional one answers with an ETag
     @PutMapping("/{id}")
-    public ResponseEntity<Patient> updatePatient(@PathVariable Integer id, @RequestBody Patient patientDetails) {
-        Optional<Patient> patient = patientRepository.findById(id);
-        if (patient.isPresent()) {
-            Patient updatedPatient = patient.get();
-            updatedPatient.setFirstName(patientDetails.getFirstName());
-            updatedPatient.setLastName(patientDetails.getLastName());
-            updatedPatient.setAge(patientDetails.getAge());
-            updatedPatient.setClinicalData(patientDetails.getClinicalData());
-            return ResponseEntity.ok(patientRepository.save(updatedPatient));
-        } else {
+    public ResponseEntity<Patient> updatePatient(@PathVariable Integer id, @RequestBody Patient patientDetails,
+                                                 @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch) {
+        if (ifMatch != null && !ETags.isWildcard(ifMatch)) {
+            return updatePatientIfMatch(id, patientDetails, ETags.versionOf(ifMatch));
+        }
+        if (patientRepository.updateById(id, patientDetails.getFirstName(), patientDetails.getLastName(), patientDetails.getAge()) == 0) {
             return ResponseEntity.notFound().build();
         }
+        patientNameIndex.put(id, patientDetails.getFirstName(), patientDetails.getLastName());
+        cohortSnapshot.putPatient(id, patientDetails.getAge());
+        return ResponseEntity.ok(updated(id, patientDetails));
+    }
+
+    private ResponseEntity<Patient> updatePatientIfMatch(int id, Patient patientDetails, Long version) {
+        if (version == null || patientRepository.updateIfVersionMatches(id, version, patientDetails.getFirstName(),
+                patientDetails.getLastName(), patientDetails.getAge()) == 0) {
+            //only on the failure path: tell a stale version apart from a missing patient
+            return patientRepository.existsById(id)
+                    ? ResponseEntity.status(HttpStatus.PRECONDITION_FAILED).build()
+                    : ResponseEntity.notFound().build();
+        }
+        patientNameIndex.put(id, patientDetails.getFirstName(), patientDetails.getLastName());
+        cohortSnapshot.putPatient(id, patientDetails.getAge());
+        Patient updatedPatient = updated(id, patientDetails);
+        updatedPatient.setVersion(version + 1);
+        return ResponseEntity.ok().eTag(ETags.of(updatedPatient.getVersion())).body(updatedPatient);
+    }
+
+    //the patient as the update left it, without reading it back
+    private static Patient updated(int id, Patient patientDetails) {
+        Patient updatedPatient = new Patient();
+        updatedPatient.setId(id);
+        updatedPatient.setFirstName(patientDetails.getFirstName());
+        updatedPatient.setLastName(patientDetails.getLastName());
+        updatedPatient.setAge(patientDetails.getAge());
+        return updatedPatient;
     }
 
+    //readings and patient go in two set based DELETEs, however many readings there are
     @DeleteMapping("/{id}")
     public ResponseEntity<Void> deletePatient(@PathVariable Integer id) {
-        Optional<Patient> patient = patientRepository.findById(id);
-        if (patient.isPresent()) {
-            patientRepository.delete(patient.get());
-            return ResponseEntity.noContent().build();
-        } else {
+        if (patientRepository.deleteWithReadings(id) == 0) {
             return ResponseEntity.notFound().build();
         }
+        patientIdIndex.remove(id);
+        patientNameIndex.remove(id);
+        cohortSnapshot.removePatient(id);
+        latestVitalsCache.evict(id);
+        rollupService.removePatient(id);
+        return ResponseEntity.noContent().build();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,45 @@
+package org.example.clinicalsapi.controllers;
+
+import org.example.clinicalsapi.models.ClinicalDataRollup;
+import org.example.clinicalsapi.services.ClinicalDataRollupService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.Date;
+import java.util.List;
+
+@RestController
+@RequestMapping("/api/rollups")
+@CrossOrigin(origins = "*")
+public class RollupController {
+
+    private static final Logger logger = LoggerFactory.getLogger(RollupController.class);
+
+    @Autowired
+    private ClinicalDataRollupService rollupService;
+
+    //hourly or daily statistics of one component of a patient, oldest bucket first; from defaults to the epoch and to defaults to now
+    @GetMapping
+    public List<ClinicalDataRollup> getRollups(@RequestParam int patientId,
+                                               @RequestParam String componentName,
+                                               @RequestParam(defaultValue = "DAY") ClinicalDataRollup.Bucket bucket,
+                                               @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Date from,
+                                               @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Date to) {
+        logger.info("Fetching {} rollups of {} for patient id: {}", bucket, componentName, patientId);
+        Date rangeFrom = from != null ? bucket.startOf(from) : new Date(0);
+        Date rangeTo = to != null ? to : new Date();
+        return rollupService.find(patientId, componentName, bucket, rangeFrom, rangeTo);
+    }
+
+    //regenerates all rollups from the raw readings, the same job that runs nightly
+    @PostMapping("/rebuild")
+    public ResponseEntity<Void> rebuildRollups() {
+        logger.info("Rebuilding rollups on request");
+        rollupService.rebuild();
+        return ResponseEntity.noContent().build();
+    }
+}
@@ -0,0 +1,60 @@
+package org.example.clinicalsapi.dto;
+
+//outcome of one item of a bulk request, index is the item's position in the request array
+public class BulkItemResult {
+    public static final String CREATED = "CREATED";
+    public static final String REJECTED = "REJECTED";
+
+    private int index;
+    private String status;
+    private Integer id;
+    private String error;
+
+    public static BulkItemResult created(int index, int id) {
+        BulkItemResult result = new BulkItemResult();
+        result.setIndex(index);
+        result.setStatus(CREATED);
+        result.setId(id);
+        return result;
+    }
+
+    public static BulkItemResult rejected(int index, String error) {
+        BulkItemResult result = new BulkItemResult();
+        result.setIndex(index);
+        result.setStatus(REJECTED);
+        result.setError(error);
+        return result;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public void setIndex(int index) {
+        this.index = index;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public Integer getId() {
+        return id;
+    }
+
+    public void setId(Integer id) {
+        this.id = id;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+}
@@ -1,5 +1,8 @@
 package org.example.clinicalsapi.dto;
 
+import org.example.clinicalsapi.models.ClinicalData;
+import org.example.clinicalsapi.models.Patient;
+
 public class ClinicalDataRequest {
     private String componentName;
     private String componentValue;
@@ -28,4 +31,13 @@ public class ClinicalDataRequest {
     public void setPatientId(int patientId) {
         this.patientId = patientId;
     }
+
+    //builds the reading for the given patient, which may be a reference proxy
+    public ClinicalData toClinicalData(Patient patient) {
+        ClinicalData clinicalData = new ClinicalData();
+        clinicalData.setComponentName(componentName);
+        clinicalData.setComponentValue(componentValue);
+        clinicalData.setPatient(patient);
+        return clinicalData;
+    }
 }
@@ -0,0 +1,29 @@
+package org.example.clinicalsapi.dto;
+
+import java.util.List;
+
+//how many patients meet a cohort's conditions, and the ids of the first of them
+public class CohortResult {
+    private final long count;
+    private final List<Integer> patientIds;
+    private final boolean truncated;
+
+    public CohortResult(long count, List<Integer> patientIds, boolean truncated) {
+        this.count = count;
+        this.patientIds = patientIds;
+        this.truncated = truncated;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public List<Integer> getPatientIds() {
+        return patientIds;
+    }
+
+    //true when more patients matched than patientIds lists
+    public boolean isTruncated() {
+        return truncated;
+    }
+}
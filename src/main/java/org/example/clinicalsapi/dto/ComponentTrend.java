@@ -0,0 +1,109 @@
+package org.example.clinicalsapi.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.Date;
+import java.util.List;
+
+//statistics of one component of one patient over the analysed period: primary value (systolic for bp) and,
+//where the component has one, secondary value (diastolic), with the latest moving averages and how many
+//readings fell outside the configured range. points are only filled in for single patient analyses
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class ComponentTrend {
+    private final int patientId;
+    private final String componentName;
+    private final int count;
+    private final double min;
+    private final double max;
+    private final double mean;
+    private final Double secondaryMin;
+    private final Double secondaryMax;
+    private final Double secondaryMean;
+    private final double latestMovingAverage;
+    private final Double latestSecondaryMovingAverage;
+    private final Date latestMeasuredDateTime;
+    private final int outOfRange;
+    private final Date lastOutOfRange;
+    private final List<TrendPoint> points;
+
+    public ComponentTrend(int patientId, String componentName, int count, double min, double max, double mean,
+                          Double secondaryMin, Double secondaryMax, Double secondaryMean,
+                          double latestMovingAverage, Double latestSecondaryMovingAverage, Date latestMeasuredDateTime,
+                          int outOfRange, Date lastOutOfRange, List<TrendPoint> points) {
+        this.patientId = patientId;
+        this.componentName = componentName;
+        this.count = count;
+        this.min = min;
+        this.max = max;
+        this.mean = mean;
+        this.secondaryMin = secondaryMin;
+        this.secondaryMax = secondaryMax;
+        this.secondaryMean = secondaryMean;
+        this.latestMovingAverage = latestMovingAverage;
+        this.latestSecondaryMovingAverage = latestSecondaryMovingAverage;
+        this.latestMeasuredDateTime = latestMeasuredDateTime;
+        this.outOfRange = outOfRange;
+        this.lastOutOfRange = lastOutOfRange;
+        this.points = points;
+    }
+
+    public int getPatientId() {
+        return patientId;
+    }
+
+    public String getComponentName() {
+        return componentName;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public Double getSecondaryMin() {
+        return secondaryMin;
+    }
+
+    public Double getSecondaryMax() {
+        return secondaryMax;
+    }
+
+    public Double getSecondaryMean() {
+        return secondaryMean;
+    }
+
+    public double getLatestMovingAverage() {
+        return latestMovingAverage;
+    }
+
+    public Double getLatestSecondaryMovingAverage() {
+        return latestSecondaryMovingAverage;
+    }
+
+    public Date getLatestMeasuredDateTime() {
+        return latestMeasuredDateTime;
+    }
+
+    public int getOutOfRange() {
+        return outOfRange;
+    }
+
+    public Date getLastOutOfRange() {
+        return lastOutOfRange;
+    }
+
+    public List<TrendPoint> getPoints() {
+        return points;
+    }
+}
@@ -0,0 +1,31 @@
+package org.example.clinicalsapi.dto;
+
+//outcome of a csv import: rows written, and rows skipped for a missing component or an unknown patient
+public class CsvImportResult {
+    private long imported;
+    private long rejected;
+
+    public CsvImportResult() {
+    }
+
+    public CsvImportResult(long imported, long rejected) {
+        this.imported = imported;
+        this.rejected = rejected;
+    }
+
+    public long getImported() {
+        return imported;
+    }
+
+    public void setImported(long imported) {
+        this.imported = imported;
+    }
+
+    public long getRejected() {
+        return rejected;
+    }
+
+    public void setRejected(long rejected) {
+        this.rejected = rejected;
+    }
+}
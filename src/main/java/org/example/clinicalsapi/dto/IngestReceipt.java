@@ -0,0 +1,56 @@
+package org.example.clinicalsapi.dto;
+
+//handed out when a reading is queued for asynchronous ingestion, and looked up later to see how it went
+public class IngestReceipt {
+    public static final String PENDING = "PENDING";
+    public static final String CREATED = "CREATED";
+    public static final String REJECTED = "REJECTED";
+    public static final String FAILED = "FAILED";
+
+    private String receiptId;
+    private String status;
+    private Integer clinicalDataId;
+    private String error;
+
+    public IngestReceipt() {
+    }
+
+    public IngestReceipt(String receiptId, String status, Integer clinicalDataId, String error) {
+        this.receiptId = receiptId;
+        this.status = status;
+        this.clinicalDataId = clinicalDataId;
+        this.error = error;
+    }
+
+    public String getReceiptId() {
+        return receiptId;
+    }
+
+    public void setReceiptId(String receiptId) {
+        this.receiptId = receiptId;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public Integer getClinicalDataId() {
+        return clinicalDataId;
+    }
+
+    public void setClinicalDataId(Integer clinicalDataId) {
+        this.clinicalDataId = clinicalDataId;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+}
@@ -0,0 +1,60 @@
+package org.example.clinicalsapi.dto;
+
+import org.example.clinicalsapi.models.ClinicalData;
+
+import java.util.Date;
+
+//a committed reading as pushed to live feed subscribers; unlike the entity it carries the patient id
+public class LiveReading {
+    private final int id;
+    private final Integer patientId;
+    private final String componentName;
+    private final String componentValue;
+    private final Date measuredDateTime;
+    private final Double primaryValue;
+    private final Double secondaryValue;
+    private final String unit;
+
+    public LiveReading(Integer patientId, ClinicalData clinicalData) {
+        this.id = clinicalData.getId();
+        this.patientId = patientId;
+        this.componentName = clinicalData.getComponentName();
+        this.componentValue = clinicalData.getComponentValue();
+        this.measuredDateTime = clinicalData.getMeasuredDateTime();
+        this.primaryValue = clinicalData.getPrimaryValue();
+        this.secondaryValue = clinicalData.getSecondaryValue();
+        this.unit = clinicalData.getUnit();
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public Integer getPatientId() {
+        return patientId;
+    }
+
+    public String getComponentName() {
+        return componentName;
+    }
+
+    public String getComponentValue() {
+        return componentValue;
+    }
+
+    public Date getMeasuredDateTime() {
+        return measuredDateTime;
+    }
+
+    public Double getPrimaryValue() {
+        return primaryValue;
+    }
+
+    public Double getSecondaryValue() {
+        return secondaryValue;
+    }
+
+    public String getUnit() {
+        return unit;
+    }
+}
@@ -0,0 +1,26 @@
+package org.example.clinicalsapi.dto;
+
+//a typeahead hit: enough to show the patient in a pick list, the full patient is a GET by id away
+public class PatientMatch {
+    private final int id;
+    private final String firstName;
+    private final String lastName;
+
+    public PatientMatch(int id, String firstName, String lastName) {
+        this.id = id;
+        this.firstName = firstName;
+        this.lastName = lastName;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getFirstName() {
+        return firstName;
+    }
+
+    public String getLastName() {
+        return lastName;
+    }
+}
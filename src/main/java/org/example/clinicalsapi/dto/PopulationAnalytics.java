@@ -0,0 +1,93 @@
+package org.example.clinicalsapi.dto;
+
+import java.util.List;
+import java.util.Map;
+
+//the whole population over the analysed period: totals per component, and the trends of the patients with
+//out of range readings, in patient id order and cut off at the requested limit
+public class PopulationAnalytics {
+    private final long patients;
+    private final long readings;
+    private final Map<String, ComponentTotals> components;
+    private final List<ComponentTrend> flagged;
+    private final boolean truncated;
+
+    public PopulationAnalytics(long patients, long readings, Map<String, ComponentTotals> components,
+                               List<ComponentTrend> flagged, boolean truncated) {
+        this.patients = patients;
+        this.readings = readings;
+        this.components = components;
+        this.flagged = flagged;
+        this.truncated = truncated;
+    }
+
+    public long getPatients() {
+        return patients;
+    }
+
+    public long getReadings() {
+        return readings;
+    }
+
+    public Map<String, ComponentTotals> getComponents() {
+        return components;
+    }
+
+    public List<ComponentTrend> getFlagged() {
+        return flagged;
+    }
+
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    public static class ComponentTotals {
+        private long patients;
+        private long readings;
+        private double min = Double.POSITIVE_INFINITY;
+        private double max = Double.NEGATIVE_INFINITY;
+        private double sum;
+        private long outOfRange;
+        private long patientsOutOfRange;
+
+        public void add(ComponentTrend trend) {
+            patients++;
+            readings += trend.getCount();
+            min = Math.min(min, trend.getMin());
+            max = Math.max(max, trend.getMax());
+            sum += trend.getMean() * trend.getCount();
+            outOfRange += trend.getOutOfRange();
+            if (trend.getOutOfRange() > 0) {
+                patientsOutOfRange++;
+            }
+        }
+
+        public long getPatients() {
+            return patients;
+        }
+
+        public long getReadings() {
+            return readings;
+        }
+
+        public double getMin() {
+            return min;
+        }
+
+        public double getMax() {
+            return max;
+        }
+
+        public double getMean() {
+            return readings > 0 ? sum / readings : 0;
+        }
+
+        public long getOutOfRange() {
+            return outOfRange;
+        }
+
+        public long getPatientsOutOfRange() {
+            return patientsOutOfRange;
+        }
+    }
+}
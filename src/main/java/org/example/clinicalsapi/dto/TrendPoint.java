@@ -0,0 +1,47 @@
+package org.example.clinicalsapi.dto;
+
+import java.util.Date;
+
+//one reading of a trend with the moving averages up to and including it
+public class TrendPoint {
+    private final Date measuredDateTime;
+    private final double primaryValue;
+    private final Double secondaryValue;
+    private final double movingAverage;
+    private final Double secondaryMovingAverage;
+    private final boolean outOfRange;
+
+    public TrendPoint(Date measuredDateTime, double primaryValue, Double secondaryValue, double movingAverage,
+                      Double secondaryMovingAverage, boolean outOfRange) {
+        this.measuredDateTime = measuredDateTime;
+        this.primaryValue = primaryValue;
+        this.secondaryValue = secondaryValue;
+        this.movingAverage = movingAverage;
+        this.secondaryMovingAverage = secondaryMovingAverage;
+        this.outOfRange = outOfRange;
+    }
+
+    public Date getMeasuredDateTime() {
+        return measuredDateTime;
+    }
+
+    public double getPrimaryValue() {
+        return primaryValue;
+    }
+
+    public Double getSecondaryValue() {
+        return secondaryValue;
+    }
+
+    public double getMovingAverage() {
+        return movingAverage;
+    }
+
+    public Double getSecondaryMovingAverage() {
+        return secondaryMovingAverage;
+    }
+
+    public boolean isOutOfRange() {
+        return outOfRange;
+    }
+}
@@ -0,0 +1,19 @@
+package org.example.clinicalsapi.metrics;
+
+import io.micrometer.common.KeyValue;
+import io.micrometer.common.KeyValues;
+import org.springframework.http.server.observation.DefaultServerRequestObservationConvention;
+import org.springframework.http.server.observation.ServerRequestObservationContext;
+import org.springframework.stereotype.Component;
+
+//adds handler=Controller.method to http.server.requests, so the timers separate controller methods that
+//share a uri, like the synchronous and respond-async POST /api/clinicaldata/clinicals
+@Component
+public class HandlerObservationConvention extends DefaultServerRequestObservationConvention {
+
+    @Override
+    public KeyValues getLowCardinalityKeyValues(ServerRequestObservationContext context) {
+        String handler = QueryBudgetFilter.handlerName(context.getCarrier());
+        return super.getLowCardinalityKeyValues(context).and(KeyValue.of("handler", handler != null ? handler : "none"));
+    }
+}
@@ -0,0 +1,9 @@
+package org.example.clinicalsapi.metrics;
+
+//thrown after the response when a request ran more sql statements than its budget and the budget is enforced
+public class QueryBudgetExceededException extends IllegalStateException {
+
+    public QueryBudgetExceededException(String handler, int statements, int budget) {
+        super(handler + " ran " + statements + " sql statements, budget is " + budget);
+    }
+}
@@ -0,0 +1,101 @@
+package org.example.clinicalsapi.metrics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.HandlerMapping;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+//records how many sql statements each request ran (clinicals.sql.statements, tagged by handler) and
+//checks it against a budget. over budget is logged and counted (clinicals.sql.budget.exceeded); with
+//clinicals.query-budget.fail=true it also throws, which is how the tests turn an n+1 into a failure.
+//only statements on the request thread count, the body of a streamed response is written on another one
+@Component
+public class QueryBudgetFilter extends OncePerRequestFilter {
+
+    private static final Logger logger = LoggerFactory.getLogger(QueryBudgetFilter.class);
+
+    private final SqlStatementCounter sqlStatementCounter;
+    private final MeterRegistry meterRegistry;
+    private final int defaultBudget;
+    private final Map<String, Integer> budgets;
+    private final boolean fail;
+    private final Map<String, DistributionSummary> statementSummaries = new ConcurrentHashMap<>();
+
+    public QueryBudgetFilter(SqlStatementCounter sqlStatementCounter,
+                             MeterRegistry meterRegistry,
+                             @Value("${clinicals.query-budget.max-statements:10}") int defaultBudget,
+                             @Value("${clinicals.query-budget.overrides:}") String overrides,
+                             @Value("${clinicals.query-budget.fail:false}") boolean fail) {
+        this.sqlStatementCounter = sqlStatementCounter;
+        this.meterRegistry = meterRegistry;
+        this.defaultBudget = defaultBudget;
+        this.budgets = parseOverrides(overrides);
+        this.fail = fail;
+    }
+
+    //"PatientController.deletePatient=20,ClinicalDataController.saveClinicalDataBulk=200"
+    static Map<String, Integer> parseOverrides(String overrides) {
+        Map<String, Integer> budgets = new HashMap<>();
+        for (String pair : overrides.split(",")) {
+            if (pair.isBlank()) {
+                continue;
+            }
+            String[] parts = pair.split("=");
+            budgets.put(parts[0].trim(), Integer.parseInt(parts[1].trim()));
+        }
+        return budgets;
+    }
+
+    //Controller.method of the handler that served the request, null when it was not a controller method
+    public static String handlerName(HttpServletRequest request) {
+        Object handler = request.getAttribute(HandlerMapping.BEST_MATCHING_HANDLER_ATTRIBUTE);
+        if (handler instanceof HandlerMethod handlerMethod) {
+            return handlerMethod.getBeanType().getSimpleName() + "." + handlerMethod.getMethod().getName();
+        }
+        return null;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        sqlStatementCounter.begin();
+        int statements;
+        try {
+            filterChain.doFilter(request, response);
+        } finally {
+            statements = sqlStatementCounter.end();
+        }
+        String handler = handlerName(request);
+        if (handler == null) {
+            return;
+        }
+        statementSummaries.computeIfAbsent(handler, h -> DistributionSummary.builder("clinicals.sql.statements")
+                .description("SQL statements run on the request thread")
+                .tag("handler", h)
+                .publishPercentileHistogram()
+                .register(meterRegistry)).record(statements);
+        int budget = budgets.getOrDefault(handler, defaultBudget);
+        if (statements > budget) {
+            Counter.builder("clinicals.sql.budget.exceeded").tag("handler", handler).register(meterRegistry).increment();
+            logger.warn("{} {} ran {} sql statements, budget is {}", request.getMethod(), request.getRequestURI(), statements, budget);
+            if (fail) {
+                throw new QueryBudgetExceededException(handler, statements, budget);
+            }
+        }
+    }
+}
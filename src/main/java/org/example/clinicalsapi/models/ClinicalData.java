@@ -8,17 +8,30 @@ import org.hibernate.annotations.CreationTimestamp;
 import java.util.Date;
 
 @Entity
-@Table(name = "clinicaldata")
+@Table(name = "clinicaldata", indexes = {
+        //serves the per patient, per component time range query, see db/003-clinicaldata-range-index.sql
+        @Index(name = "idx_clinicaldata_patient_component_time", columnList = "patient_id, component_name, measured_date_time DESC")
+})
 public class ClinicalData {
     @Id
     @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "clinicaldata_seq")
-    @SequenceGenerator(name = "clinicaldata_seq", sequenceName = "clinicaldata_seq", allocationSize = 1)
+    @SequenceGenerator(name = "clinicaldata_seq", sequenceName = "clinicaldata_seq", allocationSize = 50)
     private int id;
     private String componentName;
     private String componentValue;
 
+    //componentValue parsed at write time, so queries can filter and aggregate numbers instead of text
+    private Double primaryValue;
+    private Double secondaryValue;
+    @Column(length = 16)
+    private String unit;
+
     @CreationTimestamp
     private Date measuredDateTime;
+    //bumped on every update, handed to clients as the ETag
+    @Version
+    @JsonIgnore
+    private long version;
     @ManyToOne(fetch = FetchType.LAZY)
     @JoinColumn(name = "patient_id", nullable = false)
     @JsonIgnore
@@ -56,6 +69,36 @@ public class ClinicalData {
         this.measuredDateTime = measuredDateTime;
     }
 
+    public Double getPrimaryValue() {
+        return primaryValue;
+    }
+
+    public Double getSecondaryValue() {
+        return secondaryValue;
+    }
+
+    public String getUnit() {
+        return unit;
+    }
+
+    //also called directly by updates that bypass the persistence context
+    @PrePersist
+    @PreUpdate
+    public void parseComponentValue() {
+        double[] figures = VitalValueParser.parse(componentName, componentValue);
+        primaryValue = Double.isNaN(figures[0]) ? null : figures[0];
+        secondaryValue = Double.isNaN(figures[1]) ? null : figures[1];
+        unit = VitalValueParser.unitOf(componentName);
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
     public Patient getPatient() {
         return patient;
     }
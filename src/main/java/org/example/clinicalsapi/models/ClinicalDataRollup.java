@@ -0,0 +1,212 @@
+package org.example.clinicalsapi.models;
+
+//pre-aggregated statistics of one patient's component over an hour or a day, kept by ClinicalDataRollupService
+import jakarta.persistence.*;
+
+import java.io.Serializable;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.Date;
+import java.util.Objects;
+
+@Entity
+@Table(name = "clinicaldata_rollup")
+@IdClass(ClinicalDataRollup.Key.class)
+public class ClinicalDataRollup {
+
+    public enum Bucket {
+        HOUR(ChronoUnit.HOURS),
+        DAY(ChronoUnit.DAYS);
+
+        private final ChronoUnit unit;
+
+        Bucket(ChronoUnit unit) {
+            this.unit = unit;
+        }
+
+        //buckets follow the local clock, like date_trunc on the timestamp column does
+        public Date startOf(Date time) {
+            ZonedDateTime zoned = time.toInstant().atZone(ZoneId.systemDefault());
+            return Date.from(zoned.truncatedTo(unit).toInstant());
+        }
+
+        public Date endOf(Date start) {
+            ZonedDateTime zoned = start.toInstant().atZone(ZoneId.systemDefault());
+            return Date.from(zoned.plus(1, unit).toInstant());
+        }
+    }
+
+    @Id
+    private int patientId;
+    @Id
+    private String componentName;
+    @Id
+    @Enumerated(EnumType.STRING)
+    @Column(length = 8)
+    private Bucket bucketSize;
+    @Id
+    private Date bucketStart;
+
+    //only readings with a parsed value are counted
+    private long readingCount;
+    private Double primaryMin;
+    private Double primaryMax;
+    private Double primarySum;
+    private Double secondaryMin;
+    private Double secondaryMax;
+    private Double secondarySum;
+
+    public int getPatientId() {
+        return patientId;
+    }
+
+    public void setPatientId(int patientId) {
+        this.patientId = patientId;
+    }
+
+    public String getComponentName() {
+        return componentName;
+    }
+
+    public void setComponentName(String componentName) {
+        this.componentName = componentName;
+    }
+
+    public Bucket getBucketSize() {
+        return bucketSize;
+    }
+
+    public void setBucketSize(Bucket bucketSize) {
+        this.bucketSize = bucketSize;
+    }
+
+    public Date getBucketStart() {
+        return bucketStart;
+    }
+
+    public void setBucketStart(Date bucketStart) {
+        this.bucketStart = bucketStart;
+    }
+
+    public long getReadingCount() {
+        return readingCount;
+    }
+
+    public void setReadingCount(long readingCount) {
+        this.readingCount = readingCount;
+    }
+
+    public Double getPrimaryMin() {
+        return primaryMin;
+    }
+
+    public void setPrimaryMin(Double primaryMin) {
+        this.primaryMin = primaryMin;
+    }
+
+    public Double getPrimaryMax() {
+        return primaryMax;
+    }
+
+    public void setPrimaryMax(Double primaryMax) {
+        this.primaryMax = primaryMax;
+    }
+
+    public Double getPrimarySum() {
+        return primarySum;
+    }
+
+    public void setPrimarySum(Double primarySum) {
+        this.primarySum = primarySum;
+    }
+
+    public Double getPrimaryAvg() {
+        return primarySum == null || readingCount == 0 ? null : primarySum / readingCount;
+    }
+
+    public Double getSecondaryMin() {
+        return secondaryMin;
+    }
+
+    public void setSecondaryMin(Double secondaryMin) {
+        this.secondaryMin = secondaryMin;
+    }
+
+    public Double getSecondaryMax() {
+        return secondaryMax;
+    }
+
+    public void setSecondaryMax(Double secondaryMax) {
+        this.secondaryMax = secondaryMax;
+    }
+
+    public Double getSecondarySum() {
+        return secondarySum;
+    }
+
+    public void setSecondarySum(Double secondarySum) {
+        this.secondarySum = secondarySum;
+    }
+
+    public Double getSecondaryAvg() {
+        return secondarySum == null || readingCount == 0 ? null : secondarySum / readingCount;
+    }
+
+    public Key getKey() {
+        return new Key(patientId, componentName, bucketSize, bucketStart);
+    }
+
+    public static class Key implements Serializable {
+        private int patientId;
+        private String componentName;
+        private Bucket bucketSize;
+        private Date bucketStart;
+
+        public Key() {
+        }
+
+        public Key(int patientId, String componentName, Bucket bucketSize, Date bucketStart) {
+            this.patientId = patientId;
+            this.componentName = componentName;
+            this.bucketSize = bucketSize;
+            this.bucketStart = bucketStart;
+        }
+
+        public int getPatientId() {
+            return patientId;
+        }
+
+        public String getComponentName() {
+            return componentName;
+        }
+
+        public Bucket getBucketSize() {
+            return bucketSize;
+        }
+
+        public Date getBucketStart() {
+            return bucketStart;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key key)) {
+                return false;
+            }
+            return patientId == key.patientId
+                    && Objects.equals(componentName, key.componentName)
+                    && bucketSize == key.bucketSize
+                    && Objects.equals(bucketStart == null ? null : bucketStart.getTime(),
+                                      key.bucketStart == null ? null : key.bucketStart.getTime());
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(patientId, componentName, bucketSize, bucketStart == null ? null : bucketStart.getTime());
+        }
+    }
+}
@@ -15,7 +15,11 @@ public class Patient {
     private String firstName;
     private String lastName;
     private int age;
-    @OneToMany(mappedBy = "patient", fetch = FetchType.EAGER, cascade = CascadeType.ALL)
+    //bumped on every update, handed to clients as the ETag
+    @Version
+    @JsonIgnore
+    private long version;
+    @OneToMany(mappedBy = "patient", fetch = FetchType.LAZY, cascade = CascadeType.ALL)
     @JsonIgnore
     private List<ClinicalData> clinicalData;
 
@@ -51,4 +55,10 @@ public class Patient {
     public void setAge(int age) {
         this.age = age;
     }
+    public long getVersion() {
+        return version;
+    }
+    public void setVersion(long version) {
+        this.version = version;
+    }
 }
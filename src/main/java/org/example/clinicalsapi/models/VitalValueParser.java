@@ -0,0 +1,82 @@
+package org.example.clinicalsapi.models;
+
+//parses the free text componentValue of a reading into numbers, once, when the reading is written
+public final class VitalValueParser {
+
+    public static final String BLOOD_PRESSURE = "bp";
+    public static final String HEART_RATE = "heartrate";
+
+    private VitalValueParser() {
+    }
+
+    public static String unitOf(String componentName) {
+        if (BLOOD_PRESSURE.equals(componentName)) {
+            return "mmHg";
+        }
+        if (HEART_RATE.equals(componentName)) {
+            return "bpm";
+        }
+        return null;
+    }
+
+    //returns {primary, secondary}, NaN where a figure is absent or the value does not parse.
+    //blood pressure is a pair and primary is always the systolic (higher) figure, whichever order it was
+    //written in (the seed data stores "diastolic/systolic"); everything else is a single number
+    public static double[] parse(String componentName, String componentValue) {
+        double[] figures = {Double.NaN, Double.NaN};
+        if (componentValue == null) {
+            return figures;
+        }
+        int slash = componentValue.indexOf('/');
+        if (BLOOD_PRESSURE.equals(componentName)) {
+            if (slash < 0) {
+                return figures;
+            }
+            double first = parseNumber(componentValue, 0, slash);
+            double second = parseNumber(componentValue, slash + 1, componentValue.length());
+            if (!Double.isNaN(first) && !Double.isNaN(second)) {
+                figures[0] = Math.max(first, second);
+                figures[1] = Math.min(first, second);
+            }
+            return figures;
+        }
+        if (slash < 0) {
+            figures[0] = parseNumber(componentValue, 0, componentValue.length());
+        }
+        return figures;
+    }
+
+    //parses an unsigned decimal number between start and end, ignoring surrounding blanks; NaN if it is not one
+    static double parseNumber(String text, int start, int end) {
+        while (start < end && text.charAt(start) == ' ') {
+            start++;
+        }
+        while (end > start && text.charAt(end - 1) == ' ') {
+            end--;
+        }
+        if (start == end) {
+            return Double.NaN;
+        }
+        long whole = 0;
+        long fraction = 0;
+        long scale = 1;
+        boolean seenPoint = false;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c == '.' && !seenPoint && i > start && i < end - 1) {
+                seenPoint = true;
+            } else if (c >= '0' && c <= '9' && !seenPoint) {
+                whole = whole * 10 + (c - '0');
+            } else if (c >= '0' && c <= '9' && scale < 1_000_000_000L) {
+                fraction = fraction * 10 + (c - '0');
+                scale *= 10;
+            } else if (c < '0' || c > '9') {
+                return Double.NaN;
+            }
+            if (whole > 1_000_000_000L) {
+                return Double.NaN;
+            }
+        }
+        return whole + (double) fraction / scale;
+    }
+}
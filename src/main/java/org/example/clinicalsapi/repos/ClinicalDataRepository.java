@@ -1,9 +1,81 @@
 package org.example.clinicalsapi.repos;
 
+import jakarta.persistence.QueryHint;
 import org.example.clinicalsapi.models.ClinicalData;
+import org.hibernate.jpa.HibernateHints;
+import org.springframework.data.domain.Limit;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
 
 @Repository
 public interface ClinicalDataRepository extends JpaRepository<ClinicalData, Integer> {
-}
\ No newline at end of file
+
+    //keyset page: the next readings after the given id cursor
+    List<ClinicalData> findByIdGreaterThanOrderByIdAsc(int afterId, Limit limit);
+
+    //a patient's readings in a time window, newest first; filters on the foreign key without joining patient
+    List<ClinicalData> findByPatientIdAndMeasuredDateTimeBetweenOrderByMeasuredDateTimeDesc(int patientId, Date from, Date to, Limit limit);
+
+    //one component of a patient's readings in a time window, newest first; an index range scan on
+    //idx_clinicaldata_patient_component_time which already returns rows in this order
+    List<ClinicalData> findByPatientIdAndComponentNameAndMeasuredDateTimeBetweenOrderByMeasuredDateTimeDesc(
+            int patientId, String componentName, Date from, Date to, Limit limit);
+
+    //the most recent reading(s) of each component for a patient, one index probe per component
+    @Query("select c from ClinicalData c where c.patient.id = :patientId and c.measuredDateTime = "
+            + "(select max(l.measuredDateTime) from ClinicalData l where l.patient.id = :patientId and l.componentName = c.componentName)")
+    List<ClinicalData> findLatestPerComponent(@Param("patientId") int patientId);
+
+    //server-side cursor over the whole table, must be consumed inside a transaction
+    @QueryHints({
+            @QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = "500"),
+            @QueryHint(name = HibernateHints.HINT_READ_ONLY, value = "true")
+    })
+    @Query("select c from ClinicalData c order by c.id")
+    Stream<ClinicalData> streamAll();
+
+    //where a reading is filed and its version, without loading it; what the update and delete events
+    //need to know about the old row
+    interface ReadingKey {
+        int getPatientId();
+
+        String getComponentName();
+
+        Date getMeasuredDateTime();
+
+        long getVersion();
+    }
+
+    @Query("select c.patient.id as patientId, c.componentName as componentName, c.measuredDateTime as measuredDateTime,"
+            + " c.version as version from ClinicalData c where c.id = :id")
+    Optional<ReadingKey> findKeyById(@Param("id") int id);
+
+    //one conditional UPDATE, the typed columns are passed in because @PreUpdate does not run for it; a null
+    //measuredDateTime keeps the reading's time (it is the partition key); 0 when the reading is gone or is
+    //no longer at the expected version
+    @Transactional
+    @Modifying
+    @Query("update ClinicalData c set c.componentName = :componentName, c.componentValue = :componentValue,"
+            + " c.measuredDateTime = coalesce(:measuredDateTime, c.measuredDateTime), c.primaryValue = :primaryValue, c.secondaryValue = :secondaryValue,"
+            + " c.unit = :unit, c.version = c.version + 1 where c.id = :id and c.version = :version")
+    int updateIfVersionMatches(@Param("id") int id, @Param("version") long version,
+                               @Param("componentName") String componentName, @Param("componentValue") String componentValue,
+                               @Param("measuredDateTime") Date measuredDateTime, @Param("primaryValue") Double primaryValue,
+                               @Param("secondaryValue") Double secondaryValue, @Param("unit") String unit);
+
+    //one DELETE; 0 when there is no such reading
+    @Transactional
+    @Modifying
+    @Query("delete from ClinicalData c where c.id = :id")
+    int deleteReadingById(@Param("id") int id);
+}
@@ -0,0 +1,83 @@
+package org.example.clinicalsapi.repos;
+
+import org.example.clinicalsapi.models.ClinicalDataRollup;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.util.Date;
+import java.util.List;
+
+@Repository
+public interface ClinicalDataRollupRepository extends JpaRepository<ClinicalDataRollup, ClinicalDataRollup.Key> {
+
+    //a primary key range scan
+    List<ClinicalDataRollup> findByPatientIdAndComponentNameAndBucketSizeAndBucketStartBetweenOrderByBucketStartAsc(
+            int patientId, String componentName, ClinicalDataRollup.Bucket bucketSize, Date from, Date to);
+
+    @Modifying
+    @Query("delete from ClinicalDataRollup r where r.patientId = :patientId")
+    int deleteByPatientId(@Param("patientId") int patientId);
+
+    @Modifying
+    @Query("delete from ClinicalDataRollup r where r.patientId = :patientId and r.componentName = :componentName"
+            + " and r.bucketSize = :bucketSize and r.bucketStart = :bucketStart")
+    int deleteBucket(@Param("patientId") int patientId, @Param("componentName") String componentName,
+                     @Param("bucketSize") ClinicalDataRollup.Bucket bucketSize, @Param("bucketStart") Date bucketStart);
+
+    //re-aggregates one bucket from the raw readings, run deleteBucket first
+    @Modifying
+    @Query(value = "insert into clinicaldata_rollup (patient_id, component_name, bucket_size, bucket_start, reading_count,"
+            + " primary_min, primary_max, primary_sum, secondary_min, secondary_max, secondary_sum)"
+            + " select patient_id, component_name, :bucketSize, :bucketStart, count(*),"
+            + " min(primary_value), max(primary_value), sum(primary_value), min(secondary_value), max(secondary_value), sum(secondary_value)"
+            + " from clinicaldata where patient_id = :patientId and component_name = :componentName"
+            + " and measured_date_time >= :bucketStart and measured_date_time < :bucketEnd and primary_value is not null"
+            + " group by patient_id, component_name", nativeQuery = true)
+    int recomputeBucket(@Param("patientId") int patientId, @Param("componentName") String componentName,
+                        @Param("bucketSize") String bucketSize, @Param("bucketStart") Date bucketStart, @Param("bucketEnd") Date bucketEnd);
+
+    @Modifying
+    @Query(value = "insert into clinicaldata_rollup (patient_id, component_name, bucket_size, bucket_start, reading_count,"
+            + " primary_min, primary_max, primary_sum, secondary_min, secondary_max, secondary_sum)"
+            + " select patient_id, component_name, 'HOUR', date_trunc('hour', measured_date_time), count(*),"
+            + " min(primary_value), max(primary_value), sum(primary_value), min(secondary_value), max(secondary_value), sum(secondary_value)"
+            + " from clinicaldata where primary_value is not null and measured_date_time is not null and patient_id is not null"
+            + " group by patient_id, component_name, date_trunc('hour', measured_date_time)", nativeQuery = true)
+    int rebuildHourly();
+
+    @Modifying
+    @Query(value = "insert into clinicaldata_rollup (patient_id, component_name, bucket_size, bucket_start, reading_count,"
+            + " primary_min, primary_max, primary_sum, secondary_min, secondary_max, secondary_sum)"
+            + " select patient_id, component_name, 'DAY', date_trunc('day', measured_date_time), count(*),"
+            + " min(primary_value), max(primary_value), sum(primary_value), min(secondary_value), max(secondary_value), sum(secondary_value)"
+            + " from clinicaldata where primary_value is not null and measured_date_time is not null and patient_id is not null"
+            + " group by patient_id, component_name, date_trunc('day', measured_date_time)", nativeQuery = true)
+    int rebuildDaily();
+
+    //the same three for the buckets from a time on, leaving older rollups as they are
+
+    @Modifying
+    @Query("delete from ClinicalDataRollup r where r.bucketStart >= :from")
+    int deleteFrom(@Param("from") Date from);
+
+    @Modifying
+    @Query(value = "insert into clinicaldata_rollup (patient_id, component_name, bucket_size, bucket_start, reading_count,"
+            + " primary_min, primary_max, primary_sum, secondary_min, secondary_max, secondary_sum)"
+            + " select patient_id, component_name, 'HOUR', date_trunc('hour', measured_date_time), count(*),"
+            + " min(primary_value), max(primary_value), sum(primary_value), min(secondary_value), max(secondary_value), sum(secondary_value)"
+            + " from clinicaldata where primary_value is not null and measured_date_time >= :from and patient_id is not null"
+            + " group by patient_id, component_name, date_trunc('hour', measured_date_time)", nativeQuery = true)
+    int rebuildHourlyFrom(@Param("from") Date from);
+
+    @Modifying
+    @Query(value = "insert into clinicaldata_rollup (patient_id, component_name, bucket_size, bucket_start, reading_count,"
+            + " primary_min, primary_max, primary_sum, secondary_min, secondary_max, secondary_sum)"
+            + " select patient_id, component_name, 'DAY', date_trunc('day', measured_date_time), count(*),"
+            + " min(primary_value), max(primary_value), sum(primary_value), min(secondary_value), max(secondary_value), sum(secondary_value)"
+            + " from clinicaldata where primary_value is not null and measured_date_time >= :from and patient_id is not null"
+            + " group by patient_id, component_name, date_trunc('day', measured_date_time)", nativeQuery = true)
+    int rebuildDailyFrom(@Param("from") Date from);
+}
@@ -1,9 +1,73 @@
 package org.example.clinicalsapi.repos;
 
 import org.example.clinicalsapi.models.Patient;
+import org.springframework.data.domain.Limit;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
 
 @Repository
 public interface PatientRepository extends JpaRepository<Patient, Integer> {
+
+    //keyset page: the next patients after the given id cursor
+    List<Patient> findByIdGreaterThanOrderByIdAsc(int afterId, Limit limit);
+
+    //keyset page of ids alone, for building PatientIdIndex
+    @Query("select p.id from Patient p where p.id > :afterId order by p.id")
+    List<Integer> findIdsAfter(@Param("afterId") int afterId, Limit limit);
+
+    //a patient's names without the rest of the row, for building PatientNameIndex
+    interface PatientName {
+        int getId();
+
+        String getFirstName();
+
+        String getLastName();
+    }
+
+    @Query("select p.id as id, p.firstName as firstName, p.lastName as lastName from Patient p where p.id > :afterId order by p.id")
+    List<PatientName> findNamesAfter(@Param("afterId") int afterId, Limit limit);
+
+    //which of the given ids belong to an existing patient, without loading the patients
+    @Query("select p.id from Patient p where p.id in :ids")
+    Set<Integer> findExistingIds(@Param("ids") Collection<Integer> ids);
+
+    //one conditional UPDATE; 0 when the patient is gone or is no longer at the expected version
+    @Transactional
+    @Modifying
+    @Query("update Patient p set p.firstName = :firstName, p.lastName = :lastName, p.age = :age, p.version = p.version + 1"
+            + " where p.id = :id and p.version = :version")
+    int updateIfVersionMatches(@Param("id") int id, @Param("version") long version, @Param("firstName") String firstName,
+                               @Param("lastName") String lastName, @Param("age") int age);
+
+    //one UPDATE that also bumps the version; 0 when there is no such patient
+    @Transactional
+    @Modifying
+    @Query("update Patient p set p.firstName = :firstName, p.lastName = :lastName, p.age = :age, p.version = p.version + 1"
+            + " where p.id = :id")
+    int updateById(@Param("id") int id, @Param("firstName") String firstName, @Param("lastName") String lastName,
+                   @Param("age") int age);
+
+    @Modifying
+    @Query("delete from ClinicalData c where c.patient.id = :patientId")
+    int deleteReadingsOfPatient(@Param("patientId") int patientId);
+
+    @Modifying
+    @Query("delete from Patient p where p.id = :id")
+    int deletePatientById(@Param("id") int id);
+
+    //the patient and all of their readings in two set based DELETEs, instead of loading the readings and
+    //cascading one row at a time; 0 when there is no such patient
+    @Transactional
+    default int deleteWithReadings(int id) {
+        deleteReadingsOfPatient(id);
+        return deletePatientById(id);
+    }
 }
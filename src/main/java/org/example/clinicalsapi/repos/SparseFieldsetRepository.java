@@ -0,0 +1,93 @@
+package org.example.clinicalsapi.repos;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import jakarta.persistence.Tuple;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+//selects only the requested columns of patients or readings by id, for the fields= parameter of the batch
+//gets. nothing is loaded into the persistence context, and field names are checked against a fixed list
+//before they go into the query
+@Repository
+public class SparseFieldsetRepository {
+
+    public enum Resource {
+        PATIENT("Patient p", orderedFields(
+                "id", "p.id",
+                "firstName", "p.firstName",
+                "lastName", "p.lastName",
+                "age", "p.age")),
+        //patientId is the foreign key column, it does not join patient
+        CLINICAL_DATA("ClinicalData c", orderedFields(
+                "id", "c.id",
+                "patientId", "c.patient.id",
+                "componentName", "c.componentName",
+                "componentValue", "c.componentValue",
+                "measuredDateTime", "c.measuredDateTime",
+                "primaryValue", "c.primaryValue",
+                "secondaryValue", "c.secondaryValue",
+                "unit", "c.unit"));
+
+        private final String from;
+        //field name to path, in the order fields are written out
+        private final Map<String, String> fields;
+
+        Resource(String from, Map<String, String> fields) {
+            this.from = from;
+            this.fields = fields;
+        }
+
+        public Set<String> fieldNames() {
+            return fields.keySet();
+        }
+    }
+
+    private static Map<String, String> orderedFields(String... namesAndPaths) {
+        Map<String, String> fields = new LinkedHashMap<>();
+        for (int i = 0; i < namesAndPaths.length; i += 2) {
+            fields.put(namesAndPaths[i], namesAndPaths[i + 1]);
+        }
+        return fields;
+    }
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    //one IN query; each existing id maps to its row as field name to value, with id always included and the
+    //fields in the resource's order. unknown field names are an IllegalArgumentException
+    @Transactional(readOnly = true)
+    public Map<Integer, Map<String, Object>> findByIds(Resource resource, Collection<Integer> ids, Set<String> fieldNames) {
+        StringBuilder select = new StringBuilder("select ");
+        String separator = "";
+        for (Map.Entry<String, String> field : resource.fields.entrySet()) {
+            if (field.getKey().equals("id") || fieldNames.contains(field.getKey())) {
+                select.append(separator).append(field.getValue()).append(" as ").append(field.getKey());
+                separator = ", ";
+            }
+        }
+        for (String fieldName : fieldNames) {
+            if (!resource.fields.containsKey(fieldName)) {
+                throw new IllegalArgumentException("Unknown field " + fieldName);
+            }
+        }
+        String idPath = resource.fields.get("id");
+        List<Tuple> rows = entityManager.createQuery(select + " from " + resource.from + " where " + idPath + " in :ids", Tuple.class)
+                .setParameter("ids", ids)
+                .getResultList();
+        Map<Integer, Map<String, Object>> byId = new HashMap<>(rows.size() * 2);
+        for (Tuple row : rows) {
+            Map<String, Object> values = new LinkedHashMap<>();
+            row.getElements().forEach(element -> values.put(element.getAlias(), row.get(element)));
+            byId.put((Integer) values.get("id"), values);
+        }
+        return byId;
+    }
+}
@@ -0,0 +1,226 @@
+package org.example.clinicalsapi.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.example.clinicalsapi.dto.BulkItemResult;
+import org.example.clinicalsapi.dto.ClinicalDataRequest;
+import org.example.clinicalsapi.dto.IngestReceipt;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+//bounded queue in front of the database for readings posted with "Prefer: respond-async".
+//a single writer drains it in batches, closing a batch when it is full or its time window runs out,
+//and commits each batch in one transaction through ClinicalDataBatchWriter; a batch that fails is retried one
+//reading at a time. a full queue is refused outright so latency cannot grow without bound
+@Service
+public class AsyncIngestPipeline implements SmartLifecycle {
+
+    private static final Logger logger = LoggerFactory.getLogger(AsyncIngestPipeline.class);
+
+    private final ClinicalDataBatchWriter batchWriter;
+    private final BlockingQueue<QueuedReading> queue;
+    private final int batchSize;
+    private final long batchWindowNanos;
+    private final Cache<String, IngestReceipt> receipts;
+
+    private final Counter refused;
+    private final Counter failed;
+    private final DistributionSummary batchSizes;
+    private final Timer commitLatency;
+
+    private final SimpleAsyncTaskExecutor writerExecutor;
+    private volatile boolean running;
+    private volatile CountDownLatch writerDone = new CountDownLatch(0);
+
+    private record QueuedReading(String receiptId, ClinicalDataRequest request) {
+    }
+
+    public AsyncIngestPipeline(ClinicalDataBatchWriter batchWriter,
+                               MeterRegistry meterRegistry,
+                               @Value("${clinicals.ingest.queue-capacity:10000}") int queueCapacity,
+                               @Value("${clinicals.ingest.batch-size:500}") int batchSize,
+                               @Value("${clinicals.ingest.batch-window:PT0.05S}") Duration batchWindow,
+                               @Value("${clinicals.ingest.receipt-retention:PT10M}") Duration receiptRetention,
+                               @Value("${spring.threads.virtual.enabled:false}") boolean virtualThreads) {
+        this.batchWriter = batchWriter;
+        this.writerExecutor = new SimpleAsyncTaskExecutor("clinicaldata-ingest-writer-");
+        this.writerExecutor.setDaemon(true);
+        this.writerExecutor.setVirtualThreads(virtualThreads);
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.batchSize = Math.min(batchSize, ClinicalDataBatchWriter.MAX_ITEMS);
+        this.batchWindowNanos = batchWindow.toNanos();
+        this.receipts = Caffeine.newBuilder()
+                .maximumSize(Math.max(queueCapacity * 10L, 100_000L))
+                .expireAfterWrite(receiptRetention)
+                .build();
+
+        Gauge.builder("clinicals.ingest.queue.depth", queue, BlockingQueue::size)
+                .description("Readings waiting to be written")
+                .register(meterRegistry);
+        this.refused = Counter.builder("clinicals.ingest.refused")
+                .description("Readings refused because the queue was full")
+                .register(meterRegistry);
+        this.failed = Counter.builder("clinicals.ingest.failed")
+                .description("Readings lost to a failed commit, after a failed batch was retried one reading at a time")
+                .register(meterRegistry);
+        this.batchSizes = DistributionSummary.builder("clinicals.ingest.batch.size")
+                .description("Readings per committed batch")
+                .register(meterRegistry);
+        this.commitLatency = Timer.builder("clinicals.ingest.commit")
+                .description("Time to write and commit one batch")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
+
+    //queues the reading, or returns null when the queue is full
+    public IngestReceipt submit(ClinicalDataRequest request) {
+        String receiptId = UUID.randomUUID().toString();
+        IngestReceipt receipt = new IngestReceipt(receiptId, IngestReceipt.PENDING, null, null);
+        receipts.put(receiptId, receipt);
+        if (!queue.offer(new QueuedReading(receiptId, request))) {
+            receipts.invalidate(receiptId);
+            refused.increment();
+            return null;
+        }
+        return receipt;
+    }
+
+    //null once the receipt has expired or when it was never issued
+    public IngestReceipt receipt(String receiptId) {
+        return receipts.getIfPresent(receiptId);
+    }
+
+    public int queueDepth() {
+        return queue.size();
+    }
+
+    private void drainLoop() {
+        List<QueuedReading> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                QueuedReading first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + batchWindowNanos;
+                while (batch.size() < batchSize) {
+                    if (queue.drainTo(batch, batchSize - batch.size()) > 0) {
+                        continue;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    QueuedReading next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                writeBatch(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void writeBatch(List<QueuedReading> batch) {
+        List<ClinicalDataRequest> requests = new ArrayList<>(batch.size());
+        for (QueuedReading queued : batch) {
+            requests.add(queued.request());
+        }
+        long start = System.nanoTime();
+        try {
+            List<BulkItemResult> results = batchWriter.write(requests);
+            commitLatency.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            batchSizes.record(batch.size());
+            for (BulkItemResult result : results) {
+                resolve(batch.get(result.getIndex()).receiptId(), result);
+            }
+        } catch (RuntimeException e) {
+            if (batch.size() == 1) {
+                fail(batch.get(0), e);
+                return;
+            }
+            //one bad row (say a patient deleted after the index check) rolls back the whole batch; write the
+            //readings one at a time so only the ones that fail on their own are lost
+            logger.warn("Failed to write a batch of {} queued readings, writing them one at a time: {}", batch.size(), e.getMessage());
+            for (QueuedReading queued : batch) {
+                try {
+                    resolve(queued.receiptId(), batchWriter.write(List.of(queued.request())).get(0));
+                } catch (RuntimeException single) {
+                    fail(queued, single);
+                }
+            }
+        }
+    }
+
+    private void resolve(String receiptId, BulkItemResult result) {
+        String status = BulkItemResult.CREATED.equals(result.getStatus()) ? IngestReceipt.CREATED : IngestReceipt.REJECTED;
+        receipts.put(receiptId, new IngestReceipt(receiptId, status, result.getId(), result.getError()));
+    }
+
+    private void fail(QueuedReading queued, RuntimeException e) {
+        logger.error("Failed to write the queued reading for patient id: {}", queued.request().getPatientId(), e);
+        failed.increment();
+        receipts.put(queued.receiptId(), new IngestReceipt(queued.receiptId(), IngestReceipt.FAILED, null, "Commit failed"));
+    }
+
+    @Override
+    public void start() {
+        running = true;
+        CountDownLatch done = new CountDownLatch(1);
+        writerDone = done;
+        writerExecutor.execute(() -> {
+            try {
+                drainLoop();
+            } finally {
+                done.countDown();
+            }
+        });
+    }
+
+    //stops taking new work and lets the writer finish what is queued
+    @Override
+    public void stop() {
+        running = false;
+        try {
+            writerDone.await(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    //start before and stop after the web server, so nothing is accepted that will not be written
+    @Override
+    public int getPhase() {
+        return SmartLifecycle.DEFAULT_PHASE - 4096;
+    }
+}
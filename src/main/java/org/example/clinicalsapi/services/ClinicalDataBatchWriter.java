@@ -0,0 +1,85 @@
+package org.example.clinicalsapi.services;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import org.example.clinicalsapi.dto.BulkItemResult;
+import org.example.clinicalsapi.dto.ClinicalDataRequest;
+import org.example.clinicalsapi.models.ClinicalData;
+import org.example.clinicalsapi.models.Patient;
+import org.example.clinicalsapi.repos.PatientRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+//inserts many readings in one transaction, relying on jdbc batching and pooled id allocation
+@Service
+public class ClinicalDataBatchWriter {
+
+    public static final int MAX_ITEMS = 5000;
+
+    @Autowired
+    private PatientRepository patientRepository;
+
+    @Autowired
+    private ApplicationEventPublisher eventPublisher;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    //flush and clear at the jdbc batch size so every flush is one batched statement
+    @Value("${spring.jpa.properties.hibernate.jdbc.batch_size:100}")
+    private int flushSize;
+
+    @Transactional
+    public List<BulkItemResult> write(List<ClinicalDataRequest> requests) {
+        Set<Integer> patientIds = new HashSet<>();
+        for (ClinicalDataRequest request : requests) {
+            patientIds.add(request.getPatientId());
+        }
+        Set<Integer> knownPatientIds = patientRepository.findExistingIds(patientIds);
+
+        List<BulkItemResult> results = new ArrayList<>(requests.size());
+        int pending = 0;
+        for (int i = 0; i < requests.size(); i++) {
+            ClinicalDataRequest request = requests.get(i);
+            String problem = validate(request, knownPatientIds);
+            if (problem != null) {
+                results.add(BulkItemResult.rejected(i, problem));
+                continue;
+            }
+            Patient patient = entityManager.getReference(Patient.class, request.getPatientId());
+            ClinicalData clinicalData = request.toClinicalData(patient);
+            entityManager.persist(clinicalData);
+            //delivered to listeners once the transaction commits
+            eventPublisher.publishEvent(ClinicalDataEvent.saved(clinicalData));
+            results.add(BulkItemResult.created(i, clinicalData.getId()));
+            if (++pending % flushSize == 0) {
+                entityManager.flush();
+                entityManager.clear();
+            }
+        }
+        entityManager.flush();
+        entityManager.clear();
+        return results;
+    }
+
+    private static String validate(ClinicalDataRequest request, Set<Integer> knownPatientIds) {
+        if (request.getComponentName() == null || request.getComponentName().isBlank()) {
+            return "componentName is required";
+        }
+        if (request.getComponentValue() == null || request.getComponentValue().isBlank()) {
+            return "componentValue is required";
+        }
+        if (!knownPatientIds.contains(request.getPatientId())) {
+            return "Patient with id " + request.getPatientId() + " not found";
+        }
+        return null;
+    }
+}
@@ -0,0 +1,296 @@
+package org.example.clinicalsapi.services;
+
+import org.example.clinicalsapi.dto.CsvImportResult;
+import org.example.clinicalsapi.models.VitalValueParser;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.temporal.ChronoField;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.List;
+
+//csv export and import of the clinicaldata table for nightly extracts and backfills. on PostgreSQL both go
+//through COPY, streaming between the http body and the database without creating entities; elsewhere (the
+//in-memory test database) rows are read and written with plain jdbc in the same format.
+//the columns are EXPORT_COLUMNS with a header line. an import ignores the id column and takes new ids from
+//clinicaldata_seq a block at a time, the way the entity's pooled-lo generator does, so they never collide.
+//primary_value, secondary_value and unit are derived from component_value the way every other write does it,
+//the file's copies of them are ignored: a partner's backfill may leave them empty or disagree with the value
+@Service
+public class ClinicalDataCopier {
+
+    private static final Logger logger = LoggerFactory.getLogger(ClinicalDataCopier.class);
+
+    static final String EXPORT_COLUMNS = "id, patient_id, component_name, component_value, measured_date_time,"
+            + " primary_value, secondary_value, unit";
+    //has to match the allocationSize of the clinicaldata_seq generator on ClinicalData. with the pooled-lo
+    //optimizer (application.properties) a sequence value is the first id of a block of ID_BLOCK
+    static final int ID_BLOCK = 50;
+    private static final int FALLBACK_BATCH = 1000;
+
+    //how PostgreSQL prints a timestamp in csv, so both paths write the same file
+    private static final DateTimeFormatter TIMESTAMP = new DateTimeFormatterBuilder()
+            .appendPattern("uuuu-MM-dd HH:mm:ss")
+            .appendFraction(ChronoField.NANO_OF_SECOND, 0, 6, true)
+            .toFormatter();
+
+    //VitalValueParser in sql, the same expressions db/002-typed-vital-values.sql backfilled the columns with
+    private static final String BP_VALUE = "s.component_name = 'bp' AND s.component_value ~ '^ *[0-9]+(\\.[0-9]+)? */ *[0-9]+(\\.[0-9]+)? *$'";
+    private static final String DERIVED_VALUES = "CASE"
+            + " WHEN " + BP_VALUE + " THEN greatest(split_part(s.component_value, '/', 1)::double precision,"
+            + " split_part(s.component_value, '/', 2)::double precision)"
+            + " WHEN s.component_name <> 'bp' AND s.component_value ~ '^ *[0-9]+(\\.[0-9]+)? *$' THEN trim(s.component_value)::double precision"
+            + " END, CASE WHEN " + BP_VALUE + " THEN least(split_part(s.component_value, '/', 1)::double precision,"
+            + " split_part(s.component_value, '/', 2)::double precision) END,"
+            + " CASE s.component_name WHEN 'bp' THEN 'mmHg' WHEN 'heartrate' THEN 'bpm' END";
+
+    private static final String VALID_ROW = "i.component_name IS NOT NULL AND i.component_value IS NOT NULL"
+            + " AND EXISTS (SELECT 1 FROM patient p WHERE p.id = i.patient_id)";
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    @Autowired
+    private PatientIdIndex patientIdIndex;
+
+    @Autowired
+    private ClinicalDataRollupService rollupService;
+
+    @Autowired
+    private LatestVitalsCache latestVitalsCache;
+
+    @Autowired
+    private CohortSnapshot cohortSnapshot;
+
+    //what an import wrote: its patients and the span of measured times, over which their rollups are recomputed
+    //set-based. a bit per patient id and two timestamps, however many rows and hours the file covers
+    private static final class Imported {
+        final BitSet patientIds = new BitSet();
+        Date earliest;
+        Date latest;
+
+        void add(int patientId, Date from, Date to) {
+            patientIds.set(patientId);
+            if (earliest == null || from.before(earliest)) {
+                earliest = from;
+            }
+            if (latest == null || to.after(latest)) {
+                latest = to;
+            }
+        }
+    }
+
+    public void exportCsv(OutputStream out) throws IOException {
+        try {
+            jdbcTemplate.execute((ConnectionCallback<Void>) connection -> {
+                if (!connection.isWrapperFor(PGConnection.class)) {
+                    exportWithJdbc(out);
+                    return null;
+                }
+                CopyManager copyManager = connection.unwrap(PGConnection.class).getCopyAPI();
+                try {
+                    //a query rather than the table, COPY ... TO refuses a partitioned table (db/006)
+                    long rows = copyManager.copyOut("COPY (SELECT " + EXPORT_COLUMNS + " FROM clinicaldata) TO STDOUT WITH (FORMAT csv, HEADER)", out);
+                    logger.info("Exported {} clinical data rows with COPY", rows);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return null;
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private void exportWithJdbc(OutputStream out) {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        try {
+            writer.write(EXPORT_COLUMNS.replace(" ", "") + "\n");
+            jdbcTemplate.query("SELECT " + EXPORT_COLUMNS + " FROM clinicaldata", rs -> {
+                try {
+                    Timestamp measured = rs.getTimestamp(5);
+                    Csv.writeRecord(writer, rs.getInt(1), rs.getInt(2), rs.getString(3), rs.getString(4),
+                            measured != null ? TIMESTAMP.format(measured.toLocalDateTime()) : null,
+                            rs.getObject(6), rs.getObject(7), rs.getString(8));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            writer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    //all or nothing: the whole file is written in one transaction. rows without a component or with an unknown
+    //patient are skipped and counted, malformed csv fails the import with an IllegalArgumentException or a
+    //DataIntegrityViolationException
+    public CsvImportResult importCsv(InputStream in) throws IOException {
+        Imported imported = new Imported();
+        CsvImportResult result;
+        try {
+            result = transactionTemplate.execute(status -> jdbcTemplate.execute((ConnectionCallback<CsvImportResult>) connection -> {
+                try {
+                    return connection.isWrapperFor(PGConnection.class)
+                            ? importWithCopy(connection.unwrap(PGConnection.class).getCopyAPI(), in, imported)
+                            : importWithJdbc(in, imported);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        logger.info("Imported {} clinical data rows, rejected {}", result.getImported(), result.getRejected());
+        if (imported.earliest == null) {
+            return result;
+        }
+        //the rows did not go through the entity listeners, so bring the derived state up to date by hand
+        int[] patientIds = imported.patientIds.stream().toArray();
+        try {
+            rollupService.recompute(patientIds, imported.earliest, imported.latest);
+        } catch (RuntimeException e) {
+            logger.error("Recomputing the rollups of {} imported patients failed, the nightly rebuild repairs them",
+                    patientIds.length, e);
+        }
+        for (int patientId : patientIds) {
+            latestVitalsCache.evict(patientId);
+            cohortSnapshot.markDirty(patientId);
+        }
+        return result;
+    }
+
+    //COPY into a temporary table, then one INSERT ... SELECT of the valid rows with ids from reserved blocks.
+    //the valid rows are picked once, numbered and kept: a patient committed meanwhile would otherwise make more rows
+    //valid for the insert than the ids were reserved for, and the rows past the last block would be lost
+    private CsvImportResult importWithCopy(CopyManager copyManager, InputStream in, Imported imported)
+            throws SQLException, IOException {
+        jdbcTemplate.execute("CREATE TEMPORARY TABLE clinicaldata_import (id int, patient_id int, component_name varchar(255),"
+                + " component_value varchar(255), measured_date_time timestamp, primary_value double precision,"
+                + " secondary_value double precision, unit varchar(16)) ON COMMIT DROP");
+        long staged = copyManager.copyIn("COPY clinicaldata_import (" + EXPORT_COLUMNS + ") FROM STDIN WITH (FORMAT csv, HEADER)", in);
+        jdbcTemplate.execute("CREATE TEMPORARY TABLE clinicaldata_import_valid ON COMMIT DROP AS"
+                + " SELECT i.*, row_number() OVER () - 1 AS rn FROM clinicaldata_import i WHERE " + VALID_ROW);
+        Long valid = jdbcTemplate.queryForObject("SELECT count(*) FROM clinicaldata_import_valid", Long.class);
+        if (valid == null || valid == 0) {
+            return new CsvImportResult(0, staged);
+        }
+        //materialized so the sequence is called exactly once per block
+        jdbcTemplate.execute("CREATE TEMPORARY TABLE clinicaldata_import_ids ON COMMIT DROP AS"
+                + " SELECT g AS block, nextval('clinicaldata_seq') AS lo FROM generate_series(0, " + (valid - 1) / ID_BLOCK + ") g");
+        int inserted = jdbcTemplate.update("INSERT INTO clinicaldata (id, patient_id, component_name, component_value,"
+                + " measured_date_time, primary_value, secondary_value, unit, version)"
+                + " SELECT b.lo + s.rn % " + ID_BLOCK + ", s.patient_id, s.component_name, s.component_value,"
+                + " coalesce(s.measured_date_time, localtimestamp), " + DERIVED_VALUES + ", 0"
+                + " FROM clinicaldata_import_valid s JOIN clinicaldata_import_ids b ON b.block = s.rn / " + ID_BLOCK);
+        //the same timestamp the insert gave rows without one: localtimestamp is fixed for the transaction
+        jdbcTemplate.query("SELECT i.patient_id, min(coalesce(i.measured_date_time, localtimestamp)),"
+                        + " max(coalesce(i.measured_date_time, localtimestamp)) FROM clinicaldata_import_valid i GROUP BY i.patient_id",
+                rs -> {
+                    imported.add(rs.getInt(1), rs.getTimestamp(2), rs.getTimestamp(3));
+                });
+        return new CsvImportResult(inserted, staged - inserted);
+    }
+
+    private CsvImportResult importWithJdbc(InputStream in, Imported imported) throws IOException {
+        Csv.RecordReader reader = new Csv.RecordReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        reader.next();
+        long inserted = 0;
+        long rejected = 0;
+        long nextId = 0;
+        long blockEnd = 0;
+        List<Object[]> batch = new ArrayList<>(FALLBACK_BATCH);
+        List<String> record;
+        int line = 1;
+        while ((record = reader.next()) != null) {
+            line++;
+            if (record.size() != 8) {
+                throw new IllegalArgumentException("Line " + line + ": expected 8 columns, found " + record.size());
+            }
+            Object[] row;
+            try {
+                row = toRow(record);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Line " + line + ": " + e.getMessage(), e);
+            }
+            if (row[2] == null || row[3] == null || row[1] == null || !patientIdIndex.contains((Integer) row[1])) {
+                rejected++;
+                continue;
+            }
+            if (nextId == blockEnd) {
+                nextId = nextSequenceValue();
+                blockEnd = nextId + ID_BLOCK;
+            }
+            row[0] = (int) nextId++;
+            double[] figures = VitalValueParser.parse((String) row[2], (String) row[3]);
+            row[5] = Double.isNaN(figures[0]) ? null : figures[0];
+            row[6] = Double.isNaN(figures[1]) ? null : figures[1];
+            row[7] = VitalValueParser.unitOf((String) row[2]);
+            if (row[4] == null) {
+                row[4] = new Timestamp(System.currentTimeMillis());
+            }
+            imported.add((Integer) row[1], (Timestamp) row[4], (Timestamp) row[4]);
+            batch.add(row);
+            if (batch.size() == FALLBACK_BATCH) {
+                inserted += insert(batch);
+            }
+        }
+        inserted += insert(batch);
+        return new CsvImportResult(inserted, rejected);
+    }
+
+    private long nextSequenceValue() {
+        Long value = jdbcTemplate.queryForObject("SELECT nextval('clinicaldata_seq')", Long.class);
+        return value != null ? value : 0;
+    }
+
+    private int insert(List<Object[]> batch) {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        jdbcTemplate.batchUpdate("INSERT INTO clinicaldata (" + EXPORT_COLUMNS + ", version) VALUES (?, ?, ?, ?, ?, ?, ?, ?, 0)", batch);
+        int size = batch.size();
+        batch.clear();
+        return size;
+    }
+
+    //the id and the typed values are filled in later, the file's are ignored
+    private static Object[] toRow(List<String> record) {
+        String measured = record.get(4);
+        return new Object[]{
+                null,
+                record.get(1) != null ? Integer.valueOf(record.get(1)) : null,
+                record.get(2),
+                record.get(3),
+                measured != null ? Timestamp.valueOf(measured.replace('T', ' ')) : null,
+                null,
+                null,
+                null
+        };
+    }
+}
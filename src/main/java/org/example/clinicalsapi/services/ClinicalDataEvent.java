@@ -0,0 +1,69 @@
+package org.example.clinicalsapi.services;
+
+import org.example.clinicalsapi.models.ClinicalData;
+
+import java.util.Date;
+
+//published whenever a reading is written; listeners keep derived views (caches, rollups, feeds) in step.
+//listen with @TransactionalEventListener(fallbackExecution = true) to only see committed changes
+public class ClinicalDataEvent {
+
+    public enum Type {
+        SAVED,
+        UPDATED,
+        DELETED
+    }
+
+    private final Type type;
+    private final Integer patientId;
+    private final ClinicalData clinicalData;
+    //for UPDATED, where the reading was filed before the change
+    private final String previousComponentName;
+    private final Date previousMeasuredDateTime;
+
+    public ClinicalDataEvent(Type type, ClinicalData clinicalData, String previousComponentName, Date previousMeasuredDateTime) {
+        this.type = type;
+        this.clinicalData = clinicalData;
+        //read the id now, it does not initialize a lazy patient proxy
+        this.patientId = clinicalData.getPatient() != null ? clinicalData.getPatient().getId() : null;
+        this.previousComponentName = previousComponentName;
+        this.previousMeasuredDateTime = previousMeasuredDateTime;
+    }
+
+    public ClinicalDataEvent(Type type, ClinicalData clinicalData) {
+        this(type, clinicalData, null, null);
+    }
+
+    public static ClinicalDataEvent saved(ClinicalData clinicalData) {
+        return new ClinicalDataEvent(Type.SAVED, clinicalData);
+    }
+
+    public static ClinicalDataEvent updated(ClinicalData clinicalData, String previousComponentName, Date previousMeasuredDateTime) {
+        return new ClinicalDataEvent(Type.UPDATED, clinicalData, previousComponentName, previousMeasuredDateTime);
+    }
+
+    public static ClinicalDataEvent deleted(ClinicalData clinicalData) {
+        return new ClinicalDataEvent(Type.DELETED, clinicalData);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    //null when the reading is not attached to a patient
+    public Integer getPatientId() {
+        return patientId;
+    }
+
+    public ClinicalData getClinicalData() {
+        return clinicalData;
+    }
+
+    public String getPreviousComponentName() {
+        return previousComponentName;
+    }
+
+    public Date getPreviousMeasuredDateTime() {
+        return previousMeasuredDateTime;
+    }
+}
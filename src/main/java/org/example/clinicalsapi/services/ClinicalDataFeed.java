@@ -0,0 +1,387 @@
+package org.example.clinicalsapi.services;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.example.clinicalsapi.dto.LiveReading;
+import org.example.clinicalsapi.models.ClinicalData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+//pushes committed readings to server-sent-event subscribers, optionally only one patient's and only some
+//components. a subscriber is an async servlet request, so an idle connection holds no thread; each has a
+//bounded queue that a small shared dispatch pool drains a burst at a time, so a subscriber with a lot queued
+//cannot keep the others waiting. a reading is serialized once however many subscribers it goes to.
+//when a subscriber's queue is full the overflow policy either drops its oldest frame, telling it how many it
+//missed with a "dropped" event, or disconnects it; either way it can catch up with the range query.
+//sends are blocking writes, so a client that stops reading without going away would hold its dispatch thread:
+//a watchdog disconnects a subscriber whose send has taken longer than write-timeout and gives the pool a thread
+//in place of the stuck one until the write returns (the container's own write timeout ends it)
+@Service
+public class ClinicalDataFeed {
+
+    private static final Logger logger = LoggerFactory.getLogger(ClinicalDataFeed.class);
+
+    //frames sent per turn on a dispatch thread before the subscriber goes to the back of the line
+    private static final int BURST = 64;
+    private static final Frame HEARTBEAT = new Frame(null, null);
+
+    public enum Overflow {
+        DROP_OLDEST,
+        DISCONNECT
+    }
+
+    //one reading as it goes out; the heartbeat has no json
+    private record Frame(String id, String json) {
+        SseEmitter.SseEventBuilder toEvent() {
+            return json == null ? SseEmitter.event().comment("keepalive") : SseEmitter.event().id(id).name("reading").data(json);
+        }
+    }
+
+    private final ObjectMapper objectMapper;
+    private final Executor dispatcher;
+    private final int bufferSize;
+    private final int maxSubscribers;
+    private final long timeoutMillis;
+    private final Overflow overflow;
+    private final long writeTimeoutNanos;
+    private final ScheduledExecutorService watchdog;
+
+    private final Map<Integer, Set<Subscriber>> byPatient = new ConcurrentHashMap<>();
+    private final Set<Subscriber> allPatients = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger subscribers = new AtomicInteger();
+
+    private final Counter dropped;
+    private final Counter slowDisconnects;
+
+    @Autowired
+    public ClinicalDataFeed(ObjectMapper objectMapper,
+                            MeterRegistry meterRegistry,
+                            @Value("${clinicals.feed.dispatch-threads:4}") int dispatchThreads,
+                            @Value("${clinicals.feed.buffer-size:256}") int bufferSize,
+                            @Value("${clinicals.feed.max-subscribers:5000}") int maxSubscribers,
+                            @Value("${clinicals.feed.timeout:PT30M}") Duration timeout,
+                            @Value("${clinicals.feed.overflow:DROP_OLDEST}") Overflow overflow,
+                            @Value("${clinicals.feed.write-timeout:PT10S}") Duration writeTimeout) {
+        this(objectMapper, meterRegistry, new ThreadPoolExecutor(dispatchThreads, dispatchThreads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), threadFactory("clinicaldata-feed-")), bufferSize, maxSubscribers, timeout, overflow,
+                writeTimeout);
+    }
+
+    ClinicalDataFeed(ObjectMapper objectMapper, MeterRegistry meterRegistry, Executor dispatcher,
+                     int bufferSize, int maxSubscribers, Duration timeout, Overflow overflow, Duration writeTimeout) {
+        this.objectMapper = objectMapper;
+        this.dispatcher = dispatcher;
+        this.bufferSize = bufferSize;
+        this.maxSubscribers = maxSubscribers;
+        this.timeoutMillis = timeout.toMillis();
+        this.overflow = overflow;
+        this.writeTimeoutNanos = writeTimeout.toNanos();
+        this.watchdog = Executors.newSingleThreadScheduledExecutor(threadFactory("clinicaldata-feed-watchdog-"));
+        long checkMillis = Math.max(10, writeTimeout.toMillis() / 4);
+        this.watchdog.scheduleWithFixedDelay(this::checkWrites, checkMillis, checkMillis, TimeUnit.MILLISECONDS);
+
+        Gauge.builder("clinicals.feed.subscribers", subscribers, AtomicInteger::get)
+                .description("Open live feed connections")
+                .register(meterRegistry);
+        this.dropped = Counter.builder("clinicals.feed.dropped")
+                .description("Readings dropped for subscribers that fell behind")
+                .register(meterRegistry);
+        this.slowDisconnects = Counter.builder("clinicals.feed.slow.disconnects")
+                .description("Subscribers disconnected for falling behind or for a send that took longer than the write timeout")
+                .register(meterRegistry);
+    }
+
+    private static CustomizableThreadFactory threadFactory(String prefix) {
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory(prefix);
+        threadFactory.setDaemon(true);
+        return threadFactory;
+    }
+
+    //a new subscriber, or null when this node already has max-subscribers; an empty componentNames is every component
+    public SseEmitter subscribe(Integer patientId, Set<String> componentNames) {
+        SseEmitter emitter = new SseEmitter(timeoutMillis);
+        return register(emitter, patientId, componentNames) ? emitter : null;
+    }
+
+    boolean register(SseEmitter emitter, Integer patientId, Set<String> componentNames) {
+        if (subscribers.incrementAndGet() > maxSubscribers) {
+            subscribers.decrementAndGet();
+            return false;
+        }
+        Subscriber subscriber = new Subscriber(emitter, patientId, Set.copyOf(componentNames));
+        emitter.onCompletion(subscriber::closed);
+        emitter.onError(e -> subscriber.closed());
+        //the client reconnects, the timeout only keeps forgotten connections from piling up
+        emitter.onTimeout(emitter::complete);
+        if (patientId == null) {
+            allPatients.add(subscriber);
+        } else {
+            byPatient.compute(patientId, (id, forPatient) -> {
+                Set<Subscriber> updated = forPatient != null ? forPatient : ConcurrentHashMap.<Subscriber>newKeySet();
+                updated.add(subscriber);
+                return updated;
+            });
+        }
+        //gets the response headers out, so the client sees the stream open before the first reading
+        subscriber.offer(HEARTBEAT);
+        return true;
+    }
+
+    public int subscriberCount() {
+        return subscribers.get();
+    }
+
+    //runs on the writing thread once the reading has committed, so it only serializes and queues
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onClinicalDataEvent(ClinicalDataEvent event) {
+        if (event.getType() != ClinicalDataEvent.Type.SAVED || subscribers.get() == 0) {
+            return;
+        }
+        Integer patientId = event.getPatientId();
+        Set<Subscriber> forPatient = patientId != null ? byPatient.get(patientId) : null;
+        if (allPatients.isEmpty() && forPatient == null) {
+            return;
+        }
+        ClinicalData reading = event.getClinicalData();
+        Frame frame;
+        try {
+            frame = new Frame(String.valueOf(reading.getId()), objectMapper.writeValueAsString(new LiveReading(patientId, reading)));
+        } catch (JsonProcessingException e) {
+            logger.warn("Could not serialize clinical data with id: {} for the live feed", reading.getId(), e);
+            return;
+        }
+        publish(allPatients, reading.getComponentName(), frame);
+        if (forPatient != null) {
+            publish(forPatient, reading.getComponentName(), frame);
+        }
+    }
+
+    private static void publish(Set<Subscriber> targets, String componentName, Frame frame) {
+        for (Subscriber subscriber : targets) {
+            if (subscriber.wants(componentName)) {
+                subscriber.offer(frame);
+            }
+        }
+    }
+
+    //also finds connections that went away without the container noticing
+    @Scheduled(fixedDelayString = "${clinicals.feed.heartbeat-interval-ms:15000}")
+    public void sendHeartbeats() {
+        allPatients.forEach(Subscriber::heartbeat);
+        byPatient.values().forEach(forPatient -> forPatient.forEach(Subscriber::heartbeat));
+    }
+
+    private void checkWrites() {
+        long now = System.nanoTime();
+        allPatients.forEach(subscriber -> subscriber.checkWrite(now));
+        byPatient.values().forEach(forPatient -> forPatient.forEach(subscriber -> subscriber.checkWrite(now)));
+    }
+
+    //one more dispatch thread while one is stuck in a write, one less once the write returns
+    private void resizeDispatcher(int delta) {
+        if (!(dispatcher instanceof ThreadPoolExecutor pool)) {
+            return;
+        }
+        synchronized (pool) {
+            if (delta > 0) {
+                pool.setMaximumPoolSize(pool.getMaximumPoolSize() + delta);
+                pool.setCorePoolSize(pool.getCorePoolSize() + delta);
+            } else {
+                pool.setCorePoolSize(pool.getCorePoolSize() + delta);
+                pool.setMaximumPoolSize(pool.getMaximumPoolSize() + delta);
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        watchdog.shutdownNow();
+        allPatients.forEach(Subscriber::disconnect);
+        byPatient.values().forEach(forPatient -> forPatient.forEach(Subscriber::disconnect));
+        if (dispatcher instanceof ExecutorService executorService) {
+            executorService.shutdown();
+        }
+    }
+
+    private final class Subscriber {
+
+        private final SseEmitter emitter;
+        private final Integer patientId;
+        private final Set<String> componentNames;
+        private final BlockingQueue<Frame> frames = new ArrayBlockingQueue<>(bufferSize);
+        //set while a drain is queued or running, so at most one dispatch thread writes to the emitter
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final AtomicLong missed = new AtomicLong();
+        private final AtomicBoolean unregistered = new AtomicBoolean();
+        private volatile boolean completing;
+        private volatile boolean done;
+        //when the send in progress started, 0 between sends; guarded by this together with stuck
+        private long sendingSince;
+        private boolean stuck;
+
+        Subscriber(SseEmitter emitter, Integer patientId, Set<String> componentNames) {
+            this.emitter = emitter;
+            this.patientId = patientId;
+            this.componentNames = componentNames;
+        }
+
+        boolean wants(String componentName) {
+            return componentNames.isEmpty() || componentNames.contains(componentName);
+        }
+
+        void offer(Frame frame) {
+            if (completing) {
+                return;
+            }
+            while (!frames.offer(frame)) {
+                if (overflow == Overflow.DISCONNECT) {
+                    logger.info("Disconnecting a live feed subscriber that fell {} readings behind", bufferSize);
+                    slowDisconnects.increment();
+                    disconnect();
+                    return;
+                }
+                if (frames.poll() != null) {
+                    missed.incrementAndGet();
+                    dropped.increment();
+                }
+            }
+            schedule();
+        }
+
+        void heartbeat() {
+            if (frames.isEmpty()) {
+                offer(HEARTBEAT);
+            }
+        }
+
+        //the emitter is completed on the dispatch thread, never on the caller's, which may be a writer
+        void disconnect() {
+            completing = true;
+            unregister();
+            frames.clear();
+            schedule();
+        }
+
+        void closed() {
+            completing = true;
+            done = true;
+            unregister();
+            frames.clear();
+        }
+
+        private void unregister() {
+            if (!unregistered.compareAndSet(false, true)) {
+                return;
+            }
+            if (patientId == null) {
+                allPatients.remove(this);
+            } else {
+                byPatient.computeIfPresent(patientId, (id, forPatient) -> {
+                    forPatient.remove(this);
+                    return forPatient.isEmpty() ? null : forPatient;
+                });
+            }
+            subscribers.decrementAndGet();
+        }
+
+        //a send past the write timeout: no more frames for this subscriber, and the pool makes up for the thread
+        synchronized void checkWrite(long now) {
+            if (sendingSince != 0 && !stuck && now - sendingSince > writeTimeoutNanos) {
+                logger.info("Disconnecting a live feed subscriber whose send has blocked for {} ms",
+                        (now - sendingSince) / 1_000_000);
+                stuck = true;
+                slowDisconnects.increment();
+                resizeDispatcher(1);
+                disconnect();
+            }
+        }
+
+        private void send(SseEmitter.SseEventBuilder event) throws IOException {
+            synchronized (this) {
+                sendingSince = System.nanoTime();
+            }
+            try {
+                emitter.send(event);
+            } finally {
+                synchronized (this) {
+                    sendingSince = 0;
+                    if (stuck) {
+                        stuck = false;
+                        resizeDispatcher(-1);
+                    }
+                }
+            }
+        }
+
+        private void schedule() {
+            if (done || !scheduled.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                dispatcher.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                //shutting down
+                scheduled.set(false);
+            }
+        }
+
+        private void drain() {
+            try {
+                for (int sent = 0; sent < BURST && !completing; sent++) {
+                    Frame frame = frames.poll();
+                    if (frame == null) {
+                        break;
+                    }
+                    long gap = missed.getAndSet(0);
+                    if (gap > 0) {
+                        send(SseEmitter.event().name("dropped").data(String.valueOf(gap)));
+                    }
+                    send(frame.toEvent());
+                }
+                if (completing && !done) {
+                    done = true;
+                    emitter.complete();
+                }
+            } catch (IOException | IllegalStateException e) {
+                //the client went away or the request already completed
+                logger.debug("Live feed subscriber gone: {}", e.getMessage());
+                closed();
+            } finally {
+                scheduled.set(false);
+            }
+            if (!done && (completing || !frames.isEmpty())) {
+                schedule();
+            }
+        }
+    }
+}
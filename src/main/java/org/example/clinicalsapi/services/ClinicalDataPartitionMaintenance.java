@@ -0,0 +1,177 @@
+package org.example.clinicalsapi.services;
+
+import org.postgresql.PGConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+//keeps the monthly partitions of clinicaldata (db/006-partition-clinicaldata.sql) ahead of the clock and
+//applies the retention policy: months older than retention-months are detached, and with an archive-dir
+//then exported to a gzipped csv there (the export format) and dropped. without an archive-dir a detached month
+//stays in the database as a table of its own. a month whose archive failed stays detached and is archived again
+//on the next run. the rollups of retired months are kept: the nightly rollup rebuild
+//only regenerates the retained months.
+//does nothing unless clinicaldata is a partitioned PostgreSQL table
+@Service
+public class ClinicalDataPartitionMaintenance {
+
+    private static final Logger logger = LoggerFactory.getLogger(ClinicalDataPartitionMaintenance.class);
+
+    private static final Pattern PARTITION_NAME = Pattern.compile("clinicaldata_p(\\d{4})_(\\d{2})");
+
+    private final JdbcTemplate jdbcTemplate;
+    private final int monthsAhead;
+    private final int retentionMonths;
+    private final String archiveDir;
+
+    public ClinicalDataPartitionMaintenance(JdbcTemplate jdbcTemplate,
+                                            @Value("${clinicals.partitions.months-ahead:3}") int monthsAhead,
+                                            @Value("${clinicals.partitions.retention-months:0}") int retentionMonths,
+                                            @Value("${clinicals.partitions.archive-dir:}") String archiveDir) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.monthsAhead = monthsAhead;
+        this.retentionMonths = retentionMonths;
+        this.archiveDir = archiveDir;
+    }
+
+    //a node that was down over a month boundary catches up before it takes traffic. a failure here must not keep
+    //the node from starting: readings outside the created months land in clinicaldata_default meanwhile
+    @EventListener(ApplicationReadyEvent.class)
+    public void onStartup() {
+        try {
+            maintain();
+        } catch (RuntimeException e) {
+            logger.error("Clinicaldata partition maintenance failed on startup, it runs again on the schedule", e);
+        }
+    }
+
+    @Scheduled(cron = "${clinicals.partitions.maintenance-cron:0 15 3 * * *}")
+    public void maintain() {
+        if (!isPartitioned()) {
+            return;
+        }
+        Integer created = jdbcTemplate.queryForObject("SELECT clinicaldata_create_partitions(localtimestamp::date,"
+                + " (localtimestamp + make_interval(months => ?))::date)", Integer.class, monthsAhead);
+        if (created != null && created > 0) {
+            logger.info("Created {} clinicaldata partitions", created);
+        }
+        if (retentionMonths > 0) {
+            //tables detached by an earlier run whose archive failed first, then the months that expired since;
+            //one partition failing does not hold up the others
+            if (!archiveDir.isBlank()) {
+                for (String table : expired(detached(), YearMonth.now(), retentionMonths)) {
+                    try {
+                        archiveAndDrop(table);
+                    } catch (RuntimeException e) {
+                        logger.error("Archiving detached clinicaldata partition {} failed again, it is retried on the next run", table, e);
+                    }
+                }
+            }
+            for (String partition : expired(partitions(), YearMonth.now(), retentionMonths)) {
+                try {
+                    retire(partition);
+                } catch (RuntimeException e) {
+                    logger.error("Retiring clinicaldata partition {} failed, a detached table is archived on the next run", partition, e);
+                }
+            }
+        }
+    }
+
+    boolean isPartitioned() {
+        Boolean postgres = jdbcTemplate.execute((ConnectionCallback<Boolean>) connection -> connection.isWrapperFor(PGConnection.class));
+        if (!Boolean.TRUE.equals(postgres)) {
+            return false;
+        }
+        Integer partitioned = jdbcTemplate.queryForObject("SELECT count(*) FROM pg_partitioned_table WHERE partrelid = to_regclass('clinicaldata')",
+                Integer.class);
+        return partitioned != null && partitioned > 0;
+    }
+
+    private List<String> partitions() {
+        return jdbcTemplate.queryForList("SELECT c.relname FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid"
+                + " WHERE i.inhparent = to_regclass('clinicaldata') ORDER BY c.relname", String.class);
+    }
+
+    //monthly tables next to clinicaldata that are no longer attached to it
+    private List<String> detached() {
+        return jdbcTemplate.queryForList("SELECT c.relname FROM pg_class c WHERE c.relkind = 'r' AND NOT c.relispartition"
+                + " AND c.relname LIKE 'clinicaldata\\_p%' AND c.relnamespace ="
+                + " (SELECT p.relnamespace FROM pg_class p WHERE p.oid = to_regclass('clinicaldata')) ORDER BY c.relname", String.class);
+    }
+
+    //the monthly partitions that ended retentionMonths or more before the start of the current month
+    static List<String> expired(List<String> partitions, YearMonth now, int retentionMonths) {
+        YearMonth oldestKept = oldestRetained(now, retentionMonths);
+        List<String> expired = new ArrayList<>();
+        for (String partition : partitions) {
+            Matcher matcher = PARTITION_NAME.matcher(partition);
+            if (matcher.matches() && YearMonth.of(Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2))).isBefore(oldestKept)) {
+                expired.add(partition);
+            }
+        }
+        return expired;
+    }
+
+    static YearMonth oldestRetained(YearMonth now, int retentionMonths) {
+        return now.minusMonths(retentionMonths);
+    }
+
+    //detached before it is archived, so the archive has every row that gets dropped: a reading written for the
+    //month afterwards (a backfill) lands in clinicaldata_default instead. a failed export leaves the detached table,
+    //which detached() finds on the next run
+    private void retire(String partition) {
+        jdbcTemplate.execute("ALTER TABLE clinicaldata DETACH PARTITION " + partition);
+        if (archiveDir.isBlank()) {
+            logger.info("Detached clinicaldata partition {}, it stays in the database as a table", partition);
+            return;
+        }
+        archiveAndDrop(partition);
+    }
+
+    private void archiveAndDrop(String table) {
+        Path archive = archive(table);
+        jdbcTemplate.execute("DROP TABLE " + table);
+        logger.info("Archived clinicaldata partition {} to {} and dropped it", table, archive);
+    }
+
+    private Path archive(String partition) {
+        Path target = Path.of(archiveDir, partition + ".csv.gz");
+        Path partial = Path.of(archiveDir, partition + ".csv.gz.partial");
+        try {
+            Files.createDirectories(target.getParent());
+            try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(partial), 1 << 16)) {
+                jdbcTemplate.execute((ConnectionCallback<Long>) connection -> {
+                    try {
+                        return connection.unwrap(PGConnection.class).getCopyAPI().copyOut("COPY (SELECT "
+                                + ClinicalDataCopier.EXPORT_COLUMNS + " FROM " + partition + ") TO STDOUT WITH (FORMAT csv, HEADER)", out);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            }
+            Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return target;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Archiving " + partition + " failed", e);
+        }
+    }
+}
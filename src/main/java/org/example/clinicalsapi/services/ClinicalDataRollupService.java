@@ -0,0 +1,317 @@
+package org.example.clinicalsapi.services;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.LockModeType;
+import jakarta.persistence.PersistenceContext;
+import org.example.clinicalsapi.models.ClinicalData;
+import org.example.clinicalsapi.models.ClinicalDataRollup;
+import org.example.clinicalsapi.models.ClinicalDataRollup.Bucket;
+import org.example.clinicalsapi.repos.ClinicalDataRollupRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Timestamp;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+
+//keeps hourly and daily min/max/avg/count rollups in step with the raw readings.
+//committed inserts are merged in memory per bucket and written once a second, so a bulk insert costs
+//one upsert per touched bucket; updates and deletes have their buckets recomputed from the raw rows.
+//the rebuild job regenerates everything, which also repairs anything lost if a node dies between flushes.
+//with a partition retention period (ClinicalDataPartitionMaintenance) it only regenerates the retained months:
+//the rollups of retired months outlive their raw readings
+@Service
+public class ClinicalDataRollupService {
+
+    private static final Logger logger = LoggerFactory.getLogger(ClinicalDataRollupService.class);
+
+    //a stable lock order, so concurrent flushes on different nodes do not deadlock
+    private static final Comparator<ClinicalDataRollup.Key> KEY_ORDER = Comparator
+            .comparingInt(ClinicalDataRollup.Key::getPatientId)
+            .thenComparing(ClinicalDataRollup.Key::getComponentName)
+            .thenComparing(ClinicalDataRollup.Key::getBucketSize)
+            .thenComparing(ClinicalDataRollup.Key::getBucketStart);
+
+    private final Map<ClinicalDataRollup.Key, RollupDelta> pendingDeltas = new ConcurrentHashMap<>();
+    private final Set<ClinicalDataRollup.Key> staleBuckets = ConcurrentHashMap.newKeySet();
+    //flush, rebuild, recompute and removePatient write the rollups one at a time
+    private final Object writeLock = new Object();
+    //saved readings are buffered under the read lock; a rebuild or recompute takes the write lock to switch them to
+    //stale buckets
+    private final ReadWriteLock bufferLock = new ReentrantReadWriteLock();
+    private volatile boolean rebuilding;
+
+    @Autowired
+    private ClinicalDataRollupRepository rollupRepository;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Value("${clinicals.partitions.retention-months:0}")
+    private int retentionMonths;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onClinicalDataEvent(ClinicalDataEvent event) {
+        Integer patientId = event.getPatientId();
+        ClinicalData reading = event.getClinicalData();
+        if (patientId == null) {
+            return;
+        }
+        switch (event.getType()) {
+            case SAVED -> {
+                bufferLock.readLock().lock();
+                try {
+                    //the rebuild may or may not read it, a recompute is right either way
+                    if (rebuilding) {
+                        markStale(patientId, reading.getComponentName(), reading.getMeasuredDateTime());
+                    } else {
+                        add(patientId, reading);
+                    }
+                } finally {
+                    bufferLock.readLock().unlock();
+                }
+            }
+            case UPDATED -> {
+                markStale(patientId, event.getPreviousComponentName(), event.getPreviousMeasuredDateTime());
+                markStale(patientId, reading.getComponentName(), reading.getMeasuredDateTime());
+            }
+            case DELETED -> markStale(patientId, reading.getComponentName(), reading.getMeasuredDateTime());
+        }
+    }
+
+    private void add(int patientId, ClinicalData reading) {
+        if (reading.getPrimaryValue() == null || reading.getMeasuredDateTime() == null) {
+            return;
+        }
+        RollupDelta delta = RollupDelta.of(reading);
+        for (Bucket bucket : Bucket.values()) {
+            pendingDeltas.merge(key(patientId, reading.getComponentName(), bucket, reading.getMeasuredDateTime()), delta, RollupDelta::plus);
+        }
+    }
+
+    //has the buckets covering the reading recomputed on the next flush
+    private void markStale(int patientId, String componentName, Date measuredDateTime) {
+        if (componentName == null || measuredDateTime == null) {
+            return;
+        }
+        for (Bucket bucket : Bucket.values()) {
+            staleBuckets.add(key(patientId, componentName, bucket, measuredDateTime));
+        }
+    }
+
+    private static ClinicalDataRollup.Key key(int patientId, String componentName, Bucket bucket, Date measuredDateTime) {
+        return new ClinicalDataRollup.Key(patientId, componentName, bucket, bucket.startOf(measuredDateTime));
+    }
+
+    //writes what has accumulated since the last flush in one transaction; on failure it is kept for the next one.
+    //never while a rebuild runs, it would add to rollups the rebuild is replacing
+    @Scheduled(fixedDelayString = "${clinicals.rollups.flush-interval-ms:1000}")
+    public void flush() {
+        synchronized (writeLock) {
+            Map<ClinicalDataRollup.Key, RollupDelta> deltas = new HashMap<>();
+            for (ClinicalDataRollup.Key key : pendingDeltas.keySet()) {
+                RollupDelta delta = pendingDeltas.remove(key);
+                if (delta != null) {
+                    deltas.put(key, delta);
+                }
+            }
+            List<ClinicalDataRollup.Key> stale = new ArrayList<>();
+            for (ClinicalDataRollup.Key key : staleBuckets) {
+                if (staleBuckets.remove(key)) {
+                    stale.add(key);
+                }
+            }
+            if (deltas.isEmpty() && stale.isEmpty()) {
+                return;
+            }
+            try {
+                transactionTemplate.executeWithoutResult(status -> {
+                    //a recomputed bucket already includes the committed readings behind any pending delta for it
+                    stale.sort(KEY_ORDER);
+                    for (ClinicalDataRollup.Key key : stale) {
+                        deltas.remove(key);
+                        recompute(key);
+                    }
+                    List<ClinicalDataRollup.Key> keys = new ArrayList<>(deltas.keySet());
+                    keys.sort(KEY_ORDER);
+                    for (ClinicalDataRollup.Key key : keys) {
+                        apply(key, deltas.get(key));
+                    }
+                });
+            } catch (RuntimeException e) {
+                logger.warn("Rollup flush of {} buckets failed, retrying on the next flush", deltas.size() + stale.size(), e);
+                deltas.forEach((key, delta) -> pendingDeltas.merge(key, delta, RollupDelta::plus));
+                staleBuckets.addAll(stale);
+            }
+        }
+    }
+
+    private void apply(ClinicalDataRollup.Key key, RollupDelta delta) {
+        ClinicalDataRollup rollup = entityManager.find(ClinicalDataRollup.class, key, LockModeType.PESSIMISTIC_WRITE);
+        if (rollup == null) {
+            rollup = new ClinicalDataRollup();
+            rollup.setPatientId(key.getPatientId());
+            rollup.setComponentName(key.getComponentName());
+            rollup.setBucketSize(key.getBucketSize());
+            rollup.setBucketStart(key.getBucketStart());
+            delta.applyTo(rollup);
+            entityManager.persist(rollup);
+        } else {
+            delta.applyTo(rollup);
+        }
+    }
+
+    private void recompute(ClinicalDataRollup.Key key) {
+        rollupRepository.deleteBucket(key.getPatientId(), key.getComponentName(), key.getBucketSize(), key.getBucketStart());
+        rollupRepository.recomputeBucket(key.getPatientId(), key.getComponentName(), key.getBucketSize().name(),
+                key.getBucketStart(), key.getBucketSize().endOf(key.getBucketStart()));
+    }
+
+    //regenerates every rollup of the retained months from the raw readings
+    @Scheduled(cron = "${clinicals.rollups.rebuild-cron:0 30 3 * * *}")
+    public void rebuild() {
+        Date from = retainedFrom();
+        logger.info("Rebuilding clinical data rollups{}", from != null ? " from " + from : "");
+        regenerate(key -> from == null || !key.getBucketStart().before(from), () -> {
+            int hourly;
+            int daily;
+            if (from == null) {
+                rollupRepository.deleteAllInBatch();
+                hourly = rollupRepository.rebuildHourly();
+                daily = rollupRepository.rebuildDaily();
+            } else {
+                rollupRepository.deleteFrom(from);
+                hourly = rollupRepository.rebuildHourlyFrom(from);
+                daily = rollupRepository.rebuildDailyFrom(from);
+            }
+            logger.info("Rebuilt {} hourly and {} daily rollups", hourly, daily);
+        });
+    }
+
+    //regenerates the rollups of some patients over the days from from through to, for bulk writes that bypass the
+    //entity events (csv imports): the rebuild's statements restricted to those patients and days, however many
+    //buckets that is
+    public void recompute(int[] patientIds, Date from, Date to) {
+        if (patientIds.length == 0) {
+            return;
+        }
+        int[] sorted = patientIds.clone();
+        Arrays.sort(sorted);
+        Date start = Bucket.DAY.startOf(from);
+        Date end = Bucket.DAY.endOf(Bucket.DAY.startOf(to));
+        Integer[] ids = Arrays.stream(sorted).boxed().toArray(Integer[]::new);
+        regenerate(key -> Arrays.binarySearch(sorted, key.getPatientId()) >= 0
+                && !key.getBucketStart().before(start) && key.getBucketStart().before(end), () -> {
+            jdbcTemplate.update("delete from clinicaldata_rollup where patient_id = ANY(?) and bucket_start >= ? and bucket_start < ?",
+                    ps -> {
+                        ps.setArray(1, ps.getConnection().createArrayOf("integer", ids));
+                        ps.setTimestamp(2, new Timestamp(start.getTime()));
+                        ps.setTimestamp(3, new Timestamp(end.getTime()));
+                    });
+            int rollups = 0;
+            for (Bucket bucket : Bucket.values()) {
+                rollups += jdbcTemplate.update("insert into clinicaldata_rollup (patient_id, component_name, bucket_size,"
+                                + " bucket_start, reading_count, primary_min, primary_max, primary_sum, secondary_min, secondary_max,"
+                                + " secondary_sum) select patient_id, component_name, '" + bucket.name() + "', date_trunc('"
+                                + bucket.name().toLowerCase(Locale.ROOT) + "', measured_date_time), count(*), min(primary_value),"
+                                + " max(primary_value), sum(primary_value), min(secondary_value), max(secondary_value), sum(secondary_value)"
+                                + " from clinicaldata where patient_id = ANY(?) and measured_date_time >= ? and measured_date_time < ?"
+                                + " and primary_value is not null"
+                                + " group by patient_id, component_name, date_trunc('" + bucket.name().toLowerCase(Locale.ROOT)
+                                + "', measured_date_time)",
+                        ps -> {
+                            ps.setArray(1, ps.getConnection().createArrayOf("integer", ids));
+                            ps.setTimestamp(2, new Timestamp(start.getTime()));
+                            ps.setTimestamp(3, new Timestamp(end.getTime()));
+                        });
+            }
+            logger.info("Recomputed {} rollups of {} patients from {} to {}", rollups, ids.length, start, end);
+        });
+    }
+
+    //runs work in a transaction that replaces the rollups covered says it does. what is buffered for them when it
+    //starts is for committed readings the work reads anyway and is dropped once it succeeds; readings saved while
+    //it runs mark their buckets stale instead of adding to them, so the next flush recomputes them whether the
+    //work saw them or not
+    private void regenerate(Predicate<ClinicalDataRollup.Key> covered, Runnable work) {
+        synchronized (writeLock) {
+            Map<ClinicalDataRollup.Key, RollupDelta> deltas = new HashMap<>();
+            List<ClinicalDataRollup.Key> stale = new ArrayList<>();
+            bufferLock.writeLock().lock();
+            try {
+                rebuilding = true;
+                for (ClinicalDataRollup.Key key : pendingDeltas.keySet()) {
+                    if (covered.test(key)) {
+                        deltas.put(key, pendingDeltas.remove(key));
+                    }
+                }
+            } finally {
+                bufferLock.writeLock().unlock();
+            }
+            for (ClinicalDataRollup.Key key : staleBuckets) {
+                if (covered.test(key) && staleBuckets.remove(key)) {
+                    stale.add(key);
+                }
+            }
+            try {
+                transactionTemplate.executeWithoutResult(status -> work.run());
+            } catch (RuntimeException e) {
+                deltas.forEach((key, delta) -> pendingDeltas.merge(key, delta, RollupDelta::plus));
+                staleBuckets.addAll(stale);
+                throw e;
+            } finally {
+                rebuilding = false;
+            }
+        }
+    }
+
+    //the start of the oldest month the partition retention keeps, null when it keeps everything. older months may
+    //have been detached or dropped already, rebuilding them would lose their rollups
+    private Date retainedFrom() {
+        if (retentionMonths <= 0) {
+            return null;
+        }
+        YearMonth oldest = ClinicalDataPartitionMaintenance.oldestRetained(YearMonth.now(), retentionMonths);
+        return Date.from(oldest.atDay(1).atStartOfDay(ZoneId.systemDefault()).toInstant());
+    }
+
+    //drops the rollups of a deleted patient
+    public void removePatient(int patientId) {
+        synchronized (writeLock) {
+            pendingDeltas.keySet().removeIf(key -> key.getPatientId() == patientId);
+            staleBuckets.removeIf(key -> key.getPatientId() == patientId);
+            transactionTemplate.executeWithoutResult(status -> rollupRepository.deleteByPatientId(patientId));
+        }
+    }
+
+    public List<ClinicalDataRollup> find(int patientId, String componentName, Bucket bucket, Date from, Date to) {
+        return rollupRepository.findByPatientIdAndComponentNameAndBucketSizeAndBucketStartBetweenOrderByBucketStartAsc(
+                patientId, componentName, bucket, from, to);
+    }
+}
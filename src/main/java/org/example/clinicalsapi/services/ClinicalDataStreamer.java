@@ -0,0 +1,82 @@
+package org.example.clinicalsapi.services;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import org.example.clinicalsapi.models.ClinicalData;
+import org.example.clinicalsapi.repos.ClinicalDataRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.converter.cbor.MappingJackson2CborHttpMessageConverter;
+import org.springframework.http.converter.smile.MappingJackson2SmileHttpMessageConverter;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.stream.Stream;
+
+//writes the clinicaldata table one row at a time off a database cursor, as newline delimited json, as a CBOR
+//sequence (one CBOR item per reading, RFC 8742) or as a Smile stream (one Smile value per reading)
+@Service
+public class ClinicalDataStreamer {
+
+    private static final int FLUSH_EVERY = 500;
+
+    @Autowired
+    private ClinicalDataRepository clinicalDataRepository;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private MappingJackson2CborHttpMessageConverter cborConverter;
+
+    @Autowired
+    private MappingJackson2SmileHttpMessageConverter smileConverter;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Transactional(readOnly = true)
+    public void writeNdjson(OutputStream out) throws IOException {
+        write(out, objectMapper, true);
+    }
+
+    @Transactional(readOnly = true)
+    public void writeCborSequence(OutputStream out) throws IOException {
+        write(out, cborConverter.getObjectMapper(), false);
+    }
+
+    @Transactional(readOnly = true)
+    public void writeSmile(OutputStream out) throws IOException {
+        write(out, smileConverter.getObjectMapper(), false);
+    }
+
+    //binary formats delimit their values themselves, json needs the newline. the mapper would flush after every
+    //value, which sends a packet per row and keeps the compression filter from ever seeing a full buffer
+    private void write(OutputStream out, ObjectMapper mapper, boolean newlineDelimited) throws IOException {
+        ObjectWriter writer = mapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+        try (Stream<ClinicalData> rows = clinicalDataRepository.streamAll();
+             JsonGenerator generator = mapper.getFactory().createGenerator(out)) {
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            Iterator<ClinicalData> iterator = rows.iterator();
+            int written = 0;
+            while (iterator.hasNext()) {
+                ClinicalData row = iterator.next();
+                writer.writeValue(generator, row);
+                if (newlineDelimited) {
+                    generator.writeRaw('\n');
+                }
+                //keep the persistence context empty so heap use stays flat
+                entityManager.detach(row);
+                if (++written % FLUSH_EVERY == 0) {
+                    generator.flush();
+                }
+            }
+        }
+    }
+}
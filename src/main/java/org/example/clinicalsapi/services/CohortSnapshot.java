@@ -0,0 +1,563 @@
+package org.example.clinicalsapi.services;
+
+import jakarta.annotation.PreDestroy;
+import org.example.clinicalsapi.dto.CohortResult;
+import org.example.clinicalsapi.models.ClinicalData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+
+//every patient's age and latest reading of each component, as primitive arrays indexed by patient id (ids are
+//dense, as in PatientIdIndex), so a cohort question ("age>50,bp>140,heartrate>100") is a scan over a few arrays
+//instead of loading patients and their readings. the scan is cut into chunks of patients that run on a
+//dedicated fork/join pool.
+//loaded before the web server starts. saved readings are applied as they commit; an update or delete, which may
+//make an older reading the latest again, marks the patient for a reload on the next refresh, as do writes that
+//bypass the events (csv imports). patients come from PatientController's create, update and delete. the whole
+//snapshot is rebuilt nightly, which also picks up writes made on other nodes.
+//only the components in clinicals.cohort.components get columns: each one costs three arrays as long as the
+//highest patient id, so readings of any other component are ignored rather than growing the heap with every
+//new componentName a client sends
+@Service
+public class CohortSnapshot implements SmartInitializingSingleton {
+
+    private static final Logger logger = LoggerFactory.getLogger(CohortSnapshot.class);
+
+    public static final String AGE = "age";
+    public static final String SECONDARY = ".secondary";
+    private static final int ABSENT = Integer.MIN_VALUE;
+    //"bp.secondary>=90": a field, an operator and a number
+    private static final Pattern CONDITION = Pattern.compile("\\s*([\\w.\\-]+)\\s*(>=|<=|!=|>|<|=)\\s*(-?[\\d.]+(?:[eE]-?\\d+)?)\\s*");
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate readOnlyTransaction;
+    private final ForkJoinPool pool;
+    private final int chunkPatients;
+    private final int refreshBatchSize;
+    private final Set<String> components;
+    //patients whose latest readings have to be read again from the database
+    private final Set<Integer> dirty = ConcurrentHashMap.newKeySet();
+    //readers never lock: they scan the columns they started with, writers hold the lock to change or grow them
+    private final Object writeLock = new Object();
+    private volatile Columns columns;
+    private volatile boolean rebuilding;
+
+    public enum Operator {
+        GT(">"), GE(">="), LT("<"), LE("<="), EQ("="), NE("!=");
+
+        private final String symbol;
+
+        Operator(String symbol) {
+            this.symbol = symbol;
+        }
+
+        boolean test(double value, double operand) {
+            return switch (this) {
+                case GT -> value > operand;
+                case GE -> value >= operand;
+                case LT -> value < operand;
+                case LE -> value <= operand;
+                case EQ -> value == operand;
+                case NE -> value != operand;
+            };
+        }
+
+        static Operator of(String symbol) {
+            for (Operator operator : values()) {
+                if (operator.symbol.equals(symbol)) {
+                    return operator;
+                }
+            }
+            throw new IllegalArgumentException("Unknown operator " + symbol);
+        }
+    }
+
+    //age, a componentName for the primary value of its latest reading or componentName.secondary for the secondary
+    //one, compared with a number. a patient without that reading never matches
+    public record Condition(String field, Operator operator, double operand) {
+
+        public static Condition parse(String condition) {
+            Matcher matcher = CONDITION.matcher(condition);
+            if (!matcher.matches()) {
+                throw new IllegalArgumentException("Cannot parse condition " + condition
+                        + ", expected a field, one of > >= < <= = != and a number, e.g. bp>140");
+            }
+            return new Condition(matcher.group(1), Operator.of(matcher.group(2)), Double.parseDouble(matcher.group(3)));
+        }
+    }
+
+    //one component: when the latest reading was measured and its values, NaN where there is none
+    private static final class Vital {
+        final long[] times;
+        final double[] primary;
+        final double[] secondary;
+
+        Vital(int capacity) {
+            times = new long[capacity];
+            primary = new double[capacity];
+            secondary = new double[capacity];
+            clear(0, capacity);
+        }
+
+        Vital(Vital vital, int capacity) {
+            times = Arrays.copyOf(vital.times, capacity);
+            primary = Arrays.copyOf(vital.primary, capacity);
+            secondary = Arrays.copyOf(vital.secondary, capacity);
+            clear(vital.times.length, capacity);
+        }
+
+        void clear(int from, int to) {
+            Arrays.fill(times, from, to, Long.MIN_VALUE);
+            Arrays.fill(primary, from, to, Double.NaN);
+            Arrays.fill(secondary, from, to, Double.NaN);
+        }
+
+        //the newer reading wins; an equal time replaces, the later write is the one to keep
+        void record(int patientId, long time, double primaryValue, double secondaryValue) {
+            if (time >= times[patientId]) {
+                times[patientId] = time;
+                primary[patientId] = primaryValue;
+                secondary[patientId] = secondaryValue;
+            }
+        }
+    }
+
+    //a patient's latest reading of a component as refresh reads it
+    private record Latest(int patientId, String componentName, long time, double primaryValue, double secondaryValue) {
+    }
+
+    //the arrays are written in place; a patient id past the end replaces the whole set
+    private record Columns(int[] ages, Map<String, Vital> vitals) {
+
+        static Columns empty(Set<String> components) {
+            Map<String, Vital> vitals = new HashMap<>();
+            components.forEach(componentName -> vitals.put(componentName, new Vital(0)));
+            return new Columns(new int[0], vitals);
+        }
+
+        Columns grown(int capacity) {
+            int[] grownAges = Arrays.copyOf(ages, capacity);
+            Arrays.fill(grownAges, ages.length, capacity, ABSENT);
+            Map<String, Vital> grownVitals = new HashMap<>();
+            vitals.forEach((componentName, vital) -> grownVitals.put(componentName, new Vital(vital, capacity)));
+            return new Columns(grownAges, grownVitals);
+        }
+    }
+
+    public CohortSnapshot(DataSource dataSource,
+                          PlatformTransactionManager transactionManager,
+                          @Value("${clinicals.cohort.components:bp,heartrate}") List<String> components,
+                          @Value("${clinicals.cohort.parallelism:0}") int parallelism,
+                          @Value("${clinicals.cohort.chunk-patients:65536}") int chunkPatients,
+                          @Value("${clinicals.cohort.fetch-size:10000}") int fetchSize,
+                          @Value("${clinicals.cohort.refresh-batch-size:1000}") int refreshBatchSize) {
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        //PostgreSQL only streams a result set in batches inside a transaction
+        this.jdbcTemplate.setFetchSize(fetchSize);
+        this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction.setReadOnly(true);
+        this.pool = new ForkJoinPool(parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors());
+        this.chunkPatients = chunkPatients;
+        this.refreshBatchSize = refreshBatchSize;
+        this.components = new LinkedHashSet<>();
+        components.forEach(componentName -> {
+            if (!componentName.isBlank()) {
+                this.components.add(componentName.trim());
+            }
+        });
+        this.columns = Columns.empty(this.components);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    @Override
+    public void afterSingletonsInstantiated() {
+        rebuild();
+    }
+
+    //reads every patient and reading into new columns while the old ones keep answering, then swaps them in;
+    //what was written meanwhile is reloaded from the database afterwards
+    @Scheduled(cron = "${clinicals.cohort.rebuild-cron:0 45 3 * * *}")
+    public void rebuild() {
+        long started = System.nanoTime();
+        rebuilding = true;
+        Columns built;
+        try {
+            built = readOnlyTransaction.execute(status -> load());
+            synchronized (writeLock) {
+                columns = built;
+            }
+        } finally {
+            rebuilding = false;
+        }
+        refresh();
+        logger.info("Built the cohort snapshot of {} patient slots and {} components in {} ms", built.ages().length,
+                built.vitals().size(), (System.nanoTime() - started) / 1_000_000);
+    }
+
+    private Columns load() {
+        Integer maxId = jdbcTemplate.queryForObject("SELECT max(id) FROM patient", Integer.class);
+        Columns[] loading = {Columns.empty(components).grown(maxId != null ? maxId + 1 : 0)};
+        jdbcTemplate.query("SELECT id, age FROM patient", rs -> {
+            int patientId = rs.getInt(1);
+            loading[0] = ensureCapacity(loading[0], patientId);
+            loading[0].ages()[patientId] = rs.getInt(2);
+        });
+        if (components.isEmpty()) {
+            return loading[0];
+        }
+        //no ORDER BY: every row is compared with the latest so far, which spares the database a sort
+        jdbcTemplate.query("SELECT patient_id, component_name, measured_date_time, primary_value, secondary_value"
+                + " FROM clinicaldata WHERE primary_value IS NOT NULL AND measured_date_time IS NOT NULL"
+                + " AND component_name IN (" + String.join(",", Collections.nCopies(components.size(), "?")) + ")", rs -> {
+            int patientId = rs.getInt(1);
+            String componentName = rs.getString(2);
+            long time = rs.getTimestamp(3).getTime();
+            double primaryValue = rs.getDouble(4);
+            double secondaryValue = rs.getDouble(5);
+            loading[0] = ensureCapacity(loading[0], patientId);
+            loading[0].vitals().get(componentName).record(patientId, time, primaryValue,
+                    rs.wasNull() ? Double.NaN : secondaryValue);
+        }, components.toArray());
+        return loading[0];
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onClinicalDataEvent(ClinicalDataEvent event) {
+        Integer patientId = event.getPatientId();
+        if (patientId == null || patientId < 0) {
+            return;
+        }
+        ClinicalData reading = event.getClinicalData();
+        if (event.getType() == ClinicalDataEvent.Type.SAVED && !rebuilding) {
+            record(patientId, reading);
+        } else {
+            dirty.add(patientId);
+        }
+    }
+
+    //has the patient's latest readings and age read again on the next refresh, for writes that bypass the events
+    public void markDirty(int patientId) {
+        if (patientId >= 0) {
+            dirty.add(patientId);
+        }
+    }
+
+    public void putPatient(int patientId, int age) {
+        if (patientId < 0) {
+            return;
+        }
+        synchronized (writeLock) {
+            columns = ensureCapacity(columns, patientId);
+            columns.ages()[patientId] = age;
+        }
+        if (rebuilding) {
+            dirty.add(patientId);
+        }
+    }
+
+    public void removePatient(int patientId) {
+        synchronized (writeLock) {
+            clearPatient(columns, patientId);
+        }
+        if (rebuilding) {
+            dirty.add(patientId);
+        }
+    }
+
+    private void record(int patientId, ClinicalData reading) {
+        if (reading.getPrimaryValue() == null || reading.getMeasuredDateTime() == null
+                || !components.contains(reading.getComponentName())) {
+            return;
+        }
+        synchronized (writeLock) {
+            Columns current = ensureCapacity(columns, patientId);
+            columns = current;
+            current.vitals().get(reading.getComponentName()).record(patientId, reading.getMeasuredDateTime().getTime(),
+                    reading.getPrimaryValue(), reading.getSecondaryValue() != null ? reading.getSecondaryValue() : Double.NaN);
+            //a reading for a patient created on another node: its age comes with the next refresh
+            if (current.ages()[patientId] == ABSENT) {
+                dirty.add(patientId);
+            }
+        }
+    }
+
+    //reloads the patients marked dirty refresh-batch-size at a time, two queries per batch: their ages, and their
+    //latest reading of each configured component. a csv import can mark a million patients at once
+    @Scheduled(fixedDelayString = "${clinicals.cohort.refresh-interval-ms:1000}")
+    public void refresh() {
+        if (rebuilding) {
+            return;
+        }
+        List<Integer> batch = new ArrayList<>();
+        for (Integer patientId : dirty) {
+            if (dirty.remove(patientId)) {
+                batch.add(patientId);
+            }
+            if (batch.size() == refreshBatchSize) {
+                reload(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            reload(batch);
+        }
+    }
+
+    private void reload(List<Integer> patientIds) {
+        Integer[] ids = patientIds.toArray(Integer[]::new);
+        Map<Integer, Integer> ages = new HashMap<>();
+        jdbcTemplate.query("SELECT id, age FROM patient WHERE id = ANY(?)",
+                ps -> ps.setArray(1, ps.getConnection().createArrayOf("integer", ids)),
+                rs -> {
+                    ages.put(rs.getInt(1), rs.getInt(2));
+                });
+        List<Latest> latest = new ArrayList<>();
+        if (!ages.isEmpty() && !components.isEmpty()) {
+            //the same readings load() keeps: the newest with a primary value, per patient and component
+            jdbcTemplate.query("SELECT c.patient_id, c.component_name, c.measured_date_time, c.primary_value, c.secondary_value"
+                            + " FROM clinicaldata c WHERE c.patient_id = ANY(?) AND c.component_name = ANY(?)"
+                            + " AND c.primary_value IS NOT NULL AND c.measured_date_time = (SELECT max(l.measured_date_time)"
+                            + " FROM clinicaldata l WHERE l.patient_id = c.patient_id AND l.component_name = c.component_name"
+                            + " AND l.primary_value IS NOT NULL)",
+                    ps -> {
+                        ps.setArray(1, ps.getConnection().createArrayOf("integer", ages.keySet().toArray()));
+                        ps.setArray(2, ps.getConnection().createArrayOf("varchar", components.toArray()));
+                    },
+                    rs -> {
+                        int patientId = rs.getInt(1);
+                        String componentName = rs.getString(2);
+                        long time = rs.getTimestamp(3).getTime();
+                        double primaryValue = rs.getDouble(4);
+                        double secondaryValue = rs.getDouble(5);
+                        latest.add(new Latest(patientId, componentName, time, primaryValue,
+                                rs.wasNull() ? Double.NaN : secondaryValue));
+                    });
+        }
+        synchronized (writeLock) {
+            Columns current = ensureCapacity(columns, patientIds.stream().mapToInt(Integer::intValue).max().orElse(0));
+            for (Integer patientId : patientIds) {
+                clearPatient(current, patientId);
+                Integer age = ages.get(patientId);
+                if (age != null) {
+                    current.ages()[patientId] = age;
+                }
+            }
+            for (Latest reading : latest) {
+                current.vitals().get(reading.componentName()).record(reading.patientId(), reading.time(),
+                        reading.primaryValue(), reading.secondaryValue());
+            }
+            columns = current;
+        }
+    }
+
+    //the patients meeting every condition, in id order up to limit. with since, a vital only counts when its latest
+    //reading was measured at or after it. a component nobody has a reading of, or one that is not in
+    //clinicals.cohort.components, matches nobody
+    public CohortResult query(List<Condition> conditions, Date since, int limit) {
+        long started = System.nanoTime();
+        Columns current = columns;
+        int size = current.ages().length;
+        int[] ages = current.ages();
+        double[][] values = new double[conditions.size()][];
+        long[][] times = new long[conditions.size()][];
+        Operator[] operators = new Operator[conditions.size()];
+        double[] operands = new double[conditions.size()];
+        for (int c = 0; c < conditions.size(); c++) {
+            Condition condition = conditions.get(c);
+            operators[c] = condition.operator();
+            operands[c] = condition.operand();
+            if (condition.field().equals(AGE)) {
+                continue;
+            }
+            boolean secondary = condition.field().endsWith(SECONDARY);
+            Vital vital = current.vitals().get(secondary
+                    ? condition.field().substring(0, condition.field().length() - SECONDARY.length())
+                    : condition.field());
+            if (vital == null) {
+                return new CohortResult(0, List.of(), false);
+            }
+            values[c] = secondary ? vital.secondary : vital.primary;
+            times[c] = vital.times;
+        }
+        long sinceTime = since != null ? since.getTime() : Long.MIN_VALUE;
+        int chunks = (size + chunkPatients - 1) / chunkPatients;
+        List<int[]> matches = await(pool.submit(() -> IntStream.range(0, chunks)
+                .parallel()
+                .mapToObj(chunk -> scan(ages, values, times, operators, operands, sinceTime,
+                        chunk * chunkPatients, Math.min(size, (chunk + 1) * chunkPatients)))
+                .toList()));
+        long count = 0;
+        List<Integer> patientIds = new ArrayList<>();
+        for (int[] chunk : matches) {
+            count += chunk.length;
+            for (int i = 0; i < chunk.length && patientIds.size() < limit; i++) {
+                patientIds.add(chunk[i]);
+            }
+        }
+        logger.debug("Cohort of {} patients out of {} slots in {} us", count, size, (System.nanoTime() - started) / 1_000);
+        return new CohortResult(count, patientIds, count > patientIds.size());
+    }
+
+    //column at a time: the patients of the chunk that exist, then each condition keeps the ones that meet it in
+    //place, so every pass is a tight loop over one array and later conditions only look at what is left
+    private static int[] scan(int[] ages, double[][] values, long[][] times, Operator[] operators, double[] operands,
+                              long since, int from, int to) {
+        int[] selected = new int[to - from];
+        int count = 0;
+        for (int patientId = from; patientId < to; patientId++) {
+            if (ages[patientId] != ABSENT) {
+                selected[count++] = patientId;
+            }
+        }
+        for (int c = 0; c < operators.length && count > 0; c++) {
+            if (values[c] == null) {
+                count = filterAge(selected, count, ages, operators[c], operands[c]);
+            } else {
+                if (since != Long.MIN_VALUE) {
+                    count = filterSince(selected, count, times[c], since);
+                }
+                count = filter(selected, count, values[c], operators[c], operands[c]);
+            }
+        }
+        return Arrays.copyOf(selected, count);
+    }
+
+    //one loop per operator, so the comparison is not decided again for every patient. NaN, a missing reading,
+    //fails every comparison; != says so explicitly
+    private static int filter(int[] selected, int count, double[] column, Operator operator, double operand) {
+        int kept = 0;
+        switch (operator) {
+            case GT -> {
+                for (int i = 0; i < count; i++) {
+                    int patientId = selected[i];
+                    if (column[patientId] > operand) {
+                        selected[kept++] = patientId;
+                    }
+                }
+            }
+            case GE -> {
+                for (int i = 0; i < count; i++) {
+                    int patientId = selected[i];
+                    if (column[patientId] >= operand) {
+                        selected[kept++] = patientId;
+                    }
+                }
+            }
+            case LT -> {
+                for (int i = 0; i < count; i++) {
+                    int patientId = selected[i];
+                    if (column[patientId] < operand) {
+                        selected[kept++] = patientId;
+                    }
+                }
+            }
+            case LE -> {
+                for (int i = 0; i < count; i++) {
+                    int patientId = selected[i];
+                    if (column[patientId] <= operand) {
+                        selected[kept++] = patientId;
+                    }
+                }
+            }
+            case EQ -> {
+                for (int i = 0; i < count; i++) {
+                    int patientId = selected[i];
+                    if (column[patientId] == operand) {
+                        selected[kept++] = patientId;
+                    }
+                }
+            }
+            case NE -> {
+                for (int i = 0; i < count; i++) {
+                    int patientId = selected[i];
+                    double value = column[patientId];
+                    if (value != operand && !Double.isNaN(value)) {
+                        selected[kept++] = patientId;
+                    }
+                }
+            }
+        }
+        return kept;
+    }
+
+    private static int filterAge(int[] selected, int count, int[] ages, Operator operator, double operand) {
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            int patientId = selected[i];
+            if (operator.test(ages[patientId], operand)) {
+                selected[kept++] = patientId;
+            }
+        }
+        return kept;
+    }
+
+    private static int filterSince(int[] selected, int count, long[] times, long since) {
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            int patientId = selected[i];
+            if (times[patientId] >= since) {
+                selected[kept++] = patientId;
+            }
+        }
+        return kept;
+    }
+
+    private static void clearPatient(Columns current, int patientId) {
+        if (patientId < 0 || patientId >= current.ages().length) {
+            return;
+        }
+        current.ages()[patientId] = ABSENT;
+        current.vitals().values().forEach(vital -> vital.clear(patientId, patientId + 1));
+    }
+
+    //at least doubles, so a run of new ids at the end of the sequence copies the arrays only now and then
+    private static Columns ensureCapacity(Columns current, int patientId) {
+        if (patientId < current.ages().length) {
+            return current;
+        }
+        return current.grown((int) Math.min(Integer.MAX_VALUE, Math.max(patientId + 1L, current.ages().length * 2L)));
+    }
+
+    private static <T> T await(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while scanning the cohort snapshot", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package org.example.clinicalsapi.services;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+//the csv dialect of PostgreSQL's COPY ... (FORMAT csv): comma separated, fields quoted with double quotes
+//when needed, an unquoted empty field is NULL and a quoted one is the empty string
+final class Csv {
+
+    private Csv() {
+    }
+
+    static void writeRecord(Writer out, Object... fields) throws IOException {
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            Object field = fields[i];
+            if (field != null) {
+                writeField(out, field.toString());
+            }
+        }
+        out.write('\n');
+    }
+
+    private static void writeField(Writer out, String value) throws IOException {
+        boolean quote = value.isEmpty();
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            out.write(value);
+            return;
+        }
+        out.write('"');
+        out.write(value.replace("\"", "\"\""));
+        out.write('"');
+    }
+
+    //reads one record at a time, so a file of any size is parsed in constant memory
+    static final class RecordReader {
+
+        private final Reader in;
+        private int lookahead = -2;
+
+        RecordReader(Reader in) {
+            this.in = in;
+        }
+
+        //the fields of the next record, null for NULL; null at the end of the input
+        List<String> next() throws IOException {
+            int c = read();
+            if (c == -1) {
+                return null;
+            }
+            List<String> fields = new ArrayList<>();
+            StringBuilder field = new StringBuilder();
+            boolean quoted = false;
+            while (true) {
+                if (c == '"') {
+                    quoted = true;
+                    while (true) {
+                        c = read();
+                        if (c == -1) {
+                            throw new IllegalArgumentException("Unterminated quoted field");
+                        }
+                        if (c == '"') {
+                            c = read();
+                            if (c != '"') {
+                                break;
+                            }
+                        }
+                        field.append((char) c);
+                    }
+                    continue;
+                }
+                if (c == ',' || c == '\n' || c == '\r' || c == -1) {
+                    fields.add(quoted || field.length() > 0 ? field.toString() : null);
+                    field.setLength(0);
+                    quoted = false;
+                    if (c != ',') {
+                        if (c == '\r') {
+                            c = read();
+                            if (c != '\n') {
+                                unread(c);
+                            }
+                        }
+                        return fields;
+                    }
+                } else {
+                    field.append((char) c);
+                }
+                c = read();
+            }
+        }
+
+        private int read() throws IOException {
+            if (lookahead != -2) {
+                int c = lookahead;
+                lookahead = -2;
+                return c;
+            }
+            return in.read();
+        }
+
+        private void unread(int c) {
+            lookahead = c;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package org.example.clinicalsapi.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.example.clinicalsapi.models.ClinicalData;
+import org.example.clinicalsapi.repos.ClinicalDataRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+//bounded in-process cache of each patient's most recent reading per componentName.
+//writes on this node are applied as they commit; the expiry bounds staleness from writes on other nodes
+@Component
+public class LatestVitalsCache {
+
+    private static final int WRITE_STRIPES = 1024;
+
+    private final Cache<Integer, Map<String, ClinicalData>> cache;
+    private final ClinicalDataRepository clinicalDataRepository;
+    //bumped by every write to a patient in the stripe, lets a load notice it raced with a write
+    private final AtomicLongArray writeStamps = new AtomicLongArray(WRITE_STRIPES);
+
+    public LatestVitalsCache(ClinicalDataRepository clinicalDataRepository,
+                             MeterRegistry meterRegistry,
+                             @Value("${clinicals.latest-vitals.max-patients:100000}") long maxPatients,
+                             @Value("${clinicals.latest-vitals.expire-after-write:PT30S}") Duration expireAfterWrite) {
+        this.clinicalDataRepository = clinicalDataRepository;
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maxPatients)
+                .expireAfterWrite(expireAfterWrite)
+                .recordStats()
+                .build();
+        //cache.gets{result=hit|miss}, cache.evictions and cache.size, tagged cache=latestVitals
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "latestVitals");
+    }
+
+    //latest reading per componentName, keyed by componentName; empty when the patient has no readings.
+    //the database load runs outside the cache's locks so a virtual thread never pins its carrier on it;
+    //a load that overlapped a write to the same stripe is returned but not cached
+    public Map<String, ClinicalData> get(int patientId) {
+        Map<String, ClinicalData> cached = cache.getIfPresent(patientId);
+        if (cached != null) {
+            return cached;
+        }
+        int stripe = stripe(patientId);
+        long stamp = writeStamps.get(stripe);
+        Map<String, ClinicalData> loaded = load(patientId);
+        if (writeStamps.get(stripe) == stamp) {
+            cache.asMap().putIfAbsent(patientId, loaded);
+        }
+        return loaded;
+    }
+
+    private static int stripe(int patientId) {
+        return Math.floorMod(patientId, WRITE_STRIPES);
+    }
+
+    private Map<String, ClinicalData> load(int patientId) {
+        Map<String, ClinicalData> latest = new HashMap<>();
+        for (ClinicalData reading : clinicalDataRepository.findLatestPerComponent(patientId)) {
+            latest.merge(reading.getComponentName(), reading, (a, b) -> isNewer(b, a) ? b : a);
+        }
+        return Map.copyOf(latest);
+    }
+
+    //only patients already cached are touched, an absent entry is loaded in full on its next read
+    public void recordSaved(int patientId, ClinicalData reading) {
+        writeStamps.incrementAndGet(stripe(patientId));
+        cache.asMap().computeIfPresent(patientId, (id, latest) -> {
+            ClinicalData current = latest.get(reading.getComponentName());
+            if (current != null && !isNewer(reading, current)) {
+                return latest;
+            }
+            Map<String, ClinicalData> updated = new HashMap<>(latest);
+            updated.put(reading.getComponentName(), reading);
+            return Map.copyOf(updated);
+        });
+    }
+
+    public void evict(int patientId) {
+        writeStamps.incrementAndGet(stripe(patientId));
+        cache.invalidate(patientId);
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onClinicalDataEvent(ClinicalDataEvent event) {
+        if (event.getPatientId() == null) {
+            return;
+        }
+        switch (event.getType()) {
+            case SAVED -> recordSaved(event.getPatientId(), event.getClinicalData());
+            //the changed or removed reading may have been the latest one, reload on next read
+            case UPDATED, DELETED -> evict(event.getPatientId());
+        }
+    }
+
+    private static boolean isNewer(ClinicalData candidate, ClinicalData current) {
+        if (current.getMeasuredDateTime() == null || candidate.getMeasuredDateTime() == null) {
+            return candidate.getId() > current.getId();
+        }
+        int byTime = candidate.getMeasuredDateTime().compareTo(current.getMeasuredDateTime());
+        return byTime > 0 || (byTime == 0 && candidate.getId() > current.getId());
+    }
+}
@@ -0,0 +1,163 @@
+package org.example.clinicalsapi.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.example.clinicalsapi.repos.PatientRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Limit;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+//bitset of the ids of existing patients, so the write path can validate a patientId without a SELECT.
+//patient ids come from a sequence and are dense, one bit each: a million patients is about 125KB.
+//built before the web server starts and kept in sync by PatientController's create and delete. an id that
+//is not in the set is looked up in the database and added when found, which covers patients created on
+//other nodes; a patient deleted on another node stays in the set until a write for it fails on the foreign key.
+//an id the database does not know is remembered as missing for miss-ttl, so a client retrying a bogus id is
+//not a SELECT per request. the id range cannot decide it: other nodes take their own blocks of the sequence,
+//so an id below the highest one seen here may still be created. the cost is that a patient created on another
+//node within miss-ttl of a lookup of its id is refused here until the entry expires; created here, it is not
+@Component
+public class PatientIdIndex implements SmartInitializingSingleton {
+
+    private static final Logger logger = LoggerFactory.getLogger(PatientIdIndex.class);
+
+    private final PatientRepository patientRepository;
+    private final int loadPageSize;
+    //readers never lock: they read the current array, writers hold the lock so growing cannot lose a bit
+    private final Object writeLock = new Object();
+    private volatile AtomicLongArray words = new AtomicLongArray(0);
+    private volatile int size;
+    private final Cache<Integer, Boolean> misses;
+
+    public PatientIdIndex(PatientRepository patientRepository,
+                          MeterRegistry meterRegistry,
+                          @Value("${clinicals.patient-index.load-page-size:10000}") int loadPageSize,
+                          @Value("${clinicals.patient-index.max-misses:100000}") long maxMisses,
+                          @Value("${clinicals.patient-index.miss-ttl:PT5S}") Duration missTtl) {
+        this.patientRepository = patientRepository;
+        this.loadPageSize = loadPageSize;
+        this.misses = Caffeine.newBuilder()
+                .maximumSize(maxMisses)
+                .expireAfterWrite(missTtl)
+                .recordStats()
+                .build();
+        //cache.gets{result=hit|miss} counts database lookups saved for unknown ids, tagged cache=patientIdMisses
+        CaffeineCacheMetrics.monitor(meterRegistry, misses, "patientIdMisses");
+        Gauge.builder("clinicals.patient.index.size", this, PatientIdIndex::size)
+                .description("Patient ids held by the in-memory existence index")
+                .register(meterRegistry);
+    }
+
+    @Override
+    public void afterSingletonsInstantiated() {
+        load();
+    }
+
+    //keyset pages of ids only, so the build never holds more than one page of them
+    void load() {
+        long started = System.nanoTime();
+        int afterId = Integer.MIN_VALUE;
+        List<Integer> ids;
+        do {
+            ids = patientRepository.findIdsAfter(afterId, Limit.of(loadPageSize));
+            for (Integer id : ids) {
+                add(id);
+            }
+            if (!ids.isEmpty()) {
+                afterId = ids.get(ids.size() - 1);
+            }
+        } while (ids.size() == loadPageSize);
+        logger.info("Indexed {} patient ids in {} ms", size, (System.nanoTime() - started) / 1_000_000);
+    }
+
+    //true when the patient exists; answered from memory for every patient this node knows about, and for
+    //ids looked up and not found within miss-ttl
+    public boolean contains(int id) {
+        if (isIndexed(id)) {
+            return true;
+        }
+        if (id < 0 || misses.getIfPresent(id) != null) {
+            return false;
+        }
+        if (patientRepository.existsById(id)) {
+            add(id);
+            return true;
+        }
+        misses.put(id, Boolean.TRUE);
+        //add sets the bit before it forgets the miss, so a patient created here meanwhile is not kept out
+        if (isIndexed(id)) {
+            misses.invalidate(id);
+            return true;
+        }
+        return false;
+    }
+
+    boolean isIndexed(int id) {
+        if (id < 0) {
+            return false;
+        }
+        AtomicLongArray current = words;
+        int word = id >>> 6;
+        return word < current.length() && (current.get(word) & (1L << id)) != 0;
+    }
+
+    public void add(int id) {
+        if (id < 0) {
+            return;
+        }
+        synchronized (writeLock) {
+            int word = id >>> 6;
+            AtomicLongArray current = words;
+            if (word >= current.length()) {
+                current = grow(current, word + 1);
+            }
+            long previous = current.getAndUpdate(word, bits -> bits | (1L << id));
+            if ((previous & (1L << id)) == 0) {
+                size++;
+            }
+        }
+        misses.invalidate(id);
+    }
+
+    public void remove(int id) {
+        if (id < 0) {
+            return;
+        }
+        synchronized (writeLock) {
+            AtomicLongArray current = words;
+            int word = id >>> 6;
+            if (word >= current.length()) {
+                return;
+            }
+            long previous = current.getAndUpdate(word, bits -> bits & ~(1L << id));
+            if ((previous & (1L << id)) != 0) {
+                size--;
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    //at least doubles, so a run of new ids at the end of the sequence copies the array only now and then
+    private AtomicLongArray grow(AtomicLongArray current, int minLength) {
+        int length = (int) Math.min(Integer.MAX_VALUE, Math.max(minLength, current.length() * 2L));
+        AtomicLongArray grown = new AtomicLongArray(length);
+        for (int i = 0; i < current.length(); i++) {
+            grown.set(i, current.get(i));
+        }
+        words = grown;
+        return grown;
+    }
+}
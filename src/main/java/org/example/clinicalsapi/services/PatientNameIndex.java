@@ -0,0 +1,274 @@
+package org.example.clinicalsapi.services;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.example.clinicalsapi.dto.PatientMatch;
+import org.example.clinicalsapi.repos.PatientRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Limit;
+import org.springframework.stereotype.Component;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.regex.Pattern;
+
+//prefix index over patient names for the registration desk typeahead. every word of a first or last name is a
+//key (lower case, accents and punctuation dropped: "O'Brien-Núñez" gives "obrien" and "nunez") in a skip list
+//ordered by word then id, so a prefix is a range scan that stops as soon as it has enough matches: a lookup
+//costs O(log n + limit) whatever the number of patients. keys point at the patient's names, which also sit
+//in an array by id (ids are dense, as in PatientIdIndex) so updates and deletes find the old keys.
+//built before the web server starts and kept in sync by PatientController's create, update and delete; names
+//changed on other nodes show up here after a restart
+@Component
+public class PatientNameIndex implements SmartInitializingSingleton {
+
+    private static final Logger logger = LoggerFactory.getLogger(PatientNameIndex.class);
+
+    public static final int MAX_LIMIT = 50;
+
+    private static final Pattern WORD_SEPARATORS = Pattern.compile("[\\s\\-]+");
+    private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+
+    //shallow sizes with compressed oops, for the memory estimate: the names object, its words array, a key and
+    //its skip list node with the index nodes above it (a quarter of nodes have one, fewer have more)
+    private static final int NAMES_BYTES = 32;
+    private static final int ARRAY_HEADER_BYTES = 16;
+    private static final int KEY_BYTES = 24 + 24 + 8;
+    private static final int STRING_BYTES = 24 + 16;
+
+    private final PatientRepository patientRepository;
+    private final int loadPageSize;
+    private final int maxScan;
+    private final ConcurrentSkipListSet<Key> keys = new ConcurrentSkipListSet<>(
+            Comparator.comparing(Key::word).thenComparingInt(Key::id));
+    //readers never lock, writers hold the lock so a patient's keys and slot change together
+    private final Object writeLock = new Object();
+    private volatile AtomicReferenceArray<Names> byId = new AtomicReferenceArray<>(0);
+    private volatile int size;
+    private volatile long estimatedBytes;
+
+    public PatientNameIndex(PatientRepository patientRepository,
+                            MeterRegistry meterRegistry,
+                            @Value("${clinicals.patient-search.load-page-size:10000}") int loadPageSize,
+                            @Value("${clinicals.patient-search.max-scan:10000}") int maxScan) {
+        this.patientRepository = patientRepository;
+        this.loadPageSize = loadPageSize;
+        this.maxScan = maxScan;
+        Gauge.builder("clinicals.patient.search.index.size", this, PatientNameIndex::size)
+                .description("Patients held by the in-memory name index")
+                .register(meterRegistry);
+        Gauge.builder("clinicals.patient.search.index.bytes", this, PatientNameIndex::estimatedBytes)
+                .description("Estimated heap used by the in-memory name index")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    //one patient's names as they are shown, and the words they are found by
+    private record Names(int id, String firstName, String lastName, String[] words) {
+    }
+
+    private record Key(String word, int id, Names names) {
+    }
+
+    @Override
+    public void afterSingletonsInstantiated() {
+        load();
+    }
+
+    //keyset pages of names only, so the build never holds more than one page of rows
+    void load() {
+        long started = System.nanoTime();
+        int afterId = Integer.MIN_VALUE;
+        List<PatientRepository.PatientName> page;
+        do {
+            page = patientRepository.findNamesAfter(afterId, Limit.of(loadPageSize));
+            for (PatientRepository.PatientName name : page) {
+                put(name.getId(), name.getFirstName(), name.getLastName());
+            }
+            if (!page.isEmpty()) {
+                afterId = page.get(page.size() - 1).getId();
+            }
+        } while (page.size() == loadPageSize);
+        logger.info("Indexed the names of {} patients in {} ms, about {} bytes per patient", size,
+                (System.nanoTime() - started) / 1_000_000, bytesPerPatient());
+    }
+
+    //adds the patient or replaces their names
+    public void put(int id, String firstName, String lastName) {
+        if (id < 0) {
+            return;
+        }
+        Set<String> words = new LinkedHashSet<>(words(firstName));
+        words.addAll(words(lastName));
+        Names names = new Names(id, firstName, lastName, words.toArray(new String[0]));
+        synchronized (writeLock) {
+            AtomicReferenceArray<Names> current = byId;
+            if (id >= current.length()) {
+                current = grow(current, id + 1);
+            }
+            Names previous = current.get(id);
+            if (previous != null && Objects.equals(previous.firstName(), firstName)
+                    && Objects.equals(previous.lastName(), lastName)) {
+                return;
+            }
+            //keys are unique by word and id, so the old ones go first even when a word stays the same; a search
+            //in between misses the patient, one that still holds an old key skips it as stale
+            current.set(id, names);
+            if (previous != null) {
+                removeKeys(previous);
+                estimatedBytes -= bytes(previous);
+            } else {
+                size++;
+            }
+            for (String word : names.words()) {
+                keys.add(new Key(word, id, names));
+            }
+            estimatedBytes += bytes(names);
+        }
+    }
+
+    public void remove(int id) {
+        if (id < 0) {
+            return;
+        }
+        synchronized (writeLock) {
+            AtomicReferenceArray<Names> current = byId;
+            if (id >= current.length() || current.get(id) == null) {
+                return;
+            }
+            Names previous = current.getAndSet(id, null);
+            removeKeys(previous);
+            estimatedBytes -= bytes(previous);
+            size--;
+        }
+    }
+
+    //up to limit patients with a name word starting with each word of the query, so "jo mcc" finds John
+    //Mccain. the longest query word drives the scan, the others filter; a word that is a whole name ranks
+    //before longer ones, then they come alphabetically. at most max-scan keys are looked at, a query whose
+    //longest word is very common and whose other words rule most of those out can come back short
+    public List<PatientMatch> search(String query, int limit) {
+        List<String> terms = words(query);
+        if (terms.isEmpty() || limit <= 0) {
+            return List.of();
+        }
+        String driver = terms.get(0);
+        for (String term : terms) {
+            if (term.length() > driver.length()) {
+                driver = term;
+            }
+        }
+        List<String> others = new ArrayList<>(terms);
+        others.remove(driver);
+        List<PatientMatch> matches = new ArrayList<>(Math.min(limit, MAX_LIMIT));
+        Set<Integer> found = new HashSet<>();
+        AtomicReferenceArray<Names> current = byId;
+        int scanned = 0;
+        for (Key key : keys.tailSet(new Key(driver, Integer.MIN_VALUE, null))) {
+            if (!key.word().startsWith(driver) || ++scanned > maxScan) {
+                break;
+            }
+            Names names = key.names();
+            if (key.id() >= current.length() || current.get(key.id()) != names || !matchesAll(names, others)) {
+                continue;
+            }
+            if (found.add(names.id())) {
+                matches.add(new PatientMatch(names.id(), names.firstName(), names.lastName()));
+                if (matches.size() == limit) {
+                    break;
+                }
+            }
+        }
+        return matches;
+    }
+
+    private static boolean matchesAll(Names names, List<String> terms) {
+        for (String term : terms) {
+            boolean matched = false;
+            for (String word : names.words()) {
+                if (word.startsWith(term)) {
+                    matched = true;
+                    break;
+                }
+            }
+            if (!matched) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //lower case words without accents or punctuation, in the order they appear
+    static List<String> words(String text) {
+        if (text == null || text.isBlank()) {
+            return List.of();
+        }
+        String folded = MARKS.matcher(Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll("")
+                .toLowerCase(Locale.ROOT);
+        List<String> words = new ArrayList<>();
+        for (String part : WORD_SEPARATORS.split(folded)) {
+            StringBuilder word = new StringBuilder(part.length());
+            part.codePoints().filter(Character::isLetterOrDigit).forEach(word::appendCodePoint);
+            if (!word.isEmpty()) {
+                words.add(word.toString());
+            }
+        }
+        return words;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long estimatedBytes() {
+        return estimatedBytes + 4L * byId.length();
+    }
+
+    public long bytesPerPatient() {
+        int patients = size;
+        return patients == 0 ? 0 : estimatedBytes() / patients;
+    }
+
+    private void removeKeys(Names names) {
+        for (String word : names.words()) {
+            keys.remove(new Key(word, names.id(), names));
+        }
+    }
+
+    private static long bytes(Names names) {
+        long bytes = NAMES_BYTES + ARRAY_HEADER_BYTES + 4L * names.words().length
+                + stringBytes(names.firstName()) + stringBytes(names.lastName());
+        for (String word : names.words()) {
+            bytes += KEY_BYTES + stringBytes(word);
+        }
+        return bytes;
+    }
+
+    //latin-1 strings take a byte per character, padded to 8
+    private static long stringBytes(String value) {
+        return value == null ? 0 : STRING_BYTES + ((value.length() + 7) & ~7);
+    }
+
+    //at least doubles, so a run of new ids at the end of the sequence copies the array only now and then
+    private AtomicReferenceArray<Names> grow(AtomicReferenceArray<Names> current, int minLength) {
+        int length = (int) Math.min(Integer.MAX_VALUE, Math.max(minLength, current.length() * 2L));
+        AtomicReferenceArray<Names> grown = new AtomicReferenceArray<>(length);
+        for (int i = 0; i < current.length(); i++) {
+            grown.set(i, current.get(i));
+        }
+        byId = grown;
+        return grown;
+    }
+}
@@ -0,0 +1,69 @@
+package org.example.clinicalsapi.services;
+
+import org.example.clinicalsapi.models.ClinicalData;
+import org.example.clinicalsapi.models.ClinicalDataRollup;
+
+//readings accumulated for one rollup bucket between flushes; NaN marks a figure no reading had
+final class RollupDelta {
+
+    final long count;
+    final double primaryMin;
+    final double primaryMax;
+    final double primarySum;
+    final double secondaryMin;
+    final double secondaryMax;
+    final double secondarySum;
+
+    private RollupDelta(long count, double primaryMin, double primaryMax, double primarySum,
+                        double secondaryMin, double secondaryMax, double secondarySum) {
+        this.count = count;
+        this.primaryMin = primaryMin;
+        this.primaryMax = primaryMax;
+        this.primarySum = primarySum;
+        this.secondaryMin = secondaryMin;
+        this.secondaryMax = secondaryMax;
+        this.secondarySum = secondarySum;
+    }
+
+    static RollupDelta of(ClinicalData reading) {
+        double primary = reading.getPrimaryValue();
+        double secondary = reading.getSecondaryValue() != null ? reading.getSecondaryValue() : Double.NaN;
+        return new RollupDelta(1, primary, primary, primary, secondary, secondary, secondary);
+    }
+
+    RollupDelta plus(RollupDelta other) {
+        return new RollupDelta(count + other.count,
+                min(primaryMin, other.primaryMin), max(primaryMax, other.primaryMax), sum(primarySum, other.primarySum),
+                min(secondaryMin, other.secondaryMin), max(secondaryMax, other.secondaryMax), sum(secondarySum, other.secondarySum));
+    }
+
+    void applyTo(ClinicalDataRollup rollup) {
+        rollup.setReadingCount(rollup.getReadingCount() + count);
+        rollup.setPrimaryMin(boxed(min(unboxed(rollup.getPrimaryMin()), primaryMin)));
+        rollup.setPrimaryMax(boxed(max(unboxed(rollup.getPrimaryMax()), primaryMax)));
+        rollup.setPrimarySum(boxed(sum(unboxed(rollup.getPrimarySum()), primarySum)));
+        rollup.setSecondaryMin(boxed(min(unboxed(rollup.getSecondaryMin()), secondaryMin)));
+        rollup.setSecondaryMax(boxed(max(unboxed(rollup.getSecondaryMax()), secondaryMax)));
+        rollup.setSecondarySum(boxed(sum(unboxed(rollup.getSecondarySum()), secondarySum)));
+    }
+
+    private static double min(double a, double b) {
+        return Double.isNaN(a) ? b : Double.isNaN(b) ? a : Math.min(a, b);
+    }
+
+    private static double max(double a, double b) {
+        return Double.isNaN(a) ? b : Double.isNaN(b) ? a : Math.max(a, b);
+    }
+
+    private static double sum(double a, double b) {
+        return Double.isNaN(a) ? b : Double.isNaN(b) ? a : a + b;
+    }
+
+    private static double unboxed(Double value) {
+        return value != null ? value : Double.NaN;
+    }
+
+    private static Double boxed(double value) {
+        return Double.isNaN(value) ? null : value;
+    }
+}
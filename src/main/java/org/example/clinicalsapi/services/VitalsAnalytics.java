@@ -0,0 +1,362 @@
+package org.example.clinicalsapi.services;
+
+import jakarta.annotation.PreDestroy;
+import org.example.clinicalsapi.dto.ComponentTrend;
+import org.example.clinicalsapi.dto.PopulationAnalytics;
+import org.example.clinicalsapi.dto.TrendPoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+//moving averages and out of range counts per patient and component, computed on the server.
+//readings come off one database cursor ordered by patient, component and time, straight into primitive
+//arrays from the typed columns (componentValue is parsed once, at write time). every chunk of rows, cut at
+//a series boundary, is analysed series by series on a dedicated fork/join pool while the next chunk is read
+@Service
+public class VitalsAnalytics {
+
+    private static final Logger logger = LoggerFactory.getLogger(VitalsAnalytics.class);
+
+    public static final int MAX_WINDOW = 1000;
+    //a patient's readings start in small arrays that grow, a population scan fills chunks of chunkRows
+    private static final int PATIENT_CAPACITY = 256;
+
+    //newest first within a series, which is the order of idx_clinicaldata_patient_component_time
+    private static final String SELECT = "SELECT patient_id, component_name, measured_date_time, primary_value, secondary_value"
+            + " FROM clinicaldata WHERE primary_value IS NOT NULL AND measured_date_time IS NOT NULL";
+    private static final String ORDER = " ORDER BY patient_id, component_name, measured_date_time DESC";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate readOnlyTransaction;
+    private final ForkJoinPool pool;
+    private final Map<String, Range> ranges;
+    private final int chunkRows;
+
+    //the normal range of a value, open ended where a bound is missing
+    record Range(double min, double max) {
+        boolean contains(double value) {
+            return value >= min && value <= max;
+        }
+    }
+
+    public VitalsAnalytics(DataSource dataSource,
+                           PlatformTransactionManager transactionManager,
+                           @Value("${clinicals.analytics.parallelism:0}") int parallelism,
+                           @Value("${clinicals.analytics.ranges:}") String ranges,
+                           @Value("${clinicals.analytics.chunk-rows:65536}") int chunkRows,
+                           @Value("${clinicals.analytics.fetch-size:10000}") int fetchSize) {
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        //PostgreSQL only streams a result set in batches inside a transaction
+        this.jdbcTemplate.setFetchSize(fetchSize);
+        this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction.setReadOnly(true);
+        this.pool = new ForkJoinPool(parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors());
+        this.ranges = parseRanges(ranges);
+        this.chunkRows = chunkRows;
+    }
+
+    @PreDestroy
+    void shutdown() {
+        pool.shutdownNow();
+    }
+
+    //"bp=..140,bp.secondary=..90,heartrate=40..120": componentName for the primary value, componentName.secondary
+    //for the secondary one, each min..max with either bound left out for an open end
+    static Map<String, Range> parseRanges(String ranges) {
+        Map<String, Range> parsed = new HashMap<>();
+        for (String pair : ranges.split(",")) {
+            if (pair.isBlank()) {
+                continue;
+            }
+            String[] parts = pair.split("=");
+            String[] bounds = parts[1].trim().split("\\.\\.", -1);
+            double min = bounds[0].isBlank() ? Double.NEGATIVE_INFINITY : Double.parseDouble(bounds[0].trim());
+            double max = bounds[1].isBlank() ? Double.POSITIVE_INFINITY : Double.parseDouble(bounds[1].trim());
+            parsed.put(parts[0].trim(), new Range(min, max));
+        }
+        return parsed;
+    }
+
+    //every component of one patient, with the points of each series
+    public List<ComponentTrend> patient(int patientId, int window, Date from, Date to) {
+        List<ComponentTrend> trends = new ArrayList<>();
+        scan(" AND patient_id = ?", List.of(patientId), window, from, to, true, PATIENT_CAPACITY, trends::addAll);
+        return trends;
+    }
+
+    //every patient, summarised; the series of patients with readings out of range are listed up to limit
+    public PopulationAnalytics population(int window, Date from, Date to, int limit) {
+        long started = System.nanoTime();
+        PopulationTotals totals = new PopulationTotals(limit);
+        scan("", List.of(), window, from, to, false, chunkRows, chunk -> chunk.forEach(totals::add));
+        logger.info("Analysed {} readings of {} patients in {} ms", totals.readings, totals.patients,
+                (System.nanoTime() - started) / 1_000_000);
+        return new PopulationAnalytics(totals.patients, totals.readings, totals.components, totals.flagged, totals.truncated);
+    }
+
+    //reads on the calling thread and hands every full chunk to the pool; at most one chunk is being analysed
+    //while the next is read, so memory stays at about two chunks whatever the size of the table
+    private void scan(String filter, List<Object> filterArgs, int window, Date from, Date to, boolean withPoints,
+                      int capacity, Consumer<List<ComponentTrend>> results) {
+        StringBuilder sql = new StringBuilder(SELECT).append(filter);
+        List<Object> args = new ArrayList<>(filterArgs);
+        if (from != null) {
+            sql.append(" AND measured_date_time >= ?");
+            args.add(new Timestamp(from.getTime()));
+        }
+        if (to != null) {
+            sql.append(" AND measured_date_time < ?");
+            args.add(new Timestamp(to.getTime()));
+        }
+        sql.append(ORDER);
+        readOnlyTransaction.executeWithoutResult(status -> {
+            ChunkReader reader = new ChunkReader(window, withPoints, capacity, results);
+            jdbcTemplate.query(sql.toString(), reader, args.toArray());
+            reader.finish();
+        });
+    }
+
+    private final class ChunkReader implements RowCallbackHandler {
+        private final int window;
+        private final boolean withPoints;
+        private final int capacity;
+        private final Consumer<List<ComponentTrend>> results;
+        private Chunk chunk;
+        private Future<List<ComponentTrend>> inFlight;
+
+        ChunkReader(int window, boolean withPoints, int capacity, Consumer<List<ComponentTrend>> results) {
+            this.window = window;
+            this.withPoints = withPoints;
+            this.capacity = capacity;
+            this.results = results;
+            this.chunk = new Chunk(capacity);
+        }
+
+        @Override
+        public void processRow(ResultSet rs) throws SQLException {
+            int patientId = rs.getInt(1);
+            String componentName = rs.getString(2);
+            if (chunk.rows >= chunkRows && chunk.startsSeries(patientId, componentName)) {
+                dispatch();
+            }
+            long time = rs.getTimestamp(3).getTime();
+            double primaryValue = rs.getDouble(4);
+            double secondaryValue = rs.getDouble(5);
+            chunk.add(patientId, componentName, time, primaryValue, rs.wasNull() ? Double.NaN : secondaryValue);
+        }
+
+        void finish() {
+            if (chunk.rows > 0) {
+                dispatch();
+            }
+            drain();
+        }
+
+        private void dispatch() {
+            Chunk full = chunk;
+            chunk = new Chunk(capacity);
+            Future<List<ComponentTrend>> submitted = pool.submit(() -> analyze(full, window, withPoints));
+            drain();
+            inFlight = submitted;
+        }
+
+        private void drain() {
+            if (inFlight != null) {
+                results.accept(await(inFlight));
+                inFlight = null;
+            }
+        }
+    }
+
+    private static <T> T await(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while analysing readings", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    //runs inside the pool, so the parallel stream splits its work across the pool's threads
+    private List<ComponentTrend> analyze(Chunk chunk, int window, boolean withPoints) {
+        return IntStream.range(0, chunk.series)
+                .parallel()
+                .mapToObj(series -> trend(chunk, series, window, withPoints))
+                .toList();
+    }
+
+    //one pass over a series, oldest reading first. rows are stored newest first, so walking down from the end
+    //of the series goes forward in time, and the reading leaving the moving window is the one window rows higher
+    ComponentTrend trend(Chunk chunk, int series, int window, boolean withPoints) {
+        int start = chunk.seriesStart[series];
+        int end = series + 1 < chunk.series ? chunk.seriesStart[series + 1] : chunk.rows;
+        String componentName = chunk.seriesComponent[series];
+        Range primaryRange = ranges.get(componentName);
+        Range secondaryRange = ranges.get(componentName + ".secondary");
+        double[] primary = chunk.primary;
+        double[] secondary = chunk.secondary;
+
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        double sum = 0;
+        double secondaryMin = Double.POSITIVE_INFINITY;
+        double secondaryMax = Double.NEGATIVE_INFINITY;
+        double secondarySum = 0;
+        int secondaryCount = 0;
+        double windowSum = 0;
+        double windowSecondarySum = 0;
+        int windowSecondaryCount = 0;
+        int outOfRange = 0;
+        long lastOutOfRange = Long.MIN_VALUE;
+        List<TrendPoint> points = withPoints ? new ArrayList<>(end - start) : null;
+
+        for (int i = end - 1; i >= start; i--) {
+            double value = primary[i];
+            double secondaryValue = secondary[i];
+            boolean hasSecondary = !Double.isNaN(secondaryValue);
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            sum += value;
+            windowSum += value;
+            if (hasSecondary) {
+                secondaryMin = Math.min(secondaryMin, secondaryValue);
+                secondaryMax = Math.max(secondaryMax, secondaryValue);
+                secondarySum += secondaryValue;
+                secondaryCount++;
+                windowSecondarySum += secondaryValue;
+                windowSecondaryCount++;
+            }
+            int leaving = i + window;
+            if (leaving < end) {
+                windowSum -= primary[leaving];
+                if (!Double.isNaN(secondary[leaving])) {
+                    windowSecondarySum -= secondary[leaving];
+                    windowSecondaryCount--;
+                }
+            }
+            boolean flagged = (primaryRange != null && !primaryRange.contains(value))
+                    || (hasSecondary && secondaryRange != null && !secondaryRange.contains(secondaryValue));
+            if (flagged) {
+                outOfRange++;
+                lastOutOfRange = chunk.times[i];
+            }
+            if (withPoints) {
+                points.add(new TrendPoint(new Date(chunk.times[i]), value, hasSecondary ? secondaryValue : null,
+                        windowSum / Math.min(window, end - i),
+                        windowSecondaryCount > 0 ? windowSecondarySum / windowSecondaryCount : null, flagged));
+            }
+        }
+
+        int count = end - start;
+        return new ComponentTrend(chunk.seriesPatient[series], componentName, count, min, max, sum / count,
+                secondaryCount > 0 ? secondaryMin : null, secondaryCount > 0 ? secondaryMax : null,
+                secondaryCount > 0 ? secondarySum / secondaryCount : null,
+                windowSum / Math.min(window, count), windowSecondaryCount > 0 ? windowSecondarySum / windowSecondaryCount : null,
+                new Date(chunk.times[start]), outOfRange, outOfRange > 0 ? new Date(lastOutOfRange) : null, points);
+    }
+
+    //rows of whole series, column by column; the secondary value is NaN where there is none
+    static final class Chunk {
+        int rows;
+        long[] times;
+        double[] primary;
+        double[] secondary;
+        int series;
+        int[] seriesStart = new int[64];
+        int[] seriesPatient = new int[64];
+        String[] seriesComponent = new String[64];
+
+        Chunk(int capacity) {
+            times = new long[capacity];
+            primary = new double[capacity];
+            secondary = new double[capacity];
+        }
+
+        boolean startsSeries(int patientId, String componentName) {
+            return series == 0 || seriesPatient[series - 1] != patientId || !seriesComponent[series - 1].equals(componentName);
+        }
+
+        void add(int patientId, String componentName, long time, double primaryValue, double secondaryValue) {
+            if (startsSeries(patientId, componentName)) {
+                if (series == seriesStart.length) {
+                    seriesStart = Arrays.copyOf(seriesStart, series * 2);
+                    seriesPatient = Arrays.copyOf(seriesPatient, series * 2);
+                    seriesComponent = Arrays.copyOf(seriesComponent, series * 2);
+                }
+                seriesStart[series] = rows;
+                seriesPatient[series] = patientId;
+                seriesComponent[series] = componentName;
+                series++;
+            }
+            //a single series longer than a chunk grows it rather than being split
+            if (rows == times.length) {
+                int capacity = Math.max(16, rows * 2);
+                times = Arrays.copyOf(times, capacity);
+                primary = Arrays.copyOf(primary, capacity);
+                secondary = Arrays.copyOf(secondary, capacity);
+            }
+            times[rows] = time;
+            primary[rows] = primaryValue;
+            secondary[rows] = secondaryValue;
+            rows++;
+        }
+    }
+
+    //folds the trends of a population scan together, in patient order
+    private static final class PopulationTotals {
+        private final int limit;
+        private final Map<String, PopulationAnalytics.ComponentTotals> components = new TreeMap<>();
+        private final List<ComponentTrend> flagged = new ArrayList<>();
+        private long patients;
+        private long readings;
+        private boolean truncated;
+        private int lastPatientId;
+
+        PopulationTotals(int limit) {
+            this.limit = limit;
+        }
+
+        void add(ComponentTrend trend) {
+            if (patients == 0 || trend.getPatientId() != lastPatientId) {
+                patients++;
+                lastPatientId = trend.getPatientId();
+            }
+            readings += trend.getCount();
+            components.computeIfAbsent(trend.getComponentName(), name -> new PopulationAnalytics.ComponentTotals()).add(trend);
+            if (trend.getOutOfRange() > 0) {
+                if (flagged.size() < limit) {
+                    flagged.add(trend);
+                } else {
+                    truncated = true;
+                }
+            }
+        }
+    }
+}
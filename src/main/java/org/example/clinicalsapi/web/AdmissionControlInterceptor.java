@@ -0,0 +1,337 @@
+package org.example.clinicalsapi.web;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.DispatcherType;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
+
+import java.lang.reflect.Method;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+//admission control in front of the controllers: every controller method belongs to an endpoint class (reads, single
+//writes, bulk/export) with its own concurrency limit, and a request over its class's limit is turned away at once
+//with 503 and Retry-After instead of waiting on tomcat threads and the connection pool behind a slow database.
+//the limits adapt to the latency of the requests they let in (aimd): a request back within the class's target
+//latency raises the limit by 1/limit, one over it cuts the limit by the backoff ratio, at most once per target
+//latency so a burst of slow completions counts as one signal. writes are the critical class: a slow write also cuts
+//the read and bulk limits, so lists and exports are shed first and writes keep their connections (and min limit).
+//streamed and async responses hold their permit until they complete but are not sampled, their time is the
+//client's download. metrics are clinicals.admission.limit / .in.flight (tagged by class) and .rejected
+@Component
+public class AdmissionControlInterceptor implements AsyncHandlerInterceptor {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdmissionControlInterceptor.class);
+
+    private static final String PERMIT_ATTRIBUTE = AdmissionControlInterceptor.class.getName() + ".permit";
+
+    public enum EndpointClass {
+        READ,
+        WRITE,
+        BULK,
+        //not admission controlled: served from memory, or limited on its own like the live feed
+        NONE
+    }
+
+    private final MeterRegistry meterRegistry;
+    private final boolean enabled;
+    private final Map<String, EndpointClass> classes;
+    private final Map<EndpointClass, Limit> limits = new EnumMap<>(EndpointClass.class);
+    private final String retryAfter;
+    private final LongSupplier clock;
+    private final Map<Method, EndpointClass> classByMethod = new ConcurrentHashMap<>();
+
+    @Autowired
+    public AdmissionControlInterceptor(MeterRegistry meterRegistry,
+                                       @Value("${clinicals.admission.enabled:true}") boolean enabled,
+                                       @Value("${clinicals.admission.classes:}") String classes,
+                                       @Value("${clinicals.admission.min-limits:READ=2,WRITE=10,BULK=1}") String minLimits,
+                                       @Value("${clinicals.admission.max-limits:READ=100,WRITE=100,BULK=4}") String maxLimits,
+                                       @Value("${clinicals.admission.target-latencies-ms:READ=250,WRITE=250,BULK=10000}") String targetLatencies,
+                                       @Value("${clinicals.admission.backoff-ratio:0.9}") double backoffRatio,
+                                       @Value("${clinicals.admission.retry-after:PT1S}") Duration retryAfter) {
+        this(meterRegistry, enabled, classes, minLimits, maxLimits, targetLatencies, backoffRatio, retryAfter, System::nanoTime);
+    }
+
+    AdmissionControlInterceptor(MeterRegistry meterRegistry, boolean enabled, String classes, String minLimits,
+                                String maxLimits, String targetLatencies, double backoffRatio, Duration retryAfter,
+                                LongSupplier clock) {
+        if (backoffRatio <= 0 || backoffRatio >= 1) {
+            throw new IllegalArgumentException("clinicals.admission.backoff-ratio must be between 0 and 1, was " + backoffRatio);
+        }
+        this.meterRegistry = meterRegistry;
+        this.enabled = enabled;
+        this.classes = new HashMap<>();
+        pairs(classes).forEach((handler, endpointClass) -> this.classes.put(handler, endpointClass(endpointClass)));
+        this.retryAfter = Long.toString(Math.max(1, retryAfter.toSeconds()));
+        this.clock = clock;
+        Map<EndpointClass, Integer> min = limitsByClass(minLimits, "min-limits");
+        Map<EndpointClass, Integer> max = limitsByClass(maxLimits, "max-limits");
+        Map<EndpointClass, Integer> target = limitsByClass(targetLatencies, "target-latencies-ms");
+        long now = clock.getAsLong();
+        for (EndpointClass endpointClass : EndpointClass.values()) {
+            if (endpointClass == EndpointClass.NONE) {
+                continue;
+            }
+            Limit limit = new Limit(min.get(endpointClass), max.get(endpointClass),
+                    TimeUnit.MILLISECONDS.toNanos(target.get(endpointClass)), backoffRatio, now);
+            limits.put(endpointClass, limit);
+            String tag = endpointClass.name().toLowerCase(Locale.ROOT);
+            Gauge.builder("clinicals.admission.limit", limit, Limit::limit)
+                    .description("Concurrent requests admitted for the endpoint class")
+                    .tag("class", tag)
+                    .register(meterRegistry);
+            Gauge.builder("clinicals.admission.in.flight", limit, Limit::inFlight)
+                    .description("Requests of the endpoint class being served")
+                    .tag("class", tag)
+                    .register(meterRegistry);
+        }
+    }
+
+    //"ClinicalDataController.exportClinicalData=BULK, PatientController.searchPatients=NONE"
+    static Map<String, String> pairs(String text) {
+        Map<String, String> pairs = new HashMap<>();
+        for (String pair : text.split(",")) {
+            if (pair.isBlank()) {
+                continue;
+            }
+            String[] parts = pair.split("=");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Expected name=value, was " + pair.trim());
+            }
+            pairs.put(parts[0].trim(), parts[1].trim());
+        }
+        return pairs;
+    }
+
+    private static EndpointClass endpointClass(String name) {
+        try {
+            return EndpointClass.valueOf(name.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown endpoint class " + name + ", expected READ, WRITE, BULK or NONE");
+        }
+    }
+
+    private static Map<EndpointClass, Integer> limitsByClass(String text, String property) {
+        Map<EndpointClass, Integer> values = new EnumMap<>(EndpointClass.class);
+        pairs(text).forEach((endpointClass, value) -> values.put(endpointClass(endpointClass), Integer.parseInt(value)));
+        for (EndpointClass endpointClass : EndpointClass.values()) {
+            if (endpointClass != EndpointClass.NONE && values.getOrDefault(endpointClass, 0) < 1) {
+                throw new IllegalArgumentException("clinicals.admission." + property + " needs a positive value for " + endpointClass);
+            }
+        }
+        return values;
+    }
+
+    //the configured class of a controller method, otherwise READ for GET and HEAD and WRITE for the rest
+    EndpointClass classify(HandlerMethod handlerMethod, String httpMethod) {
+        return classByMethod.computeIfAbsent(handlerMethod.getMethod(), method -> {
+            EndpointClass configured = classes.get(handlerName(handlerMethod));
+            if (configured != null) {
+                return configured;
+            }
+            return "GET".equals(httpMethod) || "HEAD".equals(httpMethod) ? EndpointClass.READ : EndpointClass.WRITE;
+        });
+    }
+
+    private static String handlerName(HandlerMethod handlerMethod) {
+        return handlerMethod.getBeanType().getSimpleName() + "." + handlerMethod.getMethod().getName();
+    }
+
+    int limit(EndpointClass endpointClass) {
+        return (int) limits.get(endpointClass).limit();
+    }
+
+    int inFlight(EndpointClass endpointClass) {
+        return limits.get(endpointClass).inFlight();
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        //async and error dispatches belong to a request that was admitted (or not) on its first dispatch
+        if (!enabled || request.getDispatcherType() != DispatcherType.REQUEST || !(handler instanceof HandlerMethod handlerMethod)) {
+            return true;
+        }
+        EndpointClass endpointClass = classify(handlerMethod, request.getMethod());
+        if (endpointClass == EndpointClass.NONE) {
+            return true;
+        }
+        Limit limit = limits.get(endpointClass);
+        int inFlight = limit.tryAcquire();
+        if (inFlight < 0) {
+            String handlerName = handlerName(handlerMethod);
+            Counter.builder("clinicals.admission.rejected")
+                    .description("Requests turned away with 503 because their endpoint class was at its limit")
+                    .tag("class", endpointClass.name().toLowerCase(Locale.ROOT))
+                    .tag("handler", handlerName)
+                    .register(meterRegistry)
+                    .increment();
+            logger.debug("Shedding {} {}, {} is at its limit of {}", request.getMethod(), request.getRequestURI(),
+                    endpointClass, (int) limit.limit());
+            response.setStatus(HttpStatus.SERVICE_UNAVAILABLE.value());
+            response.setHeader(HttpHeaders.RETRY_AFTER, retryAfter);
+            return false;
+        }
+        request.setAttribute(PERMIT_ATTRIBUTE, new Permit(endpointClass, limit, clock.getAsLong(), inFlight));
+        return true;
+    }
+
+    //the handler returned a StreamingResponseBody, SseEmitter or the like: the permit is held until the response
+    //completes, which ends with an async dispatch; the listener covers a response that errors or times out without one
+    @Override
+    public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        Permit permit = (Permit) request.getAttribute(PERMIT_ATTRIBUTE);
+        if (permit == null) {
+            return;
+        }
+        permit.async = true;
+        request.getAsyncContext().addListener(new AsyncListener() {
+            @Override
+            public void onComplete(AsyncEvent event) {
+                permit.release();
+            }
+
+            @Override
+            public void onTimeout(AsyncEvent event) {
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) {
+        Permit permit = (Permit) request.getAttribute(PERMIT_ATTRIBUTE);
+        if (permit != null && !request.isAsyncStarted()) {
+            permit.release();
+        }
+    }
+
+    private final class Permit {
+
+        private final EndpointClass endpointClass;
+        private final Limit limit;
+        private final long start;
+        private final int inFlight;
+        private final AtomicBoolean released = new AtomicBoolean();
+        private volatile boolean async;
+
+        Permit(EndpointClass endpointClass, Limit limit, long start, int inFlight) {
+            this.endpointClass = endpointClass;
+            this.limit = limit;
+            this.start = start;
+            this.inFlight = inFlight;
+        }
+
+        void release() {
+            if (!released.compareAndSet(false, true)) {
+                return;
+            }
+            limit.release();
+            if (async) {
+                return;
+            }
+            long now = clock.getAsLong();
+            boolean slow = limit.sample(now - start, now, inFlight);
+            if (slow && endpointClass == EndpointClass.WRITE) {
+                limits.get(EndpointClass.READ).decrease(now);
+                limits.get(EndpointClass.BULK).decrease(now);
+            }
+        }
+    }
+
+    //the adaptive limit of one endpoint class. admission is a single increment of the in-flight count; the
+    //limit itself only moves when a request completes, under the lock
+    static final class Limit {
+
+        private final int minLimit;
+        private final int maxLimit;
+        private final long targetNanos;
+        private final double backoffRatio;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private volatile double limit;
+        private long lastDecrease;
+
+        Limit(int minLimit, int maxLimit, long targetNanos, double backoffRatio, long now) {
+            if (minLimit > maxLimit) {
+                throw new IllegalArgumentException("min limit " + minLimit + " is over the max limit " + maxLimit);
+            }
+            this.minLimit = minLimit;
+            this.maxLimit = maxLimit;
+            this.targetNanos = targetNanos;
+            this.backoffRatio = backoffRatio;
+            this.limit = maxLimit;
+            this.lastDecrease = now - targetNanos;
+        }
+
+        double limit() {
+            return limit;
+        }
+
+        int inFlight() {
+            return inFlight.get();
+        }
+
+        //the in-flight count including this request, or -1 when the class is at its limit
+        int tryAcquire() {
+            int current = inFlight.incrementAndGet();
+            if (current > (int) limit) {
+                inFlight.decrementAndGet();
+                return -1;
+            }
+            return current;
+        }
+
+        void release() {
+            inFlight.decrementAndGet();
+        }
+
+        //true when the request was over the target latency. the limit only grows while it is being used, an idle
+        //class would otherwise creep back to its max and let a whole burst in against a database that is still slow
+        synchronized boolean sample(long latencyNanos, long now, int inFlightAtStart) {
+            if (latencyNanos > targetNanos) {
+                decrease(now);
+                return true;
+            }
+            if (inFlightAtStart * 2 >= limit) {
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+            return false;
+        }
+
+        synchronized void decrease(long now) {
+            if (now - lastDecrease < targetNanos) {
+                return;
+            }
+            lastDecrease = now;
+            limit = Math.max(minLimit, limit * backoffRatio);
+        }
+    }
+}
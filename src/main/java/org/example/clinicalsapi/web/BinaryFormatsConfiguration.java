@@ -0,0 +1,30 @@
+package org.example.clinicalsapi.web;
+
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.converter.cbor.MappingJackson2CborHttpMessageConverter;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.http.converter.smile.MappingJackson2SmileHttpMessageConverter;
+
+//CBOR (Accept: application/cbor) and Smile (Accept: application/x-jackson-smile) next to json for every
+//controller. the mappers come from spring boot's builder, so they follow the same spring.jackson.* settings
+//as json and a client decodes the same fields with the same types (the builder bean is a prototype, each
+//converter gets its own). as beans they take the place of the converters spring would otherwise add with a
+//plain builder
+@Configuration
+public class BinaryFormatsConfiguration {
+
+    public static final String CBOR_SEQUENCE_VALUE = "application/cbor-seq";
+
+    @Bean
+    public MappingJackson2CborHttpMessageConverter cborHttpMessageConverter(Jackson2ObjectMapperBuilder builder) {
+        return new MappingJackson2CborHttpMessageConverter(builder.factory(new CBORFactory()).build());
+    }
+
+    @Bean
+    public MappingJackson2SmileHttpMessageConverter smileHttpMessageConverter(Jackson2ObjectMapperBuilder builder) {
+        return new MappingJackson2SmileHttpMessageConverter(builder.factory(new SmileFactory()).build());
+    }
+}
@@ -0,0 +1,448 @@
+package org.example.clinicalsapi.web;
+
+import com.github.luben.zstd.ZstdOutputStream;
+import com.github.luben.zstd.util.Native;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletRequestWrapper;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+//compresses response bodies with zstd or gzip, whichever the client's Accept-Encoding ranks highest (ties go
+//to the order in clinicals.compression.encodings), once a body reaches min-response-size bytes; smaller ones
+//go out as they are, with their Content-Length. the first min-response-size bytes are held back to decide,
+//so a flush before that sends them uncompressed. streamed bodies are compressed as they are written, the
+//compressor is flushed with them and finished on the async dispatch that ends the stream.
+//only the listed mime types are compressed; server-sent events are not, a compressor would hold events back.
+//a compressed body is a different representation, so its ETag gets the coding appended ("3" goes out as "3-gzip");
+//If-Match and If-None-Match have the suffix taken off again before the controllers compare versions, and a 304
+//for a tag the client sent with a suffix answers with that tag
+@Component
+public class ResponseCompressionFilter extends OncePerRequestFilter {
+
+    private static final Logger logger = LoggerFactory.getLogger(ResponseCompressionFilter.class);
+
+    private static final String RESPONSE_ATTRIBUTE = ResponseCompressionFilter.class.getName() + ".response";
+
+    //the coding suffix at the end of an entity tag
+    private static final Pattern CODING_SUFFIX = Pattern.compile("-(?:zstd|gzip)\"");
+
+    enum Encoding {
+        ZSTD("zstd"),
+        GZIP("gzip");
+
+        private final String token;
+
+        Encoding(String token) {
+            this.token = token;
+        }
+
+        //"3" becomes "3-gzip", W/"3" becomes W/"3-gzip"
+        String tag(String etag) {
+            int end = etag.lastIndexOf('"');
+            return end > 0 ? etag.substring(0, end) + "-" + token + etag.substring(end) : etag;
+        }
+
+        static Encoding of(String token) {
+            for (Encoding encoding : values()) {
+                if (encoding.token.equals(token)) {
+                    return encoding;
+                }
+            }
+            throw new IllegalArgumentException("Unsupported encoding " + token + ", expected zstd or gzip");
+        }
+    }
+
+    private final boolean enabled;
+    private final int minResponseSize;
+    private final List<Encoding> encodings;
+    private final Set<String> mimeTypes;
+    private final int zstdLevel;
+    private final int gzipLevel;
+
+    public ResponseCompressionFilter(@Value("${clinicals.compression.enabled:true}") boolean enabled,
+                                     @Value("${clinicals.compression.min-response-size:2048}") int minResponseSize,
+                                     @Value("${clinicals.compression.encodings:zstd,gzip}") List<String> encodings,
+                                     @Value("${clinicals.compression.mime-types:application/json,application/x-ndjson,text/csv,application/cbor,application/cbor-seq,application/x-jackson-smile}") List<String> mimeTypes,
+                                     @Value("${clinicals.compression.zstd-level:3}") int zstdLevel,
+                                     @Value("${clinicals.compression.gzip-level:6}") int gzipLevel) {
+        this.enabled = enabled;
+        this.minResponseSize = minResponseSize;
+        this.encodings = new ArrayList<>();
+        for (String token : encodings) {
+            Encoding encoding = Encoding.of(token.trim().toLowerCase(Locale.ROOT));
+            if (encoding == Encoding.ZSTD && !zstdAvailable()) {
+                continue;
+            }
+            this.encodings.add(encoding);
+        }
+        this.mimeTypes = new HashSet<>();
+        mimeTypes.forEach(mimeType -> this.mimeTypes.add(mimeType.trim().toLowerCase(Locale.ROOT)));
+        this.zstdLevel = zstdLevel;
+        this.gzipLevel = gzipLevel;
+    }
+
+    //zstd-jni is a native library; without a build for this platform only gzip is offered
+    private static boolean zstdAvailable() {
+        try {
+            Native.load();
+            return true;
+        } catch (UnsatisfiedLinkError | SecurityException e) {
+            logger.warn("zstd is not available on this platform, responses are only gzip compressed: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    @Override
+    protected boolean shouldNotFilterAsyncDispatch() {
+        return false;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        CompressingResponse compressing = (CompressingResponse) request.getAttribute(RESPONSE_ATTRIBUTE);
+        if (compressing == null && !isAsyncDispatch(request)) {
+            Encoding encoding = enabled ? negotiate(request.getHeader(HttpHeaders.ACCEPT_ENCODING)) : null;
+            if (encoding != null) {
+                compressing = new CompressingResponse(response, encoding, request.getHeader(HttpHeaders.IF_NONE_MATCH));
+                request.setAttribute(RESPONSE_ATTRIBUTE, compressing);
+            }
+        }
+        if (request.getHeader(HttpHeaders.IF_MATCH) != null || request.getHeader(HttpHeaders.IF_NONE_MATCH) != null) {
+            request = new UntaggedRequest(request);
+        }
+        if (compressing == null) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+        //a streamed body was written through the wrapper before the async dispatch, which only ends it
+        filterChain.doFilter(request, compressing);
+        if (!isAsyncStarted(request)) {
+            compressing.finish();
+        }
+    }
+
+    //the offered encoding with the highest q value, null when the client accepts none of them
+    Encoding negotiate(String acceptEncoding) {
+        if (acceptEncoding == null || acceptEncoding.isBlank()) {
+            return null;
+        }
+        Encoding best = null;
+        double bestQuality = 0;
+        for (Encoding encoding : encodings) {
+            double quality = quality(acceptEncoding, encoding.token);
+            if (quality > bestQuality) {
+                best = encoding;
+                bestQuality = quality;
+            }
+        }
+        return best;
+    }
+
+    //"gzip;q=0.8, zstd" gives 0.8 for gzip and 1 for zstd; a named coding wins over the * wildcard
+    private static double quality(String acceptEncoding, String token) {
+        double wildcard = 0;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim().toLowerCase(Locale.ROOT);
+            double quality = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        quality = Double.parseDouble(parameter.substring(2));
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            if (name.equals(token)) {
+                return quality;
+            }
+            if (name.equals("*")) {
+                wildcard = quality;
+            }
+        }
+        return wildcard;
+    }
+
+    //the entity tags in an If-Match or If-None-Match value without their coding suffixes
+    static String untag(String tags) {
+        return tags == null ? null : CODING_SUFFIX.matcher(tags).replaceAll("\"");
+    }
+
+    //the conditional headers as the controllers tagged the resource, whichever representation the client holds
+    private static final class UntaggedRequest extends HttpServletRequestWrapper {
+
+        UntaggedRequest(HttpServletRequest request) {
+            super(request);
+        }
+
+        private static boolean conditional(String name) {
+            return HttpHeaders.IF_MATCH.equalsIgnoreCase(name) || HttpHeaders.IF_NONE_MATCH.equalsIgnoreCase(name);
+        }
+
+        @Override
+        public String getHeader(String name) {
+            String value = super.getHeader(name);
+            return conditional(name) ? untag(value) : value;
+        }
+
+        @Override
+        public Enumeration<String> getHeaders(String name) {
+            Enumeration<String> values = super.getHeaders(name);
+            if (!conditional(name) || values == null) {
+                return values;
+            }
+            List<String> untagged = new ArrayList<>();
+            while (values.hasMoreElements()) {
+                untagged.add(untag(values.nextElement()));
+            }
+            return Collections.enumeration(untagged);
+        }
+    }
+
+    private boolean compressible(HttpServletResponse response) {
+        String contentType = response.getContentType();
+        if (contentType == null || response.getHeader(HttpHeaders.CONTENT_ENCODING) != null) {
+            return false;
+        }
+        int parameters = contentType.indexOf(';');
+        String mimeType = (parameters >= 0 ? contentType.substring(0, parameters) : contentType).trim().toLowerCase(Locale.ROOT);
+        return mimeTypes.contains(mimeType);
+    }
+
+    private enum State {
+        BUFFERING,
+        COMPRESSING,
+        PASSING_THROUGH,
+        FINISHED
+    }
+
+    //holds the start of the body until it knows whether to compress; Content-Length is held back with it
+    private final class CompressingResponse extends HttpServletResponseWrapper {
+
+        private final Encoding encoding;
+        private final String ifNoneMatch;
+        private final ByteArrayOutputStream held = new ByteArrayOutputStream();
+        private State state = State.BUFFERING;
+        private long heldContentLength = -1;
+        private OutputStream target;
+        private ServletOutputStream outputStream;
+        private PrintWriter writer;
+
+        CompressingResponse(HttpServletResponse response, Encoding encoding, String ifNoneMatch) {
+            super(response);
+            this.encoding = encoding;
+            this.ifNoneMatch = ifNoneMatch;
+        }
+
+        @Override
+        public void setContentLength(int length) {
+            setContentLengthLong(length);
+        }
+
+        @Override
+        public void setContentLengthLong(long length) {
+            if (state == State.BUFFERING) {
+                heldContentLength = length;
+            } else if (state == State.PASSING_THROUGH) {
+                super.setContentLengthLong(length);
+            }
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            if (HttpHeaders.CONTENT_LENGTH.equalsIgnoreCase(name)) {
+                setContentLengthLong(Long.parseLong(value));
+            } else {
+                super.setHeader(name, value);
+            }
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            if (HttpHeaders.CONTENT_LENGTH.equalsIgnoreCase(name)) {
+                setContentLengthLong(Long.parseLong(value));
+            } else {
+                super.addHeader(name, value);
+            }
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() {
+            if (outputStream == null) {
+                outputStream = new ServletOutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        write(new byte[]{(byte) b}, 0, 1);
+                    }
+
+                    @Override
+                    public void write(byte[] bytes, int offset, int length) throws IOException {
+                        CompressingResponse.this.write(bytes, offset, length);
+                    }
+
+                    @Override
+                    public void flush() throws IOException {
+                        CompressingResponse.this.flush();
+                    }
+
+                    @Override
+                    public boolean isReady() {
+                        return true;
+                    }
+
+                    @Override
+                    public void setWriteListener(WriteListener writeListener) {
+                        throw new UnsupportedOperationException("Non-blocking writes are not supported while compressing");
+                    }
+                };
+            }
+            return outputStream;
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (writer == null) {
+                writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), getCharacterEncoding()));
+            }
+            return writer;
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            flush();
+            if (state != State.BUFFERING) {
+                super.flushBuffer();
+            }
+        }
+
+        @Override
+        public void resetBuffer() {
+            super.resetBuffer();
+            if (state == State.BUFFERING) {
+                held.reset();
+            }
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            if (state == State.BUFFERING) {
+                held.reset();
+                heldContentLength = -1;
+            }
+        }
+
+        private void write(byte[] bytes, int offset, int length) throws IOException {
+            if (state == State.BUFFERING) {
+                if (held.size() + length < minResponseSize) {
+                    held.write(bytes, offset, length);
+                    return;
+                }
+                held.write(bytes, offset, length);
+                decide();
+                return;
+            }
+            if (state == State.FINISHED) {
+                throw new IOException("The response has been finished");
+            }
+            target.write(bytes, offset, length);
+        }
+
+        private void flush() throws IOException {
+            if (writer != null) {
+                writer.flush();
+            }
+            //a flush of the headers alone (a streamed ResponseEntity does that) waits for the body when it may
+            //be compressed; anything else, server-sent events among them, goes out now
+            if (state == State.BUFFERING && (held.size() > 0 || !compressible((HttpServletResponse) getResponse()))) {
+                decide();
+            }
+            if (target != null && state != State.FINISHED) {
+                target.flush();
+            }
+        }
+
+        //compresses when there is enough to be worth it, otherwise sends the body as it is
+        private void decide() throws IOException {
+            HttpServletResponse response = (HttpServletResponse) getResponse();
+            boolean compressible = compressible(response);
+            if (compressible) {
+                response.addHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+            }
+            OutputStream servletOut = StreamUtils.nonClosing(response.getOutputStream());
+            String etag = response.getHeader(HttpHeaders.ETAG);
+            if (etag != null && response.getStatus() == HttpServletResponse.SC_NOT_MODIFIED
+                    && ifNoneMatch != null && ifNoneMatch.contains(encoding.tag(etag))) {
+                response.setHeader(HttpHeaders.ETAG, encoding.tag(etag));
+            }
+            if (compressible && held.size() >= minResponseSize) {
+                response.setHeader(HttpHeaders.CONTENT_ENCODING, encoding.token);
+                if (etag != null) {
+                    response.setHeader(HttpHeaders.ETAG, encoding.tag(etag));
+                }
+                target = encoding == Encoding.ZSTD
+                        ? new ZstdOutputStream(servletOut, zstdLevel)
+                        : new LeveledGzipOutputStream(servletOut, gzipLevel);
+                state = State.COMPRESSING;
+            } else {
+                if (heldContentLength >= 0) {
+                    response.setContentLengthLong(heldContentLength);
+                }
+                target = servletOut;
+                state = State.PASSING_THROUGH;
+            }
+            held.writeTo(target);
+            held.reset();
+        }
+
+        void finish() throws IOException {
+            if (writer != null) {
+                writer.flush();
+            }
+            if (state == State.BUFFERING) {
+                decide();
+            }
+            if (state == State.COMPRESSING) {
+                target.close();
+            }
+            state = State.FINISHED;
+        }
+    }
+
+    //flushes what has been compressed so far on every flush, so a streamed body reaches the client as it goes
+    private static final class LeveledGzipOutputStream extends GZIPOutputStream {
+        LeveledGzipOutputStream(OutputStream out, int level) throws IOException {
+            super(out, 8192, true);
+            def.setLevel(level);
+        }
+    }
+}
@@ -0,0 +1,3 @@
+-- ClinicalData now reserves ids 50 at a time (allocationSize = 50, pooled-lo optimizer).
+-- The sequence increment has to match, otherwise two nodes can hand out overlapping ids.
+ALTER SEQUENCE clinicaldata_seq INCREMENT BY 50;
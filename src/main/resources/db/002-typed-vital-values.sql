@@ -0,0 +1,35 @@
+-- Typed copies of component_value, filled in by the application on every insert and update.
+-- bp keeps the systolic (higher) figure in primary_value and the diastolic in secondary_value,
+-- single figure components such as heartrate use primary_value only. Unparseable values stay NULL.
+ALTER TABLE clinicaldata
+    ADD COLUMN IF NOT EXISTS primary_value double precision,
+    ADD COLUMN IF NOT EXISTS secondary_value double precision,
+    ADD COLUMN IF NOT EXISTS unit varchar(16);
+
+-- Backfill in id ranges with a commit per range, so the table is never locked by one huge update.
+-- Must be run outside an explicit transaction block (COMMIT inside DO needs PostgreSQL 11+).
+DO $$
+DECLARE
+    range_start int := 0;
+    range_size constant int := 50000;
+    last_id int;
+BEGIN
+    SELECT coalesce(max(id), 0) INTO last_id FROM clinicaldata;
+    WHILE range_start < last_id LOOP
+        UPDATE clinicaldata
+        SET primary_value = CASE
+                WHEN component_name = 'bp' AND component_value ~ '^ *[0-9]+(\.[0-9]+)? */ *[0-9]+(\.[0-9]+)? *$'
+                    THEN greatest(split_part(component_value, '/', 1)::double precision, split_part(component_value, '/', 2)::double precision)
+                WHEN component_name <> 'bp' AND component_value ~ '^ *[0-9]+(\.[0-9]+)? *$'
+                    THEN trim(component_value)::double precision
+            END,
+            secondary_value = CASE
+                WHEN component_name = 'bp' AND component_value ~ '^ *[0-9]+(\.[0-9]+)? */ *[0-9]+(\.[0-9]+)? *$'
+                    THEN least(split_part(component_value, '/', 1)::double precision, split_part(component_value, '/', 2)::double precision)
+            END,
+            unit = CASE component_name WHEN 'bp' THEN 'mmHg' WHEN 'heartrate' THEN 'bpm' END
+        WHERE id > range_start AND id <= range_start + range_size;
+        COMMIT;
+        range_start := range_start + range_size;
+    END LOOP;
+END $$;
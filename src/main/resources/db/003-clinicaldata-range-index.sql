@@ -0,0 +1,14 @@
+-- Backs GET /api/clinicaldata?patientId=&componentName=&from=&to= (the dashboard query).
+-- Equality on the first two columns and a range on the third is one index range scan that
+-- already yields rows newest first, so PostgreSQL needs neither a sequential scan nor a sort.
+-- CONCURRENTLY avoids blocking writes while building; it cannot run inside a transaction block.
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_clinicaldata_patient_component_time
+    ON clinicaldata (patient_id, component_name, measured_date_time DESC);
+
+-- To check the plan:
+-- EXPLAIN SELECT * FROM clinicaldata
+--  WHERE patient_id = 1 AND component_name = 'bp'
+--    AND measured_date_time BETWEEN '2018-01-01' AND '2019-01-01'
+--  ORDER BY measured_date_time DESC LIMIT 1000;
+-- expect "Index Scan using idx_clinicaldata_patient_component_time" and no "Seq Scan" or "Sort" node.
+ANALYZE clinicaldata;
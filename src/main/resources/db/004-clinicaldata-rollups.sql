@@ -0,0 +1,29 @@
+-- Hourly and daily min/max/sum/count per patient and component, maintained by ClinicalDataRollupService.
+-- The primary key doubles as the index for the (patient, component, bucket size, time range) lookups.
+CREATE TABLE IF NOT EXISTS clinicaldata_rollup (
+    patient_id int NOT NULL,
+    component_name varchar(255) NOT NULL,
+    bucket_size varchar(8) NOT NULL,
+    bucket_start TIMESTAMP NOT NULL,
+    reading_count bigint NOT NULL,
+    primary_min double precision,
+    primary_max double precision,
+    primary_sum double precision,
+    secondary_min double precision,
+    secondary_max double precision,
+    secondary_sum double precision,
+    PRIMARY KEY (patient_id, component_name, bucket_size, bucket_start)
+);
+
+-- The initial fill is the same as POST /api/rollups/rebuild; run after 002-typed-vital-values.sql.
+TRUNCATE clinicaldata_rollup;
+INSERT INTO clinicaldata_rollup
+SELECT patient_id, component_name, 'HOUR', date_trunc('hour', measured_date_time), count(*),
+       min(primary_value), max(primary_value), sum(primary_value), min(secondary_value), max(secondary_value), sum(secondary_value)
+FROM clinicaldata WHERE primary_value IS NOT NULL AND measured_date_time IS NOT NULL AND patient_id IS NOT NULL
+GROUP BY patient_id, component_name, date_trunc('hour', measured_date_time);
+INSERT INTO clinicaldata_rollup
+SELECT patient_id, component_name, 'DAY', date_trunc('day', measured_date_time), count(*),
+       min(primary_value), max(primary_value), sum(primary_value), min(secondary_value), max(secondary_value), sum(secondary_value)
+FROM clinicaldata WHERE primary_value IS NOT NULL AND measured_date_time IS NOT NULL AND patient_id IS NOT NULL
+GROUP BY patient_id, component_name, date_trunc('day', measured_date_time);
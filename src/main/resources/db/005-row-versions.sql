@@ -0,0 +1,4 @@
+-- Optimistic locking versions for Patient and ClinicalData (@Version), served as ETags and checked by
+-- If-Match updates. A constant default is a catalog-only change on PostgreSQL 11+, no table rewrite.
+ALTER TABLE patient ADD COLUMN IF NOT EXISTS version bigint NOT NULL DEFAULT 0;
+ALTER TABLE clinicaldata ADD COLUMN IF NOT EXISTS version bigint NOT NULL DEFAULT 0;
@@ -0,0 +1,84 @@
+-- Turns clinicaldata into a table range partitioned by month on measured_date_time, so vacuum and index
+-- maintenance work on one month at a time, the hot recent months stay small, and old months can be detached
+-- (ClinicalDataPartitionMaintenance creates the months ahead and applies the retention policy every night).
+--
+-- A partitioned table's unique constraints have to include the partition key, so the primary key becomes
+-- (id, measured_date_time) and measured_date_time NOT NULL; ids still come from clinicaldata_seq and stay
+-- unique. Readings without a time, which the application never writes, are filed at the epoch.
+-- Anything outside the created months lands in clinicaldata_default, and moves to its month's partition
+-- when clinicaldata_create_partitions creates it.
+--
+-- Rewrites the table: run with the application stopped. Needs PostgreSQL 13+.
+BEGIN;
+LOCK TABLE clinicaldata IN ACCESS EXCLUSIVE MODE;
+ALTER TABLE clinicaldata RENAME TO clinicaldata_unpartitioned;
+ALTER TABLE clinicaldata_unpartitioned RENAME CONSTRAINT clinicaldata_pkey TO clinicaldata_unpartitioned_pkey;
+ALTER INDEX IF EXISTS idx_clinicaldata_patient_component_time RENAME TO idx_clinicaldata_unpartitioned_patient_component_time;
+
+CREATE TABLE clinicaldata (
+    id int NOT NULL,
+    patient_id int,
+    component_name varchar(255) NOT NULL,
+    component_value varchar(255) NOT NULL,
+    measured_date_time TIMESTAMP NOT NULL,
+    primary_value double precision,
+    secondary_value double precision,
+    unit varchar(16),
+    version bigint NOT NULL DEFAULT 0,
+    PRIMARY KEY (id, measured_date_time),
+    CONSTRAINT fk_patient FOREIGN KEY (patient_id) REFERENCES patient(id)
+) PARTITION BY RANGE (measured_date_time);
+CREATE TABLE clinicaldata_default PARTITION OF clinicaldata DEFAULT;
+CREATE INDEX idx_clinicaldata_patient_component_time ON clinicaldata (patient_id, component_name, measured_date_time DESC);
+
+-- Creates the missing monthly partitions from from_month's month to to_month's month, taking over any rows
+-- clinicaldata_default holds for them; returns how many it created. Partitions are named clinicaldata_pYYYY_MM.
+CREATE OR REPLACE FUNCTION clinicaldata_create_partitions(from_month date, to_month date) RETURNS int
+LANGUAGE plpgsql AS $$
+DECLARE
+    partition_start date := date_trunc('month', from_month);
+    partition_end date;
+    partition_name text;
+    created int := 0;
+BEGIN
+    WHILE partition_start <= to_month LOOP
+        partition_end := (partition_start + interval '1 month')::date;
+        partition_name := 'clinicaldata_p' || to_char(partition_start, 'YYYY_MM');
+        IF to_regclass(partition_name) IS NULL THEN
+            EXECUTE format('CREATE TABLE %I (LIKE clinicaldata INCLUDING DEFAULTS)', partition_name);
+            EXECUTE format('WITH moved AS (DELETE FROM clinicaldata_default WHERE measured_date_time >= $1 AND measured_date_time < $2'
+                           ' RETURNING *) INSERT INTO %I SELECT * FROM moved', partition_name) USING partition_start, partition_end;
+            EXECUTE format('ALTER TABLE clinicaldata ATTACH PARTITION %I FOR VALUES FROM (%L) TO (%L)',
+                           partition_name, partition_start, partition_end);
+            created := created + 1;
+        END IF;
+        partition_start := partition_end;
+    END LOOP;
+    RETURN created;
+END
+$$;
+
+-- every month that has readings, through three months ahead
+SELECT clinicaldata_create_partitions(coalesce((SELECT min(measured_date_time) FROM clinicaldata_unpartitioned)::date, localtimestamp::date),
+                                      (localtimestamp + interval '3 months')::date);
+
+INSERT INTO clinicaldata (id, patient_id, component_name, component_value, measured_date_time, primary_value,
+                          secondary_value, unit, version)
+SELECT id, patient_id, component_name, component_value, coalesce(measured_date_time, 'epoch'), primary_value,
+       secondary_value, unit, version
+FROM clinicaldata_unpartitioned;
+
+DROP TABLE clinicaldata_unpartitioned;
+COMMIT;
+
+ANALYZE clinicaldata;
+
+-- Time bounded queries only touch the months they cover; to check the plan:
+-- EXPLAIN SELECT * FROM clinicaldata
+--  WHERE patient_id = 1 AND component_name = 'bp'
+--    AND measured_date_time BETWEEN '2024-01-01' AND '2024-03-01'
+--  ORDER BY measured_date_time DESC LIMIT 1000;
+-- expect index scans on clinicaldata_p2024_01 .. clinicaldata_p2024_03 only; clinicaldata_default is
+-- scanned too when the range reaches outside the created months.
+-- The application binds the bounds as parameters; once the driver switches to a generic plan the pruning
+-- happens at executor start instead and shows up as "Subplans Removed: n".
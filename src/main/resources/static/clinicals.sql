@@ -3,22 +3,73 @@ CREATE TABLE patient (
                          last_name varchar(255) NOT NULL,
                          first_name varchar(255) NOT NULL,
                          age int,
+                         version bigint NOT NULL DEFAULT 0,
                          PRIMARY KEY (id)
 );
 
+-- range partitioned by month on measured_date_time, see db/006-partition-clinicaldata.sql
 CREATE TABLE clinicaldata (
                               id int NOT NULL,
                               patient_id int,
                               component_name varchar(255) NOT NULL,
                               component_value varchar(255) NOT NULL,
-                              measured_date_time TIMESTAMP,
-                              PRIMARY KEY (id),
+                              measured_date_time TIMESTAMP NOT NULL,
+                              primary_value double precision,
+                              secondary_value double precision,
+                              unit varchar(16),
+                              version bigint NOT NULL DEFAULT 0,
+                              PRIMARY KEY (id, measured_date_time),
                               CONSTRAINT fk_patient FOREIGN KEY (patient_id)
                                   REFERENCES patient(id)
+) PARTITION BY RANGE (measured_date_time);
+CREATE TABLE clinicaldata_default PARTITION OF clinicaldata DEFAULT;
+
+CREATE TABLE clinicaldata_rollup (
+                              patient_id int NOT NULL,
+                              component_name varchar(255) NOT NULL,
+                              bucket_size varchar(8) NOT NULL,
+                              bucket_start TIMESTAMP NOT NULL,
+                              reading_count bigint NOT NULL,
+                              primary_min double precision,
+                              primary_max double precision,
+                              primary_sum double precision,
+                              secondary_min double precision,
+                              secondary_max double precision,
+                              secondary_sum double precision,
+                              PRIMARY KEY (patient_id, component_name, bucket_size, bucket_start)
 );
 
+CREATE INDEX idx_clinicaldata_patient_component_time ON clinicaldata (patient_id, component_name, measured_date_time DESC);
+
+CREATE FUNCTION clinicaldata_create_partitions(from_month date, to_month date) RETURNS int
+LANGUAGE plpgsql AS $$
+DECLARE
+    partition_start date := date_trunc('month', from_month);
+    partition_end date;
+    partition_name text;
+    created int := 0;
+BEGIN
+    WHILE partition_start <= to_month LOOP
+        partition_end := (partition_start + interval '1 month')::date;
+        partition_name := 'clinicaldata_p' || to_char(partition_start, 'YYYY_MM');
+        IF to_regclass(partition_name) IS NULL THEN
+            EXECUTE format('CREATE TABLE %I (LIKE clinicaldata INCLUDING DEFAULTS)', partition_name);
+            EXECUTE format('WITH moved AS (DELETE FROM clinicaldata_default WHERE measured_date_time >= $1 AND measured_date_time < $2'
+                           ' RETURNING *) INSERT INTO %I SELECT * FROM moved', partition_name) USING partition_start, partition_end;
+            EXECUTE format('ALTER TABLE clinicaldata ATTACH PARTITION %I FOR VALUES FROM (%L) TO (%L)',
+                           partition_name, partition_start, partition_end);
+            created := created + 1;
+        END IF;
+        partition_start := partition_end;
+    END LOOP;
+    RETURN created;
+END
+$$;
+-- the seed readings below are from 2018 and stay in clinicaldata_default
+SELECT clinicaldata_create_partitions(localtimestamp::date, (localtimestamp + interval '3 months')::date);
+
 CREATE SEQUENCE patient_seq START 100;
-CREATE SEQUENCE clinicaldata_seq START 100;
+CREATE SEQUENCE clinicaldata_seq START 100 INCREMENT BY 50;
 
 insert into patient values(1,'John','Mccain',52);
 insert into patient values(2,'Siva','Shankar',32);
@@ -132,3 +183,23 @@ insert into clinicaldata  values('96', '7', 'heartrate', '55', '2019-02-21 19:34
 insert into clinicaldata  values('97', '8', 'heartrate', '50', '2019-02-15 19:34:24');
 insert into clinicaldata  values('98', '9', 'heartrate', '67', '2019-04-19 19:34:24');
 insert into clinicaldata  values('99', '10', 'heartrate', '89', '2019-05-29 19:34:24');
+
+-- the inserts above only carry the text value, derive the typed columns the same way the application does
+UPDATE clinicaldata SET primary_value = greatest(split_part(component_value, '/', 1)::double precision, split_part(component_value, '/', 2)::double precision),
+                        secondary_value = least(split_part(component_value, '/', 1)::double precision, split_part(component_value, '/', 2)::double precision)
+WHERE component_name = 'bp' AND component_value ~ '^ *[0-9]+(\.[0-9]+)? */ *[0-9]+(\.[0-9]+)? *$';
+UPDATE clinicaldata SET primary_value = trim(component_value)::double precision
+WHERE component_name <> 'bp' AND component_value ~ '^ *[0-9]+(\.[0-9]+)? *$';
+UPDATE clinicaldata SET unit = CASE component_name WHEN 'bp' THEN 'mmHg' WHEN 'heartrate' THEN 'bpm' END;
+
+-- hourly and daily rollups of the seed readings
+INSERT INTO clinicaldata_rollup
+SELECT patient_id, component_name, 'HOUR', date_trunc('hour', measured_date_time), count(*),
+       min(primary_value), max(primary_value), sum(primary_value), min(secondary_value), max(secondary_value), sum(secondary_value)
+FROM clinicaldata WHERE primary_value IS NOT NULL AND measured_date_time IS NOT NULL
+GROUP BY patient_id, component_name, date_trunc('hour', measured_date_time);
+INSERT INTO clinicaldata_rollup
+SELECT patient_id, component_name, 'DAY', date_trunc('day', measured_date_time), count(*),
+       min(primary_value), max(primary_value), sum(primary_value), min(secondary_value), max(secondary_value), sum(secondary_value)
+FROM clinicaldata WHERE primary_value IS NOT NULL AND measured_date_time IS NOT NULL
+GROUP BY patient_id, component_name, date_trunc('day', measured_date_time);
@@ -0,0 +1,36 @@
+package org.example.clinicalsapi;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+//the 'fast' profile's lazy initialization: what startup needs is still created with the context, the rest waits.
+//@Scheduled beans are kept eager by spring boot (nothing else would schedule their jobs)
+@SpringBootTest
+@ActiveProfiles({"test", "fast"})
+class LazyInitializationTests {
+
+    @Autowired
+    private ConfigurableListableBeanFactory beanFactory;
+
+    @Test
+    void indexesAndScheduledBeans_areCreatedAtStartup() {
+        assertTrue(beanFactory.containsSingleton("patientIdIndex"));
+        assertTrue(beanFactory.containsSingleton("cohortSnapshot"));
+        assertTrue(beanFactory.containsSingleton("clinicalDataRollupService"));
+        assertTrue(beanFactory.containsSingleton("clinicalDataPartitionMaintenance"));
+        assertTrue(beanFactory.containsSingleton("clinicalDataFeed"));
+    }
+
+    @Test
+    void controllersAndOnDemandServices_waitForTheirFirstUse() {
+        assertFalse(beanFactory.containsSingleton("analyticsController"));
+        assertFalse(beanFactory.containsSingleton("vitalsAnalytics"));
+        assertFalse(beanFactory.containsSingleton("clinicalDataCopier"));
+    }
+}
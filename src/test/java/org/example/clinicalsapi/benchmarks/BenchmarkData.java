@@ -0,0 +1,77 @@
+package org.example.clinicalsapi.benchmarks;
+
+import org.example.clinicalsapi.dto.ClinicalDataRequest;
+import org.example.clinicalsapi.models.ClinicalData;
+import org.example.clinicalsapi.models.Patient;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+//synthetic readings shaped like the seed data, generated from a fixed seed so runs are comparable
+final class BenchmarkData {
+
+    private static final String[] COMPONENTS = {"bp", "heartrate", "hw"};
+    private static final String[] FIRST_NAMES = {"John", "Alex", "Anthony", "Maria", "Priya", "Chen"};
+    private static final String[] LAST_NAMES = {"Mccain", "Bell", "Rodgers", "Lopez", "Sharma", "Wei"};
+
+    private BenchmarkData() {
+    }
+
+    static List<Patient> patients(int count) {
+        Random random = new Random(42);
+        List<Patient> patients = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Patient patient = new Patient();
+            patient.setId(i + 1);
+            patient.setFirstName(FIRST_NAMES[random.nextInt(FIRST_NAMES.length)]);
+            patient.setLastName(LAST_NAMES[random.nextInt(LAST_NAMES.length)]);
+            patient.setAge(18 + random.nextInt(70));
+            patients.add(patient);
+        }
+        return patients;
+    }
+
+    static List<ClinicalDataRequest> requests(int count) {
+        Random random = new Random(42);
+        List<ClinicalDataRequest> requests = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String componentName = COMPONENTS[i % COMPONENTS.length];
+            ClinicalDataRequest request = new ClinicalDataRequest();
+            request.setPatientId(1 + random.nextInt(1000));
+            request.setComponentName(componentName);
+            request.setComponentValue(componentValue(componentName, random));
+            requests.add(request);
+        }
+        return requests;
+    }
+
+    //readings as they come back from the repository: persisted, typed columns filled in
+    static List<ClinicalData> readings(int count) {
+        List<Patient> patients = patients(Math.max(1, count / 10));
+        List<ClinicalDataRequest> requests = requests(count);
+        long now = System.currentTimeMillis();
+        List<ClinicalData> readings = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ClinicalData clinicalData = requests.get(i).toClinicalData(patients.get(i % patients.size()));
+            clinicalData.setId(i + 1);
+            clinicalData.setMeasuredDateTime(new Date(now - i * 60_000L));
+            ReflectionTestUtils.invokeMethod(clinicalData, "parseComponentValue");
+            readings.add(clinicalData);
+        }
+        return readings;
+    }
+
+    static String componentValue(String componentName, Random random) {
+        switch (componentName) {
+            case "bp":
+                return (60 + random.nextInt(40)) + "/" + (100 + random.nextInt(60));
+            case "heartrate":
+                return Integer.toString(50 + random.nextInt(70));
+            default:
+                return Integer.toString(150 + random.nextInt(50)) + "." + random.nextInt(10);
+        }
+    }
+}
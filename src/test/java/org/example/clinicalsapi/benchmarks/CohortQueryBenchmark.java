@@ -0,0 +1,71 @@
+package org.example.clinicalsapi.benchmarks;
+
+import org.example.clinicalsapi.dto.CohortResult;
+import org.example.clinicalsapi.models.ClinicalData;
+import org.example.clinicalsapi.models.Patient;
+import org.example.clinicalsapi.services.ClinicalDataEvent;
+import org.example.clinicalsapi.services.CohortSnapshot;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+//a cohort question over the whole population, answered from the snapshot's columns. the snapshot is filled through
+//its event listener with a bp, heartrate and hw reading per patient; it never touches the (unconnected) database
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+public class CohortQueryBenchmark {
+
+    private static final String[] COMPONENTS = {"bp", "heartrate", "hw"};
+
+    @Param({"1000000"})
+    private int size;
+
+    @Param({"0", "1"})
+    private int parallelism;
+
+    private CohortSnapshot cohortSnapshot;
+    private List<CohortSnapshot.Condition> conditions;
+
+    @Setup
+    public void setUp() {
+        cohortSnapshot = new CohortSnapshot(new DriverManagerDataSource(), null, List.of(COMPONENTS), parallelism, 65536,
+                10_000, 1000);
+        Random random = new Random(42);
+        long now = System.currentTimeMillis();
+        for (int id = 1; id <= size; id++) {
+            Patient patient = new Patient();
+            patient.setId(id);
+            cohortSnapshot.putPatient(id, 18 + random.nextInt(70));
+            for (String componentName : COMPONENTS) {
+                ClinicalData reading = new ClinicalData();
+                reading.setPatient(patient);
+                reading.setComponentName(componentName);
+                reading.setComponentValue(BenchmarkData.componentValue(componentName, random));
+                reading.setMeasuredDateTime(new Date(now - random.nextInt(1_000_000)));
+                reading.parseComponentValue();
+                cohortSnapshot.onClinicalDataEvent(ClinicalDataEvent.saved(reading));
+            }
+        }
+        conditions = List.of(CohortSnapshot.Condition.parse("age>50"), CohortSnapshot.Condition.parse("bp>140"),
+                CohortSnapshot.Condition.parse("heartrate>100"));
+        System.out.printf("%n%d patients: %d in the cohort%n", size, query().getCount());
+    }
+
+    @TearDown
+    public void tearDown() {
+        cohortSnapshot.shutdown();
+    }
+
+    @Benchmark
+    public CohortResult query() {
+        return cohortSnapshot.query(conditions, null, 1000);
+    }
+}
@@ -0,0 +1,61 @@
+package org.example.clinicalsapi.benchmarks;
+
+import org.example.clinicalsapi.dto.ClinicalDataRequest;
+import org.example.clinicalsapi.models.ClinicalData;
+import org.example.clinicalsapi.models.Patient;
+import org.openjdk.jmh.annotations.*;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+//per item cost on the write path before hibernate sees it: request to entity, then the @PrePersist value parsing
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EntityMappingBenchmark {
+
+    private static final int REQUESTS = 1024;
+    //the @PrePersist callback is package private; a constant handle inlines like a direct call, reflection does not
+    private static final MethodHandle PARSE_COMPONENT_VALUE = parseComponentValueHandle();
+
+    private List<ClinicalDataRequest> requests;
+    private Patient patient;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        requests = BenchmarkData.requests(REQUESTS);
+        patient = BenchmarkData.patients(1).get(0);
+    }
+
+    @Benchmark
+    public ClinicalData toClinicalData() {
+        return nextRequest().toClinicalData(patient);
+    }
+
+    @Benchmark
+    public ClinicalData toClinicalDataAndParse() throws Throwable {
+        ClinicalData clinicalData = nextRequest().toClinicalData(patient);
+        PARSE_COMPONENT_VALUE.invokeExact(clinicalData);
+        return clinicalData;
+    }
+
+    private ClinicalDataRequest nextRequest() {
+        next = (next + 1) & (REQUESTS - 1);
+        return requests.get(next);
+    }
+
+    private static MethodHandle parseComponentValueHandle() {
+        try {
+            return MethodHandles.privateLookupIn(ClinicalData.class, MethodHandles.lookup())
+                    .findVirtual(ClinicalData.class, "parseComponentValue", MethodType.methodType(void.class));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
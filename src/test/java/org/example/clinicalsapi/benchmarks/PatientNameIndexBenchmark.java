@@ -0,0 +1,76 @@
+package org.example.clinicalsapi.benchmarks;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.example.clinicalsapi.dto.PatientMatch;
+import org.example.clinicalsapi.services.PatientNameIndex;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+//typeahead lookups against millions of patients with made up names (syllables from a fixed seed, so prefixes are
+//about as selective as real ones): a single letter, a common prefix, and first plus last name. setup prints the
+//heap the index took per patient, measured, next to the index's own estimate
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+public class PatientNameIndexBenchmark {
+
+    private static final String[] SYLLABLES = {"an", "bel", "car", "da", "el", "fer", "ga", "han", "is", "jo", "ka",
+            "lo", "mar", "ni", "o", "pe", "ri", "sa", "ton", "u", "vi", "wen", "ya", "zo", "mc", "son", "ley"};
+
+    @Param({"1000000"})
+    private int size;
+
+    private PatientNameIndex patientNameIndex;
+
+    private static String name(Random random) {
+        StringBuilder name = new StringBuilder();
+        int syllables = 2 + random.nextInt(3);
+        for (int i = 0; i < syllables; i++) {
+            name.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+        }
+        name.setCharAt(0, Character.toUpperCase(name.charAt(0)));
+        return name.toString();
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        long before = usedHeap();
+        patientNameIndex = new PatientNameIndex(null, new SimpleMeterRegistry(), 10_000, 10_000);
+        for (int id = 1; id <= size; id++) {
+            patientNameIndex.put(id, name(random), name(random));
+        }
+        long measured = (usedHeap() - before) / size;
+        System.out.printf("%n%d patients: %d bytes per patient measured, %d estimated%n", size, measured,
+                patientNameIndex.bytesPerPatient());
+    }
+
+    @Benchmark
+    public List<PatientMatch> oneLetter() {
+        return patientNameIndex.search("m", 10);
+    }
+
+    @Benchmark
+    public List<PatientMatch> commonPrefix() {
+        return patientNameIndex.search("mars", 10);
+    }
+
+    @Benchmark
+    public List<PatientMatch> firstAndLastName() {
+        return patientNameIndex.search("jo carda", 10);
+    }
+}
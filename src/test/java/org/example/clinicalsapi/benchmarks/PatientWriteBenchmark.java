@@ -0,0 +1,105 @@
+package org.example.clinicalsapi.benchmarks;
+
+import org.example.clinicalsapi.ClinicalsapiApplication;
+import org.example.clinicalsapi.models.Patient;
+import org.example.clinicalsapi.repos.PatientRepository;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+//updating and deleting a patient with many readings: load then act (how the controller used to do it)
+//against the single statement repository paths. runs the application on the in-memory test database, so
+//the numbers show the difference in work done rather than production latencies
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class PatientWriteBenchmark {
+
+    @Param({"10000", "50000"})
+    private int readings;
+
+    private ConfigurableApplicationContext context;
+    private PatientRepository patientRepository;
+    private JdbcTemplate jdbcTemplate;
+    private TransactionTemplate transactionTemplate;
+    private int patientId;
+    private int nextReadingId = 1_000_000;
+
+    @Setup(Level.Trial)
+    public void startApplication() {
+        context = new SpringApplicationBuilder(ClinicalsapiApplication.class)
+                .web(WebApplicationType.NONE)
+                .profiles("test")
+                .properties("logging.level.root=WARN")
+                .run();
+        patientRepository = context.getBean(PatientRepository.class);
+        jdbcTemplate = context.getBean(JdbcTemplate.class);
+        transactionTemplate = context.getBean(TransactionTemplate.class);
+    }
+
+    @TearDown(Level.Trial)
+    public void stopApplication() {
+        context.close();
+    }
+
+    //a fresh patient with the given number of readings for every measured invocation
+    @Setup(Level.Iteration)
+    public void createPatient() {
+        Patient patient = new Patient();
+        patient.setFirstName("Bench");
+        patient.setLastName("Mark");
+        patient.setAge(50);
+        patientId = patientRepository.save(patient).getId();
+        long start = System.currentTimeMillis() - readings * 60_000L;
+        List<Object[]> rows = new ArrayList<>(readings);
+        for (int i = 0; i < readings; i++) {
+            boolean bp = i % 2 == 0;
+            rows.add(new Object[]{nextReadingId++, patientId, bp ? "bp" : "heartrate", bp ? "67/119" : "72",
+                    new Timestamp(start + i * 60_000L), bp ? 119.0 : 72.0, bp ? 67.0 : null, bp ? "mmHg" : "bpm"});
+        }
+        jdbcTemplate.batchUpdate("insert into clinicaldata (id, patient_id, component_name, component_value, measured_date_time,"
+                + " primary_value, secondary_value, unit, version) values (?, ?, ?, ?, ?, ?, ?, ?, 0)", rows);
+    }
+
+    //whatever the benchmark left behind, so the database does not grow across iterations
+    @TearDown(Level.Iteration)
+    public void removePatient() {
+        patientRepository.deleteWithReadings(patientId);
+    }
+
+    @Benchmark
+    public void deleteByCascade() {
+        transactionTemplate.executeWithoutResult(status ->
+                patientRepository.findById(patientId).ifPresent(patientRepository::delete));
+    }
+
+    @Benchmark
+    public int deleteSetBased() {
+        return patientRepository.deleteWithReadings(patientId);
+    }
+
+    @Benchmark
+    public void updateAfterLoad() {
+        transactionTemplate.executeWithoutResult(status -> {
+            Patient patient = patientRepository.findById(patientId).orElseThrow();
+            patient.setAge(patient.getAge() + 1);
+            patientRepository.save(patient);
+        });
+    }
+
+    @Benchmark
+    public int updateInPlace() {
+        return patientRepository.updateById(patientId, "Bench", "Mark", 51);
+    }
+}
@@ -0,0 +1,73 @@
+package org.example.clinicalsapi.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.github.luben.zstd.ZstdOutputStream;
+import org.example.clinicalsapi.models.ClinicalData;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+//what a list response costs to render and how big it ends up on the wire, per format and content encoding, at the
+//levels ResponseCompressionFilter uses by default. the payload sizes are printed once per trial
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResponseFormatBenchmark {
+
+    @Param({"json", "cbor", "smile"})
+    private String format;
+
+    @Param({"identity", "gzip", "zstd"})
+    private String encoding;
+
+    @Param({"1000", "10000"})
+    private int size;
+
+    private ObjectMapper objectMapper;
+    private List<ClinicalData> readings;
+
+    @Setup
+    public void setUp() throws IOException {
+        Jackson2ObjectMapperBuilder builder = Jackson2ObjectMapperBuilder.json();
+        if (format.equals("cbor")) {
+            builder.factory(new CBORFactory());
+        } else if (format.equals("smile")) {
+            builder.factory(new SmileFactory());
+        }
+        objectMapper = builder.build();
+        readings = BenchmarkData.readings(size);
+        System.out.printf("%n%s/%s/%d: %d bytes%n", format, encoding, size, clinicalDataList().length);
+    }
+
+    @Benchmark
+    public byte[] clinicalDataList() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (OutputStream out = encoded(bytes)) {
+            objectMapper.writeValue(out, readings);
+        }
+        return bytes.toByteArray();
+    }
+
+    private OutputStream encoded(OutputStream bytes) throws IOException {
+        switch (encoding) {
+            case "gzip":
+                //deflate's default level is 6, the filter's default gzip level
+                return new GZIPOutputStream(bytes, 8192);
+            case "zstd":
+                return new ZstdOutputStream(bytes, 3);
+            default:
+                return bytes;
+        }
+    }
+}
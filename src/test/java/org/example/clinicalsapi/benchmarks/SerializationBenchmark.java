@@ -0,0 +1,46 @@
+package org.example.clinicalsapi.benchmarks;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.example.clinicalsapi.models.ClinicalData;
+import org.example.clinicalsapi.models.Patient;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+//cost of rendering the list endpoints' response bodies, with an ObjectMapper configured the way spring boot builds it.
+//sizes are the default page, the max page, and a full patient history
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializationBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    private int size;
+
+    private ObjectMapper objectMapper;
+    private List<ClinicalData> readings;
+    private List<Patient> patients;
+
+    @Setup
+    public void setUp() {
+        objectMapper = Jackson2ObjectMapperBuilder.json().build();
+        readings = BenchmarkData.readings(size);
+        patients = BenchmarkData.patients(size);
+    }
+
+    @Benchmark
+    public byte[] clinicalDataList() throws JsonProcessingException {
+        return objectMapper.writeValueAsBytes(readings);
+    }
+
+    @Benchmark
+    public byte[] patientList() throws JsonProcessingException {
+        return objectMapper.writeValueAsBytes(patients);
+    }
+}
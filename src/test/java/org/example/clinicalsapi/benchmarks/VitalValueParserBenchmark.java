@@ -0,0 +1,59 @@
+package org.example.clinicalsapi.benchmarks;
+
+import org.example.clinicalsapi.models.VitalValueParser;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+//the hand rolled parser against the obvious split + parseDouble version it replaced
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VitalValueParserBenchmark {
+
+    private static final int VALUES = 1024;
+
+    @Param({"bp", "heartrate"})
+    private String componentName;
+
+    private String[] values;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        values = new String[VALUES];
+        for (int i = 0; i < VALUES; i++) {
+            values[i] = BenchmarkData.componentValue(componentName, random);
+        }
+    }
+
+    @Benchmark
+    public double[] parse() {
+        return VitalValueParser.parse(componentName, nextValue());
+    }
+
+    @Benchmark
+    public double[] splitBaseline() {
+        String[] parts = nextValue().split("/");
+        double[] figures = {Double.NaN, Double.NaN};
+        try {
+            figures[0] = Double.parseDouble(parts[0]);
+            if (parts.length > 1) {
+                figures[1] = Double.parseDouble(parts[1]);
+            }
+        } catch (NumberFormatException e) {
+            //left as NaN, same as the parser
+        }
+        return figures;
+    }
+
+    private String nextValue() {
+        next = (next + 1) & (VALUES - 1);
+        return values[next];
+    }
+}
@@ -0,0 +1,105 @@
+package org.example.clinicalsapi.controllers;
+
+import org.example.clinicalsapi.dto.CohortResult;
+import org.example.clinicalsapi.dto.ComponentTrend;
+import org.example.clinicalsapi.dto.PopulationAnalytics;
+import org.example.clinicalsapi.services.CohortSnapshot;
+import org.example.clinicalsapi.services.PatientIdIndex;
+import org.example.clinicalsapi.services.VitalsAnalytics;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.*;
+
+class AnalyticsControllerTests {
+
+    @Mock
+    private VitalsAnalytics vitalsAnalytics;
+
+    @Mock
+    private PatientIdIndex patientIdIndex;
+
+    @Mock
+    private CohortSnapshot cohortSnapshot;
+
+    @InjectMocks
+    private AnalyticsController analyticsController;
+
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+    }
+
+    @Test
+    void getPatientTrends_returnsTrends_whenPatientExists() {
+        List<ComponentTrend> trends = List.of();
+        when(patientIdIndex.contains(1)).thenReturn(true);
+        when(vitalsAnalytics.patient(1, 5, null, null)).thenReturn(trends);
+
+        List<ComponentTrend> result = analyticsController.getPatientTrends(1, 5, null, null);
+
+        assertEquals(trends, result);
+    }
+
+    @Test
+    void getPatientTrends_returnsNotFound_whenPatientDoesNotExist() {
+        when(patientIdIndex.contains(1)).thenReturn(false);
+
+        ResponseStatusException ex = assertThrows(ResponseStatusException.class, () -> analyticsController.getPatientTrends(1, 5, null, null));
+
+        assertEquals(HttpStatus.NOT_FOUND, ex.getStatusCode());
+        verify(vitalsAnalytics, times(0)).patient(anyInt(), anyInt(), any(), any());
+    }
+
+    @Test
+    void getPopulationAnalytics_rejectsWindowsOutOfBounds() {
+        ResponseStatusException ex = assertThrows(ResponseStatusException.class,
+                () -> analyticsController.getPopulationAnalytics(VitalsAnalytics.MAX_WINDOW + 1, null, null, 10));
+
+        assertEquals(HttpStatus.BAD_REQUEST, ex.getStatusCode());
+        verify(vitalsAnalytics, times(0)).population(anyInt(), any(), any(), anyInt());
+    }
+
+    @Test
+    void getPopulationAnalytics_delegatesToAnalytics() {
+        PopulationAnalytics analytics = new PopulationAnalytics(0, 0, Map.of(), List.of(), false);
+        when(vitalsAnalytics.population(3, null, null, 10)).thenReturn(analytics);
+
+        PopulationAnalytics result = analyticsController.getPopulationAnalytics(3, null, null, 10);
+
+        assertEquals(analytics, result);
+    }
+
+    @Test
+    void getCohort_parsesTheConditions() {
+        CohortResult cohort = new CohortResult(1, List.of(7), false);
+        List<CohortSnapshot.Condition> conditions = List.of(
+                new CohortSnapshot.Condition("age", CohortSnapshot.Operator.GT, 50),
+                new CohortSnapshot.Condition("bp", CohortSnapshot.Operator.GT, 140));
+        when(cohortSnapshot.query(conditions, null, 1000)).thenReturn(cohort);
+
+        CohortResult result = analyticsController.getCohort(List.of("age>50", "bp>140"), null, 1000);
+
+        assertEquals(cohort, result);
+    }
+
+    @Test
+    void getCohort_returnsBadRequest_forAConditionItCannotParse() {
+        ResponseStatusException ex = assertThrows(ResponseStatusException.class,
+                () -> analyticsController.getCohort(List.of("age>50", "bp is high"), null, 1000));
+
+        assertEquals(HttpStatus.BAD_REQUEST, ex.getStatusCode());
+        verifyNoInteractions(cohortSnapshot);
+    }
+}
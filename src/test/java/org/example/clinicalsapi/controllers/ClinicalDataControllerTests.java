@@ -1,23 +1,52 @@
 package org.example.clinicalsapi.controllers;
 
+import org.example.clinicalsapi.dto.BulkItemResult;
+import org.example.clinicalsapi.dto.CsvImportResult;
 import org.example.clinicalsapi.dto.ClinicalDataRequest;
+import org.example.clinicalsapi.dto.IngestReceipt;
 import org.example.clinicalsapi.models.ClinicalData;
 import org.example.clinicalsapi.models.Patient;
 import org.example.clinicalsapi.repos.ClinicalDataRepository;
 import org.example.clinicalsapi.repos.PatientRepository;
+import org.example.clinicalsapi.repos.SparseFieldsetRepository;
+import org.example.clinicalsapi.services.AsyncIngestPipeline;
+import org.example.clinicalsapi.services.ClinicalDataBatchWriter;
+import org.example.clinicalsapi.services.ClinicalDataCopier;
+import org.example.clinicalsapi.services.ClinicalDataEvent;
+import org.example.clinicalsapi.services.ClinicalDataFeed;
+import org.example.clinicalsapi.services.PatientIdIndex;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.Limit;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.Mockito.times;
@@ -30,6 +59,27 @@ class ClinicalDataControllerTests {
     @Mock
     private PatientRepository patientRepository;
 
+    @Mock
+    private ClinicalDataBatchWriter clinicalDataBatchWriter;
+
+    @Mock
+    private AsyncIngestPipeline asyncIngestPipeline;
+
+    @Mock
+    private ApplicationEventPublisher eventPublisher;
+
+    @Mock
+    private PatientIdIndex patientIdIndex;
+
+    @Mock
+    private ClinicalDataCopier clinicalDataCopier;
+
+    @Mock
+    private ClinicalDataFeed clinicalDataFeed;
+
+    @Mock
+    private SparseFieldsetRepository sparseFieldsetRepository;
+
     @InjectMocks
     private ClinicalDataController clinicalDataController;
 
@@ -39,14 +89,52 @@ class ClinicalDataControllerTests {
     }
 
     @Test
-    void getAllClinicalData_returnsListOfClinicalData() {
+    void getAllClinicalData_returnsPageOfClinicalData() {
         List<ClinicalData> clinicalDataList = Arrays.asList(new ClinicalData(), new ClinicalData());
-        when(clinicalDataRepository.findAll()).thenReturn(clinicalDataList);
+        when(clinicalDataRepository.findByIdGreaterThanOrderByIdAsc(0, Limit.of(100))).thenReturn(clinicalDataList);
+
+        ResponseEntity<List<ClinicalData>> response = clinicalDataController.getAllClinicalData(0, 100);
 
-        List<ClinicalData> result = clinicalDataController.getAllClinicalData();
+        assertEquals(2, response.getBody().size());
+        assertNull(response.getHeaders().getFirst(CursorPages.NEXT_CURSOR_HEADER));
+        verify(clinicalDataRepository, times(1)).findByIdGreaterThanOrderByIdAsc(0, Limit.of(100));
+        verify(clinicalDataRepository, times(0)).findAll();
+    }
+
+    @Test
+    void getAllClinicalData_returnsNextCursor_whenPageIsFull() {
+        ClinicalData first = new ClinicalData();
+        first.setId(11);
+        ClinicalData second = new ClinicalData();
+        second.setId(12);
+        when(clinicalDataRepository.findByIdGreaterThanOrderByIdAsc(10, Limit.of(2))).thenReturn(Arrays.asList(first, second));
+
+        ResponseEntity<List<ClinicalData>> response = clinicalDataController.getAllClinicalData(10, 2);
 
-        assertEquals(2, result.size());
-        verify(clinicalDataRepository, times(1)).findAll();
+        assertEquals("12", response.getHeaders().getFirst(CursorPages.NEXT_CURSOR_HEADER));
+    }
+
+    @Test
+    void getAllClinicalData_capsPageSize() {
+        when(clinicalDataRepository.findByIdGreaterThanOrderByIdAsc(0, Limit.of(CursorPages.MAX_PAGE_SIZE))).thenReturn(List.of());
+
+        clinicalDataController.getAllClinicalData(0, 1_000_000);
+
+        verify(clinicalDataRepository, times(1)).findByIdGreaterThanOrderByIdAsc(0, Limit.of(CursorPages.MAX_PAGE_SIZE));
+    }
+
+    @Test
+    void getClinicalDataInRange_returnsReadingsForPatientAndComponent() {
+        Date from = new Date(1_000);
+        Date to = new Date(2_000);
+        List<ClinicalData> readings = Arrays.asList(new ClinicalData(), new ClinicalData());
+        when(clinicalDataRepository.findByPatientIdAndComponentNameAndMeasuredDateTimeBetweenOrderByMeasuredDateTimeDesc(1, "bp", from, to, Limit.of(100)))
+                .thenReturn(readings);
+
+        List<ClinicalData> result = clinicalDataController.getClinicalDataInRange(1, "bp", from, to, 100);
+
+        assertEquals(readings, result);
+        verify(clinicalDataRepository, times(0)).findAll();
     }
 
     @Test
@@ -56,7 +144,7 @@ class ClinicalDataControllerTests {
 
         ResponseEntity<ClinicalData> response = clinicalDataController.getClinicalDataById(1);
 
-        assertEquals(ResponseEntity.ok(clinicalData), response);
+        assertEquals(ResponseEntity.ok().eTag("\"0\"").body(clinicalData), response);
         verify(clinicalDataRepository, times(1)).findById(1);
     }
 
@@ -79,55 +167,149 @@ class ClinicalDataControllerTests {
 
         assertEquals(clinicalData, result);
         verify(clinicalDataRepository, times(1)).save(clinicalData);
+        verify(eventPublisher, times(1)).publishEvent(any(ClinicalDataEvent.class));
     }
 
     @Test
     void updateClinicalData_updatesAndReturnsClinicalData_whenClinicalDataExists() {
-        ClinicalData existingClinicalData = new ClinicalData();
         ClinicalData updatedDetails = new ClinicalData();
         updatedDetails.setComponentName("Component");
-        when(clinicalDataRepository.findById(1)).thenReturn(Optional.of(existingClinicalData));
-        when(clinicalDataRepository.save(any(ClinicalData.class))).thenReturn(existingClinicalData);
-
-        ResponseEntity<ClinicalData> response = clinicalDataController.updateClinicalData(1, updatedDetails);
+        ClinicalDataRepository.ReadingKey previous = readingKey(7, "heartrate", new Date(1000), 4);
+        when(clinicalDataRepository.findKeyById(1)).thenReturn(Optional.of(previous));
+        when(clinicalDataRepository.updateIfVersionMatches(1, 4, "Component", null, null, null, null, null)).thenReturn(1);
+
+        ResponseEntity<ClinicalData> response = clinicalDataController.updateClinicalData(1, updatedDetails, null);
+
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals("\"5\"", response.getHeaders().getETag());
+        assertEquals("Component", response.getBody().getComponentName());
+        //no time in the body keeps the reading's time
+        assertEquals(new Date(1000), response.getBody().getMeasuredDateTime());
+        verify(clinicalDataRepository, times(0)).findById(any());
+        verify(clinicalDataRepository, times(0)).save(any(ClinicalData.class));
+        verify(eventPublisher, times(1)).publishEvent(any(ClinicalDataEvent.class));
+    }
 
-        assertEquals(ResponseEntity.ok(existingClinicalData), response);
-        verify(clinicalDataRepository, times(1)).findById(1);
-        verify(clinicalDataRepository, times(1)).save(existingClinicalData);
+    @Test
+    void updateClinicalData_retriesWhenTheReadingChangesInBetween() {
+        ClinicalData updatedDetails = new ClinicalData();
+        updatedDetails.setComponentName("Component");
+        when(clinicalDataRepository.findKeyById(1))
+                .thenReturn(Optional.of(readingKey(7, "heartrate", new Date(1000), 4)))
+                .thenReturn(Optional.of(readingKey(7, "bp", new Date(2000), 5)));
+        when(clinicalDataRepository.updateIfVersionMatches(1, 4, "Component", null, null, null, null, null)).thenReturn(0);
+        when(clinicalDataRepository.updateIfVersionMatches(1, 5, "Component", null, null, null, null, null)).thenReturn(1);
+
+        ResponseEntity<ClinicalData> response = clinicalDataController.updateClinicalData(1, updatedDetails, null);
+
+        assertEquals("\"6\"", response.getHeaders().getETag());
+        ArgumentCaptor<ClinicalDataEvent> event = ArgumentCaptor.forClass(ClinicalDataEvent.class);
+        verify(eventPublisher).publishEvent(event.capture());
+        assertEquals("bp", event.getValue().getPreviousComponentName());
     }
 
     @Test
     void updateClinicalData_returnsNotFound_whenClinicalDataDoesNotExist() {
-        when(clinicalDataRepository.findById(1)).thenReturn(Optional.empty());
+        when(clinicalDataRepository.findKeyById(1)).thenReturn(Optional.empty());
 
-        ResponseEntity<ClinicalData> response = clinicalDataController.updateClinicalData(1, new ClinicalData());
+        ResponseEntity<ClinicalData> response = clinicalDataController.updateClinicalData(1, new ClinicalData(), null);
 
         assertEquals(ResponseEntity.notFound().build(), response);
-        verify(clinicalDataRepository, times(1)).findById(1);
         verify(clinicalDataRepository, times(0)).save(any(ClinicalData.class));
+        verify(eventPublisher, times(0)).publishEvent(any(ClinicalDataEvent.class));
+    }
+
+    @Test
+    void updateClinicalData_withIfMatch_updatesWithoutLoadingTheReading() {
+        Date previousTime = new Date(1000);
+        Patient patient = new Patient();
+        patient.setId(7);
+        ClinicalData updatedDetails = new ClinicalData();
+        updatedDetails.setComponentName("bp");
+        updatedDetails.setComponentValue("67/119");
+        when(clinicalDataRepository.findKeyById(1)).thenReturn(Optional.of(readingKey(7, "heartrate", previousTime, 2)));
+        when(clinicalDataRepository.updateIfVersionMatches(1, 2, "bp", "67/119", null, 119.0, 67.0, "mmHg")).thenReturn(1);
+        when(patientRepository.getReferenceById(7)).thenReturn(patient);
+
+        ResponseEntity<ClinicalData> response = clinicalDataController.updateClinicalData(1, updatedDetails, "\"2\"");
+
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals("\"3\"", response.getHeaders().getETag());
+        assertEquals(119.0, response.getBody().getPrimaryValue());
+        ArgumentCaptor<ClinicalDataEvent> event = ArgumentCaptor.forClass(ClinicalDataEvent.class);
+        verify(eventPublisher).publishEvent(event.capture());
+        assertEquals(ClinicalDataEvent.Type.UPDATED, event.getValue().getType());
+        assertEquals(7, event.getValue().getPatientId());
+        assertEquals("heartrate", event.getValue().getPreviousComponentName());
+        assertEquals(previousTime, event.getValue().getPreviousMeasuredDateTime());
+        verify(clinicalDataRepository, times(0)).findById(any());
+        verify(clinicalDataRepository, times(0)).save(any(ClinicalData.class));
+    }
+
+    @Test
+    void updateClinicalData_withStaleIfMatch_returnsPreconditionFailed() {
+        when(clinicalDataRepository.findKeyById(1)).thenReturn(Optional.of(readingKey(7, "heartrate", new Date(1000), 3)));
+
+        ResponseEntity<ClinicalData> response = clinicalDataController.updateClinicalData(1, new ClinicalData(), "\"2\"");
+
+        assertEquals(HttpStatus.PRECONDITION_FAILED, response.getStatusCode());
+        verify(clinicalDataRepository, times(0)).updateIfVersionMatches(anyInt(), anyLong(), any(), any(), any(), any(), any(), any());
+        verify(eventPublisher, times(0)).publishEvent(any(ClinicalDataEvent.class));
     }
 
     @Test
     void deleteClinicalData_deletesClinicalData_whenClinicalDataExists() {
-        ClinicalData clinicalData = new ClinicalData();
-        when(clinicalDataRepository.findById(1)).thenReturn(Optional.of(clinicalData));
+        Patient patient = new Patient();
+        patient.setId(7);
+        when(clinicalDataRepository.findKeyById(1)).thenReturn(Optional.of(readingKey(7, "bp", new Date(1000), 0)));
+        when(clinicalDataRepository.deleteReadingById(1)).thenReturn(1);
+        when(patientRepository.getReferenceById(7)).thenReturn(patient);
 
         ResponseEntity<Void> response = clinicalDataController.deleteClinicalData(1);
 
         assertEquals(ResponseEntity.noContent().build(), response);
-        verify(clinicalDataRepository, times(1)).findById(1);
-        verify(clinicalDataRepository, times(1)).delete(clinicalData);
+        verify(clinicalDataRepository, times(0)).findById(any());
+        verify(clinicalDataRepository, times(1)).deleteReadingById(1);
+        ArgumentCaptor<ClinicalDataEvent> event = ArgumentCaptor.forClass(ClinicalDataEvent.class);
+        verify(eventPublisher).publishEvent(event.capture());
+        assertEquals(ClinicalDataEvent.Type.DELETED, event.getValue().getType());
+        assertEquals(7, event.getValue().getPatientId());
+        assertEquals("bp", event.getValue().getClinicalData().getComponentName());
     }
 
     @Test
     void deleteClinicalData_returnsNotFound_whenClinicalDataDoesNotExist() {
-        when(clinicalDataRepository.findById(1)).thenReturn(Optional.empty());
+        when(clinicalDataRepository.findKeyById(1)).thenReturn(Optional.empty());
 
         ResponseEntity<Void> response = clinicalDataController.deleteClinicalData(1);
 
         assertEquals(ResponseEntity.notFound().build(), response);
-        verify(clinicalDataRepository, times(1)).findById(1);
-        verify(clinicalDataRepository, times(0)).delete(any(ClinicalData.class));
+        verify(clinicalDataRepository, times(0)).deleteReadingById(anyInt());
+        verify(eventPublisher, times(0)).publishEvent(any(ClinicalDataEvent.class));
+    }
+
+    private static ClinicalDataRepository.ReadingKey readingKey(int patientId, String componentName, Date measuredDateTime, long version) {
+        return new ClinicalDataRepository.ReadingKey() {
+            @Override
+            public int getPatientId() {
+                return patientId;
+            }
+
+            @Override
+            public String getComponentName() {
+                return componentName;
+            }
+
+            @Override
+            public Date getMeasuredDateTime() {
+                return measuredDateTime;
+            }
+
+            @Override
+            public long getVersion() {
+                return version;
+            }
+        };
     }
 
     @Test
@@ -138,14 +320,148 @@ class ClinicalDataControllerTests {
         dataRequest.setPatientId(1);
 
         Patient patient = new Patient();
-        when(patientRepository.findById(1)).thenReturn(Optional.of(patient));
+        when(patientIdIndex.contains(1)).thenReturn(true);
+        when(patientRepository.getReferenceById(1)).thenReturn(patient);
         ClinicalData clinicalData = new ClinicalData();
         when(clinicalDataRepository.save(any(ClinicalData.class))).thenReturn(clinicalData);
 
         ClinicalData result = clinicalDataController.saveClinicalData(dataRequest);
 
         assertEquals(clinicalData, result);
-        verify(patientRepository, times(1)).findById(1);
+        verify(patientRepository, times(1)).getReferenceById(1);
+        verify(patientRepository, times(0)).findById(1);
         verify(clinicalDataRepository, times(1)).save(any(ClinicalData.class));
+        verify(eventPublisher, times(1)).publishEvent(any(ClinicalDataEvent.class));
+    }
+
+    @Test
+    void saveClinicalData_returnsNotFound_whenPatientDoesNotExist() {
+        ClinicalDataRequest dataRequest = new ClinicalDataRequest();
+        dataRequest.setPatientId(1);
+        when(patientIdIndex.contains(1)).thenReturn(false);
+
+        ResponseStatusException ex = assertThrows(ResponseStatusException.class, () -> clinicalDataController.saveClinicalData(dataRequest));
+
+        assertEquals(HttpStatus.NOT_FOUND, ex.getStatusCode());
+        verify(clinicalDataRepository, times(0)).save(any(ClinicalData.class));
+    }
+
+    @Test
+    void saveClinicalData_returnsNotFound_andForgetsPatient_whenIndexIsStale() {
+        ClinicalDataRequest dataRequest = new ClinicalDataRequest();
+        dataRequest.setComponentName("heartrate");
+        dataRequest.setComponentValue("72");
+        dataRequest.setPatientId(1);
+        when(patientIdIndex.contains(1)).thenReturn(true);
+        when(clinicalDataRepository.save(any(ClinicalData.class))).thenThrow(new DataIntegrityViolationException("fk_patient"));
+        when(patientRepository.existsById(1)).thenReturn(false);
+
+        ResponseStatusException ex = assertThrows(ResponseStatusException.class, () -> clinicalDataController.saveClinicalData(dataRequest));
+
+        assertEquals(HttpStatus.NOT_FOUND, ex.getStatusCode());
+        verify(patientIdIndex, times(1)).remove(1);
+    }
+
+    @Test
+    void saveClinicalDataBulk_delegatesToBatchWriter() {
+        List<ClinicalDataRequest> dataRequests = List.of(new ClinicalDataRequest(), new ClinicalDataRequest());
+        List<BulkItemResult> results = List.of(BulkItemResult.created(0, 100), BulkItemResult.rejected(1, "componentName is required"));
+        when(clinicalDataBatchWriter.write(dataRequests)).thenReturn(results);
+
+        List<BulkItemResult> result = clinicalDataController.saveClinicalDataBulk(dataRequests);
+
+        assertEquals(results, result);
+        verify(clinicalDataBatchWriter, times(1)).write(dataRequests);
+    }
+
+    @Test
+    void saveClinicalDataBulk_rejectsOversizedRequests() {
+        List<ClinicalDataRequest> dataRequests = new ArrayList<>(Collections.nCopies(ClinicalDataBatchWriter.MAX_ITEMS + 1, new ClinicalDataRequest()));
+
+        ResponseStatusException ex = assertThrows(ResponseStatusException.class, () -> clinicalDataController.saveClinicalDataBulk(dataRequests));
+
+        assertEquals(HttpStatus.PAYLOAD_TOO_LARGE, ex.getStatusCode());
+        verify(clinicalDataBatchWriter, times(0)).write(any());
+    }
+
+    @Test
+    void importClinicalData_returnsCounts() throws Exception {
+        InputStream body = new ByteArrayInputStream(new byte[0]);
+        CsvImportResult imported = new CsvImportResult(10, 2);
+        when(clinicalDataCopier.importCsv(body)).thenReturn(imported);
+
+        CsvImportResult result = clinicalDataController.importClinicalData(body);
+
+        assertEquals(imported, result);
+    }
+
+    @Test
+    void importClinicalData_returnsBadRequest_forMalformedCsv() throws Exception {
+        InputStream body = new ByteArrayInputStream(new byte[0]);
+        when(clinicalDataCopier.importCsv(body)).thenThrow(new IllegalArgumentException("Line 3: bad timestamp"));
+
+        ResponseStatusException ex = assertThrows(ResponseStatusException.class, () -> clinicalDataController.importClinicalData(body));
+
+        assertEquals(HttpStatus.BAD_REQUEST, ex.getStatusCode());
+    }
+
+    @Test
+    void saveClinicalDataAsync_returnsAcceptedWithReceipt() {
+        ClinicalDataRequest dataRequest = new ClinicalDataRequest();
+        IngestReceipt receipt = new IngestReceipt("r-1", IngestReceipt.PENDING, null, null);
+        when(asyncIngestPipeline.submit(dataRequest)).thenReturn(receipt);
+
+        ResponseEntity<IngestReceipt> response = clinicalDataController.saveClinicalDataAsync(dataRequest);
+
+        assertEquals(HttpStatus.ACCEPTED, response.getStatusCode());
+        assertEquals(receipt, response.getBody());
+        verify(clinicalDataRepository, times(0)).save(any(ClinicalData.class));
+    }
+
+    @Test
+    void saveClinicalDataAsync_returnsServiceUnavailable_whenQueueIsFull() {
+        ClinicalDataRequest dataRequest = new ClinicalDataRequest();
+        when(asyncIngestPipeline.submit(dataRequest)).thenReturn(null);
+
+        ResponseEntity<IngestReceipt> response = clinicalDataController.saveClinicalDataAsync(dataRequest);
+
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, response.getStatusCode());
+        assertEquals("1", response.getHeaders().getFirst("Retry-After"));
+    }
+
+    @Test
+    void liveClinicalData_subscribesWithTheGivenFilters() {
+        SseEmitter emitter = new SseEmitter();
+        when(patientIdIndex.contains(7)).thenReturn(true);
+        when(clinicalDataFeed.subscribe(7, Set.of("bp", "heartrate"))).thenReturn(emitter);
+
+        assertSame(emitter, clinicalDataController.liveClinicalData(7, List.of("bp", "heartrate")));
+    }
+
+    @Test
+    void liveClinicalData_returnsNotFoundForAnUnknownPatient_andServiceUnavailableWhenFull() {
+        when(patientIdIndex.contains(7)).thenReturn(false);
+
+        ResponseStatusException unknown = assertThrows(ResponseStatusException.class,
+                () -> clinicalDataController.liveClinicalData(7, null));
+        ResponseStatusException full = assertThrows(ResponseStatusException.class,
+                () -> clinicalDataController.liveClinicalData(null, null));
+
+        assertEquals(HttpStatus.NOT_FOUND, unknown.getStatusCode());
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, full.getStatusCode());
+        verify(clinicalDataFeed, times(1)).subscribe(null, Set.of());
+    }
+
+    @Test
+    void getClinicalDataByIds_selectsOnlyTheRequestedFieldsInTheOrderAsked() {
+        Map<String, Object> first = Map.of("id", 1, "patientId", 7, "primaryValue", 72.0);
+        Map<String, Object> second = Map.of("id", 2, "patientId", 7, "primaryValue", 75.0);
+        when(sparseFieldsetRepository.findByIds(SparseFieldsetRepository.Resource.CLINICAL_DATA, List.of(2, 9, 1),
+                Set.of("patientId", "primaryValue"))).thenReturn(Map.of(1, first, 2, second));
+
+        List<?> readings = clinicalDataController.getClinicalDataByIds(List.of(2, 9, 1), List.of("patientId", "primaryValue"));
+
+        assertEquals(List.of(second, first), readings);
+        verify(clinicalDataRepository, times(0)).findAllById(any());
     }
 }
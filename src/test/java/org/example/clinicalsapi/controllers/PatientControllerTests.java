@@ -1,21 +1,39 @@
 package org.example.clinicalsapi.controllers;
 
+import org.example.clinicalsapi.dto.PatientMatch;
+import org.example.clinicalsapi.models.ClinicalData;
 import org.example.clinicalsapi.models.Patient;
+import org.example.clinicalsapi.repos.ClinicalDataRepository;
 import org.example.clinicalsapi.repos.PatientRepository;
+import org.example.clinicalsapi.repos.SparseFieldsetRepository;
+import org.example.clinicalsapi.services.ClinicalDataRollupService;
+import org.example.clinicalsapi.services.CohortSnapshot;
+import org.example.clinicalsapi.services.LatestVitalsCache;
+import org.example.clinicalsapi.services.PatientIdIndex;
+import org.example.clinicalsapi.services.PatientNameIndex;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.springframework.data.domain.Limit;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.web.server.ResponseStatusException;
 
 import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
-import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.*;
 import static org.mockito.Mockito.*;
 
 class PatientControllerTests {
@@ -23,6 +41,27 @@ class PatientControllerTests {
     @Mock
     private PatientRepository patientRepository;
 
+    @Mock
+    private ClinicalDataRepository clinicalDataRepository;
+
+    @Mock
+    private LatestVitalsCache latestVitalsCache;
+
+    @Mock
+    private ClinicalDataRollupService rollupService;
+
+    @Mock
+    private PatientIdIndex patientIdIndex;
+
+    @Mock
+    private SparseFieldsetRepository sparseFieldsetRepository;
+
+    @Mock
+    private PatientNameIndex patientNameIndex;
+
+    @Mock
+    private CohortSnapshot cohortSnapshot;
+
     @InjectMocks
     private PatientController patientController;
 
@@ -32,14 +71,26 @@ class PatientControllerTests {
     }
 
     @Test
-    void getAllPatients_returnsListOfPatients() {
+    void getAllPatients_returnsPageOfPatients() {
         List<Patient> patients = Arrays.asList(new Patient(), new Patient());
-        when(patientRepository.findAll()).thenReturn(patients);
+        when(patientRepository.findByIdGreaterThanOrderByIdAsc(0, Limit.of(100))).thenReturn(patients);
 
-        List<Patient> result = patientController.getAllPatients();
+        ResponseEntity<List<Patient>> response = patientController.getAllPatients(0, 100);
 
-        assertEquals(2, result.size());
-        verify(patientRepository, times(1)).findAll();
+        assertEquals(2, response.getBody().size());
+        verify(patientRepository, times(1)).findByIdGreaterThanOrderByIdAsc(0, Limit.of(100));
+        verify(patientRepository, times(0)).findAll();
+    }
+
+    @Test
+    void searchPatients_answersFromTheNameIndex_withTheLimitCapped() {
+        List<PatientMatch> matches = List.of(new PatientMatch(1, "John", "Mccain"));
+        when(patientNameIndex.search("jo mcc", PatientNameIndex.MAX_LIMIT)).thenReturn(matches);
+
+        List<PatientMatch> response = patientController.searchPatients("jo mcc", 10_000);
+
+        assertEquals(matches, response);
+        verifyNoInteractions(patientRepository);
     }
 
     @Test
@@ -49,7 +100,7 @@ class PatientControllerTests {
 
         ResponseEntity<Patient> response = patientController.getPatientById(1);
 
-        assertEquals(ResponseEntity.ok(patient), response);
+        assertEquals(ResponseEntity.ok().eTag("\"0\"").body(patient), response);
         verify(patientRepository, times(1)).findById(1);
     }
 
@@ -63,63 +114,213 @@ class PatientControllerTests {
         verify(patientRepository, times(1)).findById(1);
     }
 
+    @Test
+    void getPatientClinicalData_returnsReadingsInRange_whenPatientExists() {
+        Date from = new Date(1_000);
+        Date to = new Date(2_000);
+        List<ClinicalData> readings = Arrays.asList(new ClinicalData(), new ClinicalData());
+        when(patientRepository.existsById(1)).thenReturn(true);
+        when(clinicalDataRepository.findByPatientIdAndMeasuredDateTimeBetweenOrderByMeasuredDateTimeDesc(1, from, to, Limit.of(100)))
+                .thenReturn(readings);
+
+        ResponseEntity<List<ClinicalData>> response = patientController.getPatientClinicalData(1, from, to, 100);
+
+        assertEquals(ResponseEntity.ok(readings), response);
+        verify(patientRepository, times(0)).findById(1);
+    }
+
+    @Test
+    void getPatientClinicalData_returnsNotFound_whenPatientDoesNotExist() {
+        when(patientRepository.existsById(1)).thenReturn(false);
+
+        ResponseEntity<List<ClinicalData>> response = patientController.getPatientClinicalData(1, null, null, 100);
+
+        assertEquals(ResponseEntity.notFound().build(), response);
+        verifyNoInteractions(clinicalDataRepository);
+    }
+
+    @Test
+    void getLatestClinicalData_returnsCachedReadings() {
+        Map<String, ClinicalData> latest = Map.of("bp", new ClinicalData());
+        when(latestVitalsCache.get(1)).thenReturn(latest);
+
+        ResponseEntity<Map<String, ClinicalData>> response = patientController.getLatestClinicalData(1);
+
+        assertEquals(ResponseEntity.ok(latest), response);
+        verifyNoInteractions(patientRepository);
+    }
+
+    @Test
+    void getLatestClinicalData_returnsNotFound_whenPatientDoesNotExist() {
+        when(latestVitalsCache.get(1)).thenReturn(Map.of());
+        when(patientRepository.existsById(1)).thenReturn(false);
+
+        ResponseEntity<Map<String, ClinicalData>> response = patientController.getLatestClinicalData(1);
+
+        assertEquals(ResponseEntity.notFound().build(), response);
+    }
+
     @Test
     void createPatient_savesAndReturnsPatient() {
         Patient patient = new Patient();
+        patient.setId(7);
         when(patientRepository.save(any(Patient.class))).thenReturn(patient);
 
         Patient result = patientController.createPatient(patient);
 
         assertEquals(patient, result);
         verify(patientRepository, times(1)).save(patient);
+        verify(patientIdIndex, times(1)).add(7);
+        verify(patientNameIndex, times(1)).put(7, null, null);
+        verify(cohortSnapshot, times(1)).putPatient(7, 0);
     }
 
     @Test
     void updatePatient_updatesAndReturnsPatient_whenPatientExists() {
-        Patient existingPatient = new Patient();
         Patient updatedDetails = new Patient();
         updatedDetails.setFirstName("John");
-        when(patientRepository.findById(1)).thenReturn(Optional.of(existingPatient));
-        when(patientRepository.save(any(Patient.class))).thenReturn(existingPatient);
+        when(patientRepository.updateById(1, "John", null, 0)).thenReturn(1);
 
-        ResponseEntity<Patient> response = patientController.updatePatient(1, updatedDetails);
+        ResponseEntity<Patient> response = patientController.updatePatient(1, updatedDetails, null);
 
-        assertEquals(ResponseEntity.ok(existingPatient), response);
-        verify(patientRepository, times(1)).findById(1);
-        verify(patientRepository, times(1)).save(existingPatient);
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals(1, response.getBody().getId());
+        assertEquals("John", response.getBody().getFirstName());
+        verify(patientRepository, times(1)).updateById(1, "John", null, 0);
+        verify(patientNameIndex, times(1)).put(1, "John", null);
+        verify(patientRepository, times(0)).findById(any());
+        verify(patientRepository, times(0)).save(any(Patient.class));
     }
 
     @Test
     void updatePatient_returnsNotFound_whenPatientDoesNotExist() {
-        when(patientRepository.findById(1)).thenReturn(Optional.empty());
+        when(patientRepository.updateById(eq(1), any(), any(), anyInt())).thenReturn(0);
 
-        ResponseEntity<Patient> response = patientController.updatePatient(1, new Patient());
+        ResponseEntity<Patient> response = patientController.updatePatient(1, new Patient(), null);
 
         assertEquals(ResponseEntity.notFound().build(), response);
-        verify(patientRepository, times(1)).findById(1);
         verify(patientRepository, times(0)).save(any(Patient.class));
+        verifyNoInteractions(patientNameIndex);
+    }
+
+    @Test
+    void updatePatient_withIfMatch_updatesInOneStatement() {
+        Patient updatedDetails = new Patient();
+        updatedDetails.setFirstName("John");
+        updatedDetails.setLastName("Doe");
+        updatedDetails.setAge(40);
+        when(patientRepository.updateIfVersionMatches(1, 3, "John", "Doe", 40)).thenReturn(1);
+
+        ResponseEntity<Patient> response = patientController.updatePatient(1, updatedDetails, "\"3\"");
+
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals("\"4\"", response.getHeaders().getETag());
+        assertEquals(1, response.getBody().getId());
+        assertEquals("John", response.getBody().getFirstName());
+        verify(patientNameIndex, times(1)).put(1, "John", "Doe");
+        verify(cohortSnapshot, times(1)).putPatient(1, 40);
+        verify(patientRepository, times(0)).findById(any());
+        verify(patientRepository, times(0)).save(any(Patient.class));
+    }
+
+    @Test
+    void updatePatient_withStaleIfMatch_returnsPreconditionFailed() {
+        when(patientRepository.updateIfVersionMatches(eq(1), eq(3L), any(), any(), anyInt())).thenReturn(0);
+        when(patientRepository.existsById(1)).thenReturn(true);
+
+        ResponseEntity<Patient> response = patientController.updatePatient(1, new Patient(), "\"3\"");
+
+        assertEquals(HttpStatus.PRECONDITION_FAILED, response.getStatusCode());
+        verifyNoInteractions(patientNameIndex);
+    }
+
+    @Test
+    void updatePatient_withIfMatch_returnsNotFound_whenPatientDoesNotExist() {
+        when(patientRepository.updateIfVersionMatches(eq(1), eq(3L), any(), any(), anyInt())).thenReturn(0);
+        when(patientRepository.existsById(1)).thenReturn(false);
+
+        ResponseEntity<Patient> response = patientController.updatePatient(1, new Patient(), "\"3\"");
+
+        assertEquals(HttpStatus.NOT_FOUND, response.getStatusCode());
+    }
+
+    @Test
+    void updatePatient_withWeakIfMatch_neverMatches() {
+        when(patientRepository.existsById(1)).thenReturn(true);
+
+        ResponseEntity<Patient> response = patientController.updatePatient(1, new Patient(), "W/\"3\"");
+
+        assertEquals(HttpStatus.PRECONDITION_FAILED, response.getStatusCode());
+        verify(patientRepository, times(0)).updateIfVersionMatches(anyInt(), anyLong(), any(), any(), anyInt());
     }
 
     @Test
     void deletePatient_deletesPatient_whenPatientExists() {
-        Patient patient = new Patient();
-        when(patientRepository.findById(1)).thenReturn(Optional.of(patient));
+        when(patientRepository.deleteWithReadings(1)).thenReturn(1);
 
         ResponseEntity<Void> response = patientController.deletePatient(1);
 
         assertEquals(ResponseEntity.noContent().build(), response);
-        verify(patientRepository, times(1)).findById(1);
-        verify(patientRepository, times(1)).delete(patient);
+        verify(patientRepository, times(1)).deleteWithReadings(1);
+        verify(patientRepository, times(0)).findById(any());
+        verify(patientIdIndex, times(1)).remove(1);
+        verify(patientNameIndex, times(1)).remove(1);
+        verify(cohortSnapshot, times(1)).removePatient(1);
+        verify(latestVitalsCache, times(1)).evict(1);
+        verify(rollupService, times(1)).removePatient(1);
     }
 
     @Test
     void deletePatient_returnsNotFound_whenPatientDoesNotExist() {
-        when(patientRepository.findById(1)).thenReturn(Optional.empty());
+        when(patientRepository.deleteWithReadings(1)).thenReturn(0);
 
         ResponseEntity<Void> response = patientController.deletePatient(1);
 
         assertEquals(ResponseEntity.notFound().build(), response);
-        verify(patientRepository, times(1)).findById(1);
-        verify(patientRepository, times(0)).delete(any(Patient.class));
+        verify(patientIdIndex, times(0)).remove(1);
+        verify(latestVitalsCache, times(0)).evict(1);
+        verify(rollupService, times(0)).removePatient(1);
+    }
+
+    private static Patient patient(int id) {
+        Patient patient = new Patient();
+        patient.setId(id);
+        return patient;
+    }
+
+    @Test
+    void getPatientsByIds_returnsThePatientsInTheOrderAsked() {
+        when(patientRepository.findAllById(List.of(3, 1, 2))).thenReturn(List.of(patient(1), patient(3)));
+
+        List<?> patients = patientController.getPatientsByIds(List.of(3, 1, 3, 2), null);
+
+        assertEquals(List.of(3, 1), patients.stream().map(p -> ((Patient) p).getId()).toList());
+        verifyNoInteractions(sparseFieldsetRepository);
+    }
+
+    @Test
+    void getPatientsByIds_selectsOnlyTheRequestedFields() {
+        Map<String, Object> row = Map.of("id", 1, "lastName", "Last");
+        when(sparseFieldsetRepository.findByIds(SparseFieldsetRepository.Resource.PATIENT, List.of(1, 2), Set.of("lastName")))
+                .thenReturn(Map.of(1, row));
+
+        List<?> patients = patientController.getPatientsByIds(List.of(1, 2), List.of("lastName"));
+
+        assertEquals(List.of(row), patients);
+        verify(patientRepository, never()).findAllById(any());
+    }
+
+    @Test
+    void getPatientsByIds_rejectsUnknownFieldsAndTooManyIds() {
+        List<Integer> tooMany = IntStream.rangeClosed(1, BatchGets.MAX_IDS + 1).boxed().collect(Collectors.toList());
+
+        ResponseStatusException unknownField = assertThrows(ResponseStatusException.class,
+                () -> patientController.getPatientsByIds(List.of(1), List.of("version")));
+        ResponseStatusException tooManyIds = assertThrows(ResponseStatusException.class,
+                () -> patientController.getPatientsByIds(tooMany, null));
+
+        assertEquals(HttpStatus.BAD_REQUEST, unknownField.getStatusCode());
+        assertEquals(HttpStatus.BAD_REQUEST, tooManyIds.getStatusCode());
+        verifyNoInteractions(patientRepository, sparseFieldsetRepository);
     }
 }
@@ -0,0 +1,311 @@
+package org.example.clinicalsapi.controllers;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.persistence.EntityManagerFactory;
+import org.example.clinicalsapi.models.ClinicalData;
+import org.example.clinicalsapi.models.Patient;
+import org.example.clinicalsapi.repos.ClinicalDataRepository;
+import org.example.clinicalsapi.repos.PatientRepository;
+import org.example.clinicalsapi.services.PatientIdIndex;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.domain.Limit;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+//asserts how many sql statements each endpoint issues, so lazy loading regressions show up as failures
+@SpringBootTest
+@AutoConfigureMockMvc
+@ActiveProfiles("test")
+class QueryCountTests {
+
+    private static final int PATIENTS = 5;
+    private static final int READINGS_PER_PATIENT = 20;
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private PatientRepository patientRepository;
+
+    @Autowired
+    private ClinicalDataRepository clinicalDataRepository;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private PatientIdIndex patientIdIndex;
+
+    private Statistics statistics;
+    private Patient patient;
+    private ClinicalData reading;
+
+    @BeforeEach
+    void setUp() {
+        clinicalDataRepository.deleteAllInBatch();
+        patientRepository.deleteAllInBatch();
+        for (int i = 0; i < PATIENTS; i++) {
+            Patient saved = new Patient();
+            saved.setFirstName("First" + i);
+            saved.setLastName("Last" + i);
+            saved.setAge(40 + i);
+            patient = patientRepository.save(saved);
+            //as if the patients had been there when the index was built
+            patientIdIndex.add(patient.getId());
+            List<ClinicalData> readings = new ArrayList<>();
+            for (int j = 0; j < READINGS_PER_PATIENT; j++) {
+                ClinicalData clinicalData = new ClinicalData();
+                clinicalData.setComponentName(j % 2 == 0 ? "bp" : "heartrate");
+                clinicalData.setComponentValue(j % 2 == 0 ? "67/119" : "78");
+                clinicalData.setPatient(patient);
+                readings.add(clinicalData);
+            }
+            reading = clinicalDataRepository.saveAll(readings).get(0);
+        }
+        statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+        statistics.clear();
+    }
+
+    private long statements() {
+        return statistics.getPrepareStatementCount();
+    }
+
+    @Test
+    void getAllPatients_doesNotLoadReadings() throws Exception {
+        mockMvc.perform(get("/api/patients")).andExpect(status().isOk());
+
+        assertEquals(1, statements());
+    }
+
+    @Test
+    void getPatientById_doesNotLoadReadings() throws Exception {
+        mockMvc.perform(get("/api/patients/{id}", patient.getId())).andExpect(status().isOk());
+
+        assertEquals(1, statements());
+    }
+
+    @Test
+    void getPatientClinicalData_usesOneQueryForReadings() throws Exception {
+        mockMvc.perform(get("/api/patients/{id}/clinicaldata", patient.getId())).andExpect(status().isOk());
+
+        assertEquals(2, statements());
+    }
+
+    @Test
+    void createPatient_insertsOnce() throws Exception {
+        mockMvc.perform(post("/api/patients").contentType(MediaType.APPLICATION_JSON)
+                .content("{\"firstName\":\"New\",\"lastName\":\"Patient\",\"age\":30}")).andExpect(status().isOk());
+
+        //sequence call plus insert
+        assertEquals(2, statements());
+    }
+
+    @Test
+    void updatePatient_doesNotLoadReadings() throws Exception {
+        mockMvc.perform(put("/api/patients/{id}", patient.getId()).contentType(MediaType.APPLICATION_JSON)
+                .content("{\"firstName\":\"Renamed\",\"lastName\":\"Patient\",\"age\":31}")).andExpect(status().isOk());
+
+        assertEquals(1, statements());
+    }
+
+    @Test
+    void deletePatient_isSetBasedWhateverTheNumberOfReadings() throws Exception {
+        mockMvc.perform(delete("/api/patients/{id}", patient.getId())).andExpect(status().isNoContent());
+
+        //readings, patient, rollups
+        assertEquals(3, statements());
+        assertEquals(0, clinicalDataRepository.findByPatientIdAndMeasuredDateTimeBetweenOrderByMeasuredDateTimeDesc(
+                patient.getId(), new Date(0), new Date(), Limit.of(10)).size());
+        assertTrue(patientRepository.findById(patient.getId()).isEmpty());
+    }
+
+    @Test
+    void getAllClinicalData_isOneQuery() throws Exception {
+        mockMvc.perform(get("/api/clinicaldata")).andExpect(status().isOk());
+
+        assertEquals(1, statements());
+    }
+
+    @Test
+    void getClinicalDataById_doesNotLoadPatient() throws Exception {
+        mockMvc.perform(get("/api/clinicaldata/{id}", reading.getId())).andExpect(status().isOk());
+
+        assertEquals(1, statements());
+    }
+
+    @Test
+    void streamClinicalData_isOneQuery() throws Exception {
+        MvcResult result = mockMvc.perform(get("/api/clinicaldata/stream")).andExpect(request().asyncStarted()).andReturn();
+        mockMvc.perform(asyncDispatch(result)).andExpect(status().isOk());
+
+        assertEquals(1, statements());
+    }
+
+    @Test
+    void saveClinicalData_doesNotLoadPatient() throws Exception {
+        mockMvc.perform(post("/api/clinicaldata/clinicals").contentType(MediaType.APPLICATION_JSON)
+                .content("{\"componentName\":\"heartrate\",\"componentValue\":\"80\",\"patientId\":" + patient.getId() + "}"))
+                .andExpect(status().isOk());
+
+        //the insert, plus a sequence call when the pooled id block runs out; the patient is checked in memory
+        assertTrue(statements() <= 2, "statements: " + statements());
+    }
+
+    @Test
+    void saveClinicalData_returnsNotFound_forUnknownPatient() throws Exception {
+        mockMvc.perform(post("/api/clinicaldata/clinicals").contentType(MediaType.APPLICATION_JSON)
+                .content("{\"componentName\":\"heartrate\",\"componentValue\":\"80\",\"patientId\":" + (patient.getId() + 1000) + "}"))
+                .andExpect(status().isNotFound());
+
+        //not in the index, so the database is asked once before giving up
+        assertEquals(1, statements());
+    }
+
+    @Test
+    void saveClinicalDataBulk_batchesInserts() throws Exception {
+        StringBuilder body = new StringBuilder("[");
+        for (int i = 0; i < 40; i++) {
+            body.append(i == 0 ? "" : ",")
+                    .append("{\"componentName\":\"heartrate\",\"componentValue\":\"80\",\"patientId\":").append(patient.getId()).append("}");
+        }
+        body.append("]");
+
+        mockMvc.perform(post("/api/clinicaldata/clinicals/bulk").contentType(MediaType.APPLICATION_JSON).content(body.toString()))
+                .andExpect(status().isOk());
+
+        //existence check, at most two sequence calls for 40 ids, one batched insert
+        assertTrue(statements() <= 4, "statements: " + statements());
+    }
+
+    @Test
+    void updateClinicalData_doesNotLoadPatient() throws Exception {
+        mockMvc.perform(put("/api/clinicaldata/{id}", reading.getId()).contentType(MediaType.APPLICATION_JSON)
+                .content("{\"componentName\":\"heartrate\",\"componentValue\":\"81\",\"measuredDateTime\":\"2024-01-01T10:00:00.000+00:00\"}"))
+                .andExpect(status().isOk());
+
+        assertEquals(2, statements());
+    }
+
+    @Test
+    void deleteClinicalData_doesNotLoadPatient() throws Exception {
+        mockMvc.perform(delete("/api/clinicaldata/{id}", reading.getId())).andExpect(status().isNoContent());
+
+        assertEquals(2, statements());
+    }
+
+    @Test
+    void getPatientById_withCurrentETag_isNotModifiedWithoutBody() throws Exception {
+        String etag = mockMvc.perform(get("/api/patients/{id}", patient.getId())).andExpect(status().isOk())
+                .andReturn().getResponse().getHeader("ETag");
+        statistics.clear();
+
+        mockMvc.perform(get("/api/patients/{id}", patient.getId()).header("If-None-Match", etag))
+                .andExpect(status().isNotModified())
+                .andExpect(content().string(""));
+
+        assertEquals(1, statements());
+    }
+
+    @Test
+    void getClinicalDataById_withStaleETag_returnsTheReading() throws Exception {
+        mockMvc.perform(get("/api/clinicaldata/{id}", reading.getId()).header("If-None-Match", "\"41\""))
+                .andExpect(status().isOk())
+                .andExpect(header().string("ETag", "\"0\""));
+    }
+
+    @Test
+    void updatePatient_withIfMatch_isOneStatement() throws Exception {
+        mockMvc.perform(put("/api/patients/{id}", patient.getId()).header("If-Match", "\"0\"").contentType(MediaType.APPLICATION_JSON)
+                .content("{\"firstName\":\"Renamed\",\"lastName\":\"Patient\",\"age\":31}"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("ETag", "\"1\""));
+
+        assertEquals(1, statements());
+        assertEquals("Renamed", patientRepository.findById(patient.getId()).orElseThrow().getFirstName());
+    }
+
+    @Test
+    void updatePatient_withStaleIfMatch_isRejected() throws Exception {
+        mockMvc.perform(put("/api/patients/{id}", patient.getId()).header("If-Match", "\"5\"").contentType(MediaType.APPLICATION_JSON)
+                .content("{\"firstName\":\"Renamed\",\"lastName\":\"Patient\",\"age\":31}"))
+                .andExpect(status().isPreconditionFailed());
+
+        assertEquals("First" + (PATIENTS - 1), patientRepository.findById(patient.getId()).orElseThrow().getFirstName());
+    }
+
+    @Test
+    void updateClinicalData_withIfMatch_doesNotLoadTheReading() throws Exception {
+        mockMvc.perform(put("/api/clinicaldata/{id}", reading.getId()).header("If-Match", "\"0\"").contentType(MediaType.APPLICATION_JSON)
+                .content("{\"componentName\":\"heartrate\",\"componentValue\":\"81\",\"measuredDateTime\":\"2024-01-01T10:00:00.000+00:00\"}"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("ETag", "\"1\""));
+
+        //the key projection and the versioned update
+        assertEquals(2, statements());
+        ClinicalData updated = clinicalDataRepository.findById(reading.getId()).orElseThrow();
+        assertEquals("81", updated.getComponentValue());
+        assertEquals(81.0, updated.getPrimaryValue());
+        assertEquals(1, updated.getVersion());
+    }
+
+    @Test
+    void statementsPerRequest_areRecordedByHandler() throws Exception {
+        String handler = "PatientController.getPatientClinicalData";
+        double statementsBefore = meterRegistry.find("clinicals.sql.statements").tag("handler", handler).summaries().stream()
+                .mapToDouble(summary -> summary.totalAmount()).sum();
+        long requestsBefore = meterRegistry.find("http.server.requests").tag("handler", handler).timers().stream()
+                .mapToLong(timer -> timer.count()).sum();
+
+        mockMvc.perform(get("/api/patients/{id}/clinicaldata", patient.getId())).andExpect(status().isOk());
+
+        //the same two statements the statistics see, attributed to the controller method
+        assertEquals(statementsBefore + 2, meterRegistry.get("clinicals.sql.statements").tag("handler", handler).summary().totalAmount());
+        assertEquals(requestsBefore + 1, meterRegistry.get("http.server.requests").tag("handler", handler).timer().count());
+        assertTrue(meterRegistry.get("hibernate.statements").tag("status", "prepared").functionCounter().count() > 0);
+    }
+
+    @Test
+    void getPatientsByIds_isOneQuery() throws Exception {
+        mockMvc.perform(get("/api/patients").param("ids", patient.getId() + "," + (patient.getId() - 1) + ",999999"))
+                .andExpect(status().isOk())
+                .andExpect(content().json("[{\"id\":" + patient.getId() + "},{\"id\":" + (patient.getId() - 1) + "}]"));
+
+        assertEquals(1, statements());
+    }
+
+    @Test
+    void getClinicalDataByIds_withFields_selectsOnlyThoseColumns() throws Exception {
+        MvcResult result = mockMvc.perform(get("/api/clinicaldata").param("ids", String.valueOf(reading.getId()))
+                        .param("fields", "patientId,primaryValue"))
+                .andExpect(status().isOk())
+                .andReturn();
+
+        assertEquals("[{\"id\":" + reading.getId() + ",\"patientId\":" + patient.getId() + ",\"primaryValue\":119.0}]",
+                result.getResponse().getContentAsString());
+        assertEquals(1, statements());
+        assertEquals(0, statistics.getEntityLoadCount());
+    }
+}
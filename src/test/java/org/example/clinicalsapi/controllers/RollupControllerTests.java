@@ -0,0 +1,51 @@
+package org.example.clinicalsapi.controllers;
+
+import org.example.clinicalsapi.models.ClinicalDataRollup;
+import org.example.clinicalsapi.models.ClinicalDataRollup.Bucket;
+import org.example.clinicalsapi.services.ClinicalDataRollupService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.http.ResponseEntity;
+
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.*;
+
+class RollupControllerTests {
+
+    @Mock
+    private ClinicalDataRollupService rollupService;
+
+    @InjectMocks
+    private RollupController rollupController;
+
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+    }
+
+    @Test
+    void getRollups_alignsFromToBucketStart() {
+        Date from = new Date(90 * 60_000L);
+        Date to = new Date(10 * 3_600_000L);
+        List<ClinicalDataRollup> rollups = List.of(new ClinicalDataRollup());
+        when(rollupService.find(1, "bp", Bucket.HOUR, Bucket.HOUR.startOf(from), to)).thenReturn(rollups);
+
+        List<ClinicalDataRollup> result = rollupController.getRollups(1, "bp", Bucket.HOUR, from, to);
+
+        assertEquals(rollups, result);
+    }
+
+    @Test
+    void rebuildRollups_runsRebuild() {
+        ResponseEntity<Void> response = rollupController.rebuildRollups();
+
+        assertEquals(ResponseEntity.noContent().build(), response);
+        verify(rollupService, times(1)).rebuild();
+    }
+}
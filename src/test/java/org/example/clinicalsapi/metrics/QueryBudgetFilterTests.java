@@ -0,0 +1,85 @@
+package org.example.clinicalsapi.metrics;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.servlet.FilterChain;
+import org.example.clinicalsapi.controllers.PatientController;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.HandlerMapping;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class QueryBudgetFilterTests {
+
+    private SqlStatementCounter sqlStatementCounter;
+    private MeterRegistry meterRegistry;
+    private MockHttpServletRequest request;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        sqlStatementCounter = new SqlStatementCounter();
+        meterRegistry = new SimpleMeterRegistry();
+        request = new MockHttpServletRequest("GET", "/api/patients/1");
+        request.setAttribute(HandlerMapping.BEST_MATCHING_HANDLER_ATTRIBUTE,
+                new HandlerMethod(new PatientController(), PatientController.class.getMethod("getPatientById", Integer.class)));
+    }
+
+    //a chain whose handler runs the given number of statements
+    private FilterChain runningStatements(int statements) {
+        return (req, res) -> {
+            for (int i = 0; i < statements; i++) {
+                sqlStatementCounter.inspect("select 1");
+            }
+        };
+    }
+
+    private QueryBudgetFilter filter(int budget, String overrides, boolean fail) {
+        return new QueryBudgetFilter(sqlStatementCounter, meterRegistry, budget, overrides, fail);
+    }
+
+    @Test
+    void recordsStatementsPerHandler() throws Exception {
+        filter(10, "", true).doFilter(request, new MockHttpServletResponse(), runningStatements(3));
+
+        assertEquals(1, meterRegistry.get("clinicals.sql.statements").tag("handler", "PatientController.getPatientById").summary().count());
+        assertEquals(3.0, meterRegistry.get("clinicals.sql.statements").summary().totalAmount());
+        assertNull(meterRegistry.find("clinicals.sql.budget.exceeded").counter());
+    }
+
+    @Test
+    void overBudget_countedAndLoggedWhenNotFailing() throws Exception {
+        filter(2, "", false).doFilter(request, new MockHttpServletResponse(), runningStatements(3));
+
+        assertEquals(1.0, meterRegistry.get("clinicals.sql.budget.exceeded").tag("handler", "PatientController.getPatientById").counter().count());
+    }
+
+    @Test
+    void overBudget_throwsWhenFailing() {
+        QueryBudgetFilter filter = filter(2, "", true);
+
+        QueryBudgetExceededException e = assertThrows(QueryBudgetExceededException.class,
+                () -> filter.doFilter(request, new MockHttpServletResponse(), runningStatements(3)));
+        assertTrue(e.getMessage().contains("PatientController.getPatientById ran 3"));
+    }
+
+    @Test
+    void overrideRaisesBudgetForOneHandler() throws Exception {
+        filter(2, "PatientController.getPatientById=5, ClinicalDataController.saveClinicalDataBulk=250", true)
+                .doFilter(request, new MockHttpServletResponse(), runningStatements(4));
+
+        assertNull(meterRegistry.find("clinicals.sql.budget.exceeded").counter());
+    }
+
+    @Test
+    void statementsOutsideARequestAreNotCounted() throws Exception {
+        sqlStatementCounter.inspect("select 1");
+        filter(10, "", true).doFilter(request, new MockHttpServletResponse(), runningStatements(1));
+        sqlStatementCounter.inspect("select 1");
+
+        assertEquals(1.0, meterRegistry.get("clinicals.sql.statements").summary().totalAmount());
+    }
+}
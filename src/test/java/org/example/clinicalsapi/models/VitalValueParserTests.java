@@ -0,0 +1,55 @@
+package org.example.clinicalsapi.models;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class VitalValueParserTests {
+
+    private static final double[] UNPARSED = {Double.NaN, Double.NaN};
+
+    @Test
+    void parse_putsSystolicFirst_forBloodPressure() {
+        assertArrayEquals(new double[]{119, 67}, VitalValueParser.parse("bp", "67/119"));
+        assertArrayEquals(new double[]{120, 80}, VitalValueParser.parse("bp", "120/80"));
+        assertArrayEquals(new double[]{120, 80.5}, VitalValueParser.parse("bp", " 80.5 / 120 "));
+    }
+
+    @Test
+    void parse_returnsSingleFigure_forHeartRate() {
+        assertArrayEquals(new double[]{78, Double.NaN}, VitalValueParser.parse("heartrate", "78"));
+    }
+
+    @Test
+    void parse_returnsNaN_forMalformedValues() {
+        assertArrayEquals(UNPARSED, VitalValueParser.parse("bp", "67"));
+        assertArrayEquals(UNPARSED, VitalValueParser.parse("bp", "67/abc"));
+        assertArrayEquals(UNPARSED, VitalValueParser.parse("heartrate", "67/119"));
+        assertArrayEquals(UNPARSED, VitalValueParser.parse("heartrate", ""));
+        assertArrayEquals(UNPARSED, VitalValueParser.parse("heartrate", "-5"));
+        assertArrayEquals(UNPARSED, VitalValueParser.parse("heartrate", "7."));
+        assertArrayEquals(UNPARSED, VitalValueParser.parse("heartrate", null));
+    }
+
+    @Test
+    void unitOf_returnsUnitPerComponent() {
+        assertEquals("mmHg", VitalValueParser.unitOf("bp"));
+        assertEquals("bpm", VitalValueParser.unitOf("heartrate"));
+        assertNull(VitalValueParser.unitOf("weight"));
+    }
+
+    @Test
+    void parseComponentValue_fillsTypedColumns() {
+        ClinicalData clinicalData = new ClinicalData();
+        clinicalData.setComponentName("bp");
+        clinicalData.setComponentValue("67/119");
+
+        clinicalData.parseComponentValue();
+
+        assertEquals(119.0, clinicalData.getPrimaryValue());
+        assertEquals(67.0, clinicalData.getSecondaryValue());
+        assertEquals("mmHg", clinicalData.getUnit());
+    }
+}
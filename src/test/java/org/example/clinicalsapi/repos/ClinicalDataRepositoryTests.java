@@ -0,0 +1,102 @@
+package org.example.clinicalsapi.repos;
+
+import jakarta.persistence.EntityManager;
+import org.example.clinicalsapi.models.ClinicalData;
+import org.example.clinicalsapi.models.Patient;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.data.domain.Limit;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@DataJpaTest
+@ActiveProfiles("test")
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+class ClinicalDataRepositoryTests {
+
+    private static final long HOUR = 3_600_000L;
+
+    @Autowired
+    private ClinicalDataRepository clinicalDataRepository;
+
+    @Autowired
+    private PatientRepository patientRepository;
+
+    @Autowired
+    private EntityManager entityManager;
+
+    private Patient patient;
+
+    @BeforeEach
+    void setUp() {
+        for (int p = 0; p < 20; p++) {
+            Patient saved = new Patient();
+            saved.setFirstName("First" + p);
+            saved.setLastName("Last" + p);
+            patient = patientRepository.save(saved);
+            for (int i = 0; i < 50; i++) {
+                save(patient, i % 2 == 0 ? "bp" : "heartrate", i % 2 == 0 ? "67/119" : "78", new Date(i * HOUR));
+            }
+        }
+        entityManager.flush();
+        entityManager.clear();
+    }
+
+    private void save(Patient owner, String componentName, String componentValue, Date measuredDateTime) {
+        ClinicalData clinicalData = new ClinicalData();
+        clinicalData.setPatient(owner);
+        clinicalData.setComponentName(componentName);
+        clinicalData.setComponentValue(componentValue);
+        clinicalDataRepository.save(clinicalData);
+        //@CreationTimestamp fills the time on insert, backdate it afterwards
+        clinicalData.setMeasuredDateTime(measuredDateTime);
+    }
+
+    @Test
+    void rangeQuery_returnsOneComponentInWindow_newestFirst() {
+        List<ClinicalData> readings = clinicalDataRepository.findByPatientIdAndComponentNameAndMeasuredDateTimeBetweenOrderByMeasuredDateTimeDesc(
+                patient.getId(), "bp", new Date(10 * HOUR), new Date(20 * HOUR), Limit.of(100));
+
+        assertEquals(6, readings.size());
+        assertEquals(new Date(20 * HOUR).getTime(), readings.get(0).getMeasuredDateTime().getTime());
+        assertEquals(new Date(10 * HOUR).getTime(), readings.get(5).getMeasuredDateTime().getTime());
+        assertTrue(readings.stream().allMatch(reading -> reading.getComponentName().equals("bp")));
+    }
+
+    @Test
+    void rangeQuery_usesCompositeIndex() {
+        //let the optimizer see the real selectivity, as the migration does on postgres
+        entityManager.createNativeQuery("ANALYZE").executeUpdate();
+
+        String plan = (String) entityManager.createNativeQuery(
+                "EXPLAIN SELECT * FROM clinicaldata WHERE patient_id = ?1 AND component_name = ?2"
+                        + " AND measured_date_time BETWEEN ?3 AND ?4 ORDER BY measured_date_time DESC FETCH FIRST 1000 ROWS ONLY")
+                .setParameter(1, patient.getId())
+                .setParameter(2, "bp")
+                .setParameter(3, new Date(10 * HOUR))
+                .setParameter(4, new Date(20 * HOUR))
+                .getSingleResult();
+
+        assertTrue(plan.toLowerCase().contains("idx_clinicaldata_patient_component_time"), plan);
+        assertTrue(!plan.toLowerCase().contains("tablescan"), plan);
+    }
+
+    @Test
+    void findLatestPerComponent_returnsNewestReadingOfEachComponent() {
+        List<ClinicalData> latest = clinicalDataRepository.findLatestPerComponent(patient.getId());
+
+        assertEquals(2, latest.size());
+        for (ClinicalData reading : latest) {
+            long expected = reading.getComponentName().equals("bp") ? 48 * HOUR : 49 * HOUR;
+            assertEquals(expected, reading.getMeasuredDateTime().getTime());
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package org.example.clinicalsapi.services;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.example.clinicalsapi.dto.BulkItemResult;
+import org.example.clinicalsapi.dto.ClinicalDataRequest;
+import org.example.clinicalsapi.dto.IngestReceipt;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.*;
+
+class AsyncIngestPipelineTests {
+
+    @Mock
+    private ClinicalDataBatchWriter batchWriter;
+
+    private SimpleMeterRegistry meterRegistry;
+    private AsyncIngestPipeline pipeline;
+
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+        meterRegistry = new SimpleMeterRegistry();
+        pipeline = new AsyncIngestPipeline(batchWriter, meterRegistry, 2, 10, Duration.ofMillis(20), Duration.ofMinutes(1), false);
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (pipeline.isRunning()) {
+            pipeline.stop();
+        }
+    }
+
+    @Test
+    void submit_refusesWhenQueueIsFull() {
+        assertNotNull(pipeline.submit(new ClinicalDataRequest()));
+        assertNotNull(pipeline.submit(new ClinicalDataRequest()));
+
+        assertNull(pipeline.submit(new ClinicalDataRequest()));
+        assertEquals(2, pipeline.queueDepth());
+        assertEquals(2.0, meterRegistry.get("clinicals.ingest.queue.depth").gauge().value());
+        assertEquals(1.0, meterRegistry.get("clinicals.ingest.refused").counter().count());
+    }
+
+    @Test
+    void writer_commitsQueuedReadingsInOneBatch_andResolvesReceipts() {
+        when(batchWriter.write(anyList())).thenReturn(List.of(BulkItemResult.created(0, 100), BulkItemResult.rejected(1, "Patient with id 9 not found")));
+        IngestReceipt first = pipeline.submit(new ClinicalDataRequest());
+        IngestReceipt second = pipeline.submit(new ClinicalDataRequest());
+
+        pipeline.start();
+        verify(batchWriter, timeout(2_000).times(1)).write(anyList());
+        pipeline.stop();
+
+        assertEquals(IngestReceipt.CREATED, pipeline.receipt(first.getReceiptId()).getStatus());
+        assertEquals(100, pipeline.receipt(first.getReceiptId()).getClinicalDataId());
+        assertEquals(IngestReceipt.REJECTED, pipeline.receipt(second.getReceiptId()).getStatus());
+        assertEquals(1, meterRegistry.get("clinicals.ingest.batch.size").summary().count());
+        assertEquals(2.0, meterRegistry.get("clinicals.ingest.batch.size").summary().totalAmount());
+        assertEquals(1, meterRegistry.get("clinicals.ingest.commit").timer().count());
+    }
+
+    @Test
+    void writer_marksReceiptsFailed_whenCommitFails() {
+        when(batchWriter.write(anyList())).thenThrow(new IllegalStateException("database down"));
+        IngestReceipt receipt = pipeline.submit(new ClinicalDataRequest());
+
+        pipeline.start();
+        verify(batchWriter, timeout(2_000).times(1)).write(anyList());
+        pipeline.stop();
+
+        assertEquals(IngestReceipt.FAILED, pipeline.receipt(receipt.getReceiptId()).getStatus());
+        assertEquals(1.0, meterRegistry.get("clinicals.ingest.failed").counter().count());
+    }
+
+    @Test
+    void writer_retriesAFailedBatchOneReadingAtATime() {
+        ClinicalDataRequest good = new ClinicalDataRequest();
+        good.setPatientId(1);
+        ClinicalDataRequest bad = new ClinicalDataRequest();
+        bad.setPatientId(2);
+        when(batchWriter.write(List.of(good, bad))).thenThrow(new IllegalStateException("foreign key violation"));
+        when(batchWriter.write(List.of(good))).thenReturn(List.of(BulkItemResult.created(0, 100)));
+        when(batchWriter.write(List.of(bad))).thenThrow(new IllegalStateException("foreign key violation"));
+        IngestReceipt first = pipeline.submit(good);
+        IngestReceipt second = pipeline.submit(bad);
+
+        pipeline.start();
+        verify(batchWriter, timeout(2_000).times(3)).write(anyList());
+        pipeline.stop();
+
+        assertEquals(IngestReceipt.CREATED, pipeline.receipt(first.getReceiptId()).getStatus());
+        assertEquals(100, pipeline.receipt(first.getReceiptId()).getClinicalDataId());
+        assertEquals(IngestReceipt.FAILED, pipeline.receipt(second.getReceiptId()).getStatus());
+        assertEquals(1.0, meterRegistry.get("clinicals.ingest.failed").counter().count());
+    }
+}
@@ -0,0 +1,192 @@
+package org.example.clinicalsapi.services;
+
+import org.example.clinicalsapi.dto.CsvImportResult;
+import org.example.clinicalsapi.models.ClinicalData;
+import org.example.clinicalsapi.models.Patient;
+import org.example.clinicalsapi.models.ClinicalDataRollup;
+import org.example.clinicalsapi.models.ClinicalDataRollup.Bucket;
+import org.example.clinicalsapi.repos.ClinicalDataRepository;
+import org.example.clinicalsapi.repos.ClinicalDataRollupRepository;
+import org.example.clinicalsapi.repos.PatientRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+//the jdbc fallback the test database goes through; the COPY path is exercised by perf/copy-round-trip.sh
+@SpringBootTest
+@ActiveProfiles("test")
+class ClinicalDataCopierTests {
+
+    @Autowired
+    private ClinicalDataCopier clinicalDataCopier;
+
+    @Autowired
+    private PatientRepository patientRepository;
+
+    @Autowired
+    private ClinicalDataRepository clinicalDataRepository;
+
+    @Autowired
+    private ClinicalDataRollupService rollupService;
+
+    @Autowired
+    private ClinicalDataRollupRepository rollupRepository;
+
+    private Patient patient;
+
+    @BeforeEach
+    void setUp() {
+        rollupRepository.deleteAllInBatch();
+        clinicalDataRepository.deleteAllInBatch();
+        patientRepository.deleteAllInBatch();
+        Patient saved = new Patient();
+        saved.setFirstName("First");
+        saved.setLastName("Last");
+        patient = patientRepository.save(saved);
+    }
+
+    private CsvImportResult importCsv(String csv) throws Exception {
+        return clinicalDataCopier.importCsv(new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private String exportCsv() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        clinicalDataCopier.exportCsv(out);
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void importCsv_keepsTimestamps_derivesTypedValues_andRejectsUnknownPatients() throws Exception {
+        CsvImportResult result = importCsv("id,patient_id,component_name,component_value,measured_date_time,primary_value,secondary_value,unit\n"
+                + "," + patient.getId() + ",bp,67/119,2020-03-01 08:15:00,,,\n"
+                + "999," + patient.getId() + ",note,\"a, \"\"quoted\"\" value\",2020-03-01 09:00:00.5,,,\n"
+                + "," + (patient.getId() + 1000) + ",heartrate,72,2020-03-01 10:00:00,72,,bpm\n"
+                + "," + patient.getId() + ",,72,2020-03-01 10:00:00,72,,bpm\n");
+
+        assertEquals(2, result.getImported());
+        assertEquals(2, result.getRejected());
+        List<ClinicalData> rows = clinicalDataRepository.findAll();
+        rows.sort(Comparator.comparing(ClinicalData::getMeasuredDateTime));
+        assertEquals(2, rows.size());
+        assertEquals(Timestamp.valueOf("2020-03-01 08:15:00").getTime(), rows.get(0).getMeasuredDateTime().getTime());
+        assertEquals(119.0, rows.get(0).getPrimaryValue());
+        assertEquals(67.0, rows.get(0).getSecondaryValue());
+        assertEquals("mmHg", rows.get(0).getUnit());
+        assertEquals("a, \"quoted\" value", rows.get(1).getComponentValue());
+        assertTrue(rows.get(1).getId() != 999);
+    }
+
+    @Test
+    void importCsv_ignoresTypedValuesThatDisagreeWithTheComponentValue() throws Exception {
+        importCsv("id,patient_id,component_name,component_value,measured_date_time,primary_value,secondary_value,unit\n"
+                + "," + patient.getId() + ",heartrate,72,2020-03-01 10:00:00,999,5,kg\n"
+                + "," + patient.getId() + ",note,fine,2020-03-01 11:00:00,1,not a number,bpm\n");
+
+        List<ClinicalData> rows = clinicalDataRepository.findAll();
+        rows.sort(Comparator.comparing(ClinicalData::getMeasuredDateTime));
+        assertEquals(72.0, rows.get(0).getPrimaryValue());
+        assertNull(rows.get(0).getSecondaryValue());
+        assertEquals("bpm", rows.get(0).getUnit());
+        assertNull(rows.get(1).getPrimaryValue());
+        assertNull(rows.get(1).getUnit());
+    }
+
+    @Test
+    void importCsv_recomputesTheRollupsOfTheImportedPatientsAndDays() throws Exception {
+        importCsv("id,patient_id,component_name,component_value,measured_date_time,primary_value,secondary_value,unit\n"
+                + "," + patient.getId() + ",heartrate,70,2020-03-01 10:00:00,,,\n"
+                + "," + patient.getId() + ",heartrate,90,2020-03-01 10:30:00,,,\n"
+                + "," + patient.getId() + ",heartrate,60,2022-07-15 23:59:00,,,\n");
+
+        //nothing waits for a flush, the rollups are there once the import returns
+        List<ClinicalDataRollup> hourly = rollupService.find(patient.getId(), "heartrate", Bucket.HOUR,
+                Timestamp.valueOf("2020-03-01 00:00:00"), Timestamp.valueOf("2022-08-01 00:00:00"));
+        assertEquals(2, hourly.size());
+        assertEquals(2, hourly.get(0).getReadingCount());
+        assertEquals(80.0, hourly.get(0).getPrimaryAvg());
+        assertEquals(1, hourly.get(1).getReadingCount());
+        List<ClinicalDataRollup> daily = rollupService.find(patient.getId(), "heartrate", Bucket.DAY,
+                Timestamp.valueOf("2020-03-01 00:00:00"), Timestamp.valueOf("2022-08-01 00:00:00"));
+        assertEquals(2, daily.size());
+
+        //importing more of the same days recomputes their buckets rather than adding to them
+        importCsv("id,patient_id,component_name,component_value,measured_date_time,primary_value,secondary_value,unit\n"
+                + "," + patient.getId() + ",heartrate,100,2020-03-01 10:45:00,,,\n");
+        hourly = rollupService.find(patient.getId(), "heartrate", Bucket.HOUR,
+                Timestamp.valueOf("2020-03-01 10:00:00"), Timestamp.valueOf("2020-03-01 10:00:00"));
+        assertEquals(3, hourly.get(0).getReadingCount());
+        assertEquals(260.0, hourly.get(0).getPrimarySum());
+    }
+
+    @Test
+    void importCsv_takesIdsTheEntityGeneratorNeverHandsOut() throws Exception {
+        //the generator holds a partly used block of ids before and after the import
+        saveReadings(10);
+        StringBuilder csv = new StringBuilder("id,patient_id,component_name,component_value,measured_date_time,primary_value,secondary_value,unit\n");
+        for (int i = 0; i < 120; i++) {
+            csv.append(',').append(patient.getId()).append(",heartrate,72,2020-03-01 10:00:00,72,,bpm\n");
+        }
+        importCsv(csv.toString());
+
+        //a primary key collision would fail one of these inserts
+        saveReadings(100);
+
+        assertEquals(230, clinicalDataRepository.count());
+    }
+
+    private void saveReadings(int count) {
+        for (int i = 0; i < count; i++) {
+            ClinicalData saved = new ClinicalData();
+            saved.setComponentName("heartrate");
+            saved.setComponentValue("80");
+            saved.setPatient(patient);
+            clinicalDataRepository.save(saved);
+        }
+    }
+
+    @Test
+    void exportCsv_roundTripsThroughImport() throws Exception {
+        importCsv("id,patient_id,component_name,component_value,measured_date_time,primary_value,secondary_value,unit\n"
+                + "," + patient.getId() + ",bp,67/119,2020-03-01 08:15:00,119,67,mmHg\n"
+                + "," + patient.getId() + ",note,\"\",2020-03-01 09:00:00.25,,,\n");
+
+        String exported = exportCsv();
+
+        String[] lines = exported.split("\n");
+        assertEquals(3, lines.length);
+        assertEquals("id,patient_id,component_name,component_value,measured_date_time,primary_value,secondary_value,unit", lines[0]);
+        assertTrue(exported.contains("," + patient.getId() + ",bp,67/119,2020-03-01 08:15:00,119.0,67.0,mmHg\n"), exported);
+        assertTrue(exported.contains("," + patient.getId() + ",note,\"\",2020-03-01 09:00:00.25,,,\n"), exported);
+
+        CsvImportResult again = importCsv(exported);
+
+        assertEquals(2, again.getImported());
+        assertEquals(4, clinicalDataRepository.count());
+    }
+
+    @Test
+    void importCsv_failsAsAWhole_onMalformedRows() {
+        String csv = "id,patient_id,component_name,component_value,measured_date_time,primary_value,secondary_value,unit\n"
+                + "," + patient.getId() + ",heartrate,72,2020-03-01 10:00:00,72,,bpm\n"
+                + "," + patient.getId() + ",heartrate,72,yesterday,72,,bpm\n";
+
+        IllegalArgumentException ex = assertThrows(IllegalArgumentException.class, () -> importCsv(csv));
+
+        assertTrue(ex.getMessage().startsWith("Line 3"), ex.getMessage());
+        assertEquals(0, clinicalDataRepository.count());
+    }
+}
@@ -0,0 +1,211 @@
+package org.example.clinicalsapi.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.example.clinicalsapi.models.ClinicalData;
+import org.example.clinicalsapi.models.Patient;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ClinicalDataFeedTests {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    //runs the drains only when the test says so, like a dispatch pool that is busy elsewhere
+    private final Queue<Runnable> pending = new ArrayDeque<>();
+    private final Executor dispatcher = pending::add;
+
+    //keeps what would have gone over the wire
+    private static class RecordingEmitter extends SseEmitter {
+        final List<String> sent = new ArrayList<>();
+        volatile boolean completed;
+
+        @Override
+        public void send(SseEventBuilder builder) {
+            StringBuilder event = new StringBuilder();
+            for (ResponseBodyEmitter.DataWithMediaType data : builder.build()) {
+                event.append(data.getData());
+            }
+            synchronized (sent) {
+                sent.add(event.toString());
+            }
+        }
+
+        @Override
+        public void complete() {
+            completed = true;
+        }
+
+        List<String> readings() {
+            synchronized (sent) {
+                return sent.stream().filter(e -> !e.startsWith(":")).toList();
+            }
+        }
+    }
+
+    //a client that stopped reading: every send blocks until the test lets it go
+    private static class StalledEmitter extends RecordingEmitter {
+        final CountDownLatch released = new CountDownLatch(1);
+
+        @Override
+        public void send(SseEventBuilder builder) {
+            try {
+                released.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            super.send(builder);
+        }
+    }
+
+    private ClinicalDataFeed feed(int bufferSize, ClinicalDataFeed.Overflow overflow) {
+        return new ClinicalDataFeed(new ObjectMapper(), meterRegistry, dispatcher, bufferSize, 10, Duration.ofMinutes(1), overflow,
+                Duration.ofSeconds(10));
+    }
+
+    private void runDrains() {
+        Runnable drain;
+        while ((drain = pending.poll()) != null) {
+            drain.run();
+        }
+    }
+
+    private static ClinicalDataEvent saved(int id, int patientId, String componentName) {
+        Patient patient = new Patient();
+        patient.setId(patientId);
+        ClinicalData clinicalData = new ClinicalData();
+        clinicalData.setId(id);
+        clinicalData.setComponentName(componentName);
+        clinicalData.setComponentValue("72");
+        clinicalData.setMeasuredDateTime(new Date(1000));
+        clinicalData.setPatient(patient);
+        return ClinicalDataEvent.saved(clinicalData);
+    }
+
+    @Test
+    void onClinicalDataEvent_deliversOnlyWhatEachSubscriberAskedFor() {
+        ClinicalDataFeed feed = feed(16, ClinicalDataFeed.Overflow.DROP_OLDEST);
+        RecordingEmitter everything = new RecordingEmitter();
+        RecordingEmitter patientSeven = new RecordingEmitter();
+        RecordingEmitter patientSevenBp = new RecordingEmitter();
+        feed.register(everything, null, Set.of());
+        feed.register(patientSeven, 7, Set.of());
+        feed.register(patientSevenBp, 7, Set.of("bp"));
+
+        feed.onClinicalDataEvent(saved(1, 7, "heartrate"));
+        feed.onClinicalDataEvent(saved(2, 8, "bp"));
+        feed.onClinicalDataEvent(saved(3, 7, "bp"));
+        runDrains();
+
+        assertEquals(3, everything.readings().size());
+        assertEquals(2, patientSeven.readings().size());
+        assertEquals(1, patientSevenBp.readings().size());
+        String event = patientSevenBp.readings().get(0);
+        assertTrue(event.startsWith("id:3\nevent:reading\ndata:"), event);
+        assertTrue(event.contains("\"patientId\":7"), event);
+    }
+
+    @Test
+    void offer_dropsTheOldestAndReportsTheGap_whenASubscriberFallsBehind() {
+        ClinicalDataFeed feed = feed(4, ClinicalDataFeed.Overflow.DROP_OLDEST);
+        RecordingEmitter slow = new RecordingEmitter();
+        feed.register(slow, 7, Set.of());
+
+        for (int id = 1; id <= 10; id++) {
+            feed.onClinicalDataEvent(saved(id, 7, "bp"));
+        }
+        runDrains();
+
+        List<String> readings = slow.readings();
+        //the heartbeat and the first five readings were pushed out by the last four
+        assertEquals(5, readings.size());
+        assertTrue(readings.get(0).startsWith("event:dropped\ndata:7"), readings.get(0));
+        assertTrue(readings.get(1).startsWith("id:7\n"), readings.get(1));
+        assertTrue(readings.get(4).startsWith("id:10\n"), readings.get(4));
+        assertEquals(7.0, meterRegistry.get("clinicals.feed.dropped").counter().count());
+        assertEquals(1, feed.subscriberCount());
+    }
+
+    @Test
+    void offer_disconnectsASubscriberThatFallsBehind_whenConfiguredTo() {
+        ClinicalDataFeed feed = feed(4, ClinicalDataFeed.Overflow.DISCONNECT);
+        RecordingEmitter slow = new RecordingEmitter();
+        feed.register(slow, null, Set.of());
+
+        for (int id = 1; id <= 10; id++) {
+            feed.onClinicalDataEvent(saved(id, 7, "bp"));
+        }
+        runDrains();
+
+        assertTrue(slow.completed);
+        assertTrue(slow.readings().isEmpty());
+        assertEquals(0, feed.subscriberCount());
+        assertEquals(1.0, meterRegistry.get("clinicals.feed.slow.disconnects").counter().count());
+    }
+
+    @Test
+    void subscribe_refusesOnceTheNodeIsFull() {
+        ClinicalDataFeed feed = new ClinicalDataFeed(new ObjectMapper(), meterRegistry, dispatcher, 4, 1, Duration.ofMinutes(1),
+                ClinicalDataFeed.Overflow.DROP_OLDEST, Duration.ofSeconds(10));
+
+        RecordingEmitter first = new RecordingEmitter();
+        assertTrue(feed.register(first, 7, Set.of()));
+        assertNull(feed.subscribe(8, Set.of()));
+        assertFalse(first.completed);
+        assertEquals(1, feed.subscriberCount());
+    }
+
+    @Test
+    void aSendThatBlocksPastTheWriteTimeout_disconnectsItsSubscriber_andOthersKeepReceiving() throws Exception {
+        //one dispatch thread, which the stalled subscriber takes first
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+        ClinicalDataFeed feed = new ClinicalDataFeed(new ObjectMapper(), meterRegistry, pool, 16, 10, Duration.ofMinutes(1),
+                ClinicalDataFeed.Overflow.DROP_OLDEST, Duration.ofMillis(100));
+        StalledEmitter stalled = new StalledEmitter();
+        RecordingEmitter other = new RecordingEmitter();
+        try {
+            feed.register(stalled, null, Set.of());
+            feed.register(other, null, Set.of());
+            feed.onClinicalDataEvent(saved(1, 7, "bp"));
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (other.readings().isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, other.readings().size());
+            assertEquals(1, feed.subscriberCount());
+            assertEquals(1.0, meterRegistry.get("clinicals.feed.slow.disconnects").counter().count());
+
+            //once the write returns the stalled emitter is completed and the pool goes back to its size
+            stalled.released.countDown();
+            deadline = System.currentTimeMillis() + 5000;
+            while (!stalled.completed && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(stalled.completed);
+            assertTrue(stalled.readings().isEmpty());
+            assertEquals(1, pool.getCorePoolSize());
+        } finally {
+            stalled.released.countDown();
+            feed.shutdown();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package org.example.clinicalsapi.services;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.YearMonth;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.contains;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+class ClinicalDataPartitionMaintenanceTests {
+
+    @Test
+    void expired_isEveryMonthBeforeTheRetentionPeriod() {
+        List<String> partitions = List.of("clinicaldata_default", "clinicaldata_p2023_12", "clinicaldata_p2024_01",
+                "clinicaldata_p2024_02", "clinicaldata_p2024_07", "clinicaldata_archive");
+
+        List<String> expired = ClinicalDataPartitionMaintenance.expired(partitions, YearMonth.of(2025, 2), 12);
+
+        assertEquals(List.of("clinicaldata_p2023_12", "clinicaldata_p2024_01"), expired);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void maintain_doesNothing_withoutPostgres() {
+        JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+        when(jdbcTemplate.execute(any(ConnectionCallback.class))).thenReturn(false);
+        ClinicalDataPartitionMaintenance maintenance = new ClinicalDataPartitionMaintenance(jdbcTemplate, 3, 12, "");
+
+        maintenance.maintain();
+
+        verify(jdbcTemplate).execute(any(ConnectionCallback.class));
+        verifyNoMoreInteractions(jdbcTemplate);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void maintain_logsAFailedArchive_andRetriesDetachedTablesOnTheNextRun(@TempDir Path tempDir) throws IOException {
+        //a file where the archive directory should be, so every archive fails
+        Path archiveDir = Files.createFile(tempDir.resolve("archive"));
+        JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+        when(jdbcTemplate.execute(any(ConnectionCallback.class))).thenReturn(true);
+        when(jdbcTemplate.queryForObject(contains("pg_partitioned_table"), eq(Integer.class))).thenReturn(1);
+        when(jdbcTemplate.queryForList(contains("pg_inherits"), eq(String.class)))
+                .thenReturn(List.of("clinicaldata_default", "clinicaldata_p2020_01", "clinicaldata_p2020_02"));
+        when(jdbcTemplate.queryForList(contains("relispartition"), eq(String.class)))
+                .thenReturn(List.of("clinicaldata_p2019_12"));
+        ClinicalDataPartitionMaintenance maintenance = new ClinicalDataPartitionMaintenance(jdbcTemplate, 3, 12,
+                archiveDir.toString());
+
+        maintenance.onStartup();
+
+        //both months are detached although the first archive failed, nothing is dropped
+        verify(jdbcTemplate).execute("ALTER TABLE clinicaldata DETACH PARTITION clinicaldata_p2020_01");
+        verify(jdbcTemplate).execute("ALTER TABLE clinicaldata DETACH PARTITION clinicaldata_p2020_02");
+        verify(jdbcTemplate, never()).execute(startsWith("DROP TABLE"));
+        verify(jdbcTemplate, never()).execute(startsWith("ALTER TABLE clinicaldata DETACH PARTITION clinicaldata_p2019_12"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void maintain_archivesAndDropsTablesLeftDetachedByAnEarlierRun(@TempDir Path archiveDir) {
+        JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+        when(jdbcTemplate.execute(any(ConnectionCallback.class))).thenReturn(true);
+        when(jdbcTemplate.queryForObject(contains("pg_partitioned_table"), eq(Integer.class))).thenReturn(1);
+        when(jdbcTemplate.queryForList(contains("relispartition"), eq(String.class)))
+                .thenReturn(List.of("clinicaldata_p2019_12", "clinicaldata_archive"));
+        ClinicalDataPartitionMaintenance maintenance = new ClinicalDataPartitionMaintenance(jdbcTemplate, 3, 12,
+                archiveDir.toString());
+
+        maintenance.maintain();
+
+        verify(jdbcTemplate).execute("DROP TABLE clinicaldata_p2019_12");
+        verify(jdbcTemplate, never()).execute("DROP TABLE clinicaldata_archive");
+        assertTrue(Files.exists(archiveDir.resolve("clinicaldata_p2019_12.csv.gz")));
+    }
+}
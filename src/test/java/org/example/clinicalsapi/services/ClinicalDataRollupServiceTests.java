@@ -0,0 +1,191 @@
+package org.example.clinicalsapi.services;
+
+import org.example.clinicalsapi.models.ClinicalData;
+import org.example.clinicalsapi.models.ClinicalDataRollup;
+import org.example.clinicalsapi.models.ClinicalDataRollup.Bucket;
+import org.example.clinicalsapi.models.Patient;
+import org.example.clinicalsapi.repos.ClinicalDataRepository;
+import org.example.clinicalsapi.repos.ClinicalDataRollupRepository;
+import org.example.clinicalsapi.repos.PatientRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.servlet.MockMvc;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.AdditionalAnswers.delegatesTo;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+//drives writes through the controllers and checks the incremental rollups match a rebuild from raw data
+@SpringBootTest
+@AutoConfigureMockMvc
+@ActiveProfiles("test")
+class ClinicalDataRollupServiceTests {
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private ClinicalDataRollupService rollupService;
+
+    @Autowired
+    private ClinicalDataRollupRepository rollupRepository;
+
+    @Autowired
+    private PatientRepository patientRepository;
+
+    @Autowired
+    private ClinicalDataRepository clinicalDataRepository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    private Patient patient;
+
+    @BeforeEach
+    void setUp() {
+        rollupRepository.deleteAllInBatch();
+        clinicalDataRepository.deleteAllInBatch();
+        patientRepository.deleteAllInBatch();
+        Patient saved = new Patient();
+        saved.setFirstName("Roll");
+        saved.setLastName("Up");
+        patient = patientRepository.save(saved);
+        rollupService.rebuild();
+    }
+
+    private void saveReading(String componentName, String componentValue) throws Exception {
+        mockMvc.perform(post("/api/clinicaldata/clinicals").contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"componentName\":\"" + componentName + "\",\"componentValue\":\"" + componentValue
+                                + "\",\"patientId\":" + patient.getId() + "}"))
+                .andExpect(status().isOk());
+    }
+
+    private String snapshot() {
+        return rollupRepository.findAll().stream()
+                .sorted(Comparator.comparing((ClinicalDataRollup r) -> r.getBucketSize()).thenComparing(r -> r.getComponentName())
+                        .thenComparing(r -> r.getBucketStart().getTime()))
+                .map(r -> r.getComponentName() + " " + r.getBucketSize() + " " + r.getBucketStart().getTime() + " n=" + r.getReadingCount()
+                        + " p=" + r.getPrimaryMin() + "/" + r.getPrimaryMax() + "/" + r.getPrimarySum()
+                        + " s=" + r.getSecondaryMin() + "/" + r.getSecondaryMax() + "/" + r.getSecondarySum())
+                .collect(Collectors.joining("\n"));
+    }
+
+    @Test
+    void savedReadings_areRolledUpIncrementally() throws Exception {
+        saveReading("bp", "67/119");
+        saveReading("bp", "80/140");
+        saveReading("heartrate", "78");
+        saveReading("heartrate", "not a number");
+
+        rollupService.flush();
+
+        Date now = new Date();
+        List<ClinicalDataRollup> hourly = rollupService.find(patient.getId(), "bp", Bucket.HOUR, Bucket.HOUR.startOf(now), now);
+        assertEquals(1, hourly.size());
+        assertEquals(2, hourly.get(0).getReadingCount());
+        assertEquals(119.0, hourly.get(0).getPrimaryMin());
+        assertEquals(140.0, hourly.get(0).getPrimaryMax());
+        assertEquals(129.5, hourly.get(0).getPrimaryAvg());
+        assertEquals(73.5, hourly.get(0).getSecondaryAvg());
+        List<ClinicalDataRollup> daily = rollupService.find(patient.getId(), "heartrate", Bucket.DAY, Bucket.DAY.startOf(now), now);
+        assertEquals(1, daily.get(0).getReadingCount());
+
+        String incremental = snapshot();
+        rollupService.rebuild();
+        assertEquals(snapshot(), incremental);
+    }
+
+    @Test
+    void updatedAndDeletedReadings_matchRebuild() throws Exception {
+        saveReading("bp", "67/119");
+        saveReading("bp", "80/140");
+        saveReading("heartrate", "78");
+        rollupService.flush();
+        List<ClinicalData> readings = clinicalDataRepository.findAll();
+
+        mockMvc.perform(put("/api/clinicaldata/{id}", readings.get(0).getId()).contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"componentName\":\"bp\",\"componentValue\":\"70/150\",\"measuredDateTime\":\"2024-01-01T10:15:00.000+00:00\"}"))
+                .andExpect(status().isOk());
+        mockMvc.perform(delete("/api/clinicaldata/{id}", readings.get(2).getId())).andExpect(status().isNoContent());
+        rollupService.flush();
+
+        String incremental = snapshot();
+        rollupService.rebuild();
+        assertEquals(snapshot(), incremental);
+    }
+
+    @Test
+    void rebuild_keepsTheRollupsOfMonthsBeforeTheRetentionPeriod() {
+        LocalDateTime retired = LocalDateTime.now().minusMonths(3);
+        LocalDateTime retained = LocalDateTime.now().minusMinutes(5);
+        jdbcTemplate.update("insert into clinicaldata (id, patient_id, component_name, component_value, measured_date_time,"
+                + " primary_value, version) values (3000001, ?, 'heartrate', '70', ?, 70, 0), (3000002, ?, 'heartrate', '90', ?, 90, 0)",
+                patient.getId(), Timestamp.valueOf(retired), patient.getId(), Timestamp.valueOf(retained));
+        rollupService.rebuild();
+        String before = snapshot();
+
+        //the retention job detaches the old month, its readings are gone from clinicaldata
+        jdbcTemplate.update("delete from clinicaldata where id = 3000001");
+        ReflectionTestUtils.setField(rollupService, "retentionMonths", 1);
+        try {
+            rollupService.rebuild();
+        } finally {
+            ReflectionTestUtils.setField(rollupService, "retentionMonths", 0);
+        }
+
+        assertEquals(before, snapshot());
+        assertEquals(4, rollupRepository.count());
+    }
+
+    @Test
+    void readingsSavedWhileARebuildRuns_areRecomputedNotAddedTwice() throws Exception {
+        saveReading("heartrate", "70");
+        rollupService.flush();
+        Timestamp measured = Timestamp.valueOf(LocalDateTime.now().minusMinutes(1));
+        jdbcTemplate.update("insert into clinicaldata (id, patient_id, component_name, component_value, measured_date_time,"
+                + " primary_value, version) values (3000003, ?, 'heartrate', '90', ?, 90, 0)", patient.getId(), measured);
+        ClinicalData committed = new ClinicalData();
+        committed.setPatient(patient);
+        committed.setComponentName("heartrate");
+        committed.setComponentValue("90");
+        committed.setMeasuredDateTime(measured);
+        committed.parseComponentValue();
+
+        //the rebuild reads the reading, and its event arrives while the rebuild runs
+        ClinicalDataRollupRepository repository = mock(ClinicalDataRollupRepository.class, delegatesTo(rollupRepository));
+        doAnswer(invocation -> {
+            rollupService.onClinicalDataEvent(ClinicalDataEvent.saved(committed));
+            return rollupRepository.rebuildHourly();
+        }).when(repository).rebuildHourly();
+        ReflectionTestUtils.setField(rollupService, "rollupRepository", repository);
+        try {
+            rollupService.rebuild();
+        } finally {
+            ReflectionTestUtils.setField(rollupService, "rollupRepository", rollupRepository);
+        }
+        rollupService.flush();
+
+        String incremental = snapshot();
+        rollupService.rebuild();
+        assertEquals(snapshot(), incremental);
+    }
+}
@@ -0,0 +1,218 @@
+package org.example.clinicalsapi.services;
+
+import org.example.clinicalsapi.dto.CohortResult;
+import org.example.clinicalsapi.models.ClinicalData;
+import org.example.clinicalsapi.models.Patient;
+import org.example.clinicalsapi.repos.ClinicalDataRepository;
+import org.example.clinicalsapi.repos.PatientRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import javax.sql.DataSource;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest
+@ActiveProfiles("test")
+class CohortSnapshotTests {
+
+    private static final long HOUR = 3_600_000L;
+
+    @Autowired
+    private DataSource dataSource;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private PatientRepository patientRepository;
+
+    @Autowired
+    private ClinicalDataRepository clinicalDataRepository;
+
+    private CohortSnapshot cohortSnapshot;
+    private int nextReadingId = 2_000_000;
+
+    @BeforeEach
+    void setUp() {
+        clinicalDataRepository.deleteAllInBatch();
+        patientRepository.deleteAllInBatch();
+        //chunks of two patients, so a query is split across the pool, and refreshes of two patients at a time
+        cohortSnapshot = new CohortSnapshot(dataSource, transactionManager, List.of("bp", "heartrate"), 2, 2, 100, 2);
+    }
+
+    @AfterEach
+    void tearDown() {
+        cohortSnapshot.shutdown();
+    }
+
+    private int patient(int age) {
+        Patient patient = new Patient();
+        patient.setFirstName("First");
+        patient.setLastName("Last");
+        patient.setAge(age);
+        return patientRepository.save(patient).getId();
+    }
+
+    private void reading(int patientId, String componentName, long hour, double primary, Double secondary) {
+        jdbcTemplate.update("insert into clinicaldata (id, patient_id, component_name, component_value, measured_date_time,"
+                        + " primary_value, secondary_value, unit, version) values (?, ?, ?, ?, ?, ?, ?, ?, 0)",
+                nextReadingId++, patientId, componentName, "v", new Timestamp(hour * HOUR), primary, secondary, null);
+    }
+
+    private static ClinicalData saved(int patientId, String componentName, long hour, String componentValue) {
+        Patient patient = new Patient();
+        patient.setId(patientId);
+        ClinicalData reading = new ClinicalData();
+        reading.setPatient(patient);
+        reading.setComponentName(componentName);
+        reading.setComponentValue(componentValue);
+        reading.setMeasuredDateTime(new Date(hour * HOUR));
+        reading.parseComponentValue();
+        return reading;
+    }
+
+    private List<Integer> ids(String... conditions) {
+        return query(null, conditions).getPatientIds();
+    }
+
+    private CohortResult query(Date since, String... conditions) {
+        return cohortSnapshot.query(List.of(conditions).stream().map(CohortSnapshot.Condition::parse).toList(), since, 100);
+    }
+
+    @Test
+    void query_matchesAgeAndTheLatestReadingOfEachComponent() {
+        int older = patient(60);
+        int younger = patient(40);
+        int noHeartrate = patient(70);
+        reading(older, "bp", 1, 120, 80.0);
+        reading(older, "bp", 2, 150, 95.0);
+        reading(older, "heartrate", 2, 110, null);
+        reading(younger, "bp", 2, 160, 100.0);
+        reading(younger, "heartrate", 2, 120, null);
+        reading(noHeartrate, "bp", 2, 170, 100.0);
+
+        cohortSnapshot.rebuild();
+
+        assertEquals(List.of(older), ids("age>50", "bp>140", "heartrate>100"));
+        assertEquals(List.of(older, younger, noHeartrate), ids("bp.secondary>=95"));
+        assertEquals(List.of(noHeartrate), ids("age>50", "bp.secondary!=95"));
+        assertEquals(List.of(), ids("bp<130"));
+        assertEquals(List.of(), ids("weight>0"));
+        assertEquals(List.of(older), query(new Date(2 * HOUR), "heartrate<115").getPatientIds());
+        assertEquals(List.of(), query(new Date(3 * HOUR), "heartrate<115").getPatientIds());
+    }
+
+    @Test
+    void query_countsEveryMatch_andListsUpToTheLimit() {
+        for (int i = 0; i < 5; i++) {
+            patient(30 + i);
+        }
+        cohortSnapshot.rebuild();
+
+        CohortResult result = cohortSnapshot.query(List.of(CohortSnapshot.Condition.parse("age >= 31")), null, 2);
+
+        assertEquals(4, result.getCount());
+        assertEquals(2, result.getPatientIds().size());
+        assertTrue(result.isTruncated());
+    }
+
+    @Test
+    void events_keepTheSnapshotCurrent() {
+        int patientId = patient(55);
+        reading(patientId, "heartrate", 2, 90, null);
+        cohortSnapshot.rebuild();
+
+        //a newer reading applies at once, an older one is ignored
+        cohortSnapshot.onClinicalDataEvent(ClinicalDataEvent.saved(saved(patientId, "heartrate", 3, "130")));
+        cohortSnapshot.onClinicalDataEvent(ClinicalDataEvent.saved(saved(patientId, "heartrate", 1, "60")));
+        assertEquals(List.of(patientId), ids("heartrate>120"));
+
+        //a delete reloads the patient from the database on the next refresh
+        ClinicalData deleted = saved(patientId, "heartrate", 3, "130");
+        cohortSnapshot.onClinicalDataEvent(ClinicalDataEvent.deleted(deleted));
+        cohortSnapshot.refresh();
+        assertEquals(List.of(patientId), ids("heartrate=90"));
+
+        cohortSnapshot.putPatient(patientId, 45);
+        assertEquals(List.of(), ids("age>50"));
+        cohortSnapshot.removePatient(patientId);
+        assertEquals(List.of(), ids("heartrate=90"));
+    }
+
+    @Test
+    void events_forPatientsPastTheEnd_growTheColumns() {
+        cohortSnapshot.rebuild();
+        int patientId = patient(80);
+
+        cohortSnapshot.putPatient(patientId, 80);
+        cohortSnapshot.onClinicalDataEvent(ClinicalDataEvent.saved(saved(patientId, "bp", 1, "150/95")));
+
+        assertEquals(List.of(patientId), ids("age>70", "bp.secondary>90"));
+    }
+
+    @Test
+    void refresh_reloadsDirtyPatientsInBatches() {
+        cohortSnapshot.rebuild();
+        List<Integer> patientIds = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            int patientId = patient(60 + i);
+            reading(patientId, "bp", 1, 120, 80.0);
+            reading(patientId, "bp", 2, 150 + i, 95.0);
+            reading(patientId, "weight", 3, 80, null);
+            patientIds.add(patientId);
+        }
+        int deleted = patientIds.remove(4);
+        jdbcTemplate.update("delete from clinicaldata where patient_id = ?", deleted);
+        jdbcTemplate.update("delete from patient where id = ?", deleted);
+        cohortSnapshot.putPatient(deleted, 64);
+
+        patientIds.forEach(cohortSnapshot::markDirty);
+        cohortSnapshot.markDirty(deleted);
+        cohortSnapshot.refresh();
+
+        assertEquals(patientIds, ids("age>=60", "bp>=150", "bp.secondary=95"));
+        assertEquals(List.of(patientIds.get(3)), ids("bp>152"));
+        assertEquals(List.of(), ids("age=64"));
+    }
+
+    @Test
+    void readingsOfUnconfiguredComponents_areIgnored() {
+        int patientId = patient(50);
+        reading(patientId, "weight", 1, 80, null);
+        cohortSnapshot.rebuild();
+        cohortSnapshot.onClinicalDataEvent(ClinicalDataEvent.saved(saved(patientId, "temperature", 2, "39")));
+        cohortSnapshot.markDirty(patientId);
+        cohortSnapshot.refresh();
+
+        assertEquals(List.of(), ids("weight>0"));
+        assertEquals(List.of(), ids("temperature>0"));
+        assertEquals(List.of(patientId), ids("age=50"));
+    }
+
+    @Test
+    void conditionParse_rejectsWhatIsNotAComparison() {
+        CohortSnapshot.Condition condition = CohortSnapshot.Condition.parse(" bp.secondary <= 90.5 ");
+
+        assertEquals("bp.secondary", condition.field());
+        assertEquals(CohortSnapshot.Operator.LE, condition.operator());
+        assertEquals(90.5, condition.operand());
+        assertThrows(IllegalArgumentException.class, () -> CohortSnapshot.Condition.parse("bp > high"));
+        assertThrows(IllegalArgumentException.class, () -> CohortSnapshot.Condition.parse("bp => 1"));
+    }
+}
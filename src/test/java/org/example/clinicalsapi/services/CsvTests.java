@@ -0,0 +1,52 @@
+package org.example.clinicalsapi.services;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class CsvTests {
+
+    @Test
+    void writeRecord_quotesOnlyWhatNeedsIt() throws Exception {
+        StringWriter out = new StringWriter();
+
+        Csv.writeRecord(out, 1, null, "", "a,b", "say \"hi\"", "two\nlines", 2.5);
+
+        assertEquals("1,,\"\",\"a,b\",\"say \"\"hi\"\"\",\"two\nlines\",2.5\n", out.toString());
+    }
+
+    @Test
+    void recordReader_readsWhatWriteRecordWrites() throws Exception {
+        StringWriter out = new StringWriter();
+        Csv.writeRecord(out, 1, null, "", "a,b", "say \"hi\"", "two\nlines");
+        Csv.writeRecord(out, "last");
+        Csv.RecordReader reader = new Csv.RecordReader(new StringReader(out.toString()));
+
+        assertEquals(Arrays.asList("1", null, "", "a,b", "say \"hi\"", "two\nlines"), reader.next());
+        assertEquals(List.of("last"), reader.next());
+        assertNull(reader.next());
+    }
+
+    @Test
+    void recordReader_acceptsCrLfAndAMissingFinalNewline() throws Exception {
+        Csv.RecordReader reader = new Csv.RecordReader(new StringReader("a,b\r\nc,d"));
+
+        assertEquals(List.of("a", "b"), reader.next());
+        assertEquals(List.of("c", "d"), reader.next());
+        assertNull(reader.next());
+    }
+
+    @Test
+    void recordReader_rejectsAnUnterminatedQuote() {
+        Csv.RecordReader reader = new Csv.RecordReader(new StringReader("a,\"b\n"));
+
+        assertThrows(IllegalArgumentException.class, reader::next);
+    }
+}
@@ -0,0 +1,110 @@
+package org.example.clinicalsapi.services;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.example.clinicalsapi.models.ClinicalData;
+import org.example.clinicalsapi.models.Patient;
+import org.example.clinicalsapi.repos.ClinicalDataRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.time.Duration;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class LatestVitalsCacheTests {
+
+    @Mock
+    private ClinicalDataRepository clinicalDataRepository;
+
+    private SimpleMeterRegistry meterRegistry;
+    private LatestVitalsCache latestVitalsCache;
+
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+        meterRegistry = new SimpleMeterRegistry();
+        latestVitalsCache = new LatestVitalsCache(clinicalDataRepository, meterRegistry, 100, Duration.ofMinutes(1));
+    }
+
+    private static ClinicalData reading(int id, String componentName, long time) {
+        Patient patient = new Patient();
+        patient.setId(1);
+        ClinicalData clinicalData = new ClinicalData();
+        clinicalData.setId(id);
+        clinicalData.setComponentName(componentName);
+        clinicalData.setMeasuredDateTime(new Date(time));
+        clinicalData.setPatient(patient);
+        return clinicalData;
+    }
+
+    @Test
+    void get_loadsOnceAndServesHitsFromMemory() {
+        ClinicalData bp = reading(1, "bp", 1_000);
+        when(clinicalDataRepository.findLatestPerComponent(1)).thenReturn(List.of(bp));
+
+        latestVitalsCache.get(1);
+        Map<String, ClinicalData> latest = latestVitalsCache.get(1);
+
+        assertEquals(Map.of("bp", bp), latest);
+        verify(clinicalDataRepository, times(1)).findLatestPerComponent(1);
+        assertEquals(1.0, meterRegistry.get("cache.gets").tag("cache", "latestVitals").tag("result", "hit").functionCounter().count());
+        assertEquals(1.0, meterRegistry.get("cache.gets").tag("cache", "latestVitals").tag("result", "miss").functionCounter().count());
+    }
+
+    @Test
+    void savedEvent_replacesOlderReadingOfCachedPatient() {
+        when(clinicalDataRepository.findLatestPerComponent(1)).thenReturn(List.of(reading(1, "bp", 1_000)));
+        latestVitalsCache.get(1);
+        ClinicalData newer = reading(2, "bp", 2_000);
+
+        latestVitalsCache.onClinicalDataEvent(ClinicalDataEvent.saved(newer));
+
+        assertEquals(newer, latestVitalsCache.get(1).get("bp"));
+        verify(clinicalDataRepository, times(1)).findLatestPerComponent(1);
+    }
+
+    @Test
+    void savedEvent_keepsNewerCachedReading() {
+        ClinicalData current = reading(2, "bp", 2_000);
+        when(clinicalDataRepository.findLatestPerComponent(1)).thenReturn(List.of(current));
+        latestVitalsCache.get(1);
+
+        latestVitalsCache.onClinicalDataEvent(ClinicalDataEvent.saved(reading(3, "bp", 1_000)));
+
+        assertEquals(current, latestVitalsCache.get(1).get("bp"));
+    }
+
+    @Test
+    void deletedEvent_evictsPatient() {
+        ClinicalData bp = reading(1, "bp", 1_000);
+        when(clinicalDataRepository.findLatestPerComponent(1)).thenReturn(List.of(bp));
+        latestVitalsCache.get(1);
+
+        latestVitalsCache.onClinicalDataEvent(ClinicalDataEvent.deleted(bp));
+        latestVitalsCache.get(1);
+
+        verify(clinicalDataRepository, times(2)).findLatestPerComponent(1);
+    }
+
+    @Test
+    void get_doesNotCacheLoadThatRacedWithWrite() {
+        ClinicalData stale = reading(1, "bp", 1_000);
+        when(clinicalDataRepository.findLatestPerComponent(1)).thenAnswer(invocation -> {
+            latestVitalsCache.onClinicalDataEvent(ClinicalDataEvent.saved(reading(2, "bp", 2_000)));
+            return List.of(stale);
+        });
+
+        latestVitalsCache.get(1);
+        latestVitalsCache.get(1);
+
+        verify(clinicalDataRepository, times(2)).findLatestPerComponent(1);
+    }
+}
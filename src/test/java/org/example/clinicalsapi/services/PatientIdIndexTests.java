@@ -0,0 +1,118 @@
+package org.example.clinicalsapi.services;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.example.clinicalsapi.repos.PatientRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.data.domain.Limit;
+
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class PatientIdIndexTests {
+
+    @Mock
+    private PatientRepository patientRepository;
+
+    private SimpleMeterRegistry meterRegistry;
+    private PatientIdIndex patientIdIndex;
+
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+        meterRegistry = new SimpleMeterRegistry();
+        patientIdIndex = new PatientIdIndex(patientRepository, meterRegistry, 2, 100, Duration.ofMinutes(1));
+    }
+
+    @Test
+    void load_readsIdsInKeysetPages() {
+        when(patientRepository.findIdsAfter(Integer.MIN_VALUE, Limit.of(2))).thenReturn(List.of(1, 2));
+        when(patientRepository.findIdsAfter(2, Limit.of(2))).thenReturn(List.of(70));
+
+        patientIdIndex.load();
+
+        assertEquals(3, patientIdIndex.size());
+        assertTrue(patientIdIndex.contains(1));
+        assertTrue(patientIdIndex.contains(70));
+        verify(patientRepository, never()).existsById(anyInt());
+        assertEquals(3.0, meterRegistry.get("clinicals.patient.index.size").gauge().value());
+    }
+
+    @Test
+    void contains_asksTheDatabaseOnce_forPatientsCreatedElsewhere() {
+        when(patientRepository.existsById(5)).thenReturn(true);
+
+        assertTrue(patientIdIndex.contains(5));
+        assertTrue(patientIdIndex.contains(5));
+
+        verify(patientRepository, times(1)).existsById(5);
+    }
+
+    @Test
+    void contains_isFalse_forUnknownPatients() {
+        when(patientRepository.existsById(5)).thenReturn(false);
+
+        assertFalse(patientIdIndex.contains(5));
+        assertFalse(patientIdIndex.contains(-1));
+        assertEquals(0, patientIdIndex.size());
+        verify(patientRepository, never()).existsById(-1);
+    }
+
+    @Test
+    void contains_remembersUnknownIds_untilThePatientIsCreatedHere() {
+        when(patientRepository.existsById(5)).thenReturn(false);
+
+        assertFalse(patientIdIndex.contains(5));
+        assertFalse(patientIdIndex.contains(5));
+        verify(patientRepository, times(1)).existsById(5);
+
+        patientIdIndex.add(5);
+        assertTrue(patientIdIndex.contains(5));
+        patientIdIndex.remove(5);
+        when(patientRepository.existsById(5)).thenReturn(true);
+        assertTrue(patientIdIndex.contains(5));
+        verify(patientRepository, times(2)).existsById(5);
+    }
+
+    @Test
+    void contains_asksAgain_onceTheMissExpires() throws InterruptedException {
+        PatientIdIndex shortLived = new PatientIdIndex(patientRepository, new SimpleMeterRegistry(), 2, 100, Duration.ofMillis(20));
+        when(patientRepository.existsById(5)).thenReturn(false).thenReturn(true);
+
+        assertFalse(shortLived.contains(5));
+        Thread.sleep(50);
+
+        assertTrue(shortLived.contains(5));
+        verify(patientRepository, times(2)).existsById(5);
+    }
+
+    @Test
+    void addAndRemove_growTheSetAndKeepTheCount() {
+        patientIdIndex.add(3);
+        patientIdIndex.add(3);
+        patientIdIndex.add(100_000);
+
+        assertEquals(2, patientIdIndex.size());
+        assertTrue(patientIdIndex.isIndexed(3));
+        assertTrue(patientIdIndex.isIndexed(100_000));
+        assertFalse(patientIdIndex.isIndexed(99_999));
+
+        patientIdIndex.remove(3);
+        patientIdIndex.remove(3);
+        patientIdIndex.remove(200_000);
+
+        assertEquals(1, patientIdIndex.size());
+        assertFalse(patientIdIndex.isIndexed(3));
+    }
+}
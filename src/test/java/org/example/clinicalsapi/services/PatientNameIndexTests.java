@@ -0,0 +1,109 @@
+package org.example.clinicalsapi.services;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.example.clinicalsapi.dto.PatientMatch;
+import org.example.clinicalsapi.repos.PatientRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.data.domain.Limit;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.when;
+
+class PatientNameIndexTests {
+
+    @Mock
+    private PatientRepository patientRepository;
+
+    private PatientNameIndex patientNameIndex;
+
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+        patientNameIndex = new PatientNameIndex(patientRepository, new SimpleMeterRegistry(), 2, 100);
+    }
+
+    private static PatientRepository.PatientName name(int id, String firstName, String lastName) {
+        return new PatientRepository.PatientName() {
+            @Override
+            public int getId() {
+                return id;
+            }
+
+            @Override
+            public String getFirstName() {
+                return firstName;
+            }
+
+            @Override
+            public String getLastName() {
+                return lastName;
+            }
+        };
+    }
+
+    private List<Integer> ids(String query) {
+        return patientNameIndex.search(query, 10).stream().map(PatientMatch::getId).toList();
+    }
+
+    @Test
+    void load_readsNamesInKeysetPages() {
+        when(patientRepository.findNamesAfter(Integer.MIN_VALUE, Limit.of(2)))
+                .thenReturn(List.of(name(1, "John", "Mccain"), name(2, "Siva", "Shankar")));
+        when(patientRepository.findNamesAfter(2, Limit.of(2))).thenReturn(List.of(name(9, "Rose", "Tanic")));
+
+        patientNameIndex.load();
+
+        assertEquals(3, patientNameIndex.size());
+        assertEquals(List.of(9), ids("tan"));
+        assertTrue(patientNameIndex.bytesPerPatient() > 0);
+    }
+
+    @Test
+    void search_ranksWholeNamesFirst_thenAlphabetically() {
+        patientNameIndex.put(1, "Simba", "White");
+        patientNameIndex.put(2, "Anthony", "Simon");
+        patientNameIndex.put(3, "Sim", "Lte");
+        patientNameIndex.put(4, "Gandhi", "Singh");
+
+        List<PatientMatch> matches = patientNameIndex.search("Sim", 10);
+
+        assertEquals(List.of(3, 1, 2), matches.stream().map(PatientMatch::getId).toList());
+        assertEquals("Anthony", matches.get(2).getFirstName());
+        assertEquals(List.of(3, 1), patientNameIndex.search("sim", 2).stream().map(PatientMatch::getId).toList());
+    }
+
+    @Test
+    void search_matchesEveryWord_ignoringCaseAccentsAndPunctuation() {
+        patientNameIndex.put(1, "John", "Mccain");
+        patientNameIndex.put(2, "John", "Bell");
+        patientNameIndex.put(3, "Seán", "O'Brien-Núñez");
+
+        assertEquals(List.of(1), ids("jo MCC"));
+        assertEquals(List.of(3), ids("sean obr"));
+        assertEquals(List.of(3), ids("nunez"));
+        assertEquals(List.of(), ids("  '- "));
+    }
+
+    @Test
+    void putAndRemove_keepTheIndexInStepWithThePatient() {
+        patientNameIndex.put(5, "Rowling", "Lte");
+        patientNameIndex.put(5, "Rowena", "Lte");
+
+        assertEquals(List.of(), ids("rowl"));
+        assertEquals(List.of(5), ids("rowe"));
+        assertEquals(List.of(5), ids("lte"));
+        assertEquals(1, patientNameIndex.size());
+
+        patientNameIndex.remove(5);
+        patientNameIndex.remove(5);
+
+        assertEquals(List.of(), ids("lte"));
+        assertEquals(0, patientNameIndex.size());
+    }
+}
@@ -0,0 +1,170 @@
+package org.example.clinicalsapi.services;
+
+import org.example.clinicalsapi.dto.ComponentTrend;
+import org.example.clinicalsapi.dto.PopulationAnalytics;
+import org.example.clinicalsapi.dto.TrendPoint;
+import org.example.clinicalsapi.models.Patient;
+import org.example.clinicalsapi.repos.ClinicalDataRepository;
+import org.example.clinicalsapi.repos.PatientRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import javax.sql.DataSource;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest
+@ActiveProfiles("test")
+class VitalsAnalyticsTests {
+
+    private static final long HOUR = 3_600_000L;
+    private static final String RANGES = "bp=..140,bp.secondary=..90,heartrate=40..120";
+
+    @Autowired
+    private DataSource dataSource;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private PatientRepository patientRepository;
+
+    @Autowired
+    private ClinicalDataRepository clinicalDataRepository;
+
+    private VitalsAnalytics vitalsAnalytics;
+    private final List<Integer> patientIds = new ArrayList<>();
+    private int nextReadingId = 1_000_000;
+
+    @BeforeEach
+    void setUp() {
+        clinicalDataRepository.deleteAllInBatch();
+        patientRepository.deleteAllInBatch();
+        patientIds.clear();
+        //chunks of three rows, so a population scan goes through several of them
+        vitalsAnalytics = new VitalsAnalytics(dataSource, transactionManager, 2, RANGES, 3, 100);
+    }
+
+    @AfterEach
+    void tearDown() {
+        vitalsAnalytics.shutdown();
+    }
+
+    private int patient() {
+        Patient patient = new Patient();
+        patient.setFirstName("First");
+        patient.setLastName("Last");
+        int id = patientRepository.save(patient).getId();
+        patientIds.add(id);
+        return id;
+    }
+
+    private void reading(int patientId, String componentName, long hour, double primary, Double secondary) {
+        jdbcTemplate.update("insert into clinicaldata (id, patient_id, component_name, component_value, measured_date_time,"
+                        + " primary_value, secondary_value, unit, version) values (?, ?, ?, ?, ?, ?, ?, ?, 0)",
+                nextReadingId++, patientId, componentName, "v", new Timestamp(hour * HOUR), primary, secondary, null);
+    }
+
+    @Test
+    void patient_computesMovingAveragesAndFlags_oldestFirst() {
+        int patientId = patient();
+        reading(patientId, "heartrate", 3, 130, null);
+        reading(patientId, "heartrate", 1, 70, null);
+        reading(patientId, "heartrate", 2, 80, null);
+        reading(patientId, "bp", 1, 120, 80.0);
+        reading(patientId, "bp", 2, 150, 95.0);
+
+        List<ComponentTrend> trends = vitalsAnalytics.patient(patientId, 2, null, null);
+
+        assertEquals(2, trends.size());
+        ComponentTrend bp = trends.get(0);
+        assertEquals("bp", bp.getComponentName());
+        assertEquals(1, bp.getOutOfRange());
+        assertEquals(87.5, bp.getLatestSecondaryMovingAverage());
+        assertEquals(95.0, bp.getSecondaryMax());
+
+        ComponentTrend heartrate = trends.get(1);
+        assertEquals(3, heartrate.getCount());
+        assertEquals(70, heartrate.getMin());
+        assertEquals(130, heartrate.getMax());
+        assertEquals(280 / 3.0, heartrate.getMean(), 1e-9);
+        assertEquals(105, heartrate.getLatestMovingAverage());
+        assertNull(heartrate.getSecondaryMean());
+        assertEquals(new Date(3 * HOUR), heartrate.getLatestMeasuredDateTime());
+        assertEquals(1, heartrate.getOutOfRange());
+        assertEquals(new Date(3 * HOUR), heartrate.getLastOutOfRange());
+        List<TrendPoint> points = heartrate.getPoints();
+        assertEquals(List.of(70.0, 75.0, 105.0), points.stream().map(TrendPoint::getMovingAverage).toList());
+        assertEquals(new Date(HOUR), points.get(0).getMeasuredDateTime());
+        assertFalse(points.get(1).isOutOfRange());
+        assertTrue(points.get(2).isOutOfRange());
+    }
+
+    @Test
+    void patient_onlyReadsTheRequestedPeriod() {
+        int patientId = patient();
+        for (int hour = 0; hour < 10; hour++) {
+            reading(patientId, "heartrate", hour, 60 + hour, null);
+        }
+
+        List<ComponentTrend> trends = vitalsAnalytics.patient(patientId, 5, new Date(2 * HOUR), new Date(5 * HOUR));
+
+        assertEquals(3, trends.get(0).getCount());
+        assertEquals(63, trends.get(0).getLatestMovingAverage());
+    }
+
+    @Test
+    void population_totalsEveryPatientAcrossChunks_andListsFlaggedOnesUpToTheLimit() {
+        for (int p = 0; p < 4; p++) {
+            int patientId = patient();
+            for (int hour = 0; hour < 5; hour++) {
+                //every other patient has one reading out of range
+                reading(patientId, "heartrate", hour, p % 2 == 1 && hour == 4 ? 150 : 70, null);
+                reading(patientId, "bp", hour, 120, 80.0);
+            }
+        }
+
+        PopulationAnalytics analytics = vitalsAnalytics.population(3, null, null, 1);
+
+        assertEquals(4, analytics.getPatients());
+        assertEquals(40, analytics.getReadings());
+        Map<String, PopulationAnalytics.ComponentTotals> components = analytics.getComponents();
+        assertEquals(4, components.get("heartrate").getPatients());
+        assertEquals(2, components.get("heartrate").getOutOfRange());
+        assertEquals(2, components.get("heartrate").getPatientsOutOfRange());
+        assertEquals(150, components.get("heartrate").getMax());
+        assertEquals(0, components.get("bp").getOutOfRange());
+        assertEquals(120, components.get("bp").getMean());
+        assertEquals(1, analytics.getFlagged().size());
+        assertEquals(patientIds.get(1), analytics.getFlagged().get(0).getPatientId());
+        assertNull(analytics.getFlagged().get(0).getPoints());
+        assertTrue(analytics.isTruncated());
+    }
+
+    @Test
+    void parseRanges_allowsOpenEnds() {
+        Map<String, VitalsAnalytics.Range> ranges = VitalsAnalytics.parseRanges(RANGES);
+
+        assertEquals(new VitalsAnalytics.Range(Double.NEGATIVE_INFINITY, 140), ranges.get("bp"));
+        assertEquals(new VitalsAnalytics.Range(40, 120), ranges.get("heartrate"));
+        assertTrue(ranges.get("bp.secondary").contains(90));
+        assertFalse(ranges.get("bp.secondary").contains(91));
+    }
+}
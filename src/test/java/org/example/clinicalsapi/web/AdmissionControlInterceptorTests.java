@@ -0,0 +1,156 @@
+package org.example.clinicalsapi.web;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.example.clinicalsapi.controllers.ClinicalDataController;
+import org.example.clinicalsapi.controllers.PatientController;
+import org.example.clinicalsapi.dto.ClinicalDataRequest;
+import org.example.clinicalsapi.web.AdmissionControlInterceptor.EndpointClass;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockAsyncContext;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.method.HandlerMethod;
+
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AdmissionControlInterceptorTests {
+
+    private static final long MS = 1_000_000L;
+
+    private MeterRegistry meterRegistry;
+    private long now;
+    private AdmissionControlInterceptor interceptor;
+    private HandlerMethod getAllPatients;
+    private HandlerMethod saveClinicalData;
+    private HandlerMethod exportClinicalData;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        meterRegistry = new SimpleMeterRegistry();
+        interceptor = new AdmissionControlInterceptor(meterRegistry, true,
+                "ClinicalDataController.exportClinicalData=BULK, PatientController.searchPatients=NONE",
+                "READ=1,WRITE=2,BULK=1", "READ=4,WRITE=4,BULK=2", "READ=100,WRITE=100,BULK=1000", 0.5,
+                Duration.ofSeconds(2), () -> now);
+        getAllPatients = new HandlerMethod(new PatientController(),
+                PatientController.class.getMethod("getAllPatients", int.class, int.class));
+        saveClinicalData = new HandlerMethod(new ClinicalDataController(),
+                ClinicalDataController.class.getMethod("saveClinicalData", ClinicalDataRequest.class));
+        exportClinicalData = new HandlerMethod(new ClinicalDataController(),
+                ClinicalDataController.class.getMethod("exportClinicalData"));
+    }
+
+    private MockHttpServletRequest admitted(String method, HandlerMethod handler) {
+        MockHttpServletRequest request = new MockHttpServletRequest(method, "/api");
+        assertTrue(interceptor.preHandle(request, new MockHttpServletResponse(), handler));
+        return request;
+    }
+
+    private void complete(MockHttpServletRequest request, long latencyMs) {
+        now += latencyMs * MS;
+        interceptor.afterCompletion(request, new MockHttpServletResponse(), null, null);
+    }
+
+    @Test
+    void overTheLimit_rejectedWith503AndRetryAfter_untilAPermitIsReleased() {
+        List<MockHttpServletRequest> reads = List.of(admitted("GET", getAllPatients), admitted("GET", getAllPatients),
+                admitted("GET", getAllPatients), admitted("GET", getAllPatients));
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        assertFalse(interceptor.preHandle(new MockHttpServletRequest("GET", "/api"), response, getAllPatients));
+        assertEquals(503, response.getStatus());
+        assertEquals("2", response.getHeader("Retry-After"));
+        assertEquals(1.0, meterRegistry.get("clinicals.admission.rejected").tag("class", "read")
+                .tag("handler", "PatientController.getAllPatients").counter().count());
+        assertEquals(4.0, meterRegistry.get("clinicals.admission.in.flight").tag("class", "read").gauge().value());
+
+        //other classes have their own limits
+        admitted("POST", saveClinicalData);
+
+        complete(reads.get(0), 10);
+        admitted("GET", getAllPatients);
+    }
+
+    @Test
+    void slowRequests_cutTheLimitOncePerTargetLatency_fastOnesGrowItBack() {
+        List<MockHttpServletRequest> reads = List.of(admitted("GET", getAllPatients), admitted("GET", getAllPatients),
+                admitted("GET", getAllPatients));
+
+        complete(reads.get(0), 150);
+        complete(reads.get(1), 10);
+        complete(reads.get(2), 10);
+        assertEquals(2, interceptor.limit(EndpointClass.READ));
+
+        //a completion that is slow again after a target latency has passed halves the limit again, down to the min
+        complete(admitted("GET", getAllPatients), 150);
+        assertEquals(1, interceptor.limit(EndpointClass.READ));
+        complete(admitted("GET", getAllPatients), 150);
+        assertEquals(1.0, meterRegistry.get("clinicals.admission.limit").tag("class", "read").gauge().value());
+
+        //fast requests at the limit add 1/limit each
+        complete(admitted("GET", getAllPatients), 10);
+        complete(admitted("GET", getAllPatients), 10);
+        complete(admitted("GET", getAllPatients), 10);
+        assertEquals(2, interceptor.limit(EndpointClass.READ));
+    }
+
+    @Test
+    void slowWrites_shedReadsAndBulk_whileWritesKeepTheirMin() {
+        for (int i = 0; i < 3; i++) {
+            complete(admitted("POST", saveClinicalData), 150);
+        }
+
+        assertEquals(2, interceptor.limit(EndpointClass.WRITE));
+        assertEquals(1, interceptor.limit(EndpointClass.READ));
+        assertEquals(1, interceptor.limit(EndpointClass.BULK));
+        admitted("GET", getAllPatients);
+        assertFalse(interceptor.preHandle(new MockHttpServletRequest("GET", "/api"), new MockHttpServletResponse(), getAllPatients));
+        admitted("POST", saveClinicalData);
+        admitted("POST", saveClinicalData);
+    }
+
+    @Test
+    void classify_configuredMethodsFirst_thenByHttpMethod() throws Exception {
+        HandlerMethod searchPatients = new HandlerMethod(new PatientController(),
+                PatientController.class.getMethod("searchPatients", String.class, int.class));
+
+        assertEquals(EndpointClass.BULK, interceptor.classify(exportClinicalData, "GET"));
+        assertEquals(EndpointClass.NONE, interceptor.classify(searchPatients, "GET"));
+        assertEquals(EndpointClass.READ, interceptor.classify(getAllPatients, "GET"));
+        assertEquals(EndpointClass.WRITE, interceptor.classify(saveClinicalData, "POST"));
+
+        //NONE is never counted
+        for (int i = 0; i < 10; i++) {
+            admitted("GET", searchPatients);
+        }
+        assertThrows(IllegalArgumentException.class, () -> new AdmissionControlInterceptor(meterRegistry, true,
+                "PatientController.searchPatients=FAST", "READ=1,WRITE=1,BULK=1", "READ=1,WRITE=1,BULK=1",
+                "READ=1,WRITE=1,BULK=1", 0.5, Duration.ofSeconds(1), () -> 0));
+    }
+
+    @Test
+    void streamedResponses_holdTheirPermitUntilTheyComplete_withoutASample() {
+        MockHttpServletRequest first = admitted("GET", exportClinicalData);
+        MockHttpServletRequest second = admitted("GET", exportClinicalData);
+        first.setAsyncSupported(true);
+        first.startAsync();
+        interceptor.afterConcurrentHandlingStarted(first, new MockHttpServletResponse(), exportClinicalData);
+        assertFalse(interceptor.preHandle(new MockHttpServletRequest("GET", "/api"), new MockHttpServletResponse(), exportClinicalData));
+
+        //the stream finishing releases the permit; a slow stream does not count against the limit
+        now += 5000 * MS;
+        ((MockAsyncContext) first.getAsyncContext()).complete();
+        assertEquals(1, interceptor.inFlight(EndpointClass.BULK));
+        assertEquals(2, interceptor.limit(EndpointClass.BULK));
+
+        //the async dispatch that ends the response finds the permit already released
+        first.setAsyncStarted(false);
+        interceptor.afterCompletion(first, new MockHttpServletResponse(), exportClinicalData, null);
+        complete(second, 10);
+        assertEquals(0, interceptor.inFlight(EndpointClass.BULK));
+    }
+}
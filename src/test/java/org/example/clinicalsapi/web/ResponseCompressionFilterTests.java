@@ -0,0 +1,152 @@
+package org.example.clinicalsapi.web;
+
+import com.github.luben.zstd.ZstdInputStream;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class ResponseCompressionFilterTests {
+
+    private final ResponseCompressionFilter filter = new ResponseCompressionFilter(true, 1024, List.of("zstd", "gzip"),
+            List.of("application/json", "application/x-ndjson"), 3, 6);
+
+    private static byte[] body(int size) {
+        StringBuilder body = new StringBuilder();
+        while (body.length() < size) {
+            body.append("{\"componentName\":\"bp\",\"componentValue\":\"120/80\"}\n");
+        }
+        return body.substring(0, size).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static MockHttpServletResponse serve(ResponseCompressionFilter filter, String acceptEncoding, String contentType,
+                                                 byte[] body) throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/api/clinicaldata");
+        request.addHeader(HttpHeaders.ACCEPT_ENCODING, acceptEncoding);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        FilterChain chain = (req, res) -> {
+            res.setContentType(contentType);
+            res.setContentLength(body.length);
+            //in two parts with a flush in between, the way a streamed body arrives
+            res.getOutputStream().write(body, 0, body.length / 2);
+            res.getOutputStream().flush();
+            res.getOutputStream().write(body, body.length / 2, body.length - body.length / 2);
+        };
+        filter.doFilter(request, response, chain);
+        return response;
+    }
+
+    private static MockHttpServletRequest get(String acceptEncoding) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/api/patients/1");
+        request.addHeader(HttpHeaders.ACCEPT_ENCODING, acceptEncoding);
+        return request;
+    }
+
+    private static byte[] decode(InputStream in) throws IOException {
+        try (in) {
+            return in.readAllBytes();
+        }
+    }
+
+    @Test
+    void negotiate_prefersTheHighestQuality_andBreaksTiesInTheConfiguredOrder() {
+        assertEquals(ResponseCompressionFilter.Encoding.ZSTD, filter.negotiate("gzip, deflate, br, zstd"));
+        assertEquals(ResponseCompressionFilter.Encoding.GZIP, filter.negotiate("zstd;q=0.5, gzip"));
+        assertEquals(ResponseCompressionFilter.Encoding.GZIP, filter.negotiate("zstd;q=0, *"));
+        assertNull(filter.negotiate("br, deflate"));
+        assertNull(filter.negotiate(null));
+    }
+
+    @Test
+    void doFilter_compressesLargeBodies_withoutTheirContentLength() throws Exception {
+        byte[] body = body(64 * 1024);
+
+        MockHttpServletResponse gzip = serve(filter, "gzip", "application/json", body);
+        MockHttpServletResponse zstd = serve(filter, "gzip, zstd", "application/x-ndjson", body);
+
+        assertEquals("gzip", gzip.getHeader(HttpHeaders.CONTENT_ENCODING));
+        assertEquals(HttpHeaders.ACCEPT_ENCODING, gzip.getHeader(HttpHeaders.VARY));
+        assertNull(gzip.getHeader(HttpHeaders.CONTENT_LENGTH));
+        assertArrayEquals(body, decode(new GZIPInputStream(new ByteArrayInputStream(gzip.getContentAsByteArray()))));
+        assertEquals("zstd", zstd.getHeader(HttpHeaders.CONTENT_ENCODING));
+        assertArrayEquals(body, decode(new ZstdInputStream(new ByteArrayInputStream(zstd.getContentAsByteArray()))));
+    }
+
+    @Test
+    void doFilter_leavesSmallBodiesAndOtherMimeTypesAlone() throws Exception {
+        byte[] small = body(512);
+        byte[] large = body(64 * 1024);
+
+        MockHttpServletResponse smallJson = serve(filter, "gzip", "application/json", small);
+        MockHttpServletResponse events = serve(filter, "gzip", "text/event-stream", large);
+
+        assertNull(smallJson.getHeader(HttpHeaders.CONTENT_ENCODING));
+        assertEquals(small.length, smallJson.getContentLength());
+        assertArrayEquals(small, smallJson.getContentAsByteArray());
+        assertNull(events.getHeader(HttpHeaders.CONTENT_ENCODING));
+        assertArrayEquals(large, events.getContentAsByteArray());
+    }
+
+    @Test
+    void doFilter_tagsEachCodingWithItsOwnETag() throws Exception {
+        byte[] small = body(512);
+        byte[] large = body(64 * 1024);
+        FilterChain tagged = (req, res) -> {
+            ((HttpServletResponse) res).setHeader(HttpHeaders.ETAG, "\"3\"");
+            res.setContentType("application/json");
+            res.getOutputStream().write(req.getParameter("small") != null ? small : large);
+        };
+
+        MockHttpServletResponse gzip = new MockHttpServletResponse();
+        filter.doFilter(get("gzip"), gzip, tagged);
+        MockHttpServletResponse zstd = new MockHttpServletResponse();
+        filter.doFilter(get("zstd"), zstd, tagged);
+        MockHttpServletResponse identity = new MockHttpServletResponse();
+        MockHttpServletRequest smallRequest = get("gzip");
+        smallRequest.setParameter("small", "true");
+        filter.doFilter(smallRequest, identity, tagged);
+
+        assertEquals("\"3-gzip\"", gzip.getHeader(HttpHeaders.ETAG));
+        assertEquals("\"3-zstd\"", zstd.getHeader(HttpHeaders.ETAG));
+        assertEquals("\"3\"", identity.getHeader(HttpHeaders.ETAG));
+        assertEquals("W/\"3-gzip\"", ResponseCompressionFilter.Encoding.GZIP.tag("W/\"3\""));
+    }
+
+    @Test
+    void doFilter_takesTheCodingOffConditionalTags_andAnswersA304WithTheTagTheClientSent() throws Exception {
+        MockHttpServletRequest request = get("gzip");
+        request.addHeader(HttpHeaders.IF_NONE_MATCH, "\"2-zstd\", \"3-gzip\"");
+        request.addHeader(HttpHeaders.IF_MATCH, "\"3-gzip\"");
+        List<String> seen = new ArrayList<>();
+        FilterChain notModified = (req, res) -> {
+            HttpServletRequest http = (HttpServletRequest) req;
+            seen.add(http.getHeader(HttpHeaders.IF_NONE_MATCH));
+            seen.add(http.getHeaders(HttpHeaders.IF_MATCH).nextElement());
+            ((HttpServletResponse) res).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            ((HttpServletResponse) res).setHeader(HttpHeaders.ETAG, "\"3\"");
+        };
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        filter.doFilter(request, response, notModified);
+
+        assertEquals(List.of("\"2\", \"3\"", "\"3\""), seen);
+        assertEquals(304, response.getStatus());
+        assertEquals("\"3-gzip\"", response.getHeader(HttpHeaders.ETAG));
+        assertEquals("*", ResponseCompressionFilter.untag("*"));
+    }
+}
@@ -0,0 +1,122 @@
+package org.example.clinicalsapi.web;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
+import com.fasterxml.jackson.dataformat.smile.databind.SmileMapper;
+import com.github.luben.zstd.ZstdInputStream;
+import org.example.clinicalsapi.models.ClinicalData;
+import org.example.clinicalsapi.models.Patient;
+import org.example.clinicalsapi.repos.ClinicalDataRepository;
+import org.example.clinicalsapi.repos.PatientRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+//the binary formats and the compression end to end, through the message converters and the filter
+@SpringBootTest
+@AutoConfigureMockMvc
+@ActiveProfiles("test")
+class ResponseFormatsTests {
+
+    private static final int READINGS = 200;
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private PatientRepository patientRepository;
+
+    @Autowired
+    private ClinicalDataRepository clinicalDataRepository;
+
+    @BeforeEach
+    void setUp() {
+        clinicalDataRepository.deleteAllInBatch();
+        patientRepository.deleteAllInBatch();
+        Patient patient = new Patient();
+        patient.setFirstName("First");
+        patient.setLastName("Last");
+        patient.setAge(40);
+        patient = patientRepository.save(patient);
+        List<ClinicalData> readings = new ArrayList<>();
+        for (int i = 0; i < READINGS; i++) {
+            ClinicalData clinicalData = new ClinicalData();
+            clinicalData.setComponentName("heartrate");
+            clinicalData.setComponentValue(String.valueOf(60 + i % 40));
+            clinicalData.setPatient(patient);
+            readings.add(clinicalData);
+        }
+        clinicalDataRepository.saveAll(readings);
+    }
+
+    private static int countValues(ObjectMapper mapper, InputStream in) throws Exception {
+        int values = 0;
+        try (var iterator = mapper.readerFor(JsonNode.class).readValues(in)) {
+            while (iterator.hasNext()) {
+                iterator.next();
+                values++;
+            }
+        }
+        return values;
+    }
+
+    @Test
+    void getAllClinicalData_isRenderedAsCborWhenAskedFor() throws Exception {
+        MockHttpServletResponse response = mockMvc.perform(get("/api/clinicaldata").param("size", "1000")
+                        .accept("application/cbor"))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType("application/cbor"))
+                .andReturn().getResponse();
+
+        JsonNode readings = new CBORMapper().readTree(response.getContentAsByteArray());
+        assertEquals(READINGS, readings.size());
+        assertEquals("heartrate", readings.get(0).get("componentName").asText());
+        //the same representation as json: spring boot writes dates as iso strings
+        assertEquals(true, readings.get(0).get("measuredDateTime").isTextual());
+    }
+
+    @Test
+    void streamClinicalData_asCompressedCborSequenceAndSmile() throws Exception {
+        MvcResult cbor = mockMvc.perform(get("/api/clinicaldata/stream").accept(BinaryFormatsConfiguration.CBOR_SEQUENCE_VALUE)
+                        .header(HttpHeaders.ACCEPT_ENCODING, "zstd"))
+                .andExpect(request().asyncStarted()).andReturn();
+        MockHttpServletResponse cborResponse = mockMvc.perform(asyncDispatch(cbor))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.CONTENT_ENCODING, "zstd"))
+                .andReturn().getResponse();
+        MvcResult smile = mockMvc.perform(get("/api/clinicaldata/stream").accept("application/x-jackson-smile")
+                        .header(HttpHeaders.ACCEPT_ENCODING, "gzip"))
+                .andExpect(request().asyncStarted()).andReturn();
+        MockHttpServletResponse smileResponse = mockMvc.perform(asyncDispatch(smile))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.CONTENT_ENCODING, "gzip"))
+                .andReturn().getResponse();
+
+        assertEquals(READINGS, countValues(new CBORMapper(),
+                new ZstdInputStream(new ByteArrayInputStream(cborResponse.getContentAsByteArray()))));
+        assertEquals(READINGS, countValues(new SmileMapper(),
+                new GZIPInputStream(new ByteArrayInputStream(smileResponse.getContentAsByteArray()))));
+    }
+}